@@ -0,0 +1,35 @@
+package controllers.pages
+
+import javax.inject.Inject
+
+import com.mohiva.play.silhouette.api.Silhouette
+import com.mohiva.play.silhouette.impl.authenticators.CookieAuthenticator
+import play.api.mvc.{ Action, AnyContent, Controller }
+import utils.{ Constants, PipelineMetrics }
+import utils.auth.{ DefaultEnv, WithAdmin }
+
+/**
+ * Operational endpoints for administrators, listed in adminEmails.
+ *
+ * @param constants Application constants.
+ * @param pipelineMetrics Metrics of the data file pipeline, downloads and caches.
+ * @param silhouette The Silhouette stack.
+ */
+class AdminController @Inject() (
+  constants: Constants,
+  pipelineMetrics: PipelineMetrics,
+  silhouette: Silhouette[DefaultEnv])
+  extends Controller {
+
+  private val admins = WithAdmin[CookieAuthenticator](
+    constants.getString("adminEmails").split(",").map(_.trim.toLowerCase).filter(_.nonEmpty).toSet)
+
+  /**
+   * All metrics, in Prometheus text exposition format.
+   *
+   * @return The metrics
+   */
+  def metrics: Action[AnyContent] = silhouette.SecuredAction(admins) { implicit request =>
+    Ok(pipelineMetrics.prometheus).as("text/plain; version=0.0.4; charset=utf-8")
+  }
+}
@@ -1,35 +1,43 @@
 package controllers.pages
 
 import javax.inject.Inject
-import javax.mail.MessagingException
 import java.io.File
-import java.net.{ URL, MalformedURLException }
-import java.nio.file.Paths
-
-import edu.dartmouth.geisel.isidro.read.CsvReader
-import edu.dartmouth.isidro.util.TextUtils
+import java.util.UUID
 
+import akka.actor.ActorSystem
+import akka.stream.Materializer
 import com.mohiva.play.silhouette.api.{ LogoutEvent, Silhouette }
+import com.mohiva.play.silhouette.api.actions.HandlerResult
 import com.mohiva.play.silhouette.impl.providers.SocialProviderRegistry
 import controllers.{ WebJarAssets, pages }
 import play.api.i18n.{ I18nSupport, MessagesApi }
-import play.api.mvc.{ Action, AnyContent, Controller }
+import play.api.http.HttpEntity
+import play.api.libs.MimeTypes
+import play.api.libs.streams.Accumulator
+import play.api.mvc.{ Action, AnyContent, AnyContentAsEmpty, BodyParser, Controller, Request, Result }
 import utils.auth.DefaultEnv
-import play.api.libs.Files.TemporaryFile
+import play.api.libs.json.Json
 import play.api.Logger
 
-import scala.concurrent.Future
-import utils.{ Mailer, MailService, Constants }
-import utils.FileUtils
+import scala.concurrent.{ ExecutionContext, Future }
+import scala.util.{ Failure, Success }
+import utils.{ ByteRange, Constants, CsvUploadParser, DownloadMetrics, FileRangeSource, Mailer, MailService }
+import jobs.FileBuildQueue
+import jobs.FileBuildQueue.BuildJob
 import forms.pages.{ NewRequestForm, RequirementForm, RequirementListData }
 import models.services.{ RequestService }
-import models.{ DataRequest, RequestRequirement, User }
+import models.{ DataRequest, RequestRequirement, UniqueFile }
 
 import scala.concurrent.ExecutionContext.Implicits.global
 
 /**
  * The basic application controller.
  *
+ * @param fileBuildQueue The background builder of data files.
+ * @param csvUploadParser Parser of uploaded csv files.
+ * @param downloadMetrics Throughput of file downloads.
+ * @param system The actor system providing the download dispatcher.
+ * @param materializer Materializer of upload bodies.
  * @param messagesApi The Play messages API.
  * @param silhouette The Silhouette stack.
  * @param socialProviderRegistry The social provider registry.
@@ -39,7 +47,11 @@ class ApplicationController @Inject() (
   implicit
   val constants: Constants,
   requestService: RequestService,
-  fileUtils: FileUtils,
+  fileBuildQueue: FileBuildQueue,
+  csvUploadParser: CsvUploadParser,
+  downloadMetrics: DownloadMetrics,
+  system: ActorSystem,
+  materializer: Materializer,
   implicit val mailService: MailService,
   val messagesApi: MessagesApi,
   silhouette: Silhouette[DefaultEnv],
@@ -47,6 +59,8 @@ class ApplicationController @Inject() (
   implicit val webJarAssets: WebJarAssets)
   extends Controller with I18nSupport {
 
+  private val downloadContext: ExecutionContext = system.dispatchers.lookup(FileRangeSource.DispatcherId)
+
   /**
    * Handles the index action.
    *
@@ -76,13 +90,14 @@ class ApplicationController @Inject() (
   }
 
   /**
-   * View list of requests
+   * View a page of the list of requests
    *
    * @param showClosed False=>Show only closed requests.  True=>Show only open requests
+   * @param after Id of the last request of the previous page, if any
    */
-  def requests(showClosed: Boolean) = silhouette.SecuredAction.async { implicit request =>
-    requestService.retrieve(showClosed).map(req =>
-      Ok(views.html.brokerRequests(request.identity, req.toList, showClosed)))
+  def requests(showClosed: Boolean, after: Option[Int]) = silhouette.SecuredAction.async { implicit request =>
+    requestService.retrieve(showClosed, after, constants.getInt("pageSize")).map(page =>
+      Ok(views.html.brokerRequests(request.identity, page, showClosed, after.isDefined)))
   }
 
   /**
@@ -230,42 +245,131 @@ class ApplicationController @Inject() (
   }
 
   /**
-   * Download and delete a request's data file.
+   * Download and delete a request's data file.  Supports resuming through Range requests, and
+   * conditional requests using the file's checksum as its ETag.  Every range sent is counted against
+   * the link, which may send the file's size plus downloadSlack in all.  The link is consumed, the
+   * password mailed and the file deleted once a transfer completes with a file's worth sent.
    *
    * @param uniqueName: Secure name from download link to identify file.
    */
-  def downloadFile(uniqueName: String) = Action.async {
-    requestService.getUniqueFileByName(uniqueName).map(res => res.headOption match {
+  def downloadFile(uniqueName: String) = Action.async { implicit request =>
+    requestService.getUniqueFileByName(uniqueName).flatMap(res => res.headOption match {
       case Some((uf, req)) => {
-        val isFileExpired = uf.isFileExpired(constants.getInt("fileExpiration"))
         val filePath = new File(uf.fileLocation)
-        val fileName = uf.fileName
 
         if (uf.isFileExpired(constants.getInt("fileExpiration"))) {
           Logger.debug(messagesApi("download.deleted", uf.fileLocation))
-          Redirect(pages.routes.ApplicationController.index).flashing(("error" -> messagesApi("download.expired")))
-        } else if (!filePath.exists || uf.isDeleted) {
-          Logger.debug(messagesApi("download.missing", uf.fileLocation))
-          Redirect(pages.routes.ApplicationController.index).flashing(("error" -> messagesApi("download.expired")))
+          Future.successful(Redirect(pages.routes.ApplicationController.index).flashing(("error" -> messagesApi("download.expired"))))
         } else {
-          val password = uf.password
-          val fileToServe = TemporaryFile(filePath)
-          if (password.isDefined) {
-            Mailer.sendPasswordEmail(req.email, password.get)
+          Future(if (filePath.exists && !uf.isDeleted) Some(filePath.length) else None)(downloadContext).flatMap {
+            case Some(fileLength) => serveFile(uf, req, filePath, fileLength)
+            case _ =>
+              Logger.debug(messagesApi("download.missing", uf.fileLocation))
+              Future.successful(Redirect(pages.routes.ApplicationController.index).flashing(("error" -> messagesApi("download.expired"))))
           }
-          requestService.log(req.id, "---", messagesApi("download.downloaded"))
-          requestService.setState(req.id, constants.DOWNLOADED)
-          requestService.setDeleted(req.id)
-          Ok.sendFile(fileToServe.file, onClose = () => { fileToServe.clean })
         }
       }
       case _ => {
         Logger.error(s"no file: $uniqueName")
-        Redirect(pages.routes.ApplicationController.index).flashing(("error" -> messagesApi("download.expired")))
+        Future.successful(Redirect(pages.routes.ApplicationController.index).flashing(("error" -> messagesApi("download.expired"))))
       }
     })
   }
 
+  /**
+   * Stream a data file, or the requested range of it.
+   *
+   * @param uf The file to serve
+   * @param req The file's request
+   * @param filePath The stored file
+   * @param fileLength Size of the stored file
+   * @return Full, partial or not modified response
+   */
+  private def serveFile(uf: UniqueFile, req: DataRequest, filePath: File, fileLength: Long)(implicit request: Request[AnyContent]): Future[Result] = {
+    val etag = etagOf(uf)
+    if (request.headers.get(IF_NONE_MATCH).exists(_.split(",").map(_.trim).exists(t => t == etag || t == "*"))) {
+      Future.successful(NotModified.withHeaders(ETAG -> etag))
+    } else {
+      val range = request.headers.get(RANGE)
+        .filter(_ => request.headers.get(IF_RANGE).forall(_ == etag))
+        .flatMap(ByteRange.parse(_, fileLength))
+      range match {
+        case Some(r) if !r.isSatisfiable(fileLength) =>
+          Future.successful(Status(REQUESTED_RANGE_NOT_SATISFIABLE).withHeaders(CONTENT_RANGE -> s"bytes */$fileLength"))
+        case Some(r) =>
+          streamFile(uf, req, filePath, fileLength, r, PARTIAL_CONTENT)
+            .map(_.withHeaders(CONTENT_RANGE -> s"bytes ${r.start}-${r.end}/$fileLength"))
+        case _ =>
+          streamFile(uf, req, filePath, fileLength, ByteRange(0, fileLength - 1), OK)
+      }
+    }
+  }
+
+  /**
+   * @param uf A data file
+   * @return ETag of the file, derived from its checksum
+   */
+  private def etagOf(uf: UniqueFile) = "\"" + uf.fileName + "\""
+
+  /**
+   * Stream a range of a data file, once it has been counted against the link.  When the stream ends
+   * the part of the range not sent is given back, and the link is consumed if the transfer completed
+   * with a file's worth sent.
+   *
+   * @param uf The file to serve
+   * @param req The file's request
+   * @param filePath The stored file
+   * @param fileLength Size of the stored file
+   * @param range The range to send
+   * @param status Status of the response
+   * @return Streamed response, or a redirect if the link has been consumed or has sent all it may
+   */
+  private def streamFile(uf: UniqueFile, req: DataRequest, filePath: File, fileLength: Long, range: ByteRange, status: Int)(implicit request: Request[AnyContent]): Future[Result] = {
+    val allowance = fileLength + constants.getBytes("downloadSlack")
+    requestService.reserveDownload(uf.uniqueName, range.length, allowance).map {
+      case false =>
+        Logger.warn(s"Download ${uf.uniqueName} refused: link consumed or allowance of $allowance bytes used")
+        Redirect(pages.routes.ApplicationController.index).flashing(("error" -> messagesApi("download.expired")))
+      case true =>
+        val started = System.nanoTime
+        val source = FileRangeSource(filePath.toPath, range) { (sent, complete) =>
+          downloadMetrics.record(uf.uniqueName, sent, System.nanoTime - started, complete)
+          requestService.settleDownload(uf.uniqueName, range.length - sent).flatMap { counted =>
+            if (complete && counted >= fileLength) consumeDownload(uf, req) else Future.successful(())
+          }.onFailure {
+            case e => Logger.error(s"Couldn't settle download ${uf.uniqueName}", e)
+          }
+        }(downloadContext)
+        val contentType = MimeTypes.forFileName(filePath.getName).getOrElse(BINARY)
+        Status(status).sendEntity(HttpEntity.Streamed(source, Some(range.length), Some(contentType)))
+          .withHeaders(
+            ACCEPT_RANGES -> "bytes",
+            ETAG -> etagOf(uf),
+            CONTENT_DISPOSITION -> s"""attachment; filename="${filePath.getName}"""")
+    }
+  }
+
+  /**
+   * Consume a download link whose file has been downloaded, logging the download in the same
+   * transaction, then mail its password and reclaim the file.  Stored content the file shares with
+   * other links is only deleted with its last reference.  Only the first of concurrent transfers
+   * completing the download consumes the link, so the password is mailed once.
+   *
+   * @param uf The downloaded file
+   * @param req The file's request
+   * @return Future completing once the link is consumed and the file reclaimed
+   */
+  private def consumeDownload(uf: UniqueFile, req: DataRequest)(implicit request: Request[AnyContent]): Future[Unit] = {
+    requestService.consumeFile(uf, constants.DOWNLOADED, "---", messagesApi("download.downloaded")).flatMap { consumed =>
+      if (consumed) {
+        uf.password.foreach(pw => Mailer.sendPasswordEmail(req.email, pw))
+        requestService.reclaimFiles(Seq(uf))
+      } else {
+        Future.successful(())
+      }
+    }(downloadContext)
+  }
+
   /**
    *  Form to edit (close) request that has been downloaded.
    *
@@ -288,17 +392,19 @@ class ApplicationController @Inject() (
   }
 
   /**
-   *  View log of request activity
+   *  View a page of the log of request activity
    *
    * @param rid The request's id
+   * @param after Id of the last log entry of the previous page, if any
    */
-  def viewLog(rid: Int) = silhouette.SecuredAction.async { implicit request =>
-    requestService.getLog(rid).map {
+  def viewLog(rid: Int, after: Option[Long]) = silhouette.SecuredAction.async { implicit request =>
+    requestService.getLog(rid, after, constants.getInt("pageSize")).map {
       case (lg, req) => {
         Ok(views.html.request.viewLog(
           request.identity,
           req.head,
-          lg))
+          lg,
+          after.isDefined))
       }
     }
   }
@@ -329,8 +435,10 @@ class ApplicationController @Inject() (
           })
         } else {
           val fullReq = req.copy(id = rid, status = constants.NEWREQUEST)
-          requestService.log(rid, request.identity.userID.toString, messagesApi("request.edited", fullReq.logString))
-          requestService.update(rid, fullReq).map(_ => Redirect(pages.routes.ApplicationController.requests(false)))
+          requestService.update(rid, fullReq).map(_ => {
+            requestService.log(rid, request.identity.userID.toString, messagesApi("request.edited", fullReq.logString))
+            Redirect(pages.routes.ApplicationController.requests(false))
+          })
         }
       }
     )
@@ -348,12 +456,13 @@ class ApplicationController @Inject() (
       },
       requirementData => {
         val rrs = requirementData.reqs.map(new RequestRequirement(rid, _))
-        requestService.deleteRequirements(rid)
-        requestService.getRequirementTitles(requirementData.reqs).map(reqText =>
+        for {
+          _ <- requestService.replaceRequirements(rid, rrs)
+          reqText <- requestService.getRequirementTitles(requirementData.reqs)
+        } yield {
           requestService.log(rid, request.identity.userID.toString, messagesApi("request.requirements.edited", reqText.mkString("\n")))
-        )
-        requestService.setState(rid, constants.AWAITINGREQUIREMENTS)
-        requestService.addRequirements(rrs).map(_ => Redirect(pages.routes.ApplicationController.requests(false)))
+          Redirect(pages.routes.ApplicationController.requests(false))
+        }
       }
     )
   }
@@ -371,19 +480,16 @@ class ApplicationController @Inject() (
       requirementData => {
         val complete = requirementData.reqs.map(_.toInt)
 
-        // Update db for all complete and incomplete requirements for this request
-        requestService.updateProgress(rid, complete)
-
-        // Log requirement progress
-        requestService.getRequirementProgress(rid).map {
+        // Update db for all complete and incomplete requirements for this request, and the request
+        // state based on whether any requirements are left incomplete
+        requestService.updateProgress(rid, complete).map {
           case (_, prog) =>
             {
+              // Log requirement progress
               // Create strings containing the names of all complete and incomplete requirements for this request
               // prog._2 => "complete" boolean, prog._3 => "name" string
               val completeList = prog.filter(_._2).map(_._3).mkString("\n")
               val incompleteList = prog.filter(!_._2).map(_._3).mkString("\n")
-              // Update request state based on whether any requirements are left incomplete
-              requestService.setState(rid, if (incompleteList.isEmpty) constants.READYTOSEND else constants.AWAITINGREQUIREMENTS)
               requestService.log(rid, request.identity.userID.toString, messagesApi("request.progress", completeList, incompleteList))
               Redirect(pages.routes.ApplicationController.requests(false))
             }
@@ -393,105 +499,86 @@ class ApplicationController @Inject() (
   }
 
   /**
-   * Form handler for request data upload form.  Builds xlsx file and emails researcher with secure download link.
+   * Body parser that authenticates the request before parsing its body.  A request that is not
+   * authenticated gets the same result as from a secured action, and its body is never read.
    *
-   * @param rid The request's id
+   * @param parser The parser of authenticated bodies
+   * @return The authenticating body parser
    */
-  def handleFileUpload(rid: Int) = silhouette.SecuredAction(parse.multipartFormData) { implicit request =>
-    val logEntry = new StringBuilder()
-
-    val params = request.body.asFormUrlEncoded
-
-    request.body.file("dataFile").map { dataFile =>
-      try {
-        val filesPath = Paths.get(constants.getString("outputDir"), rid.toString).toString
-        val csvPath = Paths.get(filesPath, constants.getString("outputCsv")).toString
-        val csvFile = new File(csvPath)
-        val xlsxPath = Paths.get(filesPath, constants.getString("outputXlsx")).toString
-        val filesDir = new File(filesPath)
-        filesDir.mkdirs()
-        dataFile.ref.moveTo(csvFile)
-
-        val csvContents = CsvReader.read(csvPath)
-        csvFile.delete()
-
-        val uniqueFile = fileUtils.buildFile(rid, xlsxPath, csvContents, logEntry,
-          params.contains("fingerprint"),
-          params.contains("watermark"),
-          params.contains("signature"),
-          params.contains("encrypt"))
-
-        filesDir.delete()
-
-        requestService.insert(uniqueFile)
+  private def authenticated[A](parser: BodyParser[A]): BodyParser[A] = BodyParser { header =>
+    implicit val request = Request(header, AnyContentAsEmpty)
+    Accumulator.flatten(silhouette.SecuredRequestHandler { secured =>
+      Future.successful(HandlerResult(Ok, Some(secured.identity)))
+    }.map {
+      case HandlerResult(_, Some(_)) => parser(header)
+      case HandlerResult(result, None) => Accumulator.done[Either[Result, A]](Left(result))
+    })(materializer)
+  }
 
-        logEntry.append(s"File: ${uniqueFile.fileLocation}\n")
-        if (params.contains("notes")) {
-          logEntry.append(s"---Notes---\n${params("notes").head}\n")
-        }
-        logEntry.append("---PHI---\n")
-        params.filter(_._1.startsWith("phi")).map(p => logEntry.append(s"${p._2.head}\n"))
-        if (params.contains("other") && (params.get("other") != None)) {
-          logEntry.append(s"Other phi: ${params.get("other").get.head}\n")
+  /**
+   * Form handler for request data upload form.  The data file is parsed and fingerprinted while it is
+   * uploaded, once the request is authenticated, then the xlsx file is queued to be built in the
+   * background; the researcher is emailed a secure download link once it is ready.
+   *
+   * @param rid The request's id
+   */
+  def handleFileUpload(rid: Int) = silhouette.SecuredAction(authenticated(csvUploadParser.multipartCsv("dataFile"))) { implicit request =>
+    request.body.file("dataFile").filter(_.filename.nonEmpty).map(_.ref) match {
+      case Some(Success(data)) =>
+        try {
+          fileBuildQueue.submit(BuildJob(rid, data, request.body.asFormUrlEncoded, request.identity)) match {
+            case Right(jobId) =>
+              Redirect(pages.routes.ApplicationController.requests(false)).flashing("success" -> messagesApi("build.queued", jobId))
+            case Left(error) =>
+              Redirect(pages.routes.ApplicationController.sendFile(rid)).flashing("error" -> error)
+          }
+        } catch {
+          case e: Exception => Redirect(pages.routes.ApplicationController.requests(false)).flashing("error" -> messagesApi(e.getMessage))
         }
-        sendDownloadEmail(rid, uniqueFile.uniqueName, request.identity)
-        requestService.log(rid, request.identity.userID.toString, s"Send download link:\n${logEntry.toString().trim()}")
-        requestService.setState(rid, constants.AWAITINGDOWNLOAD)
-        Redirect(pages.routes.ApplicationController.requests(false)).flashing("success" -> messagesApi("download.mailed"))
-      } catch {
-        case e: Exception => Redirect(pages.routes.ApplicationController.requests(false)).flashing("error" -> messagesApi(e.getMessage))
-      }
-    }.getOrElse {
-      Redirect(pages.routes.ApplicationController.sendFile(rid)).flashing("error" -> messagesApi("error.chooseFile"))
+      case Some(Failure(e)) =>
+        Logger.warn(s"Upload for request $rid could not be parsed", e)
+        Redirect(pages.routes.ApplicationController.sendFile(rid)).flashing("error" -> messagesApi("error.csvParse", e.getMessage))
+      case _ =>
+        Redirect(pages.routes.ApplicationController.sendFile(rid)).flashing("error" -> messagesApi("error.chooseFile"))
     }
 
   }
 
   /**
-   * Form handler for withdrawing a request's uploaded data file.
+   * Status of a data file build job, as JSON.
    *
    * @param rid The request's id
+   * @param jobId Id of the build job
    */
-  def handleWithdrawFile(rid: Int) = silhouette.SecuredAction.async { implicit request =>
-    requestService.getUniqueFiles(rid).map {
-      case (uf, req) => {
-        uf.foreach(_.delete)
-        requestService.setDeleted(rid)
-        requestService.setState(rid, constants.READYTOSEND)
-        uf.foreach(f =>
-          requestService.log(rid, request.identity.userID.toString, messagesApi("request.withdrawn", f.fileLocation))
-        )
-        Redirect(pages.routes.ApplicationController.requests(false))
-      }
-      case _ => {
-        Logger.error(messagesApi("request.no.file", rid))
-        Redirect(pages.routes.ApplicationController.requests(false)).flashing(("error" -> messagesApi("request.no.file", rid)))
-      }
+  def buildStatus(rid: Int, jobId: UUID) = silhouette.SecuredAction { implicit request =>
+    fileBuildQueue.status(jobId).filter(_.rid == rid) match {
+      case Some(status) => Ok(Json.toJson(status))
+      case _ => NotFound(Json.obj("id" -> jobId.toString, "rid" -> rid))
     }
   }
 
   /**
-   * Send an email with the data file download link.
+   * Form handler for withdrawing a request's uploaded data file.
    *
    * @param rid The request's id
-   * @param uniqueName Data file identifier
-   * @param uid Signed in user's id
-   * @throws MessagingException If thrown by mailHandler
-   * @throws MalformedURLException If resulting URL is malformed
    */
-  @throws(classOf[MessagingException])
-  @throws(classOf[MalformedURLException])
-  private def sendDownloadEmail(rid: Int, uniqueName: String, uid: User): Unit = {
-    requestService.load(rid).map(dr => {
-      dr.headOption match {
-        case Some(theRequest) => {
-          val url = new URL(TextUtils.formatText("%s/downloads/%s", constants.getString("serverName"), uniqueName))
-          val mailTxt = Mailer.sendDownloadEmail(theRequest.email, url.toString)
-          requestService.log(rid, uid.userID.toString, s"Mail sent to ${theRequest.email}:\n$mailTxt")
-        }
-        case _ => Unit
+  def handleWithdrawFile(rid: Int) = silhouette.SecuredAction.async { implicit request =>
+    requestService.getUniqueFiles(rid).flatMap {
+      case (uf, req) => {
+        requestService.setDeleted(rid, constants.READYTOSEND)
+          .flatMap(_ => {
+            uf.foreach(f =>
+              requestService.log(rid, request.identity.userID.toString, messagesApi("request.withdrawn", f.fileLocation))
+            )
+            requestService.reclaimFiles(uf)
+          })
+          .map(_ => Redirect(pages.routes.ApplicationController.requests(false)))
       }
-    })
+      case _ => {
+        Logger.error(messagesApi("request.no.file", rid))
+        Future.successful(Redirect(pages.routes.ApplicationController.requests(false)).flashing(("error" -> messagesApi("request.no.file", rid))))
+      }
+    }
   }
 
   /**
@@ -500,9 +587,10 @@ class ApplicationController @Inject() (
    * @param rid The request's id
    */
   def handleClose(rid: Int) = silhouette.SecuredAction.async { implicit request =>
-    requestService.log(rid, request.identity.userID.toString, messagesApi("request.close"))
-    requestService.setState(rid, constants.CLOSED)
-    Future.successful(Redirect(pages.routes.ApplicationController.requests(false)))
+    requestService.setState(rid, constants.CLOSED).map(_ => {
+      requestService.log(rid, request.identity.userID.toString, messagesApi("request.close"))
+      Redirect(pages.routes.ApplicationController.requests(false))
+    })
   }
 
 }
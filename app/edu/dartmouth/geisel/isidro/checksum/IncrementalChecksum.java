@@ -0,0 +1,270 @@
+package edu.dartmouth.geisel.isidro.checksum;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes the same SHA-512 fingerprint as {@link ExcelChecksum} one row at a
+ * time. Each row is rendered as a CSV line into a reusable character buffer,
+ * encoded into a reusable byte buffer and fed to the digest, so rows can be
+ * pushed while a file is being read or written and the whole CSV is never
+ * held in memory.
+ *
+ * @author Patrick Eads
+ */
+public final class IncrementalChecksum
+{
+    /**
+     * Checksum algorithm.
+     */
+    private static final String SHA512 = "sha-512";
+    /**
+     * Size of the encoding buffers, and the amount of row text gathered
+     * before it is handed to the digest.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Digest receiving the encoded rows.
+     */
+    private final MessageDigest md;
+    /**
+     * Encoder matching the charset used to render the rows as bytes.
+     */
+    private final CharsetEncoder encoder;
+    /**
+     * Reusable buffer of encoded bytes.
+     */
+    private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+    /**
+     * Reusable buffer of row text not yet encoded.
+     */
+    private char[] chars = new char[BUFFER_SIZE];
+    /**
+     * Number of characters used in chars.
+     */
+    private int charsCount;
+    /**
+     * Number of rows added since the last digest.
+     */
+    private long rowsCount;
+
+    /**
+     * Create a checksum that encodes rows with the platform default charset,
+     * as {@link ExcelChecksum#checksum(java.util.List)} does.
+     *
+     * @throws NoSuchAlgorithmException
+     */
+    public IncrementalChecksum() throws NoSuchAlgorithmException
+    {
+        this(Charset.defaultCharset());
+    }
+
+    /**
+     * Create a checksum that encodes rows with the given charset.
+     *
+     * @param charset
+     *            Charset used to render rows as bytes.
+     * @throws NoSuchAlgorithmException
+     */
+    public IncrementalChecksum(final Charset charset)
+            throws NoSuchAlgorithmException
+    {
+        md = MessageDigest.getInstance(SHA512);
+        // String.getBytes replaces anything it cannot encode, so do the same.
+        encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Add a row to the checksum.
+     *
+     * @param row
+     *            cells of the row in column order. A null cell counts as an
+     *            empty one.
+     */
+    public void update(final Iterable<String> row)
+    {
+        boolean first = true;
+        for (final String cell : row)
+        {
+            if (!first)
+            {
+                append(',');
+            }
+            appendCell(cell);
+            first = false;
+        }
+        endRow();
+    }
+
+    /**
+     * Add a row to the checksum.
+     *
+     * @param cells
+     *            array holding the cells of the row in column order.
+     * @param count
+     *            number of cells of the array belonging to the row.
+     */
+    public void update(final String[] cells, final int count)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            if (i > 0)
+            {
+                append(',');
+            }
+            appendCell(cells[i]);
+        }
+        endRow();
+    }
+
+    /**
+     * @return number of rows added since the last digest.
+     */
+    public long getRowCount()
+    {
+        return rowsCount;
+    }
+
+    /**
+     * Complete the checksum and reset this object for reuse.
+     *
+     * @return hex String of the SHA-512 hash of all rows added.
+     */
+    public String digest()
+    {
+        encodeChars();
+        rowsCount = 0;
+        return String.format("%02x", new BigInteger(1, md.digest()));
+    }
+
+    /**
+     * Render a cell, quoting it if it contains a separator, quote or line
+     * break and doubling any quotes inside it.
+     *
+     * @param cell
+     *            String content of the cell.
+     */
+    private void appendCell(final String cell)
+    {
+        if (cell == null)
+        {
+            return;
+        }
+        final int length = cell.length();
+        boolean special = false;
+        for (int i = 0; i < length && !special; i++)
+        {
+            final char c = cell.charAt(i);
+            special = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!special)
+        {
+            ensureCapacity(length);
+            cell.getChars(0, length, chars, charsCount);
+            charsCount += length;
+            return;
+        }
+        ensureCapacity(length + 2);
+        chars[charsCount++] = '"';
+        for (int i = 0; i < length; i++)
+        {
+            final char c = cell.charAt(i);
+            if (c == '"')
+            {
+                append('"');
+            }
+            append(c);
+        }
+        append('"');
+    }
+
+    /**
+     * Terminate the current row and hand the gathered text to the digest once
+     * the buffer is full. Rows end on a complete character, so the text never
+     * splits a surrogate pair.
+     */
+    private void endRow()
+    {
+        append('\n');
+        rowsCount++;
+        if (charsCount >= BUFFER_SIZE)
+        {
+            encodeChars();
+        }
+    }
+
+    /**
+     * Append a single character to the row text.
+     *
+     * @param c
+     *            character to append.
+     */
+    private void append(final char c)
+    {
+        ensureCapacity(1);
+        chars[charsCount++] = c;
+    }
+
+    /**
+     * Grow the row text buffer so it can hold the given number of additional
+     * characters.
+     *
+     * @param extra
+     *            number of characters about to be appended.
+     */
+    private void ensureCapacity(final int extra)
+    {
+        final int needed = charsCount + extra;
+        if (needed > chars.length)
+        {
+            final char[] grown = new char[Math.max(needed, chars.length * 2)];
+            System.arraycopy(chars, 0, grown, 0, charsCount);
+            chars = grown;
+        }
+    }
+
+    /**
+     * Encode the gathered row text and feed it to the digest.
+     */
+    private void encodeChars()
+    {
+        final CharBuffer in = CharBuffer.wrap(chars, 0, charsCount);
+        encoder.reset();
+        CoderResult result;
+        do
+        {
+            result = encoder.encode(in, bytes, true);
+            drainBytes();
+        } while (result.isOverflow());
+        while (encoder.flush(bytes).isOverflow())
+        {
+            drainBytes();
+        }
+        drainBytes();
+        charsCount = 0;
+        if (chars.length > BUFFER_SIZE * 2)
+        {
+            // do not hold on to the buffer grown for an unusually wide row
+            chars = new char[BUFFER_SIZE];
+        }
+    }
+
+    /**
+     * Feed the encoded bytes to the digest and clear the byte buffer.
+     */
+    private void drainBytes()
+    {
+        md.update(bytes.array(), 0, bytes.position());
+        bytes.clear();
+    }
+}
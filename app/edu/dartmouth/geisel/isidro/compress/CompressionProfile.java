@@ -0,0 +1,68 @@
+package edu.dartmouth.geisel.isidro.compress;
+
+import java.util.zip.Deflater;
+
+/**
+ * How the parts of a workbook package are compressed, trading the size of
+ * the package against the time spent compressing it.
+ *
+ * @author Patrick Eads
+ */
+public enum CompressionProfile
+{
+    /**
+     * Parts are stored without compression.
+     */
+    STORE(Deflater.NO_COMPRESSION, false),
+    /**
+     * Parts are deflated at the fastest level, on one thread.
+     */
+    FASTEST(Deflater.BEST_SPEED, false),
+    /**
+     * Parts are deflated at the default level, in parallel blocks.
+     */
+    BALANCED(Deflater.DEFAULT_COMPRESSION, true),
+    /**
+     * Parts are deflated at the best level, in parallel blocks.
+     */
+    SMALLEST(Deflater.BEST_COMPRESSION, true);
+
+    /**
+     * Deflate level.
+     */
+    private final int level;
+    /**
+     * Whether large parts are deflated in parallel blocks.
+     */
+    private final boolean parallel;
+
+    private CompressionProfile(final int level, final boolean parallel)
+    {
+        this.level = level;
+        this.parallel = parallel;
+    }
+
+    /**
+     * @return deflate level of the profile.
+     */
+    public int getLevel()
+    {
+        return level;
+    }
+
+    /**
+     * @return true if parts are deflated in parallel blocks.
+     */
+    public boolean isParallel()
+    {
+        return parallel;
+    }
+
+    /**
+     * @return true if parts are stored without compression.
+     */
+    public boolean isStored()
+    {
+        return level == Deflater.NO_COMPRESSION;
+    }
+}
@@ -0,0 +1,691 @@
+package edu.dartmouth.geisel.isidro.compress;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import edu.dartmouth.geisel.isidro.util.ScratchFiles;
+
+/**
+ * Writes a ZIP archive whose entries are compressed as a
+ * {@link CompressionProfile} sets. It is used like a
+ * {@link java.util.zip.ZipOutputStream}: each entry is started with
+ * {@link #putNextEntry(String)}, its data written, and the archive completed
+ * with {@link #finish()}.
+ * <p>
+ * Deflated entries are followed by a data descriptor, as with
+ * ZipOutputStream. Stored entries are spooled so their sizes and CRC precede
+ * their data, as readers of streamed packages require.
+ * <p>
+ * With a parallel profile, the data of an entry is cut into blocks of
+ * {@link #BLOCK_SIZE} bytes deflated concurrently on a fork-join pool. Each
+ * block is primed with the last 32 KiB of the block before it, and all but
+ * the last end with a sync flush, so the compressed blocks join into a single
+ * deflate stream that any reader inflates. Zip64 records are written for
+ * entries and archives beyond the limits of the ZIP format.
+ *
+ * @author Patrick Eads
+ */
+public final class ProfiledZipOutputStream extends OutputStream
+{
+    /**
+     * Size of the blocks deflated in parallel.
+     */
+    public static final int BLOCK_SIZE = 262144;
+    /**
+     * Size of the deflate window, primed from the previous block.
+     */
+    private static final int DICTIONARY_SIZE = 32768;
+    /**
+     * Size of the buffers receiving deflated data.
+     */
+    private static final int BUFFER_SIZE = 65536;
+    /**
+     * Most bytes of a stored entry spooled in memory before it is spooled to
+     * a temporary file instead.
+     */
+    private static final int SPOOL_MEMORY_LIMIT = 8 * 1024 * 1024;
+    /**
+     * Largest size or offset of the ZIP format before Zip64 records are
+     * needed.
+     */
+    private static final long ZIP32_LIMIT = 0xFFFFFFFFL;
+    /**
+     * Most entries of the ZIP format before Zip64 records are needed.
+     */
+    private static final int ZIP16_LIMIT = 0xFFFF;
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int DATA_DESCRIPTOR = 0x08074b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int ZIP64_END = 0x06064b50;
+    private static final int ZIP64_LOCATOR = 0x07064b50;
+    private static final int END = 0x06054b50;
+    private static final short ZIP64_EXTRA = 0x0001;
+    private static final short VERSION = 20;
+    private static final short ZIP64_VERSION = 45;
+    private static final short DESCRIPTOR_FLAG = 0x0008;
+    private static final short UTF8_FLAG = 0x0800;
+    private static final short STORED = 0;
+    private static final short DEFLATED = 8;
+
+    /**
+     * Written entry.
+     */
+    private static final class Entry
+    {
+        private final byte[] name;
+        private final short method;
+        private long offset;
+        private long crc;
+        private long size;
+        private long compressedSize;
+
+        private Entry(final String name, final short method)
+        {
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            this.method = method;
+        }
+
+        private short flags()
+        {
+            return (short) (method == DEFLATED ? UTF8_FLAG | DESCRIPTOR_FLAG
+                    : UTF8_FLAG);
+        }
+
+        private boolean isZip64()
+        {
+            return size >= ZIP32_LIMIT || compressedSize >= ZIP32_LIMIT
+                    || offset >= ZIP32_LIMIT;
+        }
+    }
+
+    private final OutputStream out;
+    private final CompressionProfile profile;
+    private final ForkJoinPool pool;
+    private final List<Entry> entries = new ArrayList<>();
+    /**
+     * DOS time and date of all entries.
+     */
+    private final int dosTime = dosTime(System.currentTimeMillis());
+    private final CRC32 crc = new CRC32();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final byte[] single = new byte[1];
+    /**
+     * Bytes written to the archive so far.
+     */
+    private long written;
+    /**
+     * Entry being written, if any.
+     */
+    private Entry entry;
+    /**
+     * Deflater of the entry being written, unless it is stored or deflated
+     * in parallel.
+     */
+    private Deflater deflater;
+    /**
+     * Spool of the stored entry being written.
+     */
+    private ByteArrayOutputStream spool;
+    /**
+     * File the stored entry being written is spooled to, once it outgrows
+     * memory.
+     */
+    private Path spoolFile;
+    private OutputStream spoolFileOut;
+    /**
+     * Block of the entry being written that is being filled, and the full
+     * block before it.
+     */
+    private byte[] block;
+    private int blockLength;
+    private byte[] previousBlock;
+    /**
+     * Blocks being deflated, in order.
+     */
+    private final Deque<ForkJoinTask<byte[]>> pending = new ArrayDeque<>();
+    private boolean finished;
+
+    /**
+     * Create a stream writing an archive to the given output stream,
+     * deflating in parallel on the common pool.
+     *
+     * @param out
+     *            OutputStream to write to.
+     * @param profile
+     *            how entries are compressed.
+     */
+    public ProfiledZipOutputStream(final OutputStream out,
+            final CompressionProfile profile)
+    {
+        this(out, profile, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Create a stream writing an archive to the given output stream.
+     *
+     * @param out
+     *            OutputStream to write to.
+     * @param profile
+     *            how entries are compressed.
+     * @param pool
+     *            pool blocks are deflated on with a parallel profile.
+     */
+    public ProfiledZipOutputStream(final OutputStream out,
+            final CompressionProfile profile, final ForkJoinPool pool)
+    {
+        this.out = out;
+        this.profile = profile;
+        this.pool = pool;
+    }
+
+    /**
+     * Start a new entry, closing the current one.
+     *
+     * @param name
+     *            name of the entry.
+     * @throws IOException
+     */
+    public void putNextEntry(final String name) throws IOException
+    {
+        closeEntry();
+        if (finished)
+        {
+            throw new IOException("Archive is already finished");
+        }
+        entry = new Entry(name, profile.isStored() ? STORED : DEFLATED);
+        crc.reset();
+        if (profile.isStored())
+        {
+            spool = new ByteArrayOutputStream();
+        } else
+        {
+            entry.offset = written;
+            writeLocalHeader(entry);
+            if (profile.isParallel())
+            {
+                block = new byte[BLOCK_SIZE];
+                blockLength = 0;
+                previousBlock = null;
+            } else
+            {
+                deflater = new Deflater(profile.getLevel(), true);
+            }
+        }
+    }
+
+    @Override
+    public void write(final int b) throws IOException
+    {
+        single[0] = (byte) b;
+        write(single, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len)
+            throws IOException
+    {
+        if (entry == null)
+        {
+            throw new IOException("No entry is open");
+        }
+        crc.update(b, off, len);
+        entry.size += len;
+        if (profile.isStored())
+        {
+            spool(b, off, len);
+        } else if (profile.isParallel())
+        {
+            int from = off;
+            final int end = off + len;
+            while (from < end)
+            {
+                final int n = Math.min(end - from, BLOCK_SIZE - blockLength);
+                System.arraycopy(b, from, block, blockLength, n);
+                blockLength += n;
+                from += n;
+                if (blockLength == BLOCK_SIZE)
+                {
+                    submitBlock(false);
+                }
+            }
+        } else
+        {
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput())
+            {
+                writeData(buffer, 0, deflater.deflate(buffer));
+            }
+        }
+    }
+
+    /**
+     * Complete the current entry, if any.
+     *
+     * @throws IOException
+     */
+    public void closeEntry() throws IOException
+    {
+        if (entry == null)
+        {
+            return;
+        }
+        entry.crc = crc.getValue();
+        if (profile.isStored())
+        {
+            closeStoredEntry();
+        } else
+        {
+            if (profile.isParallel())
+            {
+                submitBlock(true);
+                while (!pending.isEmpty())
+                {
+                    writeBlock(pending.removeFirst());
+                }
+                block = null;
+                previousBlock = null;
+            } else
+            {
+                try
+                {
+                    deflater.finish();
+                    while (!deflater.finished())
+                    {
+                        writeData(buffer, 0, deflater.deflate(buffer));
+                    }
+                } finally
+                {
+                    deflater.end();
+                    deflater = null;
+                }
+            }
+            writeDataDescriptor(entry);
+        }
+        entries.add(entry);
+        entry = null;
+    }
+
+    /**
+     * Complete the archive, writing its central directory. The underlying
+     * stream is not closed.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException
+    {
+        if (finished)
+        {
+            return;
+        }
+        closeEntry();
+        final long directoryOffset = written;
+        for (final Entry e : entries)
+        {
+            writeCentralHeader(e);
+        }
+        final long directorySize = written - directoryOffset;
+        final boolean zip64 = entries.size() >= ZIP16_LIMIT
+                || directoryOffset >= ZIP32_LIMIT
+                || directorySize >= ZIP32_LIMIT;
+        if (zip64)
+        {
+            final long zip64EndOffset = written;
+            final ByteBuffer end = header(56);
+            end.putInt(ZIP64_END).putLong(44).putShort(ZIP64_VERSION)
+                    .putShort(ZIP64_VERSION).putInt(0).putInt(0)
+                    .putLong(entries.size()).putLong(entries.size())
+                    .putLong(directorySize).putLong(directoryOffset);
+            writeHeader(end);
+            final ByteBuffer locator = header(20);
+            locator.putInt(ZIP64_LOCATOR).putInt(0).putLong(zip64EndOffset)
+                    .putInt(1);
+            writeHeader(locator);
+        }
+        final ByteBuffer end = header(22);
+        final short count = (short) Math.min(entries.size(), ZIP16_LIMIT);
+        end.putInt(END).putShort((short) 0).putShort((short) 0)
+                .putShort(count).putShort(count)
+                .putInt((int) Math.min(directorySize, ZIP32_LIMIT))
+                .putInt((int) Math.min(directoryOffset, ZIP32_LIMIT))
+                .putShort((short) 0);
+        writeHeader(end);
+        out.flush();
+        finished = true;
+    }
+
+    /**
+     * Complete the archive and close the underlying stream.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            finish();
+        } finally
+        {
+            discardSpool();
+            out.close();
+        }
+    }
+
+    /**
+     * Queue the filled block for deflating, writing out the oldest deflated
+     * blocks once more than two per thread of the pool are pending.
+     *
+     * @param last
+     *            true if it is the last block of the entry.
+     * @throws IOException
+     */
+    private void submitBlock(final boolean last) throws IOException
+    {
+        final int level = profile.getLevel();
+        final byte[] data = block;
+        final int length = blockLength;
+        final byte[] dictionary = previousBlock;
+        pending.add(pool.submit(() -> deflateBlock(level, dictionary, data,
+                length, last)));
+        previousBlock = data;
+        block = last ? null : new byte[BLOCK_SIZE];
+        blockLength = 0;
+        while (pending.size() > 2 * pool.getParallelism())
+        {
+            writeBlock(pending.removeFirst());
+        }
+    }
+
+    /**
+     * Deflate a block of an entry.
+     *
+     * @param level
+     *            deflate level.
+     * @param dictionary
+     *            the full block before this one, or null for the first
+     *            block.
+     * @param data
+     *            data of the block.
+     * @param length
+     *            length of the data.
+     * @param last
+     *            true to end the deflate stream, false to end with a sync
+     *            flush.
+     * @return deflated data.
+     */
+    static byte[] deflateBlock(final int level, final byte[] dictionary,
+            final byte[] data, final int length, final boolean last)
+    {
+        final Deflater blockDeflater = new Deflater(level, true);
+        try
+        {
+            if (dictionary != null)
+            {
+                blockDeflater.setDictionary(dictionary,
+                        dictionary.length - DICTIONARY_SIZE, DICTIONARY_SIZE);
+            }
+            blockDeflater.setInput(data, 0, length);
+            final ByteArrayOutputStream deflated = new ByteArrayOutputStream(
+                    length / 2 + 64);
+            final byte[] out = new byte[BUFFER_SIZE];
+            if (last)
+            {
+                blockDeflater.finish();
+                while (!blockDeflater.finished())
+                {
+                    deflated.write(out, 0, blockDeflater.deflate(out));
+                }
+            } else
+            {
+                int n;
+                do
+                {
+                    n = blockDeflater.deflate(out, 0, out.length,
+                            Deflater.SYNC_FLUSH);
+                    deflated.write(out, 0, n);
+                } while (n == out.length);
+            }
+            return deflated.toByteArray();
+        } finally
+        {
+            blockDeflater.end();
+        }
+    }
+
+    /**
+     * Wait for a block to be deflated and write it.
+     *
+     * @param task
+     *            task deflating the block.
+     * @throws IOException
+     */
+    private void writeBlock(final ForkJoinTask<byte[]> task)
+            throws IOException
+    {
+        try
+        {
+            final byte[] deflated = task.get();
+            writeData(deflated, 0, deflated.length);
+        } catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (final ExecutionException e)
+        {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Write compressed data of the current entry.
+     */
+    private void writeData(final byte[] b, final int off, final int len)
+            throws IOException
+    {
+        out.write(b, off, len);
+        written += len;
+        entry.compressedSize += len;
+    }
+
+    /**
+     * Spool data of a stored entry, moving the spool to a temporary file once
+     * it outgrows memory.
+     */
+    private void spool(final byte[] b, final int off, final int len)
+            throws IOException
+    {
+        if (spoolFileOut == null
+                && spool.size() + (long) len > SPOOL_MEMORY_LIMIT)
+        {
+            spoolFile = ScratchFiles.createTempFile("isidro-zip", ".spool");
+            spoolFileOut = Files.newOutputStream(spoolFile);
+            spool.writeTo(spoolFileOut);
+            spool = null;
+        }
+        if (spoolFileOut == null)
+        {
+            spool.write(b, off, len);
+        } else
+        {
+            spoolFileOut.write(b, off, len);
+        }
+    }
+
+    /**
+     * Write a stored entry with its sizes and CRC ahead of its spooled data.
+     *
+     * @throws IOException
+     */
+    private void closeStoredEntry() throws IOException
+    {
+        try
+        {
+            entry.compressedSize = entry.size;
+            entry.offset = written;
+            writeLocalHeader(entry);
+            if (spoolFileOut == null)
+            {
+                spool.writeTo(out);
+            } else
+            {
+                spoolFileOut.close();
+                spoolFileOut = null;
+                Files.copy(spoolFile, out);
+            }
+            written += entry.size;
+        } finally
+        {
+            discardSpool();
+        }
+    }
+
+    /**
+     * Release the spool of a stored entry.
+     *
+     * @throws IOException
+     */
+    private void discardSpool() throws IOException
+    {
+        spool = null;
+        if (spoolFileOut != null)
+        {
+            spoolFileOut.close();
+            spoolFileOut = null;
+        }
+        if (spoolFile != null)
+        {
+            Files.deleteIfExists(spoolFile);
+            spoolFile = null;
+        }
+    }
+
+    private void writeLocalHeader(final Entry e) throws IOException
+    {
+        final boolean zip64 = e.method == STORED && e.size >= ZIP32_LIMIT;
+        final int extra = zip64 ? 20 : 0;
+        final ByteBuffer header = header(30 + e.name.length + extra);
+        header.putInt(LOCAL_HEADER).putShort(zip64 ? ZIP64_VERSION : VERSION)
+                .putShort(e.flags()).putShort(e.method).putInt(dosTime);
+        if (e.method == STORED)
+        {
+            header.putInt((int) e.crc)
+                    .putInt((int) Math.min(e.compressedSize, ZIP32_LIMIT))
+                    .putInt((int) Math.min(e.size, ZIP32_LIMIT));
+        } else
+        {
+            header.putInt(0).putInt(0).putInt(0);
+        }
+        header.putShort((short) e.name.length).putShort((short) extra)
+                .put(e.name);
+        if (zip64)
+        {
+            header.putShort(ZIP64_EXTRA).putShort((short) 16).putLong(e.size)
+                    .putLong(e.compressedSize);
+        }
+        writeHeader(header);
+    }
+
+    private void writeDataDescriptor(final Entry e) throws IOException
+    {
+        final boolean zip64 = e.size >= ZIP32_LIMIT
+                || e.compressedSize >= ZIP32_LIMIT;
+        final ByteBuffer descriptor = header(zip64 ? 24 : 16);
+        descriptor.putInt(DATA_DESCRIPTOR).putInt((int) e.crc);
+        if (zip64)
+        {
+            descriptor.putLong(e.compressedSize).putLong(e.size);
+        } else
+        {
+            descriptor.putInt((int) e.compressedSize).putInt((int) e.size);
+        }
+        writeHeader(descriptor);
+    }
+
+    private void writeCentralHeader(final Entry e) throws IOException
+    {
+        final List<Long> zip64Values = new ArrayList<>();
+        if (e.size >= ZIP32_LIMIT)
+        {
+            zip64Values.add(e.size);
+        }
+        if (e.compressedSize >= ZIP32_LIMIT)
+        {
+            zip64Values.add(e.compressedSize);
+        }
+        if (e.offset >= ZIP32_LIMIT)
+        {
+            zip64Values.add(e.offset);
+        }
+        final int extra = zip64Values.isEmpty() ? 0
+                : 4 + 8 * zip64Values.size();
+        final short version = e.isZip64() ? ZIP64_VERSION : VERSION;
+        final ByteBuffer header = header(46 + e.name.length + extra);
+        header.putInt(CENTRAL_HEADER).putShort(version).putShort(version)
+                .putShort(e.flags()).putShort(e.method).putInt(dosTime)
+                .putInt((int) e.crc)
+                .putInt((int) Math.min(e.compressedSize, ZIP32_LIMIT))
+                .putInt((int) Math.min(e.size, ZIP32_LIMIT))
+                .putShort((short) e.name.length).putShort((short) extra)
+                .putShort((short) 0).putShort((short) 0).putShort((short) 0)
+                .putInt(0).putInt((int) Math.min(e.offset, ZIP32_LIMIT))
+                .put(e.name);
+        if (extra > 0)
+        {
+            header.putShort(ZIP64_EXTRA)
+                    .putShort((short) (8 * zip64Values.size()));
+            for (final long value : zip64Values)
+            {
+                header.putLong(value);
+            }
+        }
+        writeHeader(header);
+    }
+
+    private static ByteBuffer header(final int size)
+    {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void writeHeader(final ByteBuffer header) throws IOException
+    {
+        out.write(header.array(), 0, header.position());
+        written += header.position();
+    }
+
+    /**
+     * @param millis
+     *            time in milliseconds since the epoch.
+     * @return the time in MS-DOS format, date in the high half.
+     */
+    static int dosTime(final long millis)
+    {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(millis);
+        final int year = calendar.get(Calendar.YEAR);
+        if (year < 1980)
+        {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25 | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                | calendar.get(Calendar.MINUTE) << 5
+                | calendar.get(Calendar.SECOND) >> 1;
+    }
+}
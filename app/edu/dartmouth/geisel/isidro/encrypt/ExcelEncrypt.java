@@ -1,9 +1,13 @@
 package edu.dartmouth.geisel.isidro.encrypt;
 
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.security.GeneralSecurityException;
 
 import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
@@ -13,7 +17,10 @@ import org.apache.poi.poifs.crypt.CipherAlgorithm;
 import org.apache.poi.poifs.crypt.EncryptionInfo;
 import org.apache.poi.poifs.crypt.EncryptionMode;
 import org.apache.poi.poifs.crypt.Encryptor;
-import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+import org.apache.poi.poifs.filesystem.NPOIFSFileSystem;
+import org.apache.poi.util.IOUtils;
+
+import edu.dartmouth.geisel.isidro.util.ScratchFiles;
 
 /**
  * @author Patrick Eads
@@ -65,22 +72,196 @@ public final class ExcelEncrypt
             FileNotFoundException, IOException
     {
 
+        final Path output = Paths.get(outputXlsxFilePath).toAbsolutePath();
+        final Path temp = Files.createTempFile(output.getParent(), "isidro",
+                ".tmp");
+        try
+        {
+            final OPCPackage opc = OPCPackage.open(inputXlsxFilePath,
+                    PackageAccess.READ_WRITE);
+            try (final OutputStream os = Files.newOutputStream(temp))
+            {
+                encrypt(opc, os, password, algorithm);
+            } finally
+            {
+                opc.revert();
+            }
+            // the input may be the output, so only replace it once encrypted
+            Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING);
+        } finally
+        {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Encrypts an open spreadsheet package, writing the encrypted container
+     * to the given stream. The package is saved as is, including any parts
+     * added since it was opened, and is left open. The container is built in
+     * a temporary file, so memory use does not grow with the package size.
+     *
+     * @param pkg
+     *            Package of the spreadsheet to encrypt
+     * @param os
+     *            OutputStream receiving the encrypted spreadsheet, left open
+     * @param password
+     *            String password with which to encrypt spreadsheet
+     * @param algorithm
+     *            Cipher with which to encrypt spreadsheet
+     * @return number of bytes written to the stream
+     * @throws GeneralSecurityException,
+     *             {@link IOException}
+     */
+    public static long encrypt(final OPCPackage pkg, final OutputStream os,
+            final String password, final CipherAlgorithm algorithm)
+            throws GeneralSecurityException, IOException
+    {
+        // saving closes the data stream, which completes the encryption
+        return encrypt(pkg::save, os, password, algorithm);
+    }
+
+    /**
+     * Encrypts the bytes of a spreadsheet package, writing the encrypted
+     * container to the given stream. The package is copied as is, without
+     * being parsed, and the container is built in a temporary file, so memory
+     * use does not grow with the package size.
+     *
+     * @param xlsx
+     *            InputStream of the spreadsheet package to encrypt
+     * @param os
+     *            OutputStream receiving the encrypted spreadsheet, left open
+     * @param password
+     *            String password with which to encrypt spreadsheet
+     * @param algorithm
+     *            Cipher with which to encrypt spreadsheet
+     * @return number of bytes written to the stream
+     * @throws GeneralSecurityException,
+     *             {@link IOException}
+     */
+    public static long encrypt(final InputStream xlsx, final OutputStream os,
+            final String password, final CipherAlgorithm algorithm)
+            throws GeneralSecurityException, IOException
+    {
+        return encrypt(data -> {
+            try
+            {
+                IOUtils.copy(xlsx, data);
+            } finally
+            {
+                data.close();
+            }
+        }, os, password, algorithm);
+    }
+
+    /**
+     * Encrypts a spreadsheet package file, writing the encrypted container to
+     * the given stream, as {@link #encrypt(InputStream, OutputStream, String,
+     * CipherAlgorithm)} does.
+     *
+     * @param xlsxPath
+     *            Path to spreadsheet package to encrypt
+     * @param os
+     *            OutputStream receiving the encrypted spreadsheet, left open
+     * @param password
+     *            String password with which to encrypt spreadsheet
+     * @param algorithm
+     *            Cipher with which to encrypt spreadsheet
+     * @return number of bytes written to the stream
+     * @throws GeneralSecurityException,
+     *             {@link IOException}
+     */
+    public static long encrypt(final Path xlsxPath, final OutputStream os,
+            final String password, final CipherAlgorithm algorithm)
+            throws GeneralSecurityException, IOException
+    {
+        try (final InputStream xlsx = Files.newInputStream(xlsxPath))
+        {
+            return encrypt(xlsx, os, password, algorithm);
+        }
+    }
+
+    /**
+     * Encrypts a spreadsheet package through a container backed by a
+     * temporary file in the {@link ScratchFiles scratch directory} of the
+     * current thread, then copies the container to the given stream.
+     *
+     * @param writer
+     *            writes the package into the encryptor's data stream and
+     *            closes it
+     * @param os
+     *            OutputStream receiving the encrypted spreadsheet, left open
+     * @param password
+     *            String password with which to encrypt spreadsheet
+     * @param algorithm
+     *            Cipher with which to encrypt spreadsheet
+     * @return number of bytes written to the stream
+     * @throws GeneralSecurityException,
+     *             {@link IOException}
+     */
+    private static long encrypt(final PackageWriter writer,
+            final OutputStream os, final String password,
+            final CipherAlgorithm algorithm)
+            throws GeneralSecurityException, IOException
+    {
+        final Encryptor enc = newEncryptor(password, algorithm);
+
+        final Path container = ScratchFiles.createTempFile("isidro-encrypt",
+                ".tmp");
+        try
+        {
+            // an empty file system, then opened for writing in place, so the
+            // encrypted package is written to the file rather than to memory
+            try (final NPOIFSFileSystem empty = new NPOIFSFileSystem();
+                    final OutputStream emptyOut = Files
+                            .newOutputStream(container))
+            {
+                empty.writeFilesystem(emptyOut);
+            }
+            try (final NPOIFSFileSystem fs = new NPOIFSFileSystem(
+                    container.toFile(), false))
+            {
+                writer.write(enc.getDataStream(fs));
+                fs.writeFilesystem();
+            }
+            return Files.copy(container, os);
+        } finally
+        {
+            Files.deleteIfExists(container);
+        }
+    }
+
+    /**
+     * Create an agile encryptor for the given password and cipher.
+     *
+     * @param password
+     *            String password with which to encrypt
+     * @param algorithm
+     *            Cipher with which to encrypt
+     * @return Encryptor ready to encrypt a package
+     * @throws GeneralSecurityException
+     */
+    private static Encryptor newEncryptor(final String password,
+            final CipherAlgorithm algorithm) throws GeneralSecurityException
+    {
         final EncryptionInfo info = new EncryptionInfo(EncryptionMode.agile,
         		algorithm, null, -1, -1, null);
 
         final Encryptor enc = info.getEncryptor();
         enc.confirmPassword(password);
+        return enc;
+    }
 
-        final POIFSFileSystem fs = new POIFSFileSystem();
-        final OPCPackage opc = OPCPackage.open(inputXlsxFilePath,
-                PackageAccess.READ_WRITE);
-        final OutputStream os = enc.getDataStream(fs);
-        opc.save(os);
-        opc.close();
-
-        final FileOutputStream fos = new FileOutputStream(outputXlsxFilePath);
-        fs.writeFilesystem(fos);
-        fos.close();
-        fs.close();
+    /**
+     * Writes a spreadsheet package into an encryptor's data stream.
+     */
+    @FunctionalInterface
+    private interface PackageWriter
+    {
+        /**
+         * @param data
+         *            data stream of the encryptor, closed once written
+         * @throws IOException
+         */
+        void write(OutputStream data) throws IOException;
     }
 }
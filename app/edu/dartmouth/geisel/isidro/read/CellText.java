@@ -0,0 +1,178 @@
+package edu.dartmouth.geisel.isidro.read;
+
+/**
+ * Escaping of cell text. Characters an XML document cannot hold, and carriage
+ * returns that XML parsers normalize away, are written as _xHHHH_ escapes,
+ * which Excel and POI decode when the cell is read. An underscore that would
+ * otherwise start such an escape is itself escaped as _x005F_.
+ *
+ * @author Patrick Eads
+ */
+final class CellText
+{
+    /**
+     * Length of an _xHHHH_ escape.
+     */
+    private static final int ESCAPE_LENGTH = 7;
+    /**
+     * Digits of the code of an escape.
+     */
+    private static final String HEX_DIGITS = "0123456789ABCDEFabcdef";
+
+    /**
+     * Private constructor of utilities class.
+     */
+    private CellText()
+    {
+    }
+
+    /**
+     * Escape the characters of a String that cannot be stored as they are.
+     *
+     * @param value
+     *            String to escape, may be null.
+     * @return escaped String, the same instance if nothing needs escaping.
+     */
+    static String encode(final String value)
+    {
+        if (value == null)
+        {
+            return null;
+        }
+        final int length = value.length();
+        int i = 0;
+        while (i < length && !needsEscape(value, i))
+        {
+            i++;
+        }
+        if (i == length)
+        {
+            return value;
+        }
+        final StringBuilder text = new StringBuilder(length + ESCAPE_LENGTH);
+        text.append(value, 0, i);
+        for (; i < length; i++)
+        {
+            final char c = value.charAt(i);
+            if (needsEscape(value, i))
+            {
+                text.append("_x").append(String.format("%04X", (int) c))
+                        .append('_');
+            } else
+            {
+                text.append(c);
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Decode the _xHHHH_ escapes of a String.
+     *
+     * @param value
+     *            escaped String.
+     * @return decoded String, the same instance if it holds no escape.
+     */
+    static String decode(final String value)
+    {
+        if (value.indexOf("_x") < 0)
+        {
+            return value;
+        }
+        final int length = value.length();
+        final StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++)
+        {
+            if (isEscape(value, i))
+            {
+                text.append((char) Integer.parseInt(
+                        value.substring(i + 2, i + ESCAPE_LENGTH - 1), 16));
+                i += ESCAPE_LENGTH - 1;
+            } else
+            {
+                text.append(value.charAt(i));
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Append a String as XML text, escaping markup characters. The String
+     * must already have been {@link #encode(String) encoded}.
+     *
+     * @param text
+     *            buffer to append to.
+     * @param value
+     *            encoded String to append.
+     */
+    static void appendXml(final StringBuilder text, final String value)
+    {
+        final int length = value.length();
+        for (int i = 0; i < length; i++)
+        {
+            final char c = value.charAt(i);
+            switch (c)
+            {
+            case '<':
+                text.append("&lt;");
+                break;
+            case '>':
+                text.append("&gt;");
+                break;
+            case '&':
+                text.append("&amp;");
+                break;
+            default:
+                text.append(c);
+                break;
+            }
+        }
+    }
+
+    /**
+     * @param value
+     *            String to check.
+     * @param i
+     *            index of the character to check.
+     * @return whether the character at the index must be escaped. Both
+     *         halves of surrogate pairs are escaped, as POI's streaming
+     *         workbook would replace them.
+     */
+    private static boolean needsEscape(final String value, final int i)
+    {
+        final char c = value.charAt(i);
+        if (c == '_')
+        {
+            return isEscape(value, i);
+        } else if (c < ' ')
+        {
+            return c != '\t' && c != '\n';
+        }
+        return Character.isSurrogate(c) || c == '\uFFFE' || c == '\uFFFF';
+    }
+
+    /**
+     * @param value
+     *            String to check.
+     * @param i
+     *            index of the character to check.
+     * @return whether an _xHHHH_ escape starts at the index.
+     */
+    private static boolean isEscape(final String value, final int i)
+    {
+        if (i + ESCAPE_LENGTH > value.length() || value.charAt(i) != '_'
+                || value.charAt(i + 1) != 'x'
+                || value.charAt(i + ESCAPE_LENGTH - 1) != '_')
+        {
+            return false;
+        }
+        for (int j = i + 2; j < i + ESCAPE_LENGTH - 1; j++)
+        {
+            if (HEX_DIGITS.indexOf(value.charAt(j)) < 0)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,223 @@
+package edu.dartmouth.geisel.isidro.read;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.DateUtil;
+
+/**
+ * Inference and conversion of typed cell values. A value is only emitted as a
+ * typed cell if reading the cell back as text with {@link #toText(Cell)}
+ * yields exactly the original String, so typed workbooks keep the same
+ * fingerprint as their source data.
+ *
+ * @author Patrick Eads
+ */
+public final class CellTypes
+{
+    /**
+     * Excel format of date cells.
+     */
+    public static final String DATE_FORMAT = "yyyy-mm-dd";
+    /**
+     * Text of a true boolean cell.
+     */
+    public static final String TRUE = "TRUE";
+    /**
+     * Text of a false boolean cell.
+     */
+    public static final String FALSE = "FALSE";
+    /**
+     * Fraction of the non-empty sampled values of a column that must convert
+     * to a type for the column to get that type.
+     */
+    private static final double INFERENCE_THRESHOLD = 0.95;
+    /**
+     * Most significant digits of a number that survive a round trip through
+     * a double and Excel's display.
+     */
+    private static final int MAX_DIGITS = 15;
+    /**
+     * Day zero of Excel serial dates, valid for dates from 1900-03-01 on.
+     */
+    private static final LocalDate EPOCH = LocalDate.of(1899, 12, 30);
+    /**
+     * First date whose serial number is not affected by Excel's 1900 leap
+     * year bug.
+     */
+    private static final LocalDate FIRST_DATE = LocalDate.of(1900, 3, 1);
+
+    /**
+     * Private constructor of utilities class.
+     */
+    private CellTypes()
+    {
+    }
+
+    /**
+     * Infer the type of each column from a sample of rows.
+     *
+     * @param rows
+     *            sampled rows, not including any header row.
+     * @param columns
+     *            number of columns to infer.
+     * @return type of each column.
+     */
+    public static ColumnType[] inferColumns(
+            final List<? extends List<String>> rows, final int columns)
+    {
+        final ColumnType[] types = new ColumnType[columns];
+        for (int column = 0; column < columns; column++)
+        {
+            int values = 0;
+            int numbers = 0;
+            int dates = 0;
+            int booleans = 0;
+            for (final List<String> row : rows)
+            {
+                final String value = column < row.size() ? row.get(column)
+                        : null;
+                if (value == null || value.isEmpty())
+                {
+                    continue;
+                }
+                values++;
+                if (isNumber(value))
+                {
+                    numbers++;
+                } else if (toDateSerial(value) >= 0)
+                {
+                    dates++;
+                } else if (TRUE.equals(value) || FALSE.equals(value))
+                {
+                    booleans++;
+                }
+            }
+            final double required = Math.max(1, values * INFERENCE_THRESHOLD);
+            types[column] = numbers >= required ? ColumnType.NUMERIC
+                    : dates >= required ? ColumnType.DATE
+                            : booleans >= required ? ColumnType.BOOLEAN
+                                    : ColumnType.STRING;
+        }
+        return types;
+    }
+
+    /**
+     * Check whether a String is a number in canonical form: no sign other
+     * than a leading minus, no leading or trailing zeros, no exponent and no
+     * more significant digits than a double keeps.
+     *
+     * @param value
+     *            String to check.
+     * @return true if the value can be written as a numeric cell.
+     */
+    public static boolean isNumber(final String value)
+    {
+        final int length = value.length();
+        int i = value.startsWith("-") ? 1 : 0;
+        final int start = i;
+        int digits = 0;
+        int point = -1;
+        for (; i < length; i++)
+        {
+            final char c = value.charAt(i);
+            if (c == '.' && point < 0)
+            {
+                point = i;
+            } else if (c >= '0' && c <= '9')
+            {
+                digits++;
+            } else
+            {
+                return false;
+            }
+        }
+        final int integerEnd = point < 0 ? length : point;
+        if (integerEnd == start || point == length - 1 || digits > MAX_DIGITS
+                || value.charAt(start) == '0' && integerEnd - start > 1
+                || point > 0 && value.charAt(length - 1) == '0')
+        {
+            return false;
+        }
+        return formatNumber(Double.parseDouble(value)).equals(value);
+    }
+
+    /**
+     * Format a numeric cell value the way {@link #isNumber(String)} expects.
+     *
+     * @param value
+     *            numeric value.
+     * @return canonical String of the value.
+     */
+    public static String formatNumber(final double value)
+    {
+        return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+    }
+
+    /**
+     * Convert an ISO date into an Excel serial date.
+     *
+     * @param value
+     *            String to convert.
+     * @return serial date, or -1 if the value is not an ISO date Excel can
+     *         represent.
+     */
+    public static long toDateSerial(final String value)
+    {
+        if (value.length() != 10 || value.charAt(4) != '-')
+        {
+            return -1;
+        }
+        try
+        {
+            final LocalDate date = LocalDate.parse(value,
+                    DateTimeFormatter.ISO_LOCAL_DATE);
+            return date.isBefore(FIRST_DATE) ? -1
+                    : ChronoUnit.DAYS.between(EPOCH, date);
+        } catch (final DateTimeParseException e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Convert an Excel serial date into an ISO date.
+     *
+     * @param serial
+     *            serial date.
+     * @return ISO date String.
+     */
+    public static String formatDate(final double serial)
+    {
+        return EPOCH.plusDays((long) serial).toString();
+    }
+
+    /**
+     * Read a cell as the text it was written from.
+     *
+     * @param cell
+     *            cell to read.
+     * @return String content of the cell.
+     */
+    public static String toText(final Cell cell)
+    {
+        switch (cell.getCellType())
+        {
+        case Cell.CELL_TYPE_NUMERIC:
+            return DateUtil.isCellDateFormatted(cell)
+                    ? formatDate(cell.getNumericCellValue())
+                    : formatNumber(cell.getNumericCellValue());
+        case Cell.CELL_TYPE_BOOLEAN:
+            return cell.getBooleanCellValue() ? TRUE : FALSE;
+        case Cell.CELL_TYPE_BLANK:
+            return "";
+        default:
+            return cell.getStringCellValue();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package edu.dartmouth.geisel.isidro.read;
+
+/**
+ * Type of the cells emitted for a worksheet column.
+ *
+ * @author Patrick Eads
+ */
+public enum ColumnType
+{
+    /**
+     * Cells are written as Strings.
+     */
+    STRING,
+    /**
+     * Canonical decimal numbers are written as numeric cells.
+     */
+    NUMERIC,
+    /**
+     * ISO dates (yyyy-mm-dd) are written as date formatted numeric cells.
+     */
+    DATE,
+    /**
+     * TRUE and FALSE are written as boolean cells.
+     */
+    BOOLEAN
+}
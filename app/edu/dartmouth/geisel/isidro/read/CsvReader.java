@@ -5,33 +5,30 @@ package edu.dartmouth.geisel.isidro.read;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.Formatter;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
 
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.xssf.usermodel.XSSFRow;
-import org.apache.poi.xssf.usermodel.XSSFSheet;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
-import org.csveed.api.CsvClient;
-import org.csveed.api.CsvClientImpl;
-import org.csveed.api.Row;
-
-import edu.dartmouth.geisel.isidro.checksum.ExcelChecksum;
 
 /**
  * @author Patrick Eads
  */
 public final class CsvReader
 {
+    /**
+     * Charset of CSV files read without an explicit charset.
+     */
+    public static final Charset DEFAULT_CHARSET = StandardCharsets.UTF_8;
+
     /**
      * Private constructor of utilities class.
      */
@@ -57,35 +54,87 @@ public final class CsvReader
             DataIntegrityMismatchException
 
     {
-        final String csvChecksum = ExcelChecksum.checksum(csvContents);
+        return getExcelWorkbook(worksheetName, csvContents,
+                IntegrityMode.FULL);
+    }
+
+    /**
+     * Create POI workbook object from given 2D list of Strings, verifying the
+     * contents of the sheet against the list while it is written.
+     *
+     * @param worksheetName
+     *            String name of worksheet.
+     * @param csvContents
+     *            2D list of String forming the contents of the workbook.
+     * @param integrityMode
+     *            how the contents of the sheet are verified.
+     * @return POI workbook with contents of 2D list of Strings.
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     * @throws DataIntegrityMismatchException
+     */
+    public static XSSFWorkbook getExcelWorkbook(final String worksheetName,
+            final List<List<String>> csvContents,
+            final IntegrityMode integrityMode)
+            throws NoSuchAlgorithmException, IOException,
+            DataIntegrityMismatchException
+    {
         final XSSFWorkbook workbook = new XSSFWorkbook();
-        final XSSFSheet sheet = workbook.createSheet(worksheetName);
-        int rowsCount = 0;
+        final WorkbookWriter writer = new WorkbookWriter(workbook,
+                worksheetName);
+        writer.setIntegrityMode(integrityMode);
         for (final List<String> row : csvContents)
         {
-            final XSSFRow sheetRow = sheet.createRow(rowsCount++);
-            int cellsCount = 0;
-            for (final String cell : row)
-            {
-                final Cell sheetCell = sheetRow.createCell(cellsCount++);
-                sheetCell.setCellValue(cell);
-            }
+            writer.writeRow(row);
         }
-        final String workbookChecksum = ExcelChecksum
-                .checksum(processWorkbook(workbook));
+        writer.finish();
+
+        return workbook;
+    }
 
-        if (workbookChecksum != null && !workbookChecksum.equals(csvChecksum))
+    /**
+     * Convert CSV data read from the given reader into an xlsx workbook written
+     * to the given output stream. Rows are streamed through a windowed SXSSF
+     * workbook, so only rowWindow rows are held in memory at any time.
+     *
+     * @param worksheetName
+     *            String name of worksheet.
+     * @param reader
+     *            Reader object from which to read CSV data.
+     * @param os
+     *            OutputStream to which the workbook is written.
+     * @param rowWindow
+     *            number of rows kept in memory before flushing to disk.
+     * @param integrityMode
+     *            how the contents of the sheet are verified.
+     * @return hex String of the SHA-512 fingerprint of the CSV rows.
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     * @throws DataIntegrityMismatchException
+     */
+    public static String convert(final String worksheetName,
+            final Reader reader, final OutputStream os, final int rowWindow,
+            final IntegrityMode integrityMode) throws IOException,
+            NoSuchAlgorithmException, DataIntegrityMismatchException
+    {
+        try (final WorkbookWriter writer = WorkbookWriter
+                .streaming(worksheetName, rowWindow))
         {
-            throw new DataIntegrityMismatchException(
-                    formatText("Expected: %s, but got: %s", csvChecksum,
-                            workbookChecksum));
+            writer.setIntegrityMode(integrityMode);
+            final CsvTokenizer tokenizer = new CsvTokenizer(reader);
+            while (tokenizer.readRow())
+            {
+                writer.writeRow(Arrays.asList(tokenizer.getCells())
+                        .subList(0, tokenizer.getCellCount()));
+            }
+            final String checksum = writer.finish();
+            writer.write(os);
+            return checksum;
         }
-
-        return workbook;
     }
 
     /**
-     * Read a given CSV into a 2D list of Strings.
+     * Read a given UTF-8 CSV into a 2D list of Strings.
      *
      * @param file
      *            File to read.
@@ -96,12 +145,29 @@ public final class CsvReader
     public static List<List<String>> read(final File file)
             throws FileNotFoundException, IOException
     {
-        return processCsv(new FileReader(file));
+        return readTable(file).asLists();
     }
 
     /**
      * Read a given CSV into a 2D list of Strings.
      *
+     * @param file
+     *            File to read.
+     * @param charset
+     *            Charset of the file.
+     * @return 2D list of Strings of content from CSV.
+     * @throws FileNotFoundException
+     * @throws IOException
+     */
+    public static List<List<String>> read(final File file,
+            final Charset charset) throws FileNotFoundException, IOException
+    {
+        return readTable(file, charset).asLists();
+    }
+
+    /**
+     * Read a given UTF-8 CSV into a 2D list of Strings.
+     *
      * @param path
      *            String path of file to read.
      * @return 2D list of Strings of content from CSV.
@@ -114,76 +180,119 @@ public final class CsvReader
         return read(new File(path));
     }
 
-    private static String formatText(final String format, final Object... args)
+    /**
+     * Read a given UTF-8 CSV into a compact table.
+     *
+     * @param file
+     *            File to read.
+     * @return table of content from CSV.
+     * @throws FileNotFoundException
+     * @throws IOException
+     */
+    public static CsvTable readTable(final File file)
+            throws FileNotFoundException, IOException
     {
-        final Formatter formatter = new Formatter(Locale.getDefault());
-        try
+        return readTable(file, DEFAULT_CHARSET);
+    }
+
+    /**
+     * Read a given CSV into a compact table.
+     *
+     * @param file
+     *            File to read.
+     * @param charset
+     *            Charset of the file.
+     * @return table of content from CSV.
+     * @throws FileNotFoundException
+     * @throws IOException
+     */
+    public static CsvTable readTable(final File file, final Charset charset)
+            throws FileNotFoundException, IOException
+    {
+        if (!file.isFile())
         {
-            formatter.format(format, args);
-            return formatter.toString();
-        } finally
+            throw new FileNotFoundException(file.getPath());
+        }
+        try (final CsvTokenizer tokenizer = CsvTokenizer.open(file.toPath(),
+                charset))
         {
-            formatter.close();
+            return processCsv(tokenizer);
         }
     }
 
     /**
-     * Method to process each row of CSV into 2D list of Strings.
+     * Read a given CSV into a compact table, parsing it in parallel on the
+     * given fork-join pool if it is at least parallelThreshold bytes long.
      *
-     * @param reader
-     *            Reader object from which to read CSV data.
-     * @return 2D list of Strings of content from CSV.
+     * @param file
+     *            File to read.
+     * @param charset
+     *            Charset of the file.
+     * @param parallelThreshold
+     *            size in bytes from which the file is parsed in parallel.
+     * @param pool
+     *            pool the file is parsed on in parallel.
+     * @return table of content from CSV.
+     * @throws FileNotFoundException
+     * @throws IOException
      */
-    private static List<List<String>> processCsv(final Reader reader)
+    public static CsvTable readTable(final File file, final Charset charset,
+            final long parallelThreshold, final ForkJoinPool pool)
+            throws FileNotFoundException, IOException
     {
-        final List<List<String>> result = new LinkedList<>();
-        final CsvClient<Row> csvClnt = new CsvClientImpl<Row>(reader)
-                .setEscape('"').setSeparator(',').setUseHeader(false);
-        final List<Row> rowList = csvClnt.readRows();
-
-        final Iterator<Row> rows = rowList.iterator();
-
-        rows.forEachRemaining((row) ->
+        if (!file.isFile())
         {
-            final List<String> curr = new LinkedList<>();
-            final Iterator<String> cells = row.iterator();
-            cells.forEachRemaining((cell) ->
-            {
-                curr.add(cell);
-            });
-            result.add(curr);
-        });
-
-        return result;
+            throw new FileNotFoundException(file.getPath());
+        }
+        if (file.length() < parallelThreshold)
+        {
+            return readTable(file, charset);
+        }
+        return new ParallelCsvParser(pool, ParallelCsvParser.DEFAULT_CHUNK_SIZE)
+                .readTable(file.toPath(), charset);
     }
 
     /**
-     * Read a given XSSF workbook into a 2D list of Strings.
+     * Read a given UTF-8 CSV into a compact table.
      *
-     * @param wb
-     *            workbook to read.
-     * @return 2D list of Strings of content from workbook.
+     * @param path
+     *            String path of file to read.
+     * @return table of content from CSV.
      * @throws FileNotFoundException
      * @throws IOException
      */
-    private static List<List<String>> processWorkbook(final Workbook wb)
+    public static CsvTable readTable(final String path)
+            throws FileNotFoundException, IOException
     {
-        final List<List<String>> result = new LinkedList<>();
-        final Sheet sheet = wb.getSheetAt(0);
-        final Iterator<org.apache.poi.ss.usermodel.Row> rows = sheet
-                .rowIterator();
+        return readTable(new File(path));
+    }
 
-        rows.forEachRemaining((row) ->
+    static String formatText(final String format, final Object... args)
+    {
+        final Formatter formatter = new Formatter(Locale.getDefault());
+        try
         {
-            final List<String> curr = new LinkedList<>();
-            final Iterator<Cell> cells = row.cellIterator();
-            cells.forEachRemaining((cell) ->
-            {
-                curr.add(cell.getStringCellValue());
-            });
-            result.add(curr);
-        });
+            formatter.format(format, args);
+            return formatter.toString();
+        } finally
+        {
+            formatter.close();
+        }
+    }
 
+    /**
+     * Method to process each row of CSV into a compact table.
+     *
+     * @param tokenizer
+     *            tokenizer from which to read CSV data.
+     * @return table of content from CSV.
+     * @throws IOException
+     */
+    private static CsvTable processCsv(final CsvTokenizer tokenizer)
+            throws IOException
+    {
+        final CsvTable result = new CsvTable();
+        tokenizer.forEachRow(result::addRow);
         return result;
     }
 }
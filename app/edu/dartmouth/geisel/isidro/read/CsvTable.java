@@ -0,0 +1,367 @@
+package edu.dartmouth.geisel.isidro.read;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Compact, append-only table of Strings read from a CSV. Each column is kept
+ * in contiguous arrays. Columns start out dictionary encoded, storing an int
+ * code per cell and every distinct value once, which suits the heavily
+ * repeated codes, dates and flags of typical extracts. A column whose values
+ * turn out to be mostly distinct falls back to a plain array of Strings.
+ * Rows may have different numbers of cells.
+ *
+ * @author Patrick Eads
+ */
+public final class CsvTable
+{
+    /**
+     * Initial number of rows the column arrays can hold.
+     */
+    private static final int INITIAL_CAPACITY = 256;
+    /**
+     * Number of rows after which a column is checked for falling back to
+     * plain storage.
+     */
+    private static final int DICTIONARY_MIN_ROWS = 1024;
+    /**
+     * Largest number of distinct values kept in the dictionary of a column.
+     */
+    private static final int DICTIONARY_MAX_SIZE = 1 << 16;
+
+    /**
+     * Columns of the table, as wide as its widest row.
+     */
+    private final List<Column> columns = new ArrayList<>();
+    /**
+     * Number of cells in each row.
+     */
+    private int[] rowWidths = new int[INITIAL_CAPACITY];
+    /**
+     * Number of rows in the table.
+     */
+    private int rowsCount;
+
+    /**
+     * Append a row to the table.
+     *
+     * @param row
+     *            cells of the row in column order.
+     */
+    public void addRow(final Iterable<String> row)
+    {
+        ensureCapacity();
+        int cellsCount = 0;
+        for (final String cell : row)
+        {
+            column(cellsCount++).set(rowsCount, cell);
+        }
+        rowWidths[rowsCount++] = cellsCount;
+    }
+
+    /**
+     * Append a row to the table.
+     *
+     * @param cells
+     *            array holding the cells of the row in column order.
+     * @param count
+     *            number of cells of the array belonging to the row.
+     */
+    public void addRow(final String[] cells, final int count)
+    {
+        ensureCapacity();
+        for (int i = 0; i < count; i++)
+        {
+            column(i).set(rowsCount, cells[i]);
+        }
+        rowWidths[rowsCount++] = count;
+    }
+
+    /**
+     * @return number of rows in the table.
+     */
+    public int getRowCount()
+    {
+        return rowsCount;
+    }
+
+    /**
+     * @return number of cells in the widest row of the table.
+     */
+    public int getColumnCount()
+    {
+        return columns.size();
+    }
+
+    /**
+     * @param row
+     *            index of the row.
+     * @return number of cells in the given row.
+     */
+    public int getRowWidth(final int row)
+    {
+        checkRow(row);
+        return rowWidths[row];
+    }
+
+    /**
+     * @param row
+     *            index of the row.
+     * @param column
+     *            index of the column.
+     * @return String content of the cell, or null if the row has no such
+     *         cell.
+     */
+    public String get(final int row, final int column)
+    {
+        checkRow(row);
+        if (column < 0 || column >= rowWidths[row])
+        {
+            return null;
+        }
+        return columns.get(column).get(row);
+    }
+
+    /**
+     * @param column
+     *            index of the column.
+     * @return number of distinct values of the column, or -1 if the column
+     *         is not dictionary encoded.
+     */
+    public int getDistinctCount(final int column)
+    {
+        return columns.get(column).distinctCount();
+    }
+
+    /**
+     * @param row
+     *            index of the row.
+     * @return read-only view of the given row.
+     */
+    public List<String> getRow(final int row)
+    {
+        checkRow(row);
+        return new RowView(row);
+    }
+
+    /**
+     * View the table as a 2D list of Strings, for code that expects the
+     * format returned by {@link CsvReader#read(java.io.File)}. The view is
+     * read-only and reflects rows added later.
+     *
+     * @return read-only 2D list view of the table.
+     */
+    public List<List<String>> asLists()
+    {
+        return new TableView();
+    }
+
+    /**
+     * Get the column with the given index, adding empty columns up to it as
+     * needed.
+     *
+     * @param index
+     *            index of the column.
+     * @return column with the given index.
+     */
+    private Column column(final int index)
+    {
+        while (columns.size() <= index)
+        {
+            columns.add(new Column(rowWidths.length));
+        }
+        return columns.get(index);
+    }
+
+    /**
+     * Grow the row arrays so they can hold one more row.
+     */
+    private void ensureCapacity()
+    {
+        if (rowsCount == rowWidths.length)
+        {
+            final int capacity = rowWidths.length * 2;
+            rowWidths = Arrays.copyOf(rowWidths, capacity);
+            for (final Column column : columns)
+            {
+                column.grow(capacity);
+            }
+        }
+    }
+
+    /**
+     * @param row
+     *            index of the row to check.
+     */
+    private void checkRow(final int row)
+    {
+        if (row < 0 || row >= rowsCount)
+        {
+            throw new IndexOutOfBoundsException(
+                    CsvReader.formatText("Row: %d, rows: %d", row, rowsCount));
+        }
+    }
+
+    /**
+     * Storage of the cells of one column.
+     */
+    private static final class Column
+    {
+        /**
+         * Dictionary code of each cell, or null once the column has fallen
+         * back to plain storage.
+         */
+        private int[] codes;
+        /**
+         * Distinct values, indexed by code.
+         */
+        private List<String> values = new ArrayList<>();
+        /**
+         * Code of each distinct value.
+         */
+        private Map<String, Integer> index = new HashMap<>();
+        /**
+         * String of each cell once the column has fallen back to plain
+         * storage.
+         */
+        private String[] strings;
+        /**
+         * Number of cells set, used to decide on falling back.
+         */
+        private int cellsCount;
+
+        Column(final int capacity)
+        {
+            codes = new int[capacity];
+            Arrays.fill(codes, -1);
+        }
+
+        void set(final int row, final String value)
+        {
+            cellsCount++;
+            if (codes == null)
+            {
+                strings[row] = value;
+                return;
+            }
+            Integer code = index.get(value);
+            if (code == null)
+            {
+                code = values.size();
+                values.add(value);
+                index.put(value, code);
+            }
+            codes[row] = code;
+            if (values.size() > DICTIONARY_MAX_SIZE
+                    || cellsCount >= DICTIONARY_MIN_ROWS
+                            && values.size() > cellsCount / 2)
+            {
+                toPlain();
+            }
+        }
+
+        String get(final int row)
+        {
+            if (codes == null)
+            {
+                return strings[row];
+            }
+            final int code = codes[row];
+            return code < 0 ? null : values.get(code);
+        }
+
+        int distinctCount()
+        {
+            return codes == null ? -1 : values.size();
+        }
+
+        void grow(final int capacity)
+        {
+            if (codes == null)
+            {
+                strings = Arrays.copyOf(strings, capacity);
+            } else
+            {
+                final int length = codes.length;
+                codes = Arrays.copyOf(codes, capacity);
+                Arrays.fill(codes, length, capacity, -1);
+            }
+        }
+
+        /**
+         * Replace the dictionary by plain storage of the Strings it holds.
+         */
+        private void toPlain()
+        {
+            strings = new String[codes.length];
+            for (int i = 0; i < codes.length; i++)
+            {
+                if (codes[i] >= 0)
+                {
+                    strings[i] = values.get(codes[i]);
+                }
+            }
+            codes = null;
+            values = null;
+            index = null;
+        }
+    }
+
+    /**
+     * Read-only view of one row.
+     */
+    private final class RowView extends AbstractList<String>
+            implements RandomAccess
+    {
+        /**
+         * Index of the row.
+         */
+        private final int row;
+
+        RowView(final int row)
+        {
+            this.row = row;
+        }
+
+        @Override
+        public String get(final int column)
+        {
+            if (column < 0 || column >= rowWidths[row])
+            {
+                throw new IndexOutOfBoundsException(CsvReader.formatText(
+                        "Column: %d, cells: %d", column, rowWidths[row]));
+            }
+            return columns.get(column).get(row);
+        }
+
+        @Override
+        public int size()
+        {
+            return rowWidths[row];
+        }
+    }
+
+    /**
+     * Read-only view of the table as a list of rows.
+     */
+    private final class TableView extends AbstractList<List<String>>
+            implements RandomAccess
+    {
+        @Override
+        public List<String> get(final int row)
+        {
+            return getRow(row);
+        }
+
+        @Override
+        public int size()
+        {
+            return rowsCount;
+        }
+    }
+}
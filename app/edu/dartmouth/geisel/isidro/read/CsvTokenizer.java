@@ -0,0 +1,583 @@
+package edu.dartmouth.geisel.isidro.read;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Streaming CSV tokenizer. Bytes are read from a blocking channel through a
+ * reusable buffer and decoded with an explicit charset, or characters are read
+ * from a Reader, and each row is split into cells in a reusable array.
+ * <p>
+ * Cells are separated by commas and may be enclosed in double quotes, in which
+ * case they may contain commas, line breaks and quotes doubled as an escape.
+ * Rows end with LF, CRLF or CR. Empty lines are skipped, as is a byte order
+ * mark at the start of the input. Characters between a closing quote and the
+ * next separator are kept as they are.
+ * <p>
+ * Rows are pulled with {@link #readRow()}, iterated with
+ * {@link #rowIterator()}, or pushed to a {@link RowHandler} with
+ * {@link #forEachRow(RowHandler)}.
+ *
+ * @author Patrick Eads
+ */
+public final class CsvTokenizer implements Closeable
+{
+    /**
+     * Separator of cells.
+     */
+    public static final char SEPARATOR = ',';
+    /**
+     * Quote enclosing a cell.
+     */
+    public static final char QUOTE = '"';
+    /**
+     * Size of the byte and character buffers.
+     */
+    private static final int BUFFER_SIZE = 65536;
+    /**
+     * Byte order mark.
+     */
+    private static final char BOM = '\uFEFF';
+
+    /**
+     * Channel bytes are read from, or null if reading from a Reader.
+     */
+    private final ReadableByteChannel channel;
+    /**
+     * Decoder of the channel's bytes.
+     */
+    private final CharsetDecoder decoder;
+    /**
+     * Reusable buffer of bytes read from the channel.
+     */
+    private final ByteBuffer bytes;
+    /**
+     * Reader characters are read from, or null if reading from a channel.
+     */
+    private final Reader reader;
+    /**
+     * Reusable buffer of characters to tokenize.
+     */
+    private final char[] buffer = new char[BUFFER_SIZE];
+    /**
+     * Position of the next character to tokenize in buffer.
+     */
+    private int pos;
+    /**
+     * Number of characters in buffer.
+     */
+    private int limit;
+    /**
+     * Whether all bytes have been read from the channel.
+     */
+    private boolean endOfInput;
+    /**
+     * Whether the decoder has been flushed and no characters are left.
+     */
+    private boolean drained;
+    /**
+     * Whether nothing has been read yet.
+     */
+    private boolean atStart = true;
+    /**
+     * Reusable buffer of a cell spanning more than one fill of buffer, or
+     * holding escaped quotes.
+     */
+    private char[] cell = new char[256];
+    /**
+     * Number of characters in cell.
+     */
+    private int cellLength;
+    /**
+     * Reusable array of the cells of the current row.
+     */
+    private String[] cells = new String[16];
+    /**
+     * Number of cells in the current row.
+     */
+    private int cellsCount;
+    /**
+     * Number of rows read so far.
+     */
+    private long rowsCount;
+    /**
+     * Line of the input being tokenized, starting at 1.
+     */
+    private long lineNumber = 1;
+
+    /**
+     * Create a tokenizer reading bytes from a blocking channel.
+     *
+     * @param channel
+     *            channel to read from.
+     * @param charset
+     *            Charset of the channel's bytes. Malformed and unmappable
+     *            input is replaced, as a Reader would do.
+     */
+    public CsvTokenizer(final ReadableByteChannel channel,
+            final Charset charset)
+    {
+        this.channel = channel;
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.bytes = ByteBuffer.allocate(BUFFER_SIZE);
+        this.reader = null;
+    }
+
+    /**
+     * Create a tokenizer reading characters from a Reader.
+     *
+     * @param reader
+     *            Reader to read from.
+     */
+    public CsvTokenizer(final Reader reader)
+    {
+        this.channel = null;
+        this.decoder = null;
+        this.bytes = null;
+        this.reader = reader;
+    }
+
+    /**
+     * Open a tokenizer reading the given file.
+     *
+     * @param path
+     *            path of the file to read.
+     * @param charset
+     *            Charset of the file.
+     * @return tokenizer of the file, to be closed by the caller.
+     * @throws IOException
+     */
+    public static CsvTokenizer open(final Path path, final Charset charset)
+            throws IOException
+    {
+        return new CsvTokenizer(
+                FileChannel.open(path, StandardOpenOption.READ), charset);
+    }
+
+    /**
+     * Read the next row into the reusable cell array.
+     *
+     * @return true if a row was read, false at the end of the input.
+     * @throws IOException
+     *             if the input cannot be read or ends inside a quoted cell.
+     */
+    public boolean readRow() throws IOException
+    {
+        cellsCount = 0;
+        if (!skipEmptyLines())
+        {
+            return false;
+        }
+        while (true)
+        {
+            cellLength = 0;
+            final int end;
+            if (buffer[pos] == QUOTE)
+            {
+                pos++;
+                end = readQuoted();
+            } else
+            {
+                end = readUnquoted();
+            }
+            if (end == SEPARATOR)
+            {
+                if (ensure())
+                {
+                    continue;
+                }
+                cellLength = 0;
+                addCell(pos, pos);
+            } else if (end >= 0)
+            {
+                if (end == '\r' && ensure() && buffer[pos] == '\n')
+                {
+                    pos++;
+                }
+                lineNumber++;
+            }
+            rowsCount++;
+            return true;
+        }
+    }
+
+    /**
+     * Push every remaining row to a handler.
+     *
+     * @param handler
+     *            handler receiving the rows.
+     * @return number of rows read so far.
+     * @throws IOException
+     */
+    public long forEachRow(final RowHandler handler) throws IOException
+    {
+        while (readRow())
+        {
+            handler.row(cells, cellsCount);
+        }
+        return rowsCount;
+    }
+
+    /**
+     * Iterate over the remaining rows. Each row is copied into its own list.
+     * Errors reading the input are thrown as {@link UncheckedIOException}.
+     *
+     * @return iterator over the remaining rows.
+     */
+    public Iterator<List<String>> rowIterator()
+    {
+        return new Iterator<List<String>>()
+        {
+            /**
+             * Whether a row has been read but not returned yet, or null if
+             * not known.
+             */
+            private Boolean pending;
+
+            @Override
+            public boolean hasNext()
+            {
+                if (pending == null)
+                {
+                    try
+                    {
+                        pending = readRow();
+                    } catch (final IOException e)
+                    {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return pending;
+            }
+
+            @Override
+            public List<String> next()
+            {
+                if (!hasNext())
+                {
+                    throw new NoSuchElementException();
+                }
+                pending = null;
+                return Arrays.asList(Arrays.copyOf(cells, cellsCount));
+            }
+        };
+    }
+
+    /**
+     * Set whether the input starts at the start of a file, and so may begin
+     * with a byte order mark. Must be set before the first row is read.
+     *
+     * @param startOfInput
+     *            true by default; false when tokenizing from the middle of a
+     *            file.
+     */
+    void setStartOfInput(final boolean startOfInput)
+    {
+        atStart = startOfInput;
+    }
+
+    /**
+     * @return array holding the cells of the current row, reused for the
+     *         following rows.
+     */
+    public String[] getCells()
+    {
+        return cells;
+    }
+
+    /**
+     * @return number of cells in the current row.
+     */
+    public int getCellCount()
+    {
+        return cellsCount;
+    }
+
+    /**
+     * @param column
+     *            index of the cell.
+     * @return cell of the current row.
+     */
+    public String getCell(final int column)
+    {
+        if (column >= cellsCount)
+        {
+            throw new IndexOutOfBoundsException(CsvReader.formatText(
+                    "Column: %d, cells: %d", column, cellsCount));
+        }
+        return cells[column];
+    }
+
+    /**
+     * @return number of rows read so far.
+     */
+    public long getRowCount()
+    {
+        return rowsCount;
+    }
+
+    /**
+     * @return line of the input being tokenized, starting at 1.
+     */
+    public long getLineNumber()
+    {
+        return lineNumber;
+    }
+
+    /**
+     * Close the channel or Reader being read.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (channel != null)
+        {
+            channel.close();
+        } else
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * Skip empty lines.
+     *
+     * @return true if a row follows, false at the end of the input.
+     * @throws IOException
+     */
+    private boolean skipEmptyLines() throws IOException
+    {
+        while (ensure())
+        {
+            final char c = buffer[pos];
+            if (c == '\n')
+            {
+                pos++;
+            } else if (c == '\r')
+            {
+                pos++;
+                if (ensure() && buffer[pos] == '\n')
+                {
+                    pos++;
+                }
+            } else
+            {
+                return true;
+            }
+            lineNumber++;
+        }
+        return false;
+    }
+
+    /**
+     * Read an unquoted cell, or the rest of a quoted cell after its closing
+     * quote.
+     *
+     * @return the separator or line break ending the cell, or -1 at the end
+     *         of the input.
+     * @throws IOException
+     */
+    private int readUnquoted() throws IOException
+    {
+        int start = pos;
+        while (true)
+        {
+            while (pos < limit)
+            {
+                final char c = buffer[pos];
+                if (c == SEPARATOR || c == '\n' || c == '\r')
+                {
+                    addCell(start, pos++);
+                    return c;
+                }
+                pos++;
+            }
+            append(start, pos);
+            if (!fill())
+            {
+                addCell(pos, pos);
+                return -1;
+            }
+            start = pos;
+        }
+    }
+
+    /**
+     * Read a quoted cell after its opening quote.
+     *
+     * @return the separator or line break ending the cell, or -1 at the end
+     *         of the input.
+     * @throws IOException
+     *             if the input ends before the closing quote.
+     */
+    private int readQuoted() throws IOException
+    {
+        final long startLine = lineNumber;
+        int start = pos;
+        while (true)
+        {
+            while (pos < limit)
+            {
+                final char c = buffer[pos];
+                if (c == QUOTE)
+                {
+                    append(start, pos++);
+                    if (!ensure())
+                    {
+                        addCell(pos, pos);
+                        return -1;
+                    }
+                    if (buffer[pos] != QUOTE)
+                    {
+                        return readUnquoted();
+                    }
+                    start = pos++;
+                    continue;
+                }
+                if (c == '\n')
+                {
+                    lineNumber++;
+                }
+                pos++;
+            }
+            append(start, pos);
+            if (!fill())
+            {
+                throw new IOException(CsvReader.formatText(
+                        "Unterminated quoted cell starting on line %d",
+                        startLine));
+            }
+            start = pos;
+        }
+    }
+
+    /**
+     * Append characters of buffer to the cell buffer.
+     *
+     * @param start
+     *            index of the first character.
+     * @param end
+     *            index after the last character.
+     */
+    private void append(final int start, final int end)
+    {
+        final int length = end - start;
+        if (length == 0)
+        {
+            return;
+        }
+        if (cellLength + length > cell.length)
+        {
+            cell = Arrays.copyOf(cell,
+                    Math.max(cell.length * 2, cellLength + length));
+        }
+        System.arraycopy(buffer, start, cell, cellLength, length);
+        cellLength += length;
+    }
+
+    /**
+     * Add a cell to the current row, made of the cell buffer followed by the
+     * given characters of buffer.
+     *
+     * @param start
+     *            index of the first character.
+     * @param end
+     *            index after the last character.
+     */
+    private void addCell(final int start, final int end)
+    {
+        if (cellsCount == cells.length)
+        {
+            cells = Arrays.copyOf(cells, cellsCount * 2);
+        }
+        if (cellLength == 0)
+        {
+            cells[cellsCount++] = new String(buffer, start, end - start);
+        } else
+        {
+            append(start, end);
+            cells[cellsCount++] = new String(cell, 0, cellLength);
+        }
+    }
+
+    /**
+     * Make sure there is a character to tokenize.
+     *
+     * @return true if there is a character at pos, false at the end of the
+     *         input.
+     * @throws IOException
+     */
+    private boolean ensure() throws IOException
+    {
+        return pos < limit || fill();
+    }
+
+    /**
+     * Replace the contents of buffer with the next characters of the input.
+     *
+     * @return true if characters were read, false at the end of the input.
+     * @throws IOException
+     */
+    private boolean fill() throws IOException
+    {
+        pos = 0;
+        limit = 0;
+        if (reader != null)
+        {
+            final int read = reader.read(buffer, 0, buffer.length);
+            limit = Math.max(0, read);
+        } else
+        {
+            final CharBuffer chars = CharBuffer.wrap(buffer);
+            while (chars.position() == 0 && !drained)
+            {
+                if (endOfInput)
+                {
+                    drained = decoder.flush(chars).isUnderflow();
+                    continue;
+                }
+                endOfInput = channel.read(bytes) < 0;
+                bytes.flip();
+                final CoderResult result = decoder.decode(bytes, chars,
+                        endOfInput);
+                bytes.compact();
+                if (endOfInput && result.isOverflow())
+                {
+                    // the decoder must see the end of input again
+                    endOfInput = false;
+                }
+            }
+            limit = chars.position();
+        }
+        if (atStart && limit > 0)
+        {
+            atStart = false;
+            if (buffer[0] == BOM)
+            {
+                pos = 1;
+                return limit > 1 || fill();
+            }
+        }
+        return limit > 0;
+    }
+}
@@ -0,0 +1,40 @@
+package edu.dartmouth.geisel.isidro.read;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Helpers for tasks submitted to a fork-join pool.
+ *
+ * @author Patrick Eads
+ */
+final class ForkJoinTasks
+{
+    /**
+     * Private constructor of utilities class.
+     */
+    private ForkJoinTasks()
+    {
+    }
+
+    /**
+     * Get the exception a task failed with. A fork-join pool wraps checked
+     * exceptions thrown by a Callable in a RuntimeException, and exceptions
+     * rethrown in another thread in a copy of themselves, so these wrappers
+     * are removed.
+     *
+     * @param e
+     *            exception thrown by waiting for the task.
+     * @return exception thrown by the task.
+     */
+    static Throwable cause(final ExecutionException e)
+    {
+        Throwable cause = e.getCause();
+        while (cause != null && cause.getCause() != null
+                && (cause.getClass() == RuntimeException.class
+                        || cause.getClass() == cause.getCause().getClass()))
+        {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+}
@@ -0,0 +1,24 @@
+package edu.dartmouth.geisel.isidro.read;
+
+/**
+ * How thoroughly the contents written to a worksheet are verified against
+ * the source data.
+ *
+ * @author Patrick Eads
+ */
+public enum IntegrityMode
+{
+    /**
+     * Every row is read back from the sheet and verified.
+     */
+    FULL,
+    /**
+     * Every {@link WorkbookWriter#SAMPLE_INTERVAL}th row, starting with the
+     * first, is read back from the sheet and verified.
+     */
+    SAMPLED,
+    /**
+     * Nothing is read back from the sheet.
+     */
+    OFF
+}
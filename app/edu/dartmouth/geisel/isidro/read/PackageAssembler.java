@@ -0,0 +1,190 @@
+package edu.dartmouth.geisel.isidro.read;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import edu.dartmouth.geisel.isidro.compress.CompressionProfile;
+import edu.dartmouth.geisel.isidro.compress.ProfiledZipOutputStream;
+import edu.dartmouth.geisel.isidro.util.ScratchFiles;
+
+/**
+ * Assembles a workbook package from a template package holding everything
+ * except the row data, substituting rendered sheet data for the empty sheet
+ * data of its worksheets. The parts are compressed as a
+ * {@link CompressionProfile} sets.
+ * <p>
+ * The used range a template worksheet records is that of its empty sheet data,
+ * so it is dropped from the assembled worksheets; the element is optional, and
+ * readers work out the range from the rows themselves.
+ *
+ * @author Patrick Eads
+ */
+final class PackageAssembler
+{
+    /**
+     * Size of the buffers used to assemble the package.
+     */
+    private static final int BUFFER_SIZE = 65536;
+    /**
+     * Empty sheet data of a template worksheet, replaced by the rendered rows.
+     */
+    private static final Pattern SHEET_DATA = Pattern.compile(
+            "<sheetData\\s*/>|<sheetData>.*?</sheetData>", Pattern.DOTALL);
+    /**
+     * Used range of a template worksheet, stale once rows are substituted.
+     */
+    private static final Pattern DIMENSION = Pattern
+            .compile("<dimension\\b[^>]*/>");
+
+    /**
+     * Rendered sheet data of a worksheet.
+     */
+    interface SheetData
+    {
+        /**
+         * @return stream of the whole sheetData element.
+         * @throws IOException
+         */
+        InputStream open() throws IOException;
+    }
+
+    private PackageAssembler()
+    {
+    }
+
+    /**
+     * Copy the template package to the output stream, substituting the
+     * rendered sheet data for the empty sheet data of each worksheet. The
+     * stream is not closed.
+     *
+     * @param templateFile
+     *            file holding the template package.
+     * @param sheets
+     *            rendered sheet data, by the part name of the worksheet
+     *            without its leading slash.
+     * @param os
+     *            OutputStream to write to.
+     * @param compression
+     *            how the parts are compressed.
+     * @param pool
+     *            pool parts are deflated on with a parallel profile.
+     * @throws IOException
+     */
+    static void assemble(final Path templateFile,
+            final Map<String, SheetData> sheets, final OutputStream os,
+            final CompressionProfile compression, final ForkJoinPool pool)
+            throws IOException
+    {
+        try (final ZipFile zip = new ZipFile(templateFile.toFile()))
+        {
+            final ProfiledZipOutputStream zos = new ProfiledZipOutputStream(
+                    os, compression, pool);
+            final Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements())
+            {
+                final ZipEntry entry = entries.nextElement();
+                zos.putNextEntry(entry.getName());
+                try (final InputStream is = zip.getInputStream(entry))
+                {
+                    final SheetData sheet = sheets.get(entry.getName());
+                    if (sheet == null)
+                    {
+                        copy(is, zos);
+                    } else
+                    {
+                        writeSheet(is, sheet, zos);
+                    }
+                }
+                zos.closeEntry();
+            }
+            zos.finish();
+        }
+    }
+
+    /**
+     * Write a template worksheet with its sheet data replaced by rendered
+     * sheet data and its used range dropped.
+     *
+     * @param is
+     *            InputStream of the template worksheet.
+     * @param sheet
+     *            rendered sheet data.
+     * @param os
+     *            OutputStream to write to.
+     * @throws IOException
+     */
+    private static void writeSheet(final InputStream is,
+            final SheetData sheet, final OutputStream os) throws IOException
+    {
+        final ByteArrayOutputStream xml = new ByteArrayOutputStream();
+        copy(is, xml);
+        final String template = new String(xml.toByteArray(),
+                StandardCharsets.UTF_8);
+        final Matcher matcher = SHEET_DATA.matcher(template);
+        if (!matcher.find())
+        {
+            throw new IOException("Template worksheet has no sheet data");
+        }
+        os.write(DIMENSION.matcher(template.substring(0, matcher.start()))
+                .replaceFirst("").getBytes(StandardCharsets.UTF_8));
+        try (final InputStream data = sheet.open())
+        {
+            copy(data, os);
+        }
+        os.write(template.substring(matcher.end())
+                .getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Create a temporary file.
+     *
+     * @param dir
+     *            directory to create it in, or null for the scratch directory
+     *            of the current thread, as by
+     *            {@link ScratchFiles#createTempFile(String, String)}.
+     * @param prefix
+     *            prefix of its name.
+     * @param suffix
+     *            suffix of its name.
+     * @return path of the new, empty file.
+     * @throws IOException
+     */
+    static Path createTempFile(final Path dir, final String prefix,
+            final String suffix) throws IOException
+    {
+        return dir == null ? ScratchFiles.createTempFile(prefix, suffix)
+                : Files.createTempFile(dir, prefix, suffix);
+    }
+
+    /**
+     * Copy a stream.
+     *
+     * @param is
+     *            InputStream to copy.
+     * @param os
+     *            OutputStream to copy to.
+     * @throws IOException
+     */
+    static void copy(final InputStream is, final OutputStream os)
+            throws IOException
+    {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = is.read(buffer)) >= 0)
+        {
+            os.write(buffer, 0, read);
+        }
+    }
+}
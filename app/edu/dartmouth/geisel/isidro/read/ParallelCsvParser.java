@@ -0,0 +1,438 @@
+package edu.dartmouth.geisel.isidro.read;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Parses a CSV file on a fork-join pool. The file is memory-mapped and split
+ * into chunks that each start at a record boundary, the chunks are tokenized
+ * in parallel by {@link CsvTokenizer}s, and their rows are handed on in their
+ * original order.
+ * <p>
+ * To find the boundaries, the quotes of every chunk are counted in parallel.
+ * Whether a chunk starts inside a quoted cell follows from the parity of the
+ * quotes before it, so each boundary is moved to the end of the first line
+ * break after it that is outside quotes. Stray quotes inside unquoted cells
+ * can throw the parity off, but a chunk then ends inside a quoted cell and
+ * fails to parse; the rest of the file, from the last good boundary on, is
+ * then parsed sequentially instead, so the rows are always those a single
+ * {@link CsvTokenizer} would read.
+ * <p>
+ * Splitting relies on quotes and line breaks being single bytes that never
+ * occur inside other characters, so files in other charsets, such as UTF-16,
+ * are parsed sequentially.
+ *
+ * @author Patrick Eads
+ */
+public final class ParallelCsvParser
+{
+    /**
+     * Default size of the chunks a file is split into, in bytes.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 16 << 20;
+
+    /**
+     * Pool the chunks are parsed on.
+     */
+    private final ForkJoinPool pool;
+    /**
+     * Size of the chunks a file is split into, in bytes.
+     */
+    private final int chunkSize;
+
+    /**
+     * Create a parser.
+     *
+     * @param pool
+     *            pool the chunks are parsed on, such as the pool the
+     *            workbook is built on. A large file keeps every worker
+     *            busy, so it should not be the common pool other tasks
+     *            share.
+     * @param chunkSize
+     *            size of the chunks a file is split into, in bytes,
+     *            {@link #DEFAULT_CHUNK_SIZE} by default.
+     */
+    public ParallelCsvParser(final ForkJoinPool pool, final int chunkSize)
+    {
+        if (chunkSize < 1)
+        {
+            throw new IllegalArgumentException(CsvReader
+                    .formatText("Chunk size must be positive: %d", chunkSize));
+        }
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Read a CSV file into a compact table.
+     *
+     * @param path
+     *            path of the file to read.
+     * @param charset
+     *            Charset of the file.
+     * @return table of content from CSV.
+     * @throws IOException
+     */
+    public CsvTable readTable(final Path path, final Charset charset)
+            throws IOException
+    {
+        final CsvTable table = new CsvTable();
+        forEachRow(path, charset, table::addRow);
+        return table;
+    }
+
+    /**
+     * Push every row of a CSV file to a handler, in the order of the file.
+     * At most twice as many chunks as the pool has threads are parsed ahead
+     * of the handler.
+     *
+     * @param path
+     *            path of the file to read.
+     * @param charset
+     *            Charset of the file.
+     * @param handler
+     *            handler receiving the rows.
+     * @return number of rows read.
+     * @throws IOException
+     */
+    public long forEachRow(final Path path, final Charset charset,
+            final RowHandler handler) throws IOException
+    {
+        try (final FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.READ))
+        {
+            if (!isSplittable(charset))
+            {
+                return new CsvTokenizer(channel, charset).forEachRow(handler);
+            }
+            final long[] bounds = split(channel);
+            final int chunks = bounds.length - 1;
+            final int window = Math.max(2, pool.getParallelism() * 2);
+            final Deque<ForkJoinTask<CsvTable>> tasks = new ArrayDeque<>();
+            String[] cells = new String[16];
+            long rows = 0;
+            int submitted = 0;
+            for (int chunk = 0; chunk < chunks; chunk++)
+            {
+                for (; submitted < chunks && submitted < chunk + window;
+                        submitted++)
+                {
+                    final long start = bounds[submitted];
+                    final long end = bounds[submitted + 1];
+                    final boolean first = submitted == 0;
+                    tasks.add(pool.submit(() -> parseChunk(channel, start, end,
+                            first, charset)));
+                }
+                final CsvTable table;
+                try
+                {
+                    table = join(tasks.poll());
+                } catch (final IOException e)
+                {
+                    // a misplaced boundary; the previous ones are sound
+                    for (final ForkJoinTask<CsvTable> task : tasks)
+                    {
+                        task.cancel(false);
+                    }
+                    final CsvTokenizer tokenizer = new CsvTokenizer(
+                            new MappedChannel(channel, bounds[chunk],
+                                    channel.size()),
+                            charset);
+                    tokenizer.setStartOfInput(chunk == 0);
+                    return rows + tokenizer.forEachRow(handler);
+                }
+                final int rowCount = table.getRowCount();
+                for (int row = 0; row < rowCount; row++)
+                {
+                    final int width = table.getRowWidth(row);
+                    if (width > cells.length)
+                    {
+                        cells = new String[Math.max(width, cells.length * 2)];
+                    }
+                    for (int column = 0; column < width; column++)
+                    {
+                        cells[column] = table.get(row, column);
+                    }
+                    handler.row(cells, width);
+                }
+                rows += rowCount;
+            }
+            return rows;
+        }
+    }
+
+    /**
+     * Whether quotes, separators and line breaks of a charset are single
+     * bytes that never occur inside the encoding of other characters.
+     *
+     * @param charset
+     *            Charset of a file.
+     * @return true if files of the charset can be split on their bytes.
+     */
+    static boolean isSplittable(final Charset charset)
+    {
+        return StandardCharsets.UTF_8.equals(charset)
+                || charset.canEncode()
+                        && charset.newEncoder().maxBytesPerChar() == 1.0f
+                        && Arrays.equals(new byte[] { '"', ',', '\n', '\r' },
+                                "\",\n\r".getBytes(charset));
+    }
+
+    /**
+     * Find the boundaries of the chunks of a file.
+     *
+     * @param channel
+     *            channel of the file.
+     * @return offset of the start of each chunk, followed by the size of
+     *         the file.
+     * @throws IOException
+     */
+    long[] split(final FileChannel channel) throws IOException
+    {
+        final long size = channel.size();
+        final int chunks = (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+        final List<ForkJoinTask<Long>> counts = new ArrayList<>();
+        for (int chunk = 0; chunk < chunks; chunk++)
+        {
+            final long start = (long) chunk * chunkSize;
+            final long end = Math.min(size, start + chunkSize);
+            counts.add(pool.submit(() -> countQuotes(channel, start, end)));
+        }
+        final long[] bounds = new long[chunks + 1];
+        bounds[chunks] = size;
+        long quotes = 0;
+        for (int chunk = 0; chunk < chunks; chunk++)
+        {
+            final long start = (long) chunk * chunkSize;
+            if (chunk > 0)
+            {
+                // a long record may have carried the previous boundary past
+                // this chunk, leaving the previous chunk empty
+                bounds[chunk] = bounds[chunk - 1] >= start ? bounds[chunk - 1]
+                        : nextRecord(channel, start, quotes % 2 == 1);
+            }
+            quotes += join(counts.get(chunk));
+        }
+        return bounds;
+    }
+
+    /**
+     * Count the quotes in a range of a file.
+     *
+     * @param channel
+     *            channel of the file.
+     * @param start
+     *            offset of the start of the range.
+     * @param end
+     *            offset of the end of the range.
+     * @return number of quotes in the range.
+     * @throws IOException
+     */
+    private static long countQuotes(final FileChannel channel,
+            final long start, final long end) throws IOException
+    {
+        final MappedByteBuffer buffer = channel
+                .map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        long quotes = 0;
+        while (buffer.hasRemaining())
+        {
+            if (buffer.get() == CsvTokenizer.QUOTE)
+            {
+                quotes++;
+            }
+        }
+        return quotes;
+    }
+
+    /**
+     * Find the start of the first record at or after an offset.
+     *
+     * @param channel
+     *            channel of the file.
+     * @param start
+     *            offset to search from.
+     * @param quoted
+     *            whether the offset is inside a quoted cell.
+     * @return offset after the first line break outside quotes, or the size
+     *         of the file if there is none.
+     * @throws IOException
+     */
+    private long nextRecord(final FileChannel channel, final long start,
+            final boolean quoted) throws IOException
+    {
+        final long size = channel.size();
+        boolean inQuotes = quoted;
+        for (long offset = start; offset < size; offset += chunkSize)
+        {
+            final MappedByteBuffer buffer = channel.map(
+                    FileChannel.MapMode.READ_ONLY, offset,
+                    Math.min(chunkSize, size - offset));
+            while (buffer.hasRemaining())
+            {
+                final byte b = buffer.get();
+                if (b == CsvTokenizer.QUOTE)
+                {
+                    inQuotes = !inQuotes;
+                } else if (b == '\n' && !inQuotes)
+                {
+                    return offset + buffer.position();
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Tokenize a chunk of a file.
+     *
+     * @param channel
+     *            channel of the file.
+     * @param start
+     *            offset of the start of the chunk.
+     * @param end
+     *            offset of the end of the chunk.
+     * @param first
+     *            whether this is the first chunk of the file.
+     * @param charset
+     *            Charset of the file.
+     * @return rows of the chunk.
+     * @throws IOException
+     */
+    private CsvTable parseChunk(final FileChannel channel, final long start,
+            final long end, final boolean first, final Charset charset)
+            throws IOException
+    {
+        final CsvTable table = new CsvTable();
+        final CsvTokenizer tokenizer = new CsvTokenizer(
+                new MappedChannel(channel, start, end), charset);
+        tokenizer.setStartOfInput(first);
+        tokenizer.forEachRow(table::addRow);
+        return table;
+    }
+
+    /**
+     * Wait for a task, rethrowing its failure.
+     *
+     * @param task
+     *            task to wait for.
+     * @return result of the task.
+     * @throws IOException
+     */
+    private static <T> T join(final ForkJoinTask<T> task) throws IOException
+    {
+        try
+        {
+            return task.get();
+        } catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (final ExecutionException e)
+        {
+            final Throwable cause = ForkJoinTasks.cause(e);
+            if (cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Channel reading a range of a file through memory maps of at most
+     * {@link ParallelCsvParser#DEFAULT_CHUNK_SIZE} bytes. Closing it leaves
+     * the file open.
+     */
+    private static final class MappedChannel implements ReadableByteChannel
+    {
+        /**
+         * Channel of the file.
+         */
+        private final FileChannel file;
+        /**
+         * Offset of the end of the range.
+         */
+        private final long end;
+        /**
+         * Offset of the start of the next map.
+         */
+        private long position;
+        /**
+         * Current map, or null before the first read.
+         */
+        private MappedByteBuffer buffer;
+        /**
+         * Whether the channel is open.
+         */
+        private boolean open = true;
+
+        /**
+         * @param file
+         *            channel of the file.
+         * @param start
+         *            offset of the start of the range.
+         * @param end
+         *            offset of the end of the range.
+         */
+        private MappedChannel(final FileChannel file, final long start,
+                final long end)
+        {
+            this.file = file;
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read(final ByteBuffer dst) throws IOException
+        {
+            if (buffer == null || !buffer.hasRemaining())
+            {
+                if (position >= end)
+                {
+                    return -1;
+                }
+                final long length = Math.min(DEFAULT_CHUNK_SIZE,
+                        end - position);
+                buffer = file.map(FileChannel.MapMode.READ_ONLY, position,
+                        length);
+                position += length;
+            }
+            final int count = Math.min(dst.remaining(), buffer.remaining());
+            final ByteBuffer slice = buffer.slice();
+            slice.limit(count);
+            dst.put(slice);
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return open;
+        }
+
+        @Override
+        public void close()
+        {
+            open = false;
+        }
+    }
+}
@@ -0,0 +1,526 @@
+package edu.dartmouth.geisel.isidro.read;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+import edu.dartmouth.geisel.isidro.checksum.IncrementalChecksum;
+import edu.dartmouth.geisel.isidro.compress.CompressionProfile;
+import edu.dartmouth.geisel.isidro.read.PackageAssembler.SheetData;
+
+/**
+ * Writes rows of Strings across as many worksheets as needed to stay within
+ * Excel's row limit. The first row is taken as a header and repeated at the
+ * top of every sheet, and the following rows are split into consecutive
+ * partitions of at most {@link #getRowsPerSheet()} rows.
+ * <p>
+ * The sheet data of every partition is rendered to its own temporary file in
+ * parallel on a fork-join pool, and fingerprinted and verified as it is
+ * rendered. The parts are then assembled into one package around a template
+ * workbook that holds everything except the row data, so drawings such as
+ * watermarks can be placed on the template as they are with a streaming
+ * {@link WorkbookWriter}. Large parts are deflated in parallel blocks on the
+ * same pool, unless another {@link CompressionProfile} is set.
+ * <p>
+ * Cells are always written as inline Strings; typed cells are only supported
+ * by {@link WorkbookWriter}. Verification reads back every row of every sheet
+ * in {@link IntegrityMode#FULL} mode, and every
+ * {@link WorkbookWriter#SAMPLE_INTERVAL}th row of every sheet, header first,
+ * in {@link IntegrityMode#SAMPLED} mode.
+ *
+ * @author Patrick Eads
+ */
+public final class PartitionedWorkbookWriter implements Closeable
+{
+    /**
+     * Most rows of a worksheet, including the header.
+     */
+    public static final int MAX_SHEET_ROWS = 1048576;
+    /**
+     * Longest name Excel accepts for a worksheet.
+     */
+    private static final int MAX_SHEET_NAME_LENGTH = 31;
+    /**
+     * Size of the buffers used to write and assemble sheet data.
+     */
+    private static final int BUFFER_SIZE = 65536;
+
+    /**
+     * Rows to write, header first.
+     */
+    private final List<? extends List<String>> rows;
+    /**
+     * Number of data rows in each partition.
+     */
+    private final int rowsPerSheet;
+    /**
+     * Template workbook holding one empty worksheet per partition.
+     */
+    private final XSSFWorkbook template = new XSSFWorkbook();
+    /**
+     * Name of the worksheet of each partition.
+     */
+    private final List<String> sheetNames = new ArrayList<>();
+    /**
+     * Fingerprint of the rows of each sheet, header included, once written.
+     */
+    private final List<String> sheetChecksums = new ArrayList<>();
+    /**
+     * How the written contents are verified.
+     */
+    private IntegrityMode integrityMode = IntegrityMode.FULL;
+    /**
+     * Pool the partitions are rendered on.
+     */
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    /**
+     * How the parts of the package are compressed.
+     */
+    private CompressionProfile compression = CompressionProfile.BALANCED;
+    /**
+     * Directory temporary files are written to, or null for the scratch
+     * directory of the writing thread.
+     */
+    private Path tempDir;
+
+    /**
+     * Create a writer for the given rows, creating the worksheets of the
+     * template workbook. The first worksheet is named worksheetName, and the
+     * following ones are suffixed with their number.
+     *
+     * @param worksheetName
+     *            String name of the first worksheet.
+     * @param rows
+     *            rows to write, header first. Must not change until the
+     *            workbook has been written.
+     * @param rowsPerSheet
+     *            most data rows of each worksheet, at most
+     *            {@link #MAX_SHEET_ROWS} - 1.
+     */
+    public PartitionedWorkbookWriter(final String worksheetName,
+            final List<? extends List<String>> rows, final int rowsPerSheet)
+    {
+        if (rowsPerSheet < 1 || rowsPerSheet >= MAX_SHEET_ROWS)
+        {
+            throw new IllegalArgumentException(CsvReader.formatText(
+                    "Rows per sheet must be between 1 and %d: %d",
+                    MAX_SHEET_ROWS - 1, rowsPerSheet));
+        }
+        this.rows = rows;
+        this.rowsPerSheet = rowsPerSheet;
+        final long dataRows = Math.max(0, rows.size() - 1);
+        final long sheets = Math.max(1,
+                (dataRows + rowsPerSheet - 1) / rowsPerSheet);
+        for (int i = 0; i < sheets; i++)
+        {
+            final String name = sheetName(worksheetName, i);
+            template.createSheet(name);
+            sheetNames.add(name);
+        }
+    }
+
+    /**
+     * Name of the worksheet of a partition, shortening the base name as
+     * needed to fit Excel's limit.
+     *
+     * @param worksheetName
+     *            String name of the first worksheet.
+     * @param index
+     *            index of the partition.
+     * @return String name of the worksheet.
+     */
+    static String sheetName(final String worksheetName, final int index)
+    {
+        final String suffix = index == 0 ? "" : "_" + (index + 1);
+        final int length = Math.min(worksheetName.length(),
+                MAX_SHEET_NAME_LENGTH - suffix.length());
+        return worksheetName.substring(0, length) + suffix;
+    }
+
+    /**
+     * Name of a column as used in cell references: A to Z, then AA and so on.
+     *
+     * @param column
+     *            index of the column.
+     * @return String name of the column.
+     */
+    static String columnName(final int column)
+    {
+        final StringBuilder name = new StringBuilder();
+        for (int c = column + 1; c > 0; c = (c - 1) / 26)
+        {
+            name.append((char) ('A' + (c - 1) % 26));
+        }
+        return name.reverse().toString();
+    }
+
+    /**
+     * Set how the written contents are verified.
+     *
+     * @param integrityMode
+     *            verification mode, {@link IntegrityMode#FULL} by default.
+     */
+    public void setIntegrityMode(final IntegrityMode integrityMode)
+    {
+        this.integrityMode = integrityMode;
+    }
+
+    /**
+     * Set the pool the partitions are rendered on.
+     *
+     * @param pool
+     *            fork-join pool, the common pool by default.
+     */
+    public void setPool(final ForkJoinPool pool)
+    {
+        this.pool = pool;
+    }
+
+    /**
+     * Set how the parts of the package are compressed.
+     *
+     * @param compression
+     *            compression profile, {@link CompressionProfile#BALANCED} by
+     *            default.
+     */
+    public void setCompression(final CompressionProfile compression)
+    {
+        this.compression = compression;
+    }
+
+    /**
+     * Set the directory temporary files are written to while writing the
+     * package.
+     *
+     * @param tempDir
+     *            directory, or null for the scratch directory of the
+     *            writing thread, as set by
+     *            {@link edu.dartmouth.geisel.isidro.util.ScratchFiles}, as by
+     *            default.
+     */
+    public void setTempDir(final Path tempDir)
+    {
+        this.tempDir = tempDir;
+    }
+
+    /**
+     * Render every partition in parallel and write the assembled workbook to
+     * the given output stream. The stream is not closed.
+     *
+     * @param os
+     *            OutputStream to write to.
+     * @return hex String of the SHA-512 hash of all rows, as computed by
+     *         {@link edu.dartmouth.geisel.isidro.checksum.ExcelChecksum}.
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     * @throws DataIntegrityMismatchException
+     *             if the contents read back from a sheet do not match its
+     *             source rows.
+     */
+    public String write(final OutputStream os) throws IOException,
+            NoSuchAlgorithmException, DataIntegrityMismatchException
+    {
+        final int sheets = sheetNames.size();
+        final Path[] parts = new Path[sheets];
+        final Path templateFile = PackageAssembler.createTempFile(tempDir,
+                "isidro-template", ".xlsx");
+        try
+        {
+            try (final OutputStream templateOut = Files
+                    .newOutputStream(templateFile))
+            {
+                template.write(templateOut);
+            }
+            final ForkJoinTask<String> combined = pool
+                    .submit(() -> checksum(rows));
+            final List<ForkJoinTask<String>> tasks = new ArrayList<>();
+            for (int i = 0; i < sheets; i++)
+            {
+                final int sheet = i;
+                parts[sheet] = PackageAssembler.createTempFile(tempDir,
+                        "isidro-sheet", ".xml");
+                tasks.add(pool.submit(() -> writePart(sheet, parts[sheet])));
+            }
+            sheetChecksums.clear();
+            for (final ForkJoinTask<String> task : tasks)
+            {
+                sheetChecksums.add(join(task));
+            }
+            final String checksum = join(combined);
+            assemble(templateFile, parts, os);
+            return checksum;
+        } finally
+        {
+            Files.deleteIfExists(templateFile);
+            for (final Path part : parts)
+            {
+                if (part != null)
+                {
+                    Files.deleteIfExists(part);
+                }
+            }
+        }
+    }
+
+    /**
+     * Render the header and the data rows of a partition as sheet data,
+     * fingerprinting them and verifying the rendered cells as configured.
+     *
+     * @param sheet
+     *            index of the partition.
+     * @param part
+     *            file to render the sheet data to.
+     * @return fingerprint of the rows of the sheet.
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     * @throws DataIntegrityMismatchException
+     */
+    private String writePart(final int sheet, final Path part)
+            throws IOException, NoSuchAlgorithmException,
+            DataIntegrityMismatchException
+    {
+        final IncrementalChecksum checksum = new IncrementalChecksum();
+        final int sampleInterval = integrityMode == IntegrityMode.SAMPLED
+                ? WorkbookWriter.SAMPLE_INTERVAL : 1;
+        final IncrementalChecksum sampleChecksum = new IncrementalChecksum();
+        final int first = Math.min(rows.size(), 1 + sheet * rowsPerSheet);
+        final int last = Math.min(rows.size(), first + rowsPerSheet);
+        try (final Writer writer = new BufferedWriter(new OutputStreamWriter(
+                Files.newOutputStream(part), StandardCharsets.UTF_8),
+                BUFFER_SIZE))
+        {
+            final StringBuilder text = new StringBuilder();
+            writer.write("<sheetData>");
+            final List<List<String>> sheetRows = new ArrayList<>();
+            if (!rows.isEmpty())
+            {
+                sheetRows.add(rows.get(0));
+            }
+            sheetRows.addAll(rows.subList(first, last));
+            int rowNumber = 0;
+            for (final List<String> row : sheetRows)
+            {
+                if (rowNumber % sampleInterval == 0)
+                {
+                    sampleChecksum.update(row);
+                }
+                writeRow(writer, text, ++rowNumber, row);
+                checksum.update(row);
+            }
+            writer.write("</sheetData>");
+        }
+        final String written = checksum.digest();
+        if (integrityMode != IntegrityMode.OFF)
+        {
+            final String expected = sampleInterval == 1 ? written
+                    : sampleChecksum.digest();
+            final String actual;
+            try (final InputStream is = Files.newInputStream(part))
+            {
+                actual = SheetDataReader.checksum(is, -1, sampleInterval);
+            }
+            if (!actual.equals(expected))
+            {
+                throw new DataIntegrityMismatchException(CsvReader.formatText(
+                        "Sheet %s expected: %s, but got: %s",
+                        sheetNames.get(sheet), expected, actual));
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Render a row of inline String cells. A null cell is rendered as a blank
+     * cell, and characters XML cannot hold are written as escapes as by
+     * {@link CellText#encode(String)}.
+     *
+     * @param writer
+     *            Writer receiving the sheet data.
+     * @param text
+     *            reusable buffer for the row's markup.
+     * @param rowNumber
+     *            number of the row in the sheet, starting at 1.
+     * @param row
+     *            cells of the row in column order.
+     * @throws IOException
+     */
+    private static void writeRow(final Writer writer, final StringBuilder text,
+            final int rowNumber, final List<String> row) throws IOException
+    {
+        text.setLength(0);
+        text.append("<row r=\"").append(rowNumber).append("\">");
+        int column = 0;
+        for (final String cell : row)
+        {
+            text.append("<c r=\"").append(columnName(column++))
+                    .append(rowNumber).append('"');
+            if (cell == null)
+            {
+                text.append("/>");
+                continue;
+            }
+            text.append(" t=\"inlineStr\"><is><t");
+            if (!cell.isEmpty() && (Character.isWhitespace(cell.charAt(0))
+                    || Character.isWhitespace(cell.charAt(cell.length() - 1))))
+            {
+                text.append(" xml:space=\"preserve\"");
+            }
+            text.append('>');
+            CellText.appendXml(text, CellText.encode(cell));
+            text.append("</t></is></c>");
+        }
+        text.append("</row>");
+        writer.append(text);
+    }
+
+    /**
+     * Fingerprint all rows.
+     *
+     * @param rows
+     *            rows to fingerprint.
+     * @return fingerprint of the rows.
+     * @throws NoSuchAlgorithmException
+     */
+    private static String checksum(final List<? extends List<String>> rows)
+            throws NoSuchAlgorithmException
+    {
+        final IncrementalChecksum checksum = new IncrementalChecksum();
+        for (final List<String> row : rows)
+        {
+            checksum.update(row);
+        }
+        return checksum.digest();
+    }
+
+    /**
+     * Copy the template package to the output stream, substituting the
+     * rendered sheet data for the empty sheet data of each worksheet.
+     *
+     * @param templateFile
+     *            file holding the template package.
+     * @param parts
+     *            files holding the rendered sheet data, by sheet index.
+     * @param os
+     *            OutputStream to write to.
+     * @throws IOException
+     */
+    private void assemble(final Path templateFile, final Path[] parts,
+            final OutputStream os) throws IOException
+    {
+        final Map<String, SheetData> partsByName = new HashMap<>();
+        for (int i = 0; i < parts.length; i++)
+        {
+            final Path part = parts[i];
+            partsByName.put(template.getSheetAt(i).getPackagePart()
+                    .getPartName().getName().substring(1),
+                    () -> Files.newInputStream(part));
+        }
+        PackageAssembler.assemble(templateFile, partsByName, os, compression,
+                pool);
+    }
+
+    /**
+     * Wait for a task, rethrowing its failure.
+     *
+     * @param task
+     *            task to wait for.
+     * @return result of the task.
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     * @throws DataIntegrityMismatchException
+     */
+    private static <T> T join(final ForkJoinTask<T> task) throws IOException,
+            NoSuchAlgorithmException, DataIntegrityMismatchException
+    {
+        try
+        {
+            return task.get();
+        } catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (final ExecutionException e)
+        {
+            final Throwable cause = ForkJoinTasks.cause(e);
+            if (cause instanceof IOException)
+            {
+                throw (IOException) cause;
+            } else if (cause instanceof NoSuchAlgorithmException)
+            {
+                throw (NoSuchAlgorithmException) cause;
+            } else if (cause instanceof DataIntegrityMismatchException)
+            {
+                throw (DataIntegrityMismatchException) cause;
+            } else if (cause instanceof RuntimeException)
+            {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * @return number of data rows in each worksheet but the last.
+     */
+    public int getRowsPerSheet()
+    {
+        return rowsPerSheet;
+    }
+
+    /**
+     * @return names of the worksheets, in order.
+     */
+    public List<String> getSheetNames()
+    {
+        return Collections.unmodifiableList(sheetNames);
+    }
+
+    /**
+     * @return fingerprint of the rows of each worksheet, header included, in
+     *         order, once the workbook has been written.
+     */
+    public List<String> getSheetChecksums()
+    {
+        return Collections.unmodifiableList(sheetChecksums);
+    }
+
+    /**
+     * Template workbook holding everything except the row data, which is
+     * where drawings such as watermarks are placed.
+     *
+     * @return XSSF template workbook.
+     */
+    public XSSFWorkbook getXSSFWorkbook()
+    {
+        return template;
+    }
+
+    /**
+     * Release the template workbook.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException
+    {
+        template.close();
+    }
+}
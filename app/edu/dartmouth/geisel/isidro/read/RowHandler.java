@@ -0,0 +1,24 @@
+package edu.dartmouth.geisel.isidro.read;
+
+import java.io.IOException;
+
+/**
+ * Receives the rows of a CSV as they are tokenized.
+ *
+ * @author Patrick Eads
+ */
+@FunctionalInterface
+public interface RowHandler
+{
+    /**
+     * Handle a row. The array is reused for the following rows, so it must
+     * not be kept after this returns; the Strings in it may be kept.
+     *
+     * @param cells
+     *            array holding the cells of the row in column order.
+     * @param count
+     *            number of cells of the array belonging to the row.
+     * @throws IOException
+     */
+    void row(String[] cells, int count) throws IOException;
+}
@@ -0,0 +1,179 @@
+package edu.dartmouth.geisel.isidro.read;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import edu.dartmouth.geisel.isidro.checksum.IncrementalChecksum;
+
+/**
+ * Reads the cells of serialized sheet data back as the text they were
+ * written from, and fingerprints them. This is what verification compares to
+ * the fingerprint of the source rows, so it checks the bytes that end up in
+ * the package rather than the objects they were serialized from.
+ * <p>
+ * Inline Strings are decoded from their _xHHHH_ escapes, numbers and booleans
+ * are formatted as by {@link CellTypes#toText(org.apache.poi.ss.usermodel.Cell)},
+ * and numbers with the date style are formatted as dates.
+ *
+ * @author Patrick Eads
+ */
+final class SheetDataReader
+{
+    /**
+     * Private constructor of utilities class.
+     */
+    private SheetDataReader()
+    {
+    }
+
+    /**
+     * Fingerprint the rows of a sheetData element.
+     *
+     * @param sheetData
+     *            stream of the whole sheetData element. Not closed.
+     * @param dateStyle
+     *            index of the style of date cells, or -1 if there are none.
+     * @param sampleInterval
+     *            interval between the rows fingerprinted, starting with the
+     *            first row; 1 to fingerprint every row.
+     * @return fingerprint of the rows read back.
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    static String checksum(final InputStream sheetData, final int dateStyle,
+            final int sampleInterval)
+            throws IOException, NoSuchAlgorithmException
+    {
+        final IncrementalChecksum checksum = new IncrementalChecksum();
+        final XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        try
+        {
+            final XMLStreamReader reader = factory.createXMLStreamReader(
+                    sheetData, StandardCharsets.UTF_8.name());
+            try
+            {
+                final List<String> row = new ArrayList<>();
+                final StringBuilder cell = new StringBuilder();
+                int rowIndex = -1;
+                boolean sampled = false;
+                boolean inText = false;
+                String type = null;
+                int style = 0;
+                while (reader.hasNext())
+                {
+                    switch (reader.next())
+                    {
+                    case XMLStreamConstants.START_ELEMENT:
+                        switch (reader.getLocalName())
+                        {
+                        case "row":
+                            final String r = reader.getAttributeValue(null,
+                                    "r");
+                            rowIndex = r == null ? rowIndex + 1
+                                    : Integer.parseInt(r) - 1;
+                            sampled = rowIndex % sampleInterval == 0;
+                            break;
+                        case "c":
+                            cell.setLength(0);
+                            type = reader.getAttributeValue(null, "t");
+                            final String s = reader.getAttributeValue(null,
+                                    "s");
+                            style = s == null ? 0 : Integer.parseInt(s);
+                            break;
+                        case "t":
+                        case "v":
+                            inText = true;
+                            break;
+                        default:
+                            break;
+                        }
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        if (inText)
+                        {
+                            cell.append(reader.getText());
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        switch (reader.getLocalName())
+                        {
+                        case "t":
+                        case "v":
+                            inText = false;
+                            break;
+                        case "c":
+                            if (sampled)
+                            {
+                                row.add(toText(type, style, dateStyle,
+                                        cell.toString()));
+                            }
+                            break;
+                        case "row":
+                            if (sampled)
+                            {
+                                checksum.update(row);
+                            }
+                            row.clear();
+                            break;
+                        default:
+                            break;
+                        }
+                        break;
+                    default:
+                        break;
+                    }
+                }
+            } finally
+            {
+                reader.close();
+            }
+        } catch (final XMLStreamException | NumberFormatException e)
+        {
+            throw new IOException(e);
+        }
+        return checksum.digest();
+    }
+
+    /**
+     * Read the value of a serialized cell as text.
+     *
+     * @param type
+     *            type attribute of the cell, or null for a number.
+     * @param style
+     *            index of the style of the cell.
+     * @param dateStyle
+     *            index of the style of date cells, or -1 if there are none.
+     * @param value
+     *            text of the cell's value.
+     * @return String content of the cell.
+     */
+    private static String toText(final String type, final int style,
+            final int dateStyle, final String value)
+    {
+        if ("inlineStr".equals(type) || "str".equals(type))
+        {
+            return CellText.decode(value);
+        } else if ("b".equals(type))
+        {
+            return "1".equals(value) ? CellTypes.TRUE : CellTypes.FALSE;
+        } else if (value.isEmpty())
+        {
+            return "";
+        }
+        final double number = Double.parseDouble(value);
+        return style == dateStyle ? CellTypes.formatDate(number)
+                : CellTypes.formatNumber(number);
+    }
+}
@@ -0,0 +1,592 @@
+package edu.dartmouth.geisel.isidro.read;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.streaming.SXSSFSheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+import edu.dartmouth.geisel.isidro.checksum.IncrementalChecksum;
+import edu.dartmouth.geisel.isidro.compress.CompressionProfile;
+import edu.dartmouth.geisel.isidro.read.PackageAssembler.SheetData;
+
+/**
+ * Writes rows of Strings into a single worksheet of a POI workbook. When
+ * created with {@link #streaming(String, int)} the rows are written through a
+ * windowed SXSSF workbook, so heap use is bounded by the row window instead of
+ * the size of the data.
+ * <p>
+ * The fingerprint of the source rows is computed while they are written.
+ * Depending on the {@link IntegrityMode}, the contents of the sheet are
+ * verified against it when writing finishes. A streaming sheet is verified by
+ * reading back the rows POI serialized to its temporary file, which are the
+ * bytes that end up in the package. Other sheets hold their cells as the XML
+ * objects they are serialized from, so their cells are read back as they are
+ * written and fingerprinted on the side.
+ * <p>
+ * String cells are written with characters XML cannot hold escaped as
+ * _xHHHH_, which Excel and POI decode when the cell is read, so they survive
+ * serialization.
+ * <p>
+ * With typed cells enabled, the first row is taken as a header and the
+ * following {@link #TYPE_SAMPLE_ROWS} rows are buffered to infer the type of
+ * each column, after which numbers, dates and booleans are emitted as native
+ * cells. Cells are read back by type, so the fingerprint still matches the
+ * source.
+ * <p>
+ * The package is written by POI unless a {@link CompressionProfile} is set,
+ * in which case the row data of a streaming workbook is injected into its
+ * template as the package is compressed, without POI compressing it first.
+ *
+ * @author Patrick Eads
+ */
+public final class WorkbookWriter implements Closeable
+{
+    /**
+     * Default number of rows held in memory by a streaming workbook.
+     */
+    public static final int DEFAULT_ROW_WINDOW = 100;
+    /**
+     * Interval between rows verified in {@link IntegrityMode#SAMPLED} mode.
+     */
+    public static final int SAMPLE_INTERVAL = 100;
+    /**
+     * Number of rows after the header sampled to infer column types.
+     */
+    public static final int TYPE_SAMPLE_ROWS = 1000;
+
+    /**
+     * Workbook being written.
+     */
+    private final Workbook workbook;
+    /**
+     * Worksheet receiving the rows.
+     */
+    private final Sheet sheet;
+    /**
+     * Number of rows written so far.
+     */
+    private int rowsCount;
+    /**
+     * Fingerprint of all source rows.
+     */
+    private final IncrementalChecksum sourceChecksum;
+    /**
+     * Fingerprint of the source rows that are verified. Only used in
+     * {@link IntegrityMode#SAMPLED} mode, as in full mode it is the same as
+     * sourceChecksum.
+     */
+    private final IncrementalChecksum sampleChecksum;
+    /**
+     * Fingerprint of the cells read back from the sheet as they are written.
+     * Not used by a streaming sheet, which is read back from its file.
+     */
+    private final IncrementalChecksum sheetChecksum;
+    /**
+     * Reusable buffer of cells read back from the sheet.
+     */
+    private String[] readBack = new String[16];
+    /**
+     * How the written contents are verified.
+     */
+    private IntegrityMode integrityMode = IntegrityMode.FULL;
+    /**
+     * Fingerprint of the source rows, once writing has finished.
+     */
+    private String checksum;
+    /**
+     * Whether numbers, dates and booleans are emitted as typed cells.
+     */
+    private boolean typedCells;
+    /**
+     * Type of each column, once inferred.
+     */
+    private ColumnType[] columnTypes;
+    /**
+     * Rows buffered until the column types are inferred.
+     */
+    private final List<List<String>> pending = new ArrayList<>();
+    /**
+     * Style of date cells.
+     */
+    private CellStyle dateStyle;
+    /**
+     * How the parts of the package are compressed, or null to leave it to
+     * POI.
+     */
+    private CompressionProfile compression;
+    /**
+     * Pool parts are deflated on with a parallel compression profile.
+     */
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    /**
+     * Directory temporary files are written to, or null for the scratch
+     * directory of the writing thread.
+     */
+    private Path tempDir;
+
+    /**
+     * Create a writer for a new worksheet of the given workbook.
+     *
+     * @param workbook
+     *            POI workbook to write to.
+     * @param worksheetName
+     *            String name of worksheet.
+     * @throws NoSuchAlgorithmException
+     */
+    public WorkbookWriter(final Workbook workbook, final String worksheetName)
+            throws NoSuchAlgorithmException
+    {
+        this.workbook = workbook;
+        this.sheet = workbook.createSheet(worksheetName);
+        this.sourceChecksum = new IncrementalChecksum();
+        this.sampleChecksum = new IncrementalChecksum();
+        this.sheetChecksum = new IncrementalChecksum();
+    }
+
+    /**
+     * Create a writer backed by a windowed SXSSF workbook.
+     *
+     * @param worksheetName
+     *            String name of worksheet.
+     * @param rowWindow
+     *            number of rows kept in memory before they are flushed to a
+     *            temporary file.
+     * @return streaming workbook writer.
+     * @throws NoSuchAlgorithmException
+     */
+    public static WorkbookWriter streaming(final String worksheetName,
+            final int rowWindow) throws NoSuchAlgorithmException
+    {
+        return new WorkbookWriter(
+                new SXSSFWorkbook(new XSSFWorkbook(), rowWindow),
+                worksheetName);
+    }
+
+    /**
+     * Append a row of Strings to the worksheet.
+     *
+     * @param row
+     *            cells of the row in column order.
+     */
+    public void writeRow(final Iterable<String> row)
+    {
+        if (typedCells && columnTypes == null)
+        {
+            final List<String> copy = new ArrayList<>();
+            for (final String cell : row)
+            {
+                copy.add(cell);
+            }
+            pending.add(copy);
+            if (pending.size() > TYPE_SAMPLE_ROWS)
+            {
+                inferColumnTypes();
+            }
+            return;
+        }
+        emitRow(row);
+    }
+
+    /**
+     * Write a row of Strings to the sheet, fingerprinting and verifying it as
+     * configured.
+     *
+     * @param row
+     *            cells of the row in column order.
+     */
+    private void emitRow(final Iterable<String> row)
+    {
+        final boolean typed = columnTypes != null && rowsCount > 0;
+        final boolean sampled = integrityMode == IntegrityMode.SAMPLED
+                && rowsCount % SAMPLE_INTERVAL == 0;
+        final boolean verify = !(workbook instanceof SXSSFWorkbook)
+                && (integrityMode == IntegrityMode.FULL || sampled);
+        final Row sheetRow = sheet.createRow(rowsCount++);
+        int cellsCount = 0;
+        for (final String cell : row)
+        {
+            final Cell sheetCell = sheetRow.createCell(cellsCount);
+            if (typed)
+            {
+                setTypedValue(sheetCell, cell);
+            } else
+            {
+                sheetCell.setCellValue(CellText.encode(cell));
+            }
+            if (verify)
+            {
+                if (cellsCount == readBack.length)
+                {
+                    final String[] grown = new String[cellsCount * 2];
+                    System.arraycopy(readBack, 0, grown, 0, cellsCount);
+                    readBack = grown;
+                }
+                readBack[cellsCount] = CellTypes.toText(sheetCell);
+            }
+            cellsCount++;
+        }
+        sourceChecksum.update(row);
+        if (sampled)
+        {
+            sampleChecksum.update(row);
+        }
+        if (verify)
+        {
+            sheetChecksum.update(readBack, cellsCount);
+        }
+    }
+
+    /**
+     * Set a cell from a String, as a typed value if its column has a type and
+     * the String converts to it exactly.
+     *
+     * @param sheetCell
+     *            cell to set.
+     * @param value
+     *            String value of the cell.
+     */
+    private void setTypedValue(final Cell sheetCell, final String value)
+    {
+        final int column = sheetCell.getColumnIndex();
+        final ColumnType type = value == null || column >= columnTypes.length
+                ? ColumnType.STRING : columnTypes[column];
+        switch (type)
+        {
+        case NUMERIC:
+            if (CellTypes.isNumber(value))
+            {
+                sheetCell.setCellValue(Double.parseDouble(value));
+                return;
+            }
+            break;
+        case DATE:
+            final long serial = CellTypes.toDateSerial(value);
+            if (serial >= 0)
+            {
+                sheetCell.setCellValue(serial);
+                sheetCell.setCellStyle(dateStyle);
+                return;
+            }
+            break;
+        case BOOLEAN:
+            if (CellTypes.TRUE.equals(value) || CellTypes.FALSE.equals(value))
+            {
+                sheetCell.setCellValue(CellTypes.TRUE.equals(value));
+                return;
+            }
+            break;
+        default:
+            break;
+        }
+        sheetCell.setCellValue(CellText.encode(value));
+    }
+
+    /**
+     * Infer the column types from the buffered rows, skipping the header, and
+     * write the buffered rows.
+     */
+    private void inferColumnTypes()
+    {
+        int columns = 0;
+        for (final List<String> row : pending)
+        {
+            columns = Math.max(columns, row.size());
+        }
+        columnTypes = CellTypes.inferColumns(
+                pending.subList(Math.min(1, pending.size()), pending.size()),
+                columns);
+        dateStyle = workbook.createCellStyle();
+        dateStyle.setDataFormat(workbook.getCreationHelper()
+                .createDataFormat().getFormat(CellTypes.DATE_FORMAT));
+        for (final List<String> row : pending)
+        {
+            emitRow(row);
+        }
+        pending.clear();
+    }
+
+    /**
+     * Append all rows of the given table to the worksheet.
+     *
+     * @param table
+     *            table of rows to append.
+     */
+    public void writeAll(final CsvTable table)
+    {
+        final int rows = table.getRowCount();
+        for (int i = 0; i < rows; i++)
+        {
+            writeRow(table.getRow(i));
+        }
+    }
+
+    /**
+     * Set whether numbers, dates and booleans are emitted as typed cells.
+     * Must be set before the first row is written.
+     *
+     * @param typedCells
+     *            true to emit typed cells, false by default.
+     */
+    public void setTypedCells(final boolean typedCells)
+    {
+        this.typedCells = typedCells;
+    }
+
+    /**
+     * @return type of each column, or null if cells are not typed or the
+     *         types have not been inferred yet.
+     */
+    public ColumnType[] getColumnTypes()
+    {
+        return columnTypes == null ? null : columnTypes.clone();
+    }
+
+    /**
+     * Set how the written contents are verified. Must be set before the
+     * first row is written.
+     *
+     * @param integrityMode
+     *            verification mode, {@link IntegrityMode#FULL} by default.
+     */
+    public void setIntegrityMode(final IntegrityMode integrityMode)
+    {
+        this.integrityMode = integrityMode;
+    }
+
+    /**
+     * Complete the fingerprints of the rows written and verify the contents of
+     * the sheet against the source rows. No more rows may be written after
+     * this has been called.
+     *
+     * @return hex String of the SHA-512 hash of the source rows, as computed
+     *         by {@link edu.dartmouth.geisel.isidro.checksum.ExcelChecksum}.
+     * @throws IOException
+     *             if the rows of a streaming sheet cannot be read back.
+     * @throws NoSuchAlgorithmException
+     * @throws DataIntegrityMismatchException
+     *             if the contents read back from the sheet do not match the
+     *             source rows.
+     */
+    public String finish() throws IOException, NoSuchAlgorithmException,
+            DataIntegrityMismatchException
+    {
+        if (!pending.isEmpty())
+        {
+            inferColumnTypes();
+        }
+        if (checksum == null)
+        {
+            checksum = sourceChecksum.digest();
+            if (integrityMode != IntegrityMode.OFF)
+            {
+                final String expected = integrityMode == IntegrityMode.SAMPLED
+                        ? sampleChecksum.digest() : checksum;
+                final String actual = workbook instanceof SXSSFWorkbook
+                        ? readBackSheet() : sheetChecksum.digest();
+                if (!actual.equals(expected))
+                {
+                    throw new DataIntegrityMismatchException(
+                            CsvReader.formatText("Expected: %s, but got: %s",
+                                    expected, actual));
+                }
+            }
+        }
+        return checksum;
+    }
+
+    /**
+     * Fingerprint the rows of the streaming sheet as POI serialized them,
+     * flushing the rows still held in memory first. POI closes the sheet's
+     * file once it is read, so no more rows can be written.
+     *
+     * @return fingerprint of the verified rows read back from the sheet.
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    private String readBackSheet() throws IOException, NoSuchAlgorithmException
+    {
+        try (final InputStream sheetData = sheetData((SXSSFSheet) sheet))
+        {
+            return SheetDataReader.checksum(sheetData,
+                    dateStyle == null ? -1 : dateStyle.getIndex(),
+                    integrityMode == IntegrityMode.SAMPLED ? SAMPLE_INTERVAL
+                            : 1);
+        }
+    }
+
+    /**
+     * @return number of rows written so far.
+     */
+    public int getRowCount()
+    {
+        return rowsCount + pending.size();
+    }
+
+    /**
+     * @return name of the worksheet receiving the rows.
+     */
+    public String getWorksheetName()
+    {
+        return sheet.getSheetName();
+    }
+
+    /**
+     * @return the workbook being written.
+     */
+    public Workbook getWorkbook()
+    {
+        return workbook;
+    }
+
+    /**
+     * XSSF view of the workbook. For a streaming writer this is the template
+     * workbook holding everything except the row data, which is where
+     * drawings such as watermarks are placed.
+     *
+     * @return XSSF workbook backing this writer.
+     */
+    public XSSFWorkbook getXSSFWorkbook()
+    {
+        if (workbook instanceof SXSSFWorkbook)
+        {
+            return ((SXSSFWorkbook) workbook).getXSSFWorkbook();
+        }
+        return (XSSFWorkbook) workbook;
+    }
+
+    /**
+     * Set how the parts of the package are compressed.
+     *
+     * @param compression
+     *            compression profile, or null to let POI write the package,
+     *            as it does by default.
+     */
+    public void setCompression(final CompressionProfile compression)
+    {
+        this.compression = compression;
+    }
+
+    /**
+     * Set the pool parts are deflated on with a parallel compression profile.
+     *
+     * @param pool
+     *            fork-join pool, the common pool by default.
+     */
+    public void setPool(final ForkJoinPool pool)
+    {
+        this.pool = pool;
+    }
+
+    /**
+     * Set the directory temporary files are written to while writing the
+     * package.
+     *
+     * @param tempDir
+     *            directory, or null for the scratch directory of the
+     *            writing thread, as set by
+     *            {@link edu.dartmouth.geisel.isidro.util.ScratchFiles}, as by
+     *            default.
+     */
+    public void setTempDir(final Path tempDir)
+    {
+        this.tempDir = tempDir;
+    }
+
+    /**
+     * Write the workbook to the given output stream.
+     *
+     * @param os
+     *            OutputStream to write to.
+     * @throws IOException
+     */
+    public void write(final OutputStream os) throws IOException
+    {
+        if (compression == null)
+        {
+            workbook.write(os);
+            return;
+        }
+        final Path templateFile = PackageAssembler.createTempFile(tempDir,
+                "isidro-template", ".xlsx");
+        try
+        {
+            try (final OutputStream templateOut = Files
+                    .newOutputStream(templateFile))
+            {
+                getXSSFWorkbook().write(templateOut);
+            }
+            final Map<String, SheetData> sheets;
+            if (sheet instanceof SXSSFSheet)
+            {
+                sheets = Collections.singletonMap(getXSSFWorkbook()
+                        .getSheet(sheet.getSheetName()).getPackagePart()
+                        .getPartName().getName().substring(1),
+                        () -> sheetData((SXSSFSheet) sheet));
+            } else
+            {
+                sheets = Collections.emptyMap();
+            }
+            PackageAssembler.assemble(templateFile, sheets, os, compression,
+                    pool);
+        } finally
+        {
+            Files.deleteIfExists(templateFile);
+        }
+    }
+
+    /**
+     * @param streamingSheet
+     *            worksheet of a streaming workbook.
+     * @return stream of the whole sheetData element of the worksheet, read
+     *         from the file its rows were flushed to.
+     * @throws IOException
+     */
+    private static InputStream sheetData(final SXSSFSheet streamingSheet)
+            throws IOException
+    {
+        final List<InputStream> parts = Arrays.asList(
+                new ByteArrayInputStream(
+                        "<sheetData>".getBytes(StandardCharsets.UTF_8)),
+                streamingSheet.getWorksheetXMLInputStream(),
+                new ByteArrayInputStream(
+                        "</sheetData>".getBytes(StandardCharsets.UTF_8)));
+        return new SequenceInputStream(Collections.enumeration(parts));
+    }
+
+    /**
+     * Release the workbook, deleting any temporary files backing a streaming
+     * workbook.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (workbook instanceof SXSSFWorkbook)
+        {
+            ((SXSSFWorkbook) workbook).dispose();
+        }
+        workbook.close();
+    }
+}
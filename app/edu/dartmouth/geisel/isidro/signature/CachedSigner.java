@@ -0,0 +1,162 @@
+package edu.dartmouth.geisel.isidro.signature;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.CertificateException;
+
+import javax.xml.crypto.MarshalException;
+import javax.xml.crypto.dsig.XMLSignatureException;
+
+import org.apache.poi.openxml4j.opc.OPCPackage;
+
+/**
+ * Signs spreadsheet packages with a key that is loaded from a PKCS12
+ * keystore once and reused. The keystore file is checked before each
+ * signature, and the key is loaded again only if the file's modification
+ * time or size has changed.
+ * <p>
+ * A signer is safe to use from several threads at once: the loaded key is
+ * immutable and each signature gets its own configuration.
+ *
+ * @author Patrick Eads
+ */
+public final class CachedSigner
+{
+    /**
+     * Path to the keystore.
+     */
+    private final Path keystorePath;
+    /**
+     * Password of the keystore and its key.
+     */
+    private final char[] password;
+    /**
+     * Key loaded from the keystore, with the attributes of the keystore file
+     * when it was loaded.
+     */
+    private volatile Loaded loaded;
+
+    /**
+     * Create a signer. The keystore is not read until the first signature.
+     *
+     * @param keypath
+     *            String path to signature file.
+     * @param passwd
+     *            String password for signature file.
+     */
+    public CachedSigner(final String keypath, final String passwd)
+    {
+        this.keystorePath = Paths.get(keypath);
+        this.password = passwd.toCharArray();
+    }
+
+    /**
+     * Mark an open spreadsheet package as final, as
+     * {@link ExcelSignature#sign(String, String, OPCPackage)} does.
+     *
+     * @param pkg
+     *            Package of the spreadsheet to sign, opened for writing.
+     * @throws KeyStoreException
+     * @throws IOException
+     * @throws CertificateException
+     * @throws NoSuchAlgorithmException
+     * @throws UnrecoverableKeyException
+     * @throws XMLSignatureException
+     * @throws MarshalException
+     */
+    public void sign(final OPCPackage pkg)
+            throws KeyStoreException, IOException, CertificateException,
+            NoSuchAlgorithmException, UnrecoverableKeyException,
+            XMLSignatureException, MarshalException
+    {
+        getKey().sign(pkg);
+    }
+
+    /**
+     * Get the signing key, loading it again if the keystore file has changed
+     * since it was last loaded.
+     *
+     * @return current signing key.
+     * @throws KeyStoreException
+     * @throws IOException
+     * @throws CertificateException
+     * @throws NoSuchAlgorithmException
+     * @throws UnrecoverableKeyException
+     */
+    SigningKey getKey()
+            throws KeyStoreException, IOException, CertificateException,
+            NoSuchAlgorithmException, UnrecoverableKeyException
+    {
+        final BasicFileAttributes attributes = Files
+                .readAttributes(keystorePath, BasicFileAttributes.class);
+        final Loaded current = loaded;
+        if (current != null && current.isCurrent(attributes))
+        {
+            return current.key;
+        }
+        synchronized (this)
+        {
+            if (loaded == null || !loaded.isCurrent(attributes))
+            {
+                loaded = new Loaded(SigningKey.load(keystorePath, password),
+                        attributes.lastModifiedTime().toMillis(),
+                        attributes.size());
+            }
+            return loaded.key;
+        }
+    }
+
+    /**
+     * A signing key and the attributes of the keystore file it was loaded
+     * from.
+     */
+    private static final class Loaded
+    {
+        /**
+         * Signing key.
+         */
+        private final SigningKey key;
+        /**
+         * Modification time of the keystore file, in milliseconds.
+         */
+        private final long lastModified;
+        /**
+         * Size of the keystore file.
+         */
+        private final long size;
+
+        /**
+         * @param key
+         *            signing key.
+         * @param lastModified
+         *            modification time of the keystore file, in milliseconds.
+         * @param size
+         *            size of the keystore file.
+         */
+        private Loaded(final SigningKey key, final long lastModified,
+                final long size)
+        {
+            this.key = key;
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+
+        /**
+         * @param attributes
+         *            current attributes of the keystore file.
+         * @return true if the keystore file has not changed since the key was
+         *         loaded.
+         */
+        private boolean isCurrent(final BasicFileAttributes attributes)
+        {
+            return attributes.lastModifiedTime().toMillis() == lastModified
+                    && attributes.size() == size;
+        }
+    }
+}
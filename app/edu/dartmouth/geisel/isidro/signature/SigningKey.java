@@ -0,0 +1,138 @@
+package edu.dartmouth.geisel.isidro.signature;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.UnrecoverableKeyException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+import javax.xml.crypto.MarshalException;
+import javax.xml.crypto.dsig.XMLSignatureException;
+
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.poifs.crypt.dsig.SignatureConfig;
+import org.apache.poi.poifs.crypt.dsig.SignatureInfo;
+
+/**
+ * Private key and certificate chain recovered from a PKCS12 keystore. A
+ * signing key is immutable, so it can sign packages from several threads at
+ * once.
+ *
+ * @author Patrick Eads
+ */
+final class SigningKey
+{
+    /**
+     * Description of the signatures added to packages.
+     */
+    private static final String SIGNATURE_DESCRIPTION = "isidroSignatureDescription";
+
+    /**
+     * Private key used to sign.
+     */
+    private final PrivateKey privateKey;
+    /**
+     * Certificate chain of the key, signing certificate first.
+     */
+    private final List<X509Certificate> certificateChain;
+
+    /**
+     * @param privateKey
+     *            private key used to sign.
+     * @param certificateChain
+     *            certificate chain of the key, signing certificate first.
+     */
+    private SigningKey(final PrivateKey privateKey,
+            final List<X509Certificate> certificateChain)
+    {
+        this.privateKey = privateKey;
+        this.certificateChain = Collections
+                .unmodifiableList(certificateChain);
+    }
+
+    /**
+     * Load the first key entry of a PKCS12 keystore.
+     *
+     * @param keystorePath
+     *            path to the keystore.
+     * @param password
+     *            password of the keystore and its key.
+     * @return signing key of the keystore.
+     * @throws KeyStoreException
+     * @throws IOException
+     * @throws CertificateException
+     * @throws NoSuchAlgorithmException
+     * @throws UnrecoverableKeyException
+     */
+    static SigningKey load(final Path keystorePath, final char[] password)
+            throws KeyStoreException, IOException, CertificateException,
+            NoSuchAlgorithmException, UnrecoverableKeyException
+    {
+        final KeyStore keystore = KeyStore.getInstance("PKCS12");
+        try (final InputStream is = Files.newInputStream(keystorePath))
+        {
+            keystore.load(is, password);
+        }
+
+        final Enumeration<String> aliases = keystore.aliases();
+        while (aliases.hasMoreElements())
+        {
+            final String alias = aliases.nextElement();
+            if (!keystore.isKeyEntry(alias))
+            {
+                continue;
+            }
+            final Key key = keystore.getKey(alias, password);
+            final List<X509Certificate> chain = new ArrayList<>();
+            final Certificate[] certificates = keystore
+                    .getCertificateChain(alias);
+            if (certificates == null)
+            {
+                chain.add((X509Certificate) keystore.getCertificate(alias));
+            } else
+            {
+                for (final Certificate certificate : certificates)
+                {
+                    chain.add((X509Certificate) certificate);
+                }
+            }
+            return new SigningKey((PrivateKey) key, chain);
+        }
+        throw new KeyStoreException("No key found in " + keystorePath);
+    }
+
+    /**
+     * Mark an open spreadsheet package as final with this key. The signature
+     * parts are added to the package, which is left open.
+     *
+     * @param pkg
+     *            Package of the spreadsheet to sign, opened for writing.
+     * @throws XMLSignatureException
+     * @throws MarshalException
+     */
+    void sign(final OPCPackage pkg)
+            throws XMLSignatureException, MarshalException
+    {
+        final SignatureConfig signatureConfig = new SignatureConfig();
+        signatureConfig.setKey(privateKey);
+        signatureConfig.setSigningCertificateChain(certificateChain);
+        signatureConfig.setSignatureDescription(SIGNATURE_DESCRIPTION);
+        signatureConfig.setOpcPackage(pkg);
+
+        final SignatureInfo si = new SignatureInfo();
+        si.setSignatureConfig(signatureConfig);
+        si.confirmSignature();
+    }
+}
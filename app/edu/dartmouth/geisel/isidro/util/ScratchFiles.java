@@ -0,0 +1,110 @@
+package edu.dartmouth.geisel.isidro.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.poi.util.TempFile;
+
+/**
+ * Temporary files of the work done on a thread. Once a thread enters a
+ * scratch directory, the temporary files it creates through this class go in
+ * that directory until it leaves it, so they are deleted with the directory.
+ * Otherwise they go in the default temporary directory. The temporary files
+ * POI creates, such as the files the rows of streaming sheets are flushed
+ * to, are created through this class as well.
+ *
+ * @author Patrick Eads
+ */
+public final class ScratchFiles
+{
+    /**
+     * Scratch directory each thread is in, if any.
+     */
+    private static final ThreadLocal<Path> DIRECTORY = new ThreadLocal<>();
+    /**
+     * How POI creates temporary files outside of scratch directories.
+     */
+    private static final TempFile.DefaultTempFileCreationStrategy POI_DEFAULT =
+            new TempFile.DefaultTempFileCreationStrategy();
+
+    static
+    {
+        TempFile.setTempFileCreationStrategy((prefix, suffix) -> {
+            final Path dir = DIRECTORY.get();
+            return dir == null ? POI_DEFAULT.createTempFile(prefix, suffix)
+                    : Files.createTempFile(dir, prefix, suffix).toFile();
+        });
+    }
+
+    /**
+     * Private constructor of utilities class.
+     */
+    private ScratchFiles()
+    {
+    }
+
+    /**
+     * Enter a scratch directory on the current thread.
+     *
+     * @param dir
+     *            existing directory to create temporary files in.
+     * @return scope to close once the thread leaves the directory, going
+     *         back to the directory it was in before.
+     */
+    public static Scope enter(final Path dir)
+    {
+        final Path previous = DIRECTORY.get();
+        DIRECTORY.set(dir);
+        return () -> {
+            if (previous == null)
+            {
+                DIRECTORY.remove();
+            } else
+            {
+                DIRECTORY.set(previous);
+            }
+        };
+    }
+
+    /**
+     * @return scratch directory of the current thread, or null if it is in
+     *         none.
+     */
+    public static Path getDirectory()
+    {
+        return DIRECTORY.get();
+    }
+
+    /**
+     * Create a temporary file in the scratch directory of the current thread,
+     * or in the default temporary directory if it is in none.
+     *
+     * @param prefix
+     *            prefix of its name.
+     * @param suffix
+     *            suffix of its name.
+     * @return path of the new, empty file.
+     * @throws IOException
+     */
+    public static Path createTempFile(final String prefix, final String suffix)
+            throws IOException
+    {
+        final Path dir = DIRECTORY.get();
+        return dir == null ? Files.createTempFile(prefix, suffix)
+                : Files.createTempFile(dir, prefix, suffix);
+    }
+
+    /**
+     * Time a thread spends in a scratch directory.
+     */
+    @FunctionalInterface
+    public interface Scope extends AutoCloseable
+    {
+        /**
+         * Leave the scratch directory.
+         */
+        @Override
+        void close();
+    }
+}
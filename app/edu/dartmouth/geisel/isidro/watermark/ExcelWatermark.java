@@ -28,7 +28,9 @@ public final class ExcelWatermark
     }
 
     /**
-     * Apply given watermark image to given workbook on given worksheet.
+     * Apply given watermark image to given workbook on given worksheet. The
+     * image is read and decoded on every call; use a {@link WatermarkCache}
+     * to watermark many workbooks with the same image.
      *
      * @param workbook
      *            POI workbook object to watermark.
@@ -47,9 +49,11 @@ public final class ExcelWatermark
         {
             final XSSFSheet sheet = workbook.getSheet(worksheetName);
 
-            final InputStream is = new FileInputStream(pathToImage);
-
-            final byte[] bytes = IOUtils.toByteArray(is);
+            final byte[] bytes;
+            try (final InputStream is = new FileInputStream(pathToImage))
+            {
+                bytes = IOUtils.toByteArray(is);
+            }
             final int picIndx = workbook.addPicture(bytes,
                     Workbook.PICTURE_TYPE_PNG);
 
@@ -63,7 +67,6 @@ public final class ExcelWatermark
             anchor.setRow1(1);
             final Picture pict = drawing.createPicture(anchor, picIndx);
             pict.resize();
-            is.close();
         }
     }
 }
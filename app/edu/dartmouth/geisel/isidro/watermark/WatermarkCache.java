@@ -0,0 +1,207 @@
+package edu.dartmouth.geisel.isidro.watermark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFClientAnchor;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+/**
+ * Applies a watermark image that is read from disk once and reused. The image
+ * file is checked before each watermark, and the image is read again only if
+ * the file's modification time or size has changed.
+ * <p>
+ * The size of the picture's anchor is computed once, when the image is
+ * loaded, instead of decoding the image again for every workbook. It is
+ * computed for a sheet with default column widths and row heights, as every
+ * generated sheet has when it is watermarked. All sheets of a workbook share a
+ * single picture part.
+ * <p>
+ * A cache is safe to use from several threads at once, as long as each
+ * workbook is only watermarked by one thread.
+ *
+ * @author Patrick Eads
+ */
+public final class WatermarkCache
+{
+    /**
+     * Column of the top left corner of the watermark.
+     */
+    private static final int ANCHOR_COLUMN = 1;
+    /**
+     * Row of the top left corner of the watermark.
+     */
+    private static final int ANCHOR_ROW = 1;
+
+    /**
+     * Path to the watermark image.
+     */
+    private final Path imagePath;
+    /**
+     * Image read from disk, with the attributes of the image file when it was
+     * read.
+     */
+    private volatile Image image;
+
+    /**
+     * Create a cache. The image is not read until the first watermark.
+     *
+     * @param pathToImage
+     *            path to the PNG watermark image file.
+     */
+    public WatermarkCache(final File pathToImage)
+    {
+        this.imagePath = pathToImage.toPath();
+    }
+
+    /**
+     * Apply the watermark image to the given worksheets of a workbook, as
+     * {@link ExcelWatermark#watermark(XSSFWorkbook, String, File)} does for a
+     * single worksheet. The image is added to the workbook once and shared by
+     * all of the worksheets.
+     *
+     * @param workbook
+     *            POI workbook object to watermark.
+     * @param worksheetNames
+     *            names of the worksheets on which to place the watermark.
+     * @throws IOException
+     */
+    public void watermark(final XSSFWorkbook workbook,
+            final List<String> worksheetNames) throws IOException
+    {
+        final Image current = getImage();
+        final int picIndx = workbook.addPicture(current.bytes,
+                Workbook.PICTURE_TYPE_PNG);
+        for (final String worksheetName : worksheetNames)
+        {
+            final XSSFSheet sheet = workbook.getSheet(worksheetName);
+            sheet.createDrawingPatriarch().createPicture(current.newAnchor(),
+                    picIndx);
+        }
+    }
+
+    /**
+     * Get the image, reading it again if the image file has changed since it
+     * was last read.
+     *
+     * @return current image.
+     * @throws IOException
+     */
+    Image getImage() throws IOException
+    {
+        final BasicFileAttributes attributes = Files.readAttributes(imagePath,
+                BasicFileAttributes.class);
+        final Image current = image;
+        if (current != null && current.isCurrent(attributes))
+        {
+            return current;
+        }
+        synchronized (this)
+        {
+            if (image == null || !image.isCurrent(attributes))
+            {
+                image = new Image(Files.readAllBytes(imagePath),
+                        attributes.lastModifiedTime().toMillis(),
+                        attributes.size());
+            }
+            return image;
+        }
+    }
+
+    /**
+     * Bytes of the watermark image and the anchor of its picture, with the
+     * attributes of the image file they were read from.
+     */
+    static final class Image
+    {
+        /**
+         * Bytes of the image file.
+         */
+        private final byte[] bytes;
+        /**
+         * Modification time of the image file, in milliseconds.
+         */
+        private final long lastModified;
+        /**
+         * Size of the image file.
+         */
+        private final long size;
+        /**
+         * Column of the bottom right corner of the picture.
+         */
+        private final int col2;
+        /**
+         * Row of the bottom right corner of the picture.
+         */
+        private final int row2;
+        /**
+         * Offset of the bottom right corner of the picture within its cell.
+         */
+        private final int dx2;
+        /**
+         * Offset of the bottom right corner of the picture within its cell.
+         */
+        private final int dy2;
+
+        /**
+         * Keep the bytes of an image and compute the anchor of its picture
+         * at its preferred size.
+         *
+         * @param bytes
+         *            bytes of the image file.
+         * @param lastModified
+         *            modification time of the image file, in milliseconds.
+         * @param size
+         *            size of the image file.
+         * @throws IOException
+         */
+        private Image(final byte[] bytes, final long lastModified,
+                final long size) throws IOException
+        {
+            this.bytes = bytes;
+            this.lastModified = lastModified;
+            this.size = size;
+            try (final XSSFWorkbook workbook = new XSSFWorkbook())
+            {
+                final XSSFClientAnchor anchor = new XSSFClientAnchor();
+                anchor.setCol1(ANCHOR_COLUMN);
+                anchor.setRow1(ANCHOR_ROW);
+                final XSSFClientAnchor preferred = workbook.createSheet()
+                        .createDrawingPatriarch()
+                        .createPicture(anchor, workbook.addPicture(bytes,
+                                Workbook.PICTURE_TYPE_PNG))
+                        .getPreferredSize();
+                this.col2 = preferred.getCol2();
+                this.row2 = preferred.getRow2();
+                this.dx2 = preferred.getDx2();
+                this.dy2 = preferred.getDy2();
+            }
+        }
+
+        /**
+         * @return new anchor placing the picture at its preferred size.
+         */
+        XSSFClientAnchor newAnchor()
+        {
+            return new XSSFClientAnchor(0, 0, dx2, dy2, ANCHOR_COLUMN,
+                    ANCHOR_ROW, col2, row2);
+        }
+
+        /**
+         * @param attributes
+         *            current attributes of the image file.
+         * @return true if the image file has not changed since it was read.
+         */
+        private boolean isCurrent(final BasicFileAttributes attributes)
+        {
+            return attributes.lastModifiedTime().toMillis() == lastModified
+                    && attributes.size() == size;
+        }
+    }
+}
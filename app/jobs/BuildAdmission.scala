@@ -0,0 +1,130 @@
+package jobs
+
+import javax.inject.{ Inject, Singleton }
+
+import edu.dartmouth.geisel.isidro.read.CsvTable
+import utils.{ Constants, PipelineMetrics }
+
+import scala.collection.mutable
+import scala.concurrent.{ Future, Promise }
+
+/**
+ * Admission of data file builds against a heap budget.  The heap a build needs is estimated from
+ * the size of its upload and its number of rows and columns, and reserved from buildMemoryBudget
+ * from when it is submitted until it finishes, as its parsed upload is held all that time.  A build
+ * that does not fit waits, in order of arrival, until running builds release enough; a build that
+ * would not fit even alone is refused.  Queue depth and reserved memory are published with the
+ * pipeline metrics.
+ *
+ * @param constants Application constants.
+ * @param metrics Publishes the state of the budget.
+ */
+@Singleton
+class BuildAdmission @Inject() (constants: Constants, metrics: PipelineMetrics) {
+
+  import BuildAdmission._
+
+  /**
+   * Most heap reserved by admitted builds.
+   */
+  val budget: Long = constants.getBytes("buildMemoryBudget")
+
+  private var reserved = 0L
+  private val waiting = mutable.Queue[(Long, Promise[Unit])]()
+
+  metrics.gauge("isidro_build_memory_budget_bytes", "Heap data file builds may reserve.")(budget)
+  metrics.gauge("isidro_build_memory_reserved_bytes", "Heap reserved by admitted data file builds.")(reservedBytes)
+  metrics.gauge("isidro_build_queue_depth", "Data file builds waiting for heap.")(queueDepth.toLong)
+
+  /**
+   * Estimate the heap a build needs: the parsed upload, the window of rows held by the workbook and
+   * the buffers of writing and compressing it.
+   *
+   * @param size Size of the upload in bytes
+   * @param table The parsed upload
+   * @return Estimated heap in bytes
+   */
+  def estimate(size: Long, table: CsvTable): Long = {
+    val columns = table.getColumnCount.toLong
+    BaseCost + size * CharCost + table.getRowCount.toLong * columns * CellCost +
+      constants.getInt("xlsxRowWindow").toLong * columns * WindowCellCost
+  }
+
+  /**
+   * @param cost Estimated heap of a build
+   * @return True if the build could run within the budget
+   */
+  def fits(cost: Long): Boolean = cost <= budget
+
+  /**
+   * Reserve heap for a build, once it is available.
+   *
+   * @param cost Estimated heap of the build, which fits within the budget
+   * @return Future completing once the heap is reserved
+   */
+  def reserve(cost: Long): Future[Unit] = synchronized {
+    if (waiting.isEmpty && reserved + cost <= budget) {
+      reserved += cost
+      Future.successful(())
+    } else {
+      val admitted = Promise[Unit]()
+      waiting.enqueue((cost, admitted))
+      admitted.future
+    }
+  }
+
+  /**
+   * Release the heap of a finished build, admitting the builds waiting for it.
+   *
+   * @param cost Estimated heap of the build
+   */
+  def release(cost: Long): Unit = {
+    val admitted = synchronized {
+      reserved -= cost
+      val ready = mutable.Buffer[Promise[Unit]]()
+      while (waiting.nonEmpty && reserved + waiting.head._1 <= budget) {
+        val (next, promise) = waiting.dequeue()
+        reserved += next
+        ready += promise
+      }
+      ready
+    }
+    admitted.foreach(_.success(()))
+  }
+
+  /**
+   * @return Heap reserved by admitted builds
+   */
+  def reservedBytes: Long = synchronized(reserved)
+
+  /**
+   * @return Number of builds waiting for heap
+   */
+  def queueDepth: Int = synchronized(waiting.size)
+}
+
+/**
+ * The companion object.
+ */
+object BuildAdmission {
+
+  /**
+   * Heap of any build: the template workbook, and the buffers of writing and compressing it.
+   */
+  val BaseCost: Long = 64L * 1024 * 1024
+
+  /**
+   * Heap per byte of upload, held as the characters of the parsed cells.
+   */
+  val CharCost = 2L
+
+  /**
+   * Heap per cell of the upload, for the String holding it.
+   */
+  val CellCost = 48L
+
+  /**
+   * Heap per cell of the rows the workbook holds before flushing them.
+   */
+  val WindowCellCost = 512L
+}
@@ -0,0 +1,213 @@
+package jobs
+
+import java.io.IOException
+import java.nio.file.{ Files, NoSuchFileException, Paths }
+import java.sql.Date
+import javax.inject.Inject
+
+import akka.actor._
+import akka.stream.{ Materializer, ThrottleMode }
+import akka.stream.scaladsl.Source
+import jobs.ExpiredFileSweeper._
+import models.UniqueFile
+import models.daos.{ StoredContentDAO, UniqueFileDAO }
+import org.apache.commons.lang3.time.DateUtils
+import utils.{ Constants, Logger, PipelineMetrics }
+
+import scala.concurrent.duration._
+import scala.concurrent.{ ExecutionContext, Future }
+import scala.util.{ Failure, Success, Try }
+
+/**
+ * A job which removes the contents of deleted and expired data files from storage.  Files are found
+ * in batches of sweepBatchSize keyed by unique name, so no query runs long, and are deleted
+ * sweepParallelism at a time and at most sweepFilesPerSecond, so a sweep never floods the disk
+ * uploads are written to.  A location still holding a live file is kept, and stored content is only
+ * deleted once the last of its download links is swept.  Each sweep is recorded as the "sweep" stage
+ * of the pipeline metrics, with the bytes reclaimed as its bytes in.
+ *
+ * @param uniqueFileDAO Access to data files.
+ * @param storedContentDAO Access to the content store.
+ * @param constants Application constants.
+ * @param metrics Timing of the sweeps.
+ * @param materializer Runs the deletions.
+ */
+class ExpiredFileSweeper @Inject() (
+  uniqueFileDAO: UniqueFileDAO,
+  storedContentDAO: StoredContentDAO,
+  constants: Constants,
+  metrics: PipelineMetrics)(implicit materializer: Materializer)
+  extends Actor with Logger {
+
+  private implicit val sweepContext: ExecutionContext = context.system.dispatchers.lookup(DispatcherId)
+
+  private val batchSize = constants.getInt("sweepBatchSize")
+  private val parallelism = constants.getInt("sweepParallelism")
+  private val filesPerSecond = constants.getInt("sweepFilesPerSecond")
+
+  private var sweeping = false
+
+  /**
+   * Process the received messages.
+   */
+  def receive: Receive = {
+    case Sweep if sweeping =>
+      logger.info("Previous sweep of expired files is still running")
+    case Sweep =>
+      sweeping = true
+      val start = System.nanoTime
+      // dateCreated is a date, so a file expires on the same day as by UniqueFile.isFileExpired
+      val expiredOn = new Date(DateUtils.addDays(new java.util.Date, -constants.getInt("fileExpiration")).getTime)
+      sweep(expiredOn, None, Swept(0L, 0L)).onComplete(result => self ! Finished(result, System.nanoTime - start))
+    case Finished(Success(swept), nanos) =>
+      sweeping = false
+      metrics.record("sweep", nanos, new PipelineMetrics.Recorder().in(swept.bytes).processed(swept.files))
+      logger.info(f"Swept ${swept.files}%d expired files, ${swept.bytes}%d bytes, in ${nanos / 1e9}%.1f seconds")
+    case Finished(Failure(e), _) =>
+      sweeping = false
+      metrics.failed("sweep")
+      logger.error("Couldn't sweep expired files because of unexpected error", e)
+  }
+
+  /**
+   * Sweep the batches of files following a unique name.
+   *
+   * @param expiredOn Files created on or before this date have expired
+   * @param after Unique name of the last file of the previous batch, if any
+   * @param total Files and bytes swept so far
+   * @return Files and bytes swept in all
+   */
+  private def sweep(expiredOn: Date, after: Option[String], total: Swept): Future[Swept] = {
+    uniqueFileDAO.findSweepable(expiredOn, after, batchSize).flatMap { batch =>
+      if (batch.isEmpty) {
+        Future.successful(total)
+      } else {
+        sweepBatch(batch, expiredOn).flatMap { swept =>
+          if (batch.size < batchSize) Future.successful(total + swept)
+          else sweep(expiredOn, Some(batch.last.uniqueName), total + swept)
+        }
+      }
+    }
+  }
+
+  /**
+   * Sweep the files of a batch, those of stored content and those of their own.
+   *
+   * @param batch Deleted or expired files
+   * @param expiredOn Files created on or before this date have expired
+   * @return Files and bytes swept
+   */
+  private def sweepBatch(batch: Seq[UniqueFile], expiredOn: Date): Future[Swept] = {
+    storedContentDAO.storedLocations(batch.map(_.fileLocation).toSet).flatMap { stored =>
+      val (shared, own) = batch.partition(uf => stored(uf.fileLocation))
+      sweepShared(shared).flatMap(swept => sweepOwn(own, expiredOn).map(swept + _))
+    }
+  }
+
+  /**
+   * Mark files of stored content swept, releasing their references, and delete the content left
+   * without references.  Content that could not be deleted is no longer referenced, so it is only
+   * logged.
+   *
+   * @param files Deleted or expired files of stored content
+   * @return Files and bytes swept
+   */
+  private def sweepShared(files: Seq[UniqueFile]): Future[Swept] = {
+    if (files.isEmpty) Future.successful(Swept(0L, 0L))
+    else storedContentDAO.sweep(files).flatMap(deleteFiles).map(swept)
+  }
+
+  /**
+   * Delete the files of their own, except those whose location still holds a live file, and mark
+   * them swept.  Files that could not be deleted are left for the next sweep.
+   *
+   * @param files Deleted or expired files of their own
+   * @param expiredOn Files created on or before this date have expired
+   * @return Files and bytes swept
+   */
+  private def sweepOwn(files: Seq[UniqueFile], expiredOn: Date): Future[Swept] = {
+    if (files.isEmpty) {
+      Future.successful(Swept(0L, 0L))
+    } else {
+      uniqueFileDAO.liveLocations(files.map(_.fileLocation).toSet, expiredOn).flatMap { live =>
+        deleteFiles(files.map(_.fileLocation).distinct.filterNot(live))
+      }.flatMap { deleted =>
+        val failed = deleted.collect { case (location, None) => location }.toSet
+        uniqueFileDAO.markSwept(files.filterNot(uf => failed(uf.fileLocation))).map(_ => swept(deleted))
+      }
+    }
+  }
+
+  /**
+   * Delete files sweepParallelism at a time and at most sweepFilesPerSecond.
+   *
+   * @param locations Paths of the files
+   * @return Size of each file, 0 if it was already gone, or None if it could not be deleted
+   */
+  private def deleteFiles(locations: Seq[String]): Future[Map[String, Option[Long]]] = {
+    Source(locations.toList)
+      .throttle(filesPerSecond, 1.second, filesPerSecond, ThrottleMode.Shaping)
+      .mapAsyncUnordered(parallelism)(location => Future(location -> deleteFile(location)))
+      .runFold(Map.empty[String, Option[Long]])(_ + _)
+  }
+
+  /**
+   * @param deleted Outcome of deleting files
+   * @return Files and bytes swept
+   */
+  private def swept(deleted: Map[String, Option[Long]]): Swept = {
+    val sizes = deleted.values.flatten.filter(_ > 0)
+    Swept(sizes.size.toLong, sizes.sum)
+  }
+
+  /**
+   * Delete a file from storage.
+   *
+   * @param location Path of the file
+   * @return Size of the file, 0 if it was already gone, or None if it could not be deleted
+   */
+  private def deleteFile(location: String): Option[Long] = {
+    val path = Paths.get(location)
+    try {
+      val size = Files.size(path)
+      Files.delete(path)
+      Some(size)
+    } catch {
+      case _: NoSuchFileException => Some(0L)
+      case e: IOException =>
+        logger.warn(s"Couldn't delete expired file $location", e)
+        None
+    }
+  }
+}
+
+/**
+ * The companion object.
+ */
+object ExpiredFileSweeper {
+
+  /**
+   * Id of the dispatcher deleting files, configured in application.conf.
+   */
+  val DispatcherId = "isidro-sweep-dispatcher"
+
+  case object Sweep
+
+  /**
+   * Files and bytes removed from storage.
+   *
+   * @param files Number of files deleted, not counting those already gone
+   * @param bytes Bytes reclaimed
+   */
+  case class Swept(files: Long, bytes: Long) {
+    def +(other: Swept): Swept = Swept(files + other.files, bytes + other.bytes)
+  }
+
+  /**
+   * Outcome of a sweep.
+   *
+   * @param result Files and bytes swept, or the error that stopped the sweep
+   * @param nanos Duration of the sweep
+   */
+  case class Finished(result: Try[Swept], nanos: Long)
+}
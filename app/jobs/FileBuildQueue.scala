@@ -0,0 +1,368 @@
+package jobs
+
+import java.io.{ File, IOException }
+import java.net.URL
+import java.nio.file.{ Files, Path, Paths }
+import java.util.UUID
+import javax.inject.{ Inject, Singleton }
+
+import akka.actor.ActorSystem
+import edu.dartmouth.isidro.util.TextUtils
+import models.{ DataRequest, UniqueFile, UniqueFileServ, User }
+import models.services.RequestService
+import org.apache.commons.io.{ FileUtils => IOFileUtils }
+import play.api.Logger
+import play.api.i18n.{ Lang, Messages, MessagesApi }
+import play.api.libs.json.{ Json, Writes }
+import utils.{ Constants, FileUtils, MailService, Mailer }
+import utils.CsvUploadParser.UploadedCsv
+
+import scala.collection.concurrent.TrieMap
+import scala.concurrent.duration._
+import scala.concurrent.{ ExecutionContext, Future }
+import scala.util.{ Failure, Success }
+
+/**
+ * Builds uploaded data files in the background.  Jobs run on their own dispatcher, so building,
+ * watermarking, signing and encrypting never hold up Play's request threads.  At most buildQueueSize
+ * jobs are queued or running at once.  Each job reserves the estimated heap of its parsed upload and
+ * of building it from the build memory budget when it is submitted, and holds it until it finishes,
+ * since the parsed upload is kept all that time; jobs wait for the heap while still queued, and
+ * uploads too large for the budget are refused.  An unsigned, unencrypted file whose content is
+ * already stored for the same csv data and options is not built again, but refers to the stored
+ * content.
+ *
+ * Each job builds in a scratch directory of its own under outputDir, deleted once the job succeeds or
+ * fails, and stores its file under a name of its own, so any number of jobs can run for the same
+ * request at once.  Scratch directories left by a server that stopped mid-build are deleted on
+ * start.
+ *
+ * @param system The actor system providing the build dispatcher.
+ * @param constants Application constants.
+ * @param requestService The request service.
+ * @param fileUtils Builder of xlsx files.
+ * @param uniqueFileServ Creates the download links of stored files.
+ * @param admission Admits builds against the build memory budget.
+ * @param mailService The mail service.
+ * @param messagesApi The Play messages API.
+ */
+@Singleton
+class FileBuildQueue @Inject() (
+  system: ActorSystem,
+  constants: Constants,
+  requestService: RequestService,
+  fileUtils: FileUtils,
+  uniqueFileServ: UniqueFileServ,
+  admission: BuildAdmission,
+  implicit val mailService: MailService,
+  messagesApi: MessagesApi) {
+
+  import FileBuildQueue._
+
+  private implicit val buildContext: ExecutionContext = system.dispatchers.lookup(DispatcherId)
+  private implicit val messages: Messages = Messages(Lang.defaultLang, messagesApi)
+
+  private val jobs = TrieMap[UUID, BuildStatus]()
+  private var activeJobs = 0
+
+  private val scratchRoot = Paths.get(constants.getString("outputDir"))
+
+  deleteStaleScratchDirs()
+
+  /**
+   * Queue a data file to be built from an upload that has already been parsed.
+   *
+   * @param job The build job
+   * @return Id of the queued job, or the reason it was refused: the upload is too large to build or
+   *         the queue is full
+   */
+  def submit(job: BuildJob): Either[String, UUID] = {
+    val cost = admission.estimate(job.data.size, job.data.table)
+    val fits = admission.fits(cost)
+    if (!fits) {
+      Logger.warn(s"Upload for request ${job.rid} needs about $cost bytes to build, more than the budget of ${admission.budget}")
+      Left(messages("build.tooLarge", cost / Megabyte, admission.budget / Megabyte))
+    } else {
+      admit(job.rid) match {
+        case Some(id) =>
+          try {
+            admission.reserve(cost).flatMap { _ =>
+              Future(createScratchDir(job.rid)).flatMap { scratchDir =>
+                build(id, job, scratchDir.toFile).andThen { case _ => deleteScratchDir(scratchDir) }
+              }.andThen { case _ => admission.release(cost) }
+            }.onComplete {
+              case Success(_) => finish(id, job.rid, Complete, None)
+              case Failure(e) =>
+                Logger.error(s"Build of request ${job.rid} failed", e)
+                requestService.log(job.rid, job.user.userID.toString, messages("build.failed", errorText(e)))
+                finish(id, job.rid, Failed, Some(errorText(e)))
+            }
+          } catch {
+            case e: Exception =>
+              finish(id, job.rid, Failed, Some(errorText(e)))
+              throw e
+          }
+          Right(id)
+        case None => Left(messages("build.busy"))
+      }
+    }
+  }
+
+  /**
+   * Take a place in the queue for a job and record it as queued, under the same lock, so the number of
+   * jobs counted is always the number recorded as queued or running.
+   *
+   * @param rid The request's id
+   * @return Id of the job, or None if the queue is full
+   */
+  private def admit(rid: Int): Option[UUID] = synchronized {
+    if (activeJobs < constants.getInt("buildQueueSize")) {
+      val id = UUID.randomUUID()
+      activeJobs += 1
+      jobs.put(id, BuildStatus(id.toString, rid, Queued))
+      Some(id)
+    } else {
+      None
+    }
+  }
+
+  /**
+   * Get the status of a build job.
+   *
+   * @param id Id of the job
+   * @return Status of the job, if it is known
+   */
+  def status(id: UUID): Option[BuildStatus] = jobs.get(id)
+
+  /**
+   * Create the scratch directory of a job.
+   *
+   * @param rid The request's id
+   * @return Path of the new, empty directory
+   */
+  private def createScratchDir(rid: Int): Path = {
+    Files.createDirectories(scratchRoot)
+    Files.createTempDirectory(scratchRoot, s"$ScratchPrefix$rid-")
+  }
+
+  /**
+   * Delete the scratch directory of a job, and whatever the job left in it.
+   *
+   * @param scratchDir Path of the directory
+   */
+  private def deleteScratchDir(scratchDir: Path): Unit = {
+    try {
+      IOFileUtils.deleteDirectory(scratchDir.toFile)
+    } catch {
+      case e: IOException => Logger.warn(s"Couldn't delete scratch directory $scratchDir", e)
+    }
+  }
+
+  /**
+   * Delete the scratch directories left by jobs that were running when the server stopped.
+   */
+  private def deleteStaleScratchDirs(): Unit = {
+    Option(scratchRoot.toFile.listFiles).getOrElse(Array.empty[File])
+      .filter(dir => dir.isDirectory && dir.getName.startsWith(ScratchPrefix))
+      .foreach(dir => deleteScratchDir(dir.toPath))
+  }
+
+  /**
+   * Refer to stored content if there is some for the upload, or else build the xlsx file.
+   *
+   * @param id Id of the job
+   * @param job The build job
+   * @param filesDir Scratch directory the xlsx file is built in
+   * @return Future completing once the request is awaiting download
+   */
+  private def build(id: UUID, job: BuildJob, filesDir: File): Future[Unit] = {
+    val params = job.params
+    Future(fileUtils.contentKey(job.data.checksum, params.contains("watermark"), params.contains("signature"),
+      params.contains("encrypt"))).flatMap { contentKey =>
+      contentKey.fold(Future.successful(Option.empty[String]))(requestService.acquireContent).flatMap {
+        case Some(location) => reuse(id, job, location)
+        case _ => buildNew(id, job, filesDir, contentKey)
+      }
+    }
+  }
+
+  /**
+   * Refer to the content stored for the same csv data and options, and move the request to
+   * AWAITINGDOWNLOAD in one transaction, then mail the download link.  The reference taken on the
+   * content is released if the file cannot be inserted.
+   *
+   * @param id Id of the job
+   * @param job The build job
+   * @param location Location of the stored content, already referenced for this job
+   * @return Future completing once the request is awaiting download
+   */
+  private def reuse(id: UUID, job: BuildJob, location: String): Future[Unit] = {
+    jobs.put(id, BuildStatus(id.toString, job.rid, Running))
+    val logEntry = new StringBuilder()
+    logEntry.append(s"Upload: ${job.data.size} bytes\n")
+    if (job.params.contains("fingerprint")) logEntry.append(s"Fingerprint: ${job.data.checksum}\n")
+    if (job.params.contains("watermark")) logEntry.append(s"Watermark: ${constants.getString("watermarkImagePath")}\n")
+    logEntry.append("Reused stored file\n")
+    val uniqueFile = uniqueFileServ.referenceFile(location, job.data.checksum, job.rid, None)
+    requestService.storeFile(uniqueFile, constants.AWAITINGDOWNLOAD).recoverWith {
+      case e =>
+        requestService.releaseContent(location).flatMap { last =>
+          if (last) Files.deleteIfExists(Paths.get(location))
+          Future.failed[Option[DataRequest]](e)
+        }
+    }.map(complete(job, uniqueFile, logEntry, _))
+  }
+
+  /**
+   * Build the xlsx file, store it and move the request to AWAITINGDOWNLOAD in one transaction, then
+   * mail the download link.
+   * The sheet must match the fingerprint taken while the csv was uploaded.
+   *
+   * @param id Id of the job
+   * @param job The build job
+   * @param filesDir Scratch directory the xlsx file is built in
+   * @param contentKey Key to keep the file under in the content store, if it is to be shared
+   * @return Future completing once the request is awaiting download
+   */
+  private def buildNew(id: UUID, job: BuildJob, filesDir: File, contentKey: Option[String]): Future[Unit] = {
+    Future {
+      jobs.put(id, BuildStatus(id.toString, job.rid, Running))
+      val logEntry = new StringBuilder()
+      logEntry.append(s"Upload: ${job.data.size} bytes\n")
+      val xlsxPath = new File(filesDir, constants.getString("outputXlsx")).getPath
+      val uniqueFile = fileUtils.buildFile(job.rid, xlsxPath, job.data.table, logEntry,
+        job.params.contains("fingerprint"),
+        job.params.contains("watermark"),
+        job.params.contains("signature"),
+        job.params.contains("encrypt"),
+        Some(job.data.checksum),
+        contentKey)
+      (uniqueFile, logEntry)
+    }.flatMap {
+      case (uniqueFile, logEntry) =>
+        contentKey match {
+          case Some(key) =>
+            val built = Paths.get(uniqueFile.fileLocation)
+            requestService.storeContent(uniqueFile, key, Files.size(built), constants.AWAITINGDOWNLOAD).andThen {
+              case Success((stored, _)) if stored.fileLocation != uniqueFile.fileLocation => Files.deleteIfExists(built)
+              case Failure(_) => Files.deleteIfExists(built)
+            }.map { case (stored, request) => complete(job, stored, logEntry, request) }
+          case _ =>
+            requestService.storeFile(uniqueFile, constants.AWAITINGDOWNLOAD).map(complete(job, uniqueFile, logEntry, _))
+        }
+    }
+  }
+
+  /**
+   * Log the build and mail the download link.
+   *
+   * @param job The build job
+   * @param uniqueFile The stored data file
+   * @param logEntry Log of the build
+   * @param request The request, now awaiting download
+   */
+  private def complete(job: BuildJob, uniqueFile: UniqueFile, logEntry: StringBuilder, request: Option[DataRequest]): Unit = {
+    val params = job.params
+    logEntry.append(s"File: ${uniqueFile.fileLocation}\n")
+    if (params.contains("notes")) {
+      logEntry.append(s"---Notes---\n${params("notes").head}\n")
+    }
+    logEntry.append("---PHI---\n")
+    params.filter(_._1.startsWith("phi")).map(p => logEntry.append(s"${p._2.head}\n"))
+    if (params.contains("other") && (params.get("other") != None)) {
+      logEntry.append(s"Other phi: ${params.get("other").get.head}\n")
+    }
+    requestService.log(job.rid, job.user.userID.toString, s"Send download link:\n${logEntry.toString().trim()}")
+    request.foreach(sendDownloadEmail(_, uniqueFile.uniqueName, job.user))
+  }
+
+  /**
+   * Record the outcome of a job, and forget it once its status has been kept long enough to be
+   * polled.
+   *
+   * @param id Id of the job
+   * @param rid The request's id
+   * @param state Final state of the job
+   * @param message Error message, if the job failed
+   */
+  private def finish(id: UUID, rid: Int, state: String, message: Option[String]): Unit = {
+    synchronized {
+      jobs.put(id, BuildStatus(id.toString, rid, state, message))
+      activeJobs -= 1
+    }
+    system.scheduler.scheduleOnce(StatusRetention)(jobs.remove(id))
+  }
+
+  /**
+   * Text of a failed job's error, which may be a message key.
+   *
+   * @param e The error
+   * @return Error message
+   */
+  private def errorText(e: Throwable): String = Option(e.getMessage).map(messages(_)).getOrElse(e.toString)
+
+  /**
+   * Send an email with the data file download link.
+   *
+   * @param theRequest The request
+   * @param uniqueName Data file identifier
+   * @param uid Signed in user's id
+   */
+  private def sendDownloadEmail(theRequest: DataRequest, uniqueName: String, uid: User): Unit = {
+    val url = new URL(TextUtils.formatText("%s/downloads/%s", constants.getString("serverName"), uniqueName))
+    val mailTxt = Mailer.sendDownloadEmail(theRequest.email, url.toString)
+    requestService.log(theRequest.id, uid.userID.toString, s"Mail sent to ${theRequest.email}:\n$mailTxt")
+  }
+}
+
+/**
+ * The companion object.
+ */
+object FileBuildQueue {
+
+  /**
+   * Id of the dispatcher running build jobs, configured in application.conf.
+   */
+  val DispatcherId = "isidro-build-dispatcher"
+
+  /**
+   * How long the status of a finished job can still be polled.
+   */
+  val StatusRetention = 1.hour
+
+  /**
+   * Prefix of the names of scratch directories under outputDir.
+   */
+  val ScratchPrefix = "build-"
+
+  private val Megabyte = 1024L * 1024
+
+  val Queued = "queued"
+  val Running = "running"
+  val Complete = "complete"
+  val Failed = "failed"
+
+  /**
+   * A data file to build.
+   *
+   * @param rid The request's id
+   * @param data The parsed csv upload
+   * @param params Options and notes submitted with the upload
+   * @param user Signed in user (data broker)
+   */
+  case class BuildJob(rid: Int, data: UploadedCsv, params: Map[String, Seq[String]], user: User)
+
+  /**
+   * Status of a build job.
+   *
+   * @param id Id of the job
+   * @param rid The request's id
+   * @param state queued, running, complete or failed
+   * @param message Error message, if the job failed
+   */
+  case class BuildStatus(id: String, rid: Int, state: String, message: Option[String] = None) {
+    def isFinished: Boolean = state == Complete || state == Failed
+  }
+
+  implicit val buildStatusWrites: Writes[BuildStatus] = Json.writes[BuildStatus]
+}
@@ -10,9 +10,7 @@ import com.typesafe.akka.extension.quartz.QuartzSchedulerExtension
  */
 class Scheduler @Inject() (
   system: ActorSystem,
-  @Named("auth-token-cleaner") authTokenCleaner: ActorRef) {
+  @Named("expired-file-sweeper") expiredFileSweeper: ActorRef) {
 
-  QuartzSchedulerExtension(system).schedule("AuthTokenCleaner", authTokenCleaner, AuthTokenCleaner.Clean)
-
-  authTokenCleaner ! AuthTokenCleaner.Clean
+  QuartzSchedulerExtension(system).schedule("ExpiredFileSweeper", expiredFileSweeper, ExpiredFileSweeper.Sweep)
 }
@@ -0,0 +1,25 @@
+package models
+
+/**
+ * One page of a keyset paginated list.
+ *
+ * @param items The items of the page
+ * @param next Key of the last item, to fetch the next page after, if there is a next page
+ */
+case class Page[A, K](items: Seq[A], next: Option[K])
+
+object Page {
+
+  /**
+   * Make a page from up to limit + 1 rows; the extra row only tells whether there is a next page.
+   *
+   * @param rows Rows fetched for the page
+   * @param limit Most items of a page
+   * @param key Key of an item
+   * @return The page
+   */
+  def of[A, K](rows: Seq[A], limit: Int)(key: A => K): Page[A, K] = {
+    val items = rows.take(limit)
+    Page(items, if (rows.size > limit) items.lastOption.map(key) else None)
+  }
+}
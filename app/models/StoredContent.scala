@@ -0,0 +1,37 @@
+package models
+
+import java.nio.charset.StandardCharsets
+import java.security.MessageDigest
+
+/**
+ * A data file stored once and shared by every download link with the same contents.
+ *
+ * @param contentKey Fingerprint of the csv data and of the options the file was built with
+ * @param fileLocation Path of the file
+ * @param size Size of the file in bytes
+ * @param refs Number of download links to the file that have not been swept
+ * @param dateCreated When the file was stored
+ */
+case class StoredContent(
+  contentKey: String,
+  fileLocation: String,
+  size: Long,
+  refs: Int,
+  dateCreated: java.sql.Date
+)
+
+object StoredContent {
+
+  /**
+   * Key of the contents built from csv data with some options.  Files built from the same data
+   * with the same options have the same contents, so they share a key.
+   *
+   * @param checksum SHA-512 fingerprint of the csv data
+   * @param variant Description of the options the file is built with
+   * @return The content key
+   */
+  def key(checksum: String, variant: String): String = {
+    val digest = MessageDigest.getInstance("SHA-256").digest(variant.getBytes(StandardCharsets.UTF_8))
+    checksum + "-" + digest.take(8).map("%02x".format(_)).mkString
+  }
+}
@@ -1,15 +1,12 @@
 package models
 
 import java.io.File
-import java.io.FileInputStream
-import java.io.FileOutputStream
 import java.io.IOException
-import java.nio.file.Path
-import java.nio.file.Paths
+import java.io.OutputStream
+import java.nio.file.{ Files, Path, Paths, StandardCopyOption }
 import java.sql.Date
 import javax.inject.Inject
 
-import org.apache.commons.io.FileUtils
 import org.apache.commons.lang3.time.DateUtils
 
 import utils.RandomUtils
@@ -44,24 +41,119 @@ case class UniqueFile(
 
 class UniqueFileServ @Inject() (constants: Constants) {
   /**
-   * Associates given file with randomly generated unique identifier by copying and storing it in
-   * the given storage location and then returning DAO for insertion into database.
+   * Associates given file with randomly generated unique identifier by moving it to the given storage
+   * location and then returning DAO for insertion into database.
    *
    * @param fileName String file path to be stored.
    * @param storeDir String dir path to store file.
-   * @param id int request ID to be used as static file name.
+   * @param id int request ID the stored file's name starts with.
    * @return uniquely identified mapping DAO.
    * @throws IOException thrown file I/O fails.
    */
   def generateUniqueFile(inputPath: String, originalFileName: String,
     storeDir: String, id: Int, password: Option[String]) /*throws IOException*/ = {
-    val path = Paths.get(storeDir, id + ".xlsx")
-    new File(storeDir).mkdirs
-    val is = new FileInputStream(inputPath)
-    val os = new FileOutputStream(path.toFile)
-    FileUtils.copyFile(new File(inputPath), path.toFile)
+    writeUniqueFile(originalFileName, storeDir, id, password)(path =>
+      Files.move(Paths.get(inputPath), path, StandardCopyOption.REPLACE_EXISTING))
+  }
+
+  /**
+   * Associates a file written straight to the given storage location with a randomly generated unique
+   * identifier, and returns DAO for insertion into database.  The file is stored under a name of its
+   * own, so any number of files can be stored for the same request at once, and is written under a
+   * temporary name and renamed once complete, so a partly written file is never stored.
+   *
+   * @param originalFileName String recorded as the file's name.
+   * @param storeDir String dir path to store file.
+   * @param id int request ID the stored file's name starts with.
+   * @param password Password the file is encrypted with, if any.
+   * @param write Writes the file's contents to the given path.
+   * @return uniquely identified mapping DAO.
+   * @throws IOException thrown file I/O fails.
+   */
+  def writeUniqueFile(originalFileName: String, storeDir: String, id: Int, password: Option[String])(write: Path => Unit) = {
+    val name = id + "-" + RandomUtils.generateRandomNumberString(constants.RANDOMBITS, constants.RADIX) + ".xlsx"
+    val path = Paths.get(storeDir, name)
+    writeAtomically(path, id + "-")(write)
+    referenceFile(path.toString, originalFileName, id, password)
+  }
+
+  /**
+   * Moves a built file into the content store, under a name of its own so that content deleted after
+   * its last download link is swept is never confused with the same content stored again.  The file
+   * is written under a temporary name and renamed once complete, so concurrent builds are safe.
+   *
+   * @param inputPath String file path to be stored.
+   * @param originalFileName String recorded as the file's name.
+   * @param storeDir String dir path to store file.
+   * @param id int request ID of the first download link.
+   * @param contentKey Key of the file's content.
+   * @return uniquely identified mapping DAO.
+   * @throws IOException thrown file I/O fails.
+   */
+  def storeContent(inputPath: String, originalFileName: String, storeDir: String, id: Int, contentKey: String) = {
+    val name = contentKey.take(32) + "-" + RandomUtils.generateRandomNumberString(constants.RANDOMBITS, constants.RADIX) + ".xlsx"
+    val path = Paths.get(storeDir, UniqueFileServ.ContentDir, contentKey.take(2), name)
+    writeAtomically(path, contentKey.take(32) + "-")(temp =>
+      Files.move(Paths.get(inputPath), temp, StandardCopyOption.REPLACE_EXISTING))
+    referenceFile(path.toString, originalFileName, id, None)
+  }
 
+  /**
+   * Associates a file already in storage, such as stored content, with a randomly generated unique
+   * identifier, and returns DAO for insertion into database.
+   *
+   * @param fileLocation String path of the stored file.
+   * @param originalFileName String recorded as the file's name.
+   * @param id int request ID.
+   * @param password Password the file is encrypted with, if any.
+   * @return uniquely identified mapping DAO.
+   */
+  def referenceFile(fileLocation: String, originalFileName: String, id: Int, password: Option[String]) = {
     val uniqueName = RandomUtils.generateRandomNumberString(constants.RANDOMBITS, constants.RADIX)
-    new UniqueFile(false, password, path.toString, uniqueName, id, originalFileName, new java.sql.Date(new java.util.Date().getTime))
+    new UniqueFile(false, password, fileLocation, uniqueName, id, originalFileName, new java.sql.Date(new java.util.Date().getTime))
+  }
+
+  /**
+   * Writes a file under a temporary name in its directory, then renames it into place.
+   *
+   * @param path Path of the file.
+   * @param prefix Prefix of the temporary name.
+   * @param write Writes the file's contents to the given path.
+   */
+  private def writeAtomically(path: Path, prefix: String)(write: Path => Unit): Unit = {
+    Files.createDirectories(path.getParent)
+    val tempPath = Files.createTempFile(path.getParent, prefix, ".tmp")
+    try {
+      write(tempPath)
+      Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    } finally {
+      Files.deleteIfExists(tempPath)
+    }
   }
+
+  /**
+   * Writes a file straight to the given storage location, as writeUniqueFile does.
+   *
+   * @param originalFileName String recorded as the file's name.
+   * @param storeDir String dir path to store file.
+   * @param id int request ID the stored file's name starts with.
+   * @param password Password the file is encrypted with, if any.
+   * @param write Writes the file's contents to the given stream.
+   * @return uniquely identified mapping DAO.
+   * @throws IOException thrown file I/O fails.
+   */
+  def streamUniqueFile(originalFileName: String, storeDir: String, id: Int, password: Option[String])(write: OutputStream => Unit) = {
+    writeUniqueFile(originalFileName, storeDir, id, password) { path =>
+      val os = Files.newOutputStream(path)
+      try write(os) finally os.close()
+    }
+  }
+}
+
+object UniqueFileServ {
+
+  /**
+   * Directory of the content store, under storage.dir.
+   */
+  val ContentDir = "content"
 }
@@ -0,0 +1,55 @@
+package models.daos
+
+import java.util.UUID
+import javax.inject.{ Inject, Singleton }
+
+import com.mohiva.play.silhouette.api.LoginInfo
+import models.{ DataRequest, Requirement, UniqueFile, User }
+import utils.{ Constants, LookupCache }
+
+import scala.concurrent.duration._
+
+/**
+ * Caches of the lookups made on every page: signed in users, the requirement catalog and download
+ * links.  Each holds at most lookupCacheSize entries for lookupCacheTtl.
+ *
+ * @param constants Application constants.
+ */
+@Singleton
+class LookupCaches @Inject() (constants: Constants) {
+
+  private val maxSize = constants.getInt("lookupCacheSize")
+  private val ttl = constants.getMillis("lookupCacheTtl").millis
+
+  /**
+   * Users by login info, as found by UserDAOImpl.
+   */
+  val usersByLoginInfo = new LookupCache[LoginInfo, Option[User]]("usersByLoginInfo", maxSize, ttl)
+
+  /**
+   * Users by id, as found by UserDAOImpl.
+   */
+  val usersById = new LookupCache[UUID, Option[User]]("usersById", maxSize, ttl)
+
+  /**
+   * All requirements in order; the only key is ().
+   */
+  val requirements = new LookupCache[Unit, Seq[Requirement]]("requirements", 1, ttl)
+
+  /**
+   * Files and their requests by the unique name of the download link.
+   */
+  val downloadLinks = new LookupCache[String, Seq[(UniqueFile, DataRequest)]]("downloadLinks", maxSize, ttl)
+
+  /**
+   * Drop the download links of a request, after the request or its files changed.
+   *
+   * @param rid The request's id
+   */
+  def invalidateRequest(rid: Int): Unit = downloadLinks.invalidateIf(_.exists(_._1.requestId == rid))
+
+  /**
+   * @return Statistics of all caches
+   */
+  def stats: Seq[LookupCache.Stats] = Seq(usersByLoginInfo, usersById, requirements, downloadLinks).map(_.stats)
+}
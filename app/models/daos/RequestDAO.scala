@@ -8,38 +8,55 @@ import slick.driver.JdbcProfile
 import slick.jdbc.JdbcBackend
 import slick.lifted.TableQuery
 
-import scala.concurrent.Await
-import scala.concurrent.duration.Duration
 import scala.concurrent.ExecutionContext.Implicits.global
 import scala.concurrent.Future
 
 import models.tables.{ DataRequestTable, RequestLogTable, RequestRequirementTable, RequirementTable, UniqueFileTable, UserTable }
-import models.{ DataRequest, RequestLog, RequestRequirement, UniqueFile }
+import models.{ DataRequest, Page, RequestLog, RequestRequirement, Requirement, UniqueFile }
 import models.daos.RequestDAO._
 
 import utils.Constants
 
-class RequestDAO @Inject() (protected val dbConfigProvider: DatabaseConfigProvider, constants: Constants) {
+/**
+ * Access to requests, their requirements, files and log.  Writes that belong to one workflow step are
+ * composed into a single transaction, and log entries are inserted in batches by the logBatcher.  The
+ * requirement catalog is cached, and writes drop the cached download links of their request.
+ *
+ * @param dbConfigProvider The Slick database configuration provider.
+ * @param constants Application constants.
+ * @param logBatcher Write-behind buffer for log entries.
+ * @param caches Caches of frequent lookups.
+ * @param storedContentDAO Access to the content store.
+ */
+class RequestDAO @Inject() (protected val dbConfigProvider: DatabaseConfigProvider, constants: Constants,
+  logBatcher: RequestLogBatcher, caches: LookupCaches, storedContentDAO: StoredContentDAO) {
   val dbConfig: DatabaseConfig[JdbcProfile] = dbConfigProvider.get[JdbcProfile]
   val db: JdbcBackend#DatabaseDef = dbConfig.db
 
   import dbConfig.driver.api._
 
-  def requestQuery(closed: Boolean = false) = {
-    (for {
-      dataRequests <- requests if (dataRequests.status === constants.CLOSED) === closed
-    } yield dataRequests).sortBy(_.id)
+  /**
+   * Query of requests, in id order.  Status is compared directly so the status indexes can be used.
+   *
+   * @param closed: If true, only closed requests.  If false, all but closed requests
+   * @param after: Id of the last request of the previous page, if any
+   */
+  def requestQuery(closed: Boolean = false, after: Option[Int] = None) = {
+    val byStatus = if (closed) requests.filter(_.status === constants.CLOSED) else requests.filter(_.status =!= constants.CLOSED)
+    after.fold(byStatus)(id => byStatus.filter(_.id > id)).sortBy(_.id)
   }
 
   /**
-   * Retrieve requests
+   * Retrieve a page of requests
    *
    * @param closed: If true, returns only closed requests.  If false, returns all but closed requests
-   * @return The sequence of retrieved requests
+   * @param after: Id of the last request of the previous page, if any
+   * @param limit: Most requests of the page
+   * @return The page of retrieved requests, keyed by id
    */
-  def find(closed: Boolean = false): Future[Seq[DataRequest]] = {
-    db.run(requestQuery(closed).result).map { rqs =>
-      rqs
+  def find(closed: Boolean, after: Option[Int], limit: Int): Future[Page[DataRequest, Int]] = {
+    db.run(requestQuery(closed, after).take(limit + 1).result).map { rqs =>
+      Page.of(rqs, limit)(_.id)
     }
   }
 
@@ -78,7 +95,25 @@ class RequestDAO @Inject() (protected val dbConfigProvider: DatabaseConfigProvid
    * @return The number of requests updated
    */
   def update(rid: Int, req: DataRequest) = {
-    db.run(requests.filter(_.id === rid).update(req))
+    runFor(rid)(requests.filter(_.id === rid).update(req))
+  }
+
+  /**
+   * Run a write to a request, then drop the request's cached download links
+   *
+   * @param rid: The id of the request written
+   * @param action: The write
+   * @return The result of the write
+   */
+  private def runFor[R](rid: Int)(action: DBIOAction[R, NoStream, Nothing]): Future[R] = {
+    db.run(action).andThen { case _ => caches.invalidateRequest(rid) }
+  }
+
+  /**
+   * @return All requirements in order, from the cache
+   */
+  private def requirementCatalog: Future[Seq[Requirement]] = {
+    caches.requirements.get(())(db.run(requirements.sortBy(r => r.order).result))
   }
 
   /**
@@ -91,16 +126,33 @@ class RequestDAO @Inject() (protected val dbConfigProvider: DatabaseConfigProvid
     val rrq = for {
       rr <- requestRequirements if rr.request === rid
     } yield (rr.requirement)
-    db.run(requests.filter(_.id === rid).result.zip(requirements.sortBy(r => r.order).result.zip(rrq.result)))
+    for {
+      catalog <- requirementCatalog
+      (req, rrs) <- db.run(requests.filter(_.id === rid).result.zip(rrq.result))
+    } yield (req, (catalog, rrs))
   }
 
   /**
    * Delete a request's requirements
    *
    * @param rid: The id of the request to delete
+   * @return The number of requirements deleted
+   */
+  def deleteRequirements(rid: Int): Future[Int] = {
+    db.run(requestRequirements.filter(_.request === rid).delete)
+  }
+
+  /**
+   * Replace a request's requirements, and move it to AWAITINGREQUIREMENTS, in one transaction
+   *
+   * @param rid: The id of the request
+   * @param rrs: The request's new requirements
    */
-  def deleteRequirements(rid: Int): Unit = {
-    Await.result(db.run(requestRequirements.filter(_.request === rid).delete), Duration.Inf)
+  def replaceRequirements(rid: Int, rrs: Iterable[RequestRequirement]): Future[Unit] = {
+    runFor(rid)(DBIO.seq(
+      requestRequirements.filter(_.request === rid).delete,
+      requestRequirements ++= rrs,
+      stateAction(rid, constants.AWAITINGREQUIREMENTS)).transactionally)
   }
 
   /**
@@ -110,10 +162,8 @@ class RequestDAO @Inject() (protected val dbConfigProvider: DatabaseConfigProvid
    * @return The titles of the requested requirements
    */
   def getRequirementTitles(reqs: Iterable[Int]): Future[Seq[String]] = {
-    val qRequirements = for {
-      r <- requirements if r.id inSetBind (reqs)
-    } yield (r.title)
-    db.run(qRequirements.result)
+    val ids = reqs.toSet
+    requirementCatalog.map(_.filter(r => ids.contains(r.id)).map(_.title))
   }
 
   /**
@@ -121,11 +171,14 @@ class RequestDAO @Inject() (protected val dbConfigProvider: DatabaseConfigProvid
    *
    * @param rid: The id of the request
    * @param state: The request's new State value
+   * @return The number of requests updated
    */
-  def setState(rid: Int, state: Int): Unit = {
-    Await.result(db.run(requests.filter(_.id === rid).map(x => (x.status)).update(state)), Duration.Inf)
+  def setState(rid: Int, state: Int): Future[Int] = {
+    runFor(rid)(stateAction(rid, state))
   }
 
+  private def stateAction(rid: Int, state: Int) = requests.filter(_.id === rid).map(x => (x.status)).update(state)
+
   /**
    * Add request requirements to the db
    *
@@ -142,31 +195,58 @@ class RequestDAO @Inject() (protected val dbConfigProvider: DatabaseConfigProvid
    * @return (The request, Sequence of (requirement id, completed, requirement title))
    */
   def getRequirementProgress(rid: Int): Future[(Option[DataRequest], Seq[(Int, Boolean, String)])] = {
+    withTitles(db.run(progressAction(rid)))
+  }
+
+  private def progressAction(rid: Int) = {
     val progressQ = (for {
       rr <- requestRequirements if rr.request === rid
-      r <- requirements if r.id === rr.requirement
-    } yield (rr.requirement, rr.completed, r.title)).sortBy(_._1)
-    db.run(requests.filter(_.id === rid).result.headOption.zip(progressQ.result))
+    } yield (rr.requirement, rr.completed)).sortBy(_._1)
+    requests.filter(_.id === rid).result.headOption.zip(progressQ.result)
+  }
+
+  /**
+   * Add the titles of the requirements, from the requirement catalog, to a request's progress
+   *
+   * @param progress: (The request, Sequence of (requirement id, completed))
+   * @return (The request, Sequence of (requirement id, completed, requirement title))
+   */
+  private def withTitles(progress: Future[(Option[DataRequest], Seq[(Int, Boolean)])]) = {
+    for {
+      catalog <- requirementCatalog
+      (req, rrs) <- progress
+    } yield {
+      val titles = catalog.map(r => r.id -> r.title).toMap
+      (req, rrs.flatMap { case (id, completed) => titles.get(id).map(title => (id, completed, title)) })
+    }
   }
 
   /**
-   * Update a request's requirement progress
+   * Update a request's requirement progress, and move it to READYTOSEND once every requirement is
+   * complete or back to AWAITINGREQUIREMENTS otherwise, in one transaction
    *
    * @param rid: The id of the request
    * @complete: List of requirement id's which have been completed
+   * @return (The request, Sequence of (requirement id, completed, requirement title))
    */
-  def updateProgress(rid: Int, complete: List[Int]): Unit = {
+  def updateProgress(rid: Int, complete: List[Int]): Future[(Option[DataRequest], Seq[(Int, Boolean, String)])] = {
     // Update db for all incomplete requirements for this request
     val qIncomplete = for {
       c <- requestRequirements if c.request === rid if !c.requirement.inSetBind(complete)
     } yield c.completed
-    Await.result(db.run(qIncomplete.update(false)), Duration.Inf)
 
     // Update db for all complete requirements for this request
     val qComplete = for {
       c <- requestRequirements if c.request === rid if c.requirement inSetBind complete
     } yield c.completed
-    Await.result(db.run(qComplete.update(true)), Duration.Inf)
+
+    val action = for {
+      _ <- qIncomplete.update(false)
+      _ <- qComplete.update(true)
+      progress <- progressAction(rid)
+      _ <- stateAction(rid, if (progress._2.forall(_._2)) constants.READYTOSEND else constants.AWAITINGREQUIREMENTS)
+    } yield progress
+    withTitles(runFor(rid)(action.transactionally))
   }
 
   /**
@@ -175,9 +255,81 @@ class RequestDAO @Inject() (protected val dbConfigProvider: DatabaseConfigProvid
    * @param rid: The id of the request
    */
   def setDeleted(rid: Int) = {
-    db.run(uniqueFiles.filter(_.requestId === rid).map(x => (x.isDeleted)).update(true))
+    runFor(rid)(deletedAction(rid))
+  }
+
+  /**
+   * Mark a request's Unique File as deleted and set the request's state, in one transaction
+   *
+   * @param rid: The id of the request
+   * @param state: The request's new State value
+   */
+  def setDeleted(rid: Int, state: Int): Future[Unit] = {
+    runFor(rid)(DBIO.seq(deletedAction(rid), stateAction(rid, state)).transactionally)
   }
 
+  /**
+   * Consume a download link once its file has been downloaded: mark the request's Unique Files as
+   * deleted, set the request's state and log the download, in one transaction.  Of concurrent calls
+   * for the same link, only the first consumes it.
+   *
+   * @param uf: The downloaded UniqueFile
+   * @param state: The request's new State value
+   * @param user: The user the download is logged for
+   * @param msg: The log message
+   * @return True if this call consumed the link
+   */
+  def consumeFile(uf: UniqueFile, state: Int, user: String, msg: String): Future[Boolean] = {
+    val action = for {
+      consumed <- uniqueFiles.filter(f => f.uniqueName === uf.uniqueName && !f.isDeleted).map(_.isDeleted).update(true)
+      _ <- if (consumed == 1) {
+        DBIO.seq(deletedAction(uf.requestId), stateAction(uf.requestId, state), requestLogs += logEntry(uf.requestId, user, msg))
+      } else {
+        DBIO.successful(())
+      }
+    } yield consumed == 1
+    runFor(uf.requestId)(action.transactionally)
+  }
+
+  private def deletedAction(rid: Int) = uniqueFiles.filter(_.requestId === rid).map(x => (x.isDeleted)).update(true)
+
+  /**
+   * Insert a request's Unique File and set the request's state, in one transaction
+   *
+   * @param uf: The UniqueFile to insert
+   * @param state: The request's new State value
+   * @return The request, if it exists
+   */
+  def storeFile(uf: UniqueFile, state: Int): Future[Option[DataRequest]] = {
+    runFor(uf.requestId)(storeFileAction(uf, state).transactionally).andThen { case _ => caches.downloadLinks.invalidate(uf.uniqueName) }
+  }
+
+  /**
+   * Store a request's Unique File in the content store, insert it and set the request's state, in one
+   * transaction.  If a concurrent build stored the same content first, the file refers to that
+   * content instead.
+   *
+   * @param uf: The UniqueFile to insert, located where its content was built
+   * @param contentKey: Key of the file's content
+   * @param size: Size of the file in bytes
+   * @param state: The request's new State value
+   * @return (The UniqueFile as inserted, The request if it exists)
+   */
+  def storeContent(uf: UniqueFile, contentKey: String, size: Long, state: Int): Future[(UniqueFile, Option[DataRequest])] = {
+    val action = for {
+      location <- storedContentDAO.storeAction(contentKey, uf.fileLocation, size)
+      stored = uf.copy(fileLocation = location)
+      req <- storeFileAction(stored, state)
+    } yield (stored, req)
+    runFor(uf.requestId)(action.transactionally).andThen { case _ => caches.downloadLinks.invalidate(uf.uniqueName) }
+  }
+
+  private def storeFileAction(uf: UniqueFile, state: Int) = for {
+    _ <- uniqueFiles += uf
+    _ <- stateAction(uf.requestId, state)
+    req <- requests.filter(_.id === uf.requestId).result.headOption
+  } yield req
+
   /**
    * Retrieves (non-deleted) UniqueFiles for given request
    *
@@ -191,17 +343,60 @@ class RequestDAO @Inject() (protected val dbConfigProvider: DatabaseConfigProvid
     db.run(fileq.result.zip(requests.filter(_.id === rid).result.head))
   }
 
-  def getLog(rid: Int) = {
-    val q = (for {
-      (log, u) <- requestLogs.filter(_.request === rid) joinLeft users on (_.user === _.userID)
-    } yield (log, u)).sortBy(_._1.time)
-    db.run(q.result.zip(requests.filter(_.id === rid).result))
+  /**
+   * Get a page of log entries for a request, in time order, including those not yet flushed
+   *
+   * @param rid: The id of the request
+   * @param after: Id of the last log entry of the previous page, if any
+   * @param limit: Most log entries of the page
+   * @return (Page of log messages with their users keyed by log id, The request)
+   */
+  def getLog(rid: Int, after: Option[Long], limit: Int) = {
+    val cursor = after match {
+      case Some(id) => requestLogs.filter(l => l.id === id && l.request === rid).map(l => (l.time, l.id)).result.headOption
+      case _ => DBIO.successful(None)
+    }
+    val action = for {
+      position <- cursor
+      rows <- logQuery(rid, position).take(limit + 1).result
+      req <- requests.filter(_.id === rid).result
+    } yield (Page.of(rows, limit)(_._1.id), req)
+    logBatcher.flush().recover { case _ => () }.flatMap(_ => db.run(action))
+  }
+
+  /**
+   * Query of a request's log entries with their users, ordered by time and id.  The redundant
+   * lower bound on time lets the page start from the index instead of scanning earlier entries.
+   *
+   * @param rid: The id of the request
+   * @param position: (Time, id) of the last log entry of the previous page, if any
+   */
+  private def logQuery(rid: Int, position: Option[(Timestamp, Long)]) = {
+    val logs = position match {
+      case Some((time, id)) =>
+        requestLogs.filter(l => l.request === rid && l.time >= time && (l.time > time || l.id > id))
+      case _ => requestLogs.filter(_.request === rid)
+    }
+    (for {
+      (log, u) <- logs joinLeft users on (_.user === _.userID)
+    } yield (log, u)).sortBy(lu => (lu._1.time, lu._1.id))
+  }
+
+  /**
+   * Queue a log message, to be inserted with the next batch
+   *
+   * @param rid: The id of the request
+   * @param user: The signed in user (data broker)
+   * @param msg: The log message
+   * @return Future completing once the message has been inserted
+   */
+  def log(rid: Int, user: String, msg: String): Future[Unit] = {
+    logBatcher.append(logEntry(rid, user, msg))
   }
 
-  def log(rid: Int, user: String, msg: String) = {
+  private def logEntry(rid: Int, user: String, msg: String) = {
     val now = new java.util.Date()
-    val newLog = RequestLog(0L, rid, user, msg, new Timestamp(now.getTime))
-    db.run(requestLogs += newLog)
+    RequestLog(0L, rid, user, msg, new Timestamp(now.getTime))
   }
 }
 
@@ -0,0 +1,129 @@
+package models.daos
+
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+import javax.inject.{ Inject, Singleton }
+
+import akka.actor.ActorSystem
+import play.api.Logger
+import play.api.db.slick.DatabaseConfigProvider
+import play.api.inject.ApplicationLifecycle
+import slick.backend.DatabaseConfig
+import slick.driver.JdbcProfile
+import slick.lifted.TableQuery
+
+import scala.annotation.tailrec
+import scala.concurrent.duration._
+import scala.concurrent.ExecutionContext.Implicits.global
+import scala.concurrent.{ Future, Promise }
+
+import models.RequestLog
+import models.tables.RequestLogTable
+import utils.Constants
+
+/**
+ * Write-behind buffer for request log entries.  Entries are queued and inserted together, once
+ * logBatchSize entries are pending or every logFlushInterval, whichever comes first.  Batches are
+ * inserted one after another, so entries reach the database in the order they were queued.  If a
+ * batch cannot be inserted, its entries are inserted one by one, so only those failing are lost.
+ *
+ * @param dbConfigProvider The Slick database configuration provider.
+ * @param system The actor system scheduling the periodic flush.
+ * @param constants Application constants.
+ * @param lifecycle Flushes the pending entries when the application stops.
+ */
+@Singleton
+class RequestLogBatcher @Inject() (
+  dbConfigProvider: DatabaseConfigProvider,
+  system: ActorSystem,
+  constants: Constants,
+  lifecycle: ApplicationLifecycle) {
+
+  private val dbConfig: DatabaseConfig[JdbcProfile] = dbConfigProvider.get[JdbcProfile]
+
+  import dbConfig.driver.api._
+
+  private val requestLogs = TableQuery[RequestLogTable]
+  private val batchSize = constants.getInt("logBatchSize")
+  private val pending = new ConcurrentLinkedQueue[(RequestLog, Promise[Unit])]()
+  private val pendingCount = new AtomicInteger
+
+  /**
+   * Completes once every batch taken so far has been inserted.
+   */
+  private var lastBatch: Future[Unit] = Future.successful(())
+
+  private val interval = constants.getMillis("logFlushInterval").millis
+  private val timer = system.scheduler.schedule(interval, interval)(flush())
+
+  lifecycle.addStopHook { () =>
+    timer.cancel()
+    flush()
+  }
+
+  /**
+   * Queue a log entry.
+   *
+   * @param entry The entry to insert
+   * @return Future completing once the entry has been inserted
+   */
+  def append(entry: RequestLog): Future[Unit] = {
+    val inserted = Promise[Unit]()
+    pending.add((entry, inserted))
+    if (pendingCount.incrementAndGet() >= batchSize) flush()
+    inserted.future
+  }
+
+  /**
+   * Insert the pending entries.
+   *
+   * @return Future completing once all entries queued so far have been inserted, or have failed
+   */
+  def flush(): Future[Unit] = synchronized {
+    val batch = drain(Vector.empty)
+    if (batch.nonEmpty) {
+      lastBatch = lastBatch.recover { case _ => () }.flatMap { _ =>
+        dbConfig.db.run(requestLogs ++= batch.map(_._1)).map { _ =>
+          batch.foreach(_._2.success(()))
+        }.recoverWith {
+          case e =>
+            Logger.warn(s"Insert of ${batch.size} request log entries failed, inserting them one by one", e)
+            insertEach(batch)
+        }
+      }
+    }
+    lastBatch
+  }
+
+  /**
+   * Insert entries one after another, so an entry that cannot be inserted loses only itself.
+   *
+   * @param batch Entries to insert
+   * @return Future completing once every entry has been inserted or has failed
+   */
+  private def insertEach(batch: Vector[(RequestLog, Promise[Unit])]): Future[Unit] =
+    batch.foldLeft(Future.successful(())) {
+      case (previous, (entry, inserted)) =>
+        previous.flatMap { _ =>
+          val result = dbConfig.db.run(requestLogs += entry).map(_ => ())
+          result.onComplete { r =>
+            r.failed.foreach(e => Logger.error(s"Insert of request log entry for request ${entry.request} failed", e))
+            inserted.complete(r)
+          }
+          result.recover { case _ => () }
+        }
+    }
+
+  /**
+   * @param batch Entries taken so far
+   * @return All entries taken from the queue
+   */
+  @tailrec
+  private def drain(batch: Vector[(RequestLog, Promise[Unit])]): Vector[(RequestLog, Promise[Unit])] =
+    Option(pending.poll()) match {
+      case Some(entry) =>
+        pendingCount.decrementAndGet()
+        drain(batch :+ entry)
+      case _ => batch
+    }
+}
@@ -0,0 +1,119 @@
+package models.daos
+
+import javax.inject.Inject
+
+import play.api.db.slick.DatabaseConfigProvider
+import slick.backend.DatabaseConfig
+import slick.driver.JdbcProfile
+import slick.jdbc.JdbcBackend
+import slick.lifted.TableQuery
+
+import scala.concurrent.ExecutionContext.Implicits.global
+import scala.concurrent.Future
+
+import models.UniqueFile
+import models.tables.{ StoredContentTable, UniqueFileTable }
+import models.daos.StoredContentDAO._
+
+/**
+ * Access to the content store.  Each download link to stored content holds a reference to it, and
+ * content is forgotten in the same transaction that releases its last reference, so it is never
+ * handed out once it is to be deleted.
+ *
+ * @param dbConfigProvider The Slick database configuration provider.
+ * @param caches Caches of frequent lookups.
+ */
+class StoredContentDAO @Inject() (protected val dbConfigProvider: DatabaseConfigProvider, caches: LookupCaches) {
+  val dbConfig: DatabaseConfig[JdbcProfile] = dbConfigProvider.get[JdbcProfile]
+  val db: JdbcBackend#DatabaseDef = dbConfig.db
+
+  import dbConfig.driver.api._
+
+  /**
+   * Take a reference to stored content.
+   *
+   * @param contentKey Key of the content
+   * @return Location of the content, if it is stored
+   */
+  def acquire(contentKey: String): Future[Option[String]] = {
+    db.run(sql"""UPDATE "stored_content" SET "refs" = "refs" + 1
+                 WHERE "contentKey" = $contentKey AND "refs" > 0
+                 RETURNING "fileLocation"""".as[String].headOption)
+  }
+
+  /**
+   * Store content with one reference, or take a reference to the content already stored under its
+   * key by a concurrent build.
+   *
+   * @param contentKey Key of the content
+   * @param location Location of the content just built
+   * @param size Size of the content in bytes
+   * @return Action giving the location of the stored content
+   */
+  def storeAction(contentKey: String, location: String, size: Long): DBIO[String] = {
+    sql"""INSERT INTO "stored_content" ("contentKey", "fileLocation", "size", "refs")
+          VALUES ($contentKey, $location, $size, 1)
+          ON CONFLICT ("contentKey") DO UPDATE SET "refs" = "stored_content"."refs" + 1
+          RETURNING "fileLocation"""".as[String].head
+  }
+
+  /**
+   * Release a reference that did not end up in a download link.
+   *
+   * @param location Location of the content
+   * @return True if it was the last reference, and the content is to be deleted
+   */
+  def release(location: String): Future[Boolean] = {
+    db.run(releaseAction(location, 1).transactionally).map(_.isDefined)
+  }
+
+  /**
+   * Find which locations hold stored content.
+   *
+   * @param locations Locations of data files
+   * @return The locations of stored content
+   */
+  def storedLocations(locations: Set[String]): Future[Set[String]] = {
+    db.run(contents.filter(_.fileLocation inSet locations).map(_.fileLocation).result).map(_.toSet)
+  }
+
+  /**
+   * Mark files swept and release their references to stored content, in one transaction.  Only the
+   * references of files not already swept are released, so a file reclaimed on download and by the
+   * sweeper at once releases its reference once.
+   *
+   * @param files Deleted or expired files of stored content
+   * @return Locations of the content left without references, to be deleted
+   */
+  def sweep(files: Seq[UniqueFile]): Future[Seq[String]] = {
+    val marked = files.map { uf =>
+      uniqueFiles.filter(f => f.uniqueName === uf.uniqueName && !f.isSwept).map(_.isSwept).update(true).map(n => if (n == 1) Some(uf) else None)
+    }
+    val action = for {
+      swept <- DBIO.sequence(marked)
+      unreferenced <- DBIO.sequence(swept.flatten.groupBy(_.fileLocation).toSeq.map { case (location, refs) => releaseAction(location, refs.size) })
+    } yield unreferenced.flatten
+    db.run(action.transactionally).andThen { case _ => files.foreach(uf => caches.downloadLinks.invalidate(uf.uniqueName)) }
+  }
+
+  /**
+   * Release references to stored content, forgetting the content if none are left.
+   *
+   * @param location Location of the content
+   * @param count Number of references to release
+   * @return Action giving the location if it was left without references
+   */
+  private def releaseAction(location: String, count: Int): DBIO[Option[String]] = {
+    for {
+      refs <- sql"""UPDATE "stored_content" SET "refs" = "refs" - $count
+                    WHERE "fileLocation" = $location RETURNING "refs"""".as[Int].headOption
+      unreferenced = refs.filter(_ <= 0).map(_ => location)
+      _ <- if (unreferenced.isDefined) contents.filter(_.fileLocation === location).delete else DBIO.successful(0)
+    } yield unreferenced
+  }
+}
+
+object StoredContentDAO {
+  private val contents = TableQuery[StoredContentTable]
+  private val uniqueFiles = TableQuery[UniqueFileTable]
+}
@@ -1,5 +1,6 @@
 package models.daos
 
+import java.sql.Date
 import javax.inject.Inject
 
 import play.api.db.slick.DatabaseConfigProvider
@@ -8,13 +9,20 @@ import slick.driver.JdbcProfile
 import slick.jdbc.JdbcBackend
 import slick.lifted.TableQuery
 
+import scala.concurrent.ExecutionContext.Implicits.global
 import scala.concurrent.Future
 
 import models.tables.{ DataRequestTable, UniqueFileTable }
 import models.{ DataRequest, UniqueFile }
 import models.daos.UniqueFileDAO._
 
-class UniqueFileDAO @Inject() (protected val dbConfigProvider: DatabaseConfigProvider) {
+/**
+ * Access to data files.  Lookups by download link are cached.
+ *
+ * @param dbConfigProvider The Slick database configuration provider.
+ * @param caches Caches of frequent lookups.
+ */
+class UniqueFileDAO @Inject() (protected val dbConfigProvider: DatabaseConfigProvider, caches: LookupCaches) {
   val dbConfig: DatabaseConfig[JdbcProfile] = dbConfigProvider.get[JdbcProfile]
   val db: JdbcBackend#DatabaseDef = dbConfig.db
 
@@ -22,7 +30,7 @@ class UniqueFileDAO @Inject() (protected val dbConfigProvider: DatabaseConfigPro
 
   def insert(uf: UniqueFile): Future[String] = {
     val insertQ = uniqueFiles returning uniqueFiles.map(_.uniqueName)
-    db.run(insertQ += uf)
+    db.run(insertQ += uf).andThen { case _ => caches.downloadLinks.invalidate(uf.uniqueName) }
   }
 
   def getByName(uid: String): Future[Seq[(UniqueFile, DataRequest)]] = {
@@ -30,7 +38,70 @@ class UniqueFileDAO @Inject() (protected val dbConfigProvider: DatabaseConfigPro
       uf <- uniqueFiles if uf.uniqueName === uid
       r <- requests if uf.requestId === r.id
     } yield (uf, r)
-    db.run(q.result)
+    caches.downloadLinks.get(uid)(db.run(q.result))
+  }
+
+  /**
+   * Count a range a download link is about to send against the link's allowance.  Concurrent ranges
+   * are counted atomically, so together they never take the link past its allowance.
+   *
+   * @param uniqueName Unique name of the file
+   * @param bytes Length of the range
+   * @param allowance Most bytes the link may send in all
+   * @return True if the link is not yet consumed and the range fits its allowance
+   */
+  def reserveBytes(uniqueName: String, bytes: Long, allowance: Long): Future[Boolean] = {
+    db.run(sqlu"""UPDATE "unique_file" SET "bytesSent" = "bytesSent" + $bytes
+                  WHERE "uniqueName" = $uniqueName AND NOT "isDeleted" AND "bytesSent" + $bytes <= $allowance""").map(_ == 1)
+  }
+
+  /**
+   * Give back the part of a reserved range that was not sent.
+   *
+   * @param uniqueName Unique name of the file
+   * @param bytes Number of bytes reserved but not sent
+   * @return Number of bytes the link has sent or reserved since
+   */
+  def refundBytes(uniqueName: String, bytes: Long): Future[Long] = {
+    db.run(sql"""UPDATE "unique_file" SET "bytesSent" = "bytesSent" - $bytes
+                 WHERE "uniqueName" = $uniqueName RETURNING "bytesSent"""".as[Long].head)
+  }
+
+  /**
+   * Get a batch of deleted or expired files whose contents are still in storage.
+   *
+   * @param expiredOn Files created on or before this date have expired
+   * @param after Unique name of the last file of the previous batch, if any
+   * @param limit Most files of the batch
+   * @return The files, in order of unique name
+   */
+  def findSweepable(expiredOn: Date, after: Option[String], limit: Int): Future[Seq[UniqueFile]] = {
+    val q = uniqueFiles.filter(uf => !uf.isSwept && (uf.isDeleted || uf.dateCreated <= expiredOn))
+    db.run(after.fold(q)(a => q.filter(_.uniqueName > a)).sortBy(_.uniqueName).take(limit).result)
+  }
+
+  /**
+   * Find which locations still hold a file that is neither deleted nor expired, such as a request's
+   * file rebuilt in the same place.
+   *
+   * @param locations Locations of files to be swept
+   * @param expiredOn Files created on or before this date have expired
+   * @return The locations still in use
+   */
+  def liveLocations(locations: Set[String], expiredOn: Date): Future[Set[String]] = {
+    val q = uniqueFiles.filter(uf => (uf.fileLocation inSet locations) && !uf.isDeleted && uf.dateCreated > expiredOn)
+    db.run(q.map(_.fileLocation).distinct.result).map(_.toSet)
+  }
+
+  /**
+   * Record that the contents of files have been removed from storage.
+   *
+   * @param files The swept files
+   * @return Number of files updated
+   */
+  def markSwept(files: Seq[UniqueFile]): Future[Int] = {
+    val q = uniqueFiles.filter(_.uniqueName inSet files.map(_.uniqueName)).map(_.isSwept)
+    db.run(q.update(true)).andThen { case _ => files.foreach(uf => caches.downloadLinks.invalidate(uf.uniqueName)) }
   }
 }
 
@@ -19,7 +19,7 @@ import scala.concurrent.Future
 /**
  * Give access to the user object.
  */
-class UserDAOImpl @Inject() (protected val dbConfigProvider: DatabaseConfigProvider) extends UserDAO {
+class UserDAOImpl @Inject() (protected val dbConfigProvider: DatabaseConfigProvider, caches: LookupCaches) extends UserDAO {
 
   val dbConfig: DatabaseConfig[JdbcProfile] = dbConfigProvider.get[JdbcProfile]
   val db: JdbcBackend#DatabaseDef = dbConfig.db
@@ -31,12 +31,12 @@ class UserDAOImpl @Inject() (protected val dbConfigProvider: DatabaseConfigProvi
   }
 
   /**
-   * Finds a user by its login info.
+   * Finds a user by its login info.  Users are cached until they are saved.
    *
    * @param loginInfo The login info of the user to find.
    * @return The found user or None if no user for the given login info could be found.
    */
-  def find(loginInfo: LoginInfo): Future[Option[User]] = {
+  def find(loginInfo: LoginInfo): Future[Option[User]] = caches.usersByLoginInfo.get(loginInfo) {
     val userQuery = for {
       dbLoginInfo <- loginInfoQuery(loginInfo)
       dbUserLoginInfo <- userLoginInfos.filter(_.loginInfoId === dbLoginInfo.id)
@@ -51,12 +51,12 @@ class UserDAOImpl @Inject() (protected val dbConfigProvider: DatabaseConfigProvi
   }
 
   /**
-   * Finds a user by its user ID.
+   * Finds a user by its user ID.  Users are cached until they are saved.
    *
    * @param userID The ID of the user to find.
    * @return The found user or None if no user for the given ID could be found.
    */
-  def find(userID: UUID): Future[Option[User]] = {
+  def find(userID: UUID): Future[Option[User]] = caches.usersById.get(userID) {
     {
       val userQuery = for {
         dbUser <- users.filter(_.userID === userID.toString)
@@ -112,7 +112,11 @@ class UserDAOImpl @Inject() (protected val dbConfigProvider: DatabaseConfigProvi
       _ <- userLoginInfos += DbUserLoginInfo(dbUser.userID, loginInfo.id.get)
     } yield ()).transactionally
 
-    db.run(actions).map(_ => user)
+    db.run(actions).andThen {
+      case _ =>
+        caches.usersByLoginInfo.invalidate(user.loginInfo)
+        caches.usersById.invalidate(user.userID)
+    }.map(_ => user)
   }
 }
 
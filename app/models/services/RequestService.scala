@@ -1,23 +1,29 @@
 package models.services
 
+import java.nio.file.{ Files, Paths }
+import java.sql.Date
 import javax.inject.Inject
 
-import models.{ DataRequest, RequestRequirement, UniqueFile }
+import models.{ DataRequest, Page, RequestRequirement, UniqueFile }
 
+import scala.concurrent.ExecutionContext.Implicits.global
 import scala.concurrent.Future
-import models.daos.{ RequestDAO, UniqueFileDAO }
+import models.daos.{ RequestDAO, StoredContentDAO, UniqueFileDAO }
 /**
  * Handles actions to DataRequests
  */
-class RequestService @Inject() (requestDAO: RequestDAO, uniqueFileDAO: UniqueFileDAO) {
+class RequestService @Inject() (requestDAO: RequestDAO, uniqueFileDAO: UniqueFileDAO, storedContentDAO: StoredContentDAO) {
 
   /**
-   * Retrieve requests
+   * Retrieve a page of requests
    *
    * @param closed: If true, returns only closed requests.  If false, returns all but closed requests
-   * @return The sequence of retrieved requests
+   * @param after: Id of the last request of the previous page, if any
+   * @param limit: Most requests of the page
+   * @return The page of retrieved requests, keyed by id
    */
-  def retrieve(closed: Boolean = false): Future[Seq[DataRequest]] = requestDAO.find(closed)
+  def retrieve(closed: Boolean, after: Option[Int], limit: Int): Future[Page[DataRequest, Int]] =
+    requestDAO.find(closed, after, limit)
 
   /**
    * Load a request
@@ -56,8 +62,17 @@ class RequestService @Inject() (requestDAO: RequestDAO, uniqueFileDAO: UniqueFil
    * Delete a request's requirements
    *
    * @param rid: The id of the request to delete
+   * @return The number of requirements deleted
    */
-  def deleteRequirements(rid: Int): Unit = requestDAO.deleteRequirements(rid)
+  def deleteRequirements(rid: Int): Future[Int] = requestDAO.deleteRequirements(rid)
+
+  /**
+   * Replace a request's requirements, and move it to AWAITINGREQUIREMENTS, in one transaction
+   *
+   * @param rid: The id of the request
+   * @param rrs: The request's new requirements
+   */
+  def replaceRequirements(rid: Int, rrs: Iterable[RequestRequirement]): Future[Unit] = requestDAO.replaceRequirements(rid, rrs)
 
   /**
    * Retrieve titles of the given requirements
@@ -72,8 +87,9 @@ class RequestService @Inject() (requestDAO: RequestDAO, uniqueFileDAO: UniqueFil
    *
    * @param rid: The id of the request
    * @param state: The request's new State value
+   * @return The number of requests updated
    */
-  def setState(rid: Int, state: Int): Unit = requestDAO.setState(rid, state)
+  def setState(rid: Int, state: Int): Future[Int] = requestDAO.setState(rid, state)
 
   /**
    * Add request requirements to the db
@@ -91,12 +107,15 @@ class RequestService @Inject() (requestDAO: RequestDAO, uniqueFileDAO: UniqueFil
   def getRequirementProgress(rid: Int): Future[(Option[DataRequest], Seq[(Int, Boolean, String)])] = requestDAO.getRequirementProgress(rid)
 
   /**
-   * Update a request's requirement progress
+   * Update a request's requirement progress, and move it to READYTOSEND once every requirement is
+   * complete or back to AWAITINGREQUIREMENTS otherwise, in one transaction
    *
    * @param rid: The id of the request
    * @complete: List of requirement id's which have been completed
+   * @return (The request, Sequence of (requirement id, completed, requirement title))
    */
-  def updateProgress(rid: Int, complete: List[Int]): Unit = requestDAO.updateProgress(rid, complete)
+  def updateProgress(rid: Int, complete: List[Int]): Future[(Option[DataRequest], Seq[(Int, Boolean, String)])] =
+    requestDAO.updateProgress(rid, complete)
 
   /**
    * Mark a request's Unique File as deleted
@@ -105,6 +124,47 @@ class RequestService @Inject() (requestDAO: RequestDAO, uniqueFileDAO: UniqueFil
    */
   def setDeleted(rid: Int) = requestDAO.setDeleted(rid)
 
+  /**
+   * Mark a request's Unique File as deleted and set the request's state, in one transaction
+   *
+   * @param rid: The id of the request
+   * @param state: The request's new State value
+   */
+  def setDeleted(rid: Int, state: Int): Future[Unit] = requestDAO.setDeleted(rid, state)
+
+  /**
+   * Consume a download link once its file has been downloaded, marking the request's UniqueFiles as
+   * deleted, setting the request's state and logging the download, in one transaction
+   *
+   * @param uf: The downloaded UniqueFile
+   * @param state: The request's new State value
+   * @param user: The user the download is logged for
+   * @param msg: The log message
+   * @return True if this call consumed the link, false if it already was
+   */
+  def consumeFile(uf: UniqueFile, state: Int, user: String, msg: String): Future[Boolean] =
+    requestDAO.consumeFile(uf, state, user, msg)
+
+  /**
+   * Count a range about to be downloaded against its link's allowance
+   *
+   * @param uniqueName: Unique name of the file
+   * @param bytes: Length of the range
+   * @param allowance: Most bytes the link may send in all
+   * @return True if the range may be sent
+   */
+  def reserveDownload(uniqueName: String, bytes: Long, allowance: Long): Future[Boolean] =
+    uniqueFileDAO.reserveBytes(uniqueName, bytes, allowance)
+
+  /**
+   * Settle a downloaded range, giving back the part of it that was not sent
+   *
+   * @param uniqueName: Unique name of the file
+   * @param unsent: Number of bytes of the range that were not sent
+   * @return Number of bytes the link has sent or reserved since
+   */
+  def settleDownload(uniqueName: String, unsent: Long): Future[Long] = uniqueFileDAO.refundBytes(uniqueName, unsent)
+
   /**
    * Retrieves (non-deleted) UniqueFiles for given request
    *
@@ -130,20 +190,82 @@ class RequestService @Inject() (requestDAO: RequestDAO, uniqueFileDAO: UniqueFil
   def insert(uf: UniqueFile): Future[String] = uniqueFileDAO.insert(uf)
 
   /**
-   * Get log entries for a request
+   * Insert a request's UniqueFile and set the request's state, in one transaction
+   *
+   * @param uf: The UniqueFile to insert
+   * @param state: The request's new State value
+   * @return The request, if it exists
+   */
+  def storeFile(uf: UniqueFile, state: Int): Future[Option[DataRequest]] = requestDAO.storeFile(uf, state)
+
+  /**
+   * Store a request's UniqueFile in the content store, insert it and set the request's state, in one
+   * transaction
+   *
+   * @param uf: The UniqueFile to insert, located where its content was built
+   * @param contentKey: Key of the file's content
+   * @param size: Size of the file in bytes
+   * @param state: The request's new State value
+   * @return (The UniqueFile as inserted, The request if it exists)
+   */
+  def storeContent(uf: UniqueFile, contentKey: String, size: Long, state: Int): Future[(UniqueFile, Option[DataRequest])] =
+    requestDAO.storeContent(uf, contentKey, size, state)
+
+  /**
+   * Take a reference to stored content
+   *
+   * @param contentKey: Key of the content
+   * @return Location of the content, if it is stored
+   */
+  def acquireContent(contentKey: String): Future[Option[String]] = storedContentDAO.acquire(contentKey)
+
+  /**
+   * Release a reference to stored content that did not end up in a UniqueFile
+   *
+   * @param location: Location of the content
+   * @return True if it was the last reference, and the content is to be deleted
+   */
+  def releaseContent(location: String): Future[Boolean] = storedContentDAO.release(location)
+
+  /**
+   * Remove the contents of deleted files from storage and mark them swept.  Files of stored content
+   * release their references, and the content is deleted only with its last reference; other files
+   * are deleted unless a file that is not deleted shares their location.  Whatever is left undone if
+   * this fails is done by the next sweep of expired files.
+   *
+   * @param files: Deleted files
+   * @return Future completing once the files are reclaimed
+   */
+  def reclaimFiles(files: Seq[UniqueFile]): Future[Unit] = {
+    val locations = files.map(_.fileLocation).toSet
+    for {
+      stored <- storedContentDAO.storedLocations(locations)
+      (shared, own) = files.partition(uf => stored(uf.fileLocation))
+      unreferenced <- if (shared.isEmpty) Future.successful(Seq.empty) else storedContentDAO.sweep(shared)
+      live <- uniqueFileDAO.liveLocations(locations, new Date(0L))
+      _ = (unreferenced ++ own.map(_.fileLocation).distinct.filterNot(live)).foreach(l => Files.deleteIfExists(Paths.get(l)))
+      _ <- uniqueFileDAO.markSwept(own)
+    } yield ()
+  }
+
+  /**
+   * Get a page of log entries for a request
    *
    * @param rid: The id of the request
-   * @return (Request, Sequence of log messages for given request)
+   * @param after: Id of the last log entry of the previous page, if any
+   * @param limit: Most log entries of the page
+   * @return (Page of log messages for given request keyed by log id, Request)
    */
-  def getLog(rid: Int) = requestDAO.getLog(rid)
+  def getLog(rid: Int, after: Option[Long], limit: Int) = requestDAO.getLog(rid, after, limit)
 
   /**
-   * Add a log message to the database
+   * Add a log message to the database.  Messages are inserted in batches in the background.
    *
    * @param rid: The id of the request
    * @param user: The signed in user (data broker)
    * @param msg: The log message
+   * @return Future completing once the message has been inserted
    */
-  def log(rid: Int, user: String, msg: String) = requestDAO.log(rid, user, msg)
+  def log(rid: Int, user: String, msg: String): Future[Unit] = requestDAO.log(rid, user, msg)
 
 }
@@ -0,0 +1,18 @@
+package models.tables
+
+import slick.driver.PostgresDriver.api._
+
+import models.StoredContent
+
+import java.sql.Date
+
+class StoredContentTable(tag: Tag) extends Table[StoredContent](tag, "stored_content") {
+
+  def contentKey = column[String]("contentKey", O.PrimaryKey)
+  def fileLocation = column[String]("fileLocation")
+  def size = column[Long]("size")
+  def refs = column[Int]("refs")
+  def dateCreated = column[Date]("dateCreated")
+
+  override def * = (contentKey, fileLocation, size, refs, dateCreated) <> (StoredContent.tupled, StoredContent.unapply _)
+}
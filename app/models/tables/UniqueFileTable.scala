@@ -16,6 +16,8 @@ class UniqueFileTable(tag: Tag) extends Table[UniqueFile](tag, "unique_file") {
   def requestId = column[Int]("requestId")
   def fileName = column[String]("fileName")
   def dateCreated = column[Date]("dateCreated")
+  def isSwept = column[Boolean]("isSwept")
+  def bytesSent = column[Long]("bytesSent")
 
   override def * = (isDeleted, password, fileLocation, uniqueName, requestId, fileName, dateCreated) <> (UniqueFile.tupled, UniqueFile.unapply _)
 }
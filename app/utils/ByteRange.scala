@@ -0,0 +1,44 @@
+package utils
+
+/**
+ * An inclusive range of bytes of a file, as requested by an HTTP Range header.
+ *
+ * @param start First byte of the range
+ * @param end Last byte of the range
+ */
+case class ByteRange(start: Long, end: Long) {
+
+  /**
+   * @return Number of bytes in the range
+   */
+  def length: Long = end - start + 1
+
+  /**
+   * Checks if the range can be served from a file.
+   *
+   * @param fileLength Length of the file in bytes
+   * @return True if the range starts within the file
+   */
+  def isSatisfiable(fileLength: Long): Boolean = start < fileLength && start <= end
+}
+
+object ByteRange {
+  private val Spec = """bytes=(\d{0,18})-(\d{0,18})""".r
+
+  /**
+   * Parses a Range header.  Only a single range is supported; multiple ranges are ignored, and the
+   * whole file is served instead.
+   *
+   * @param header Value of the Range header
+   * @param fileLength Length of the file in bytes
+   * @return The requested range, which may not be satisfiable, or None if the header should be ignored
+   */
+  def parse(header: String, fileLength: Long): Option[ByteRange] = header.trim match {
+    case Spec("", "") => None
+    case Spec("", suffix) => Some(ByteRange(math.max(0L, fileLength - suffix.toLong), fileLength - 1))
+    case Spec(first, "") => Some(ByteRange(first.toLong, fileLength - 1))
+    case Spec(first, last) if first.toLong <= last.toLong =>
+      Some(ByteRange(first.toLong, math.min(last.toLong, fileLength - 1)))
+    case _ => None
+  }
+}
@@ -10,6 +10,12 @@ class Constants @Inject() (configuration: play.api.Configuration) {
     .getOrElse(throw new RuntimeException(s"Bad or missing $key in application.conf"))
   def getInt(key: String) = configuration.getInt(key)
     .getOrElse(throw new RuntimeException(s"Bad or missing $key in application.conf"))
+  def getBoolean(key: String) = configuration.getBoolean(key)
+    .getOrElse(throw new RuntimeException(s"Bad or missing $key in application.conf"))
+  def getBytes(key: String) = configuration.getBytes(key)
+    .getOrElse(throw new RuntimeException(s"Bad or missing $key in application.conf"))
+  def getMillis(key: String) = configuration.getMilliseconds(key)
+    .getOrElse(throw new RuntimeException(s"Bad or missing $key in application.conf"))
   val EDITREQUEST = 0
   val NEWREQUEST = 1
   val AWAITINGREQUIREMENTS = 2
@@ -0,0 +1,147 @@
+package utils
+
+import java.io.InputStream
+import java.nio.channels.Channels
+import java.nio.charset.Charset
+import javax.inject.{ Inject, Singleton }
+
+import akka.actor.ActorSystem
+import akka.stream.scaladsl.{ Sink, StreamConverters }
+import edu.dartmouth.geisel.isidro.checksum.IncrementalChecksum
+import edu.dartmouth.geisel.isidro.read.{ CsvTable, CsvTokenizer, RowHandler }
+import play.api.libs.streams.Accumulator
+import play.api.mvc.{ BodyParser, BodyParsers, MultipartFormData }
+import play.api.mvc.MultipartFormData.FilePart
+import play.core.parsers.Multipart.{ FileInfo, FilePartHandler }
+
+import scala.concurrent.duration._
+import scala.concurrent.{ ExecutionContext, Future }
+import scala.util.{ Failure, Try }
+
+/**
+ * Parses uploaded csv files while they arrive.  The bytes of the data file part are tokenized into a
+ * table and fingerprinted as they are received, so the raw csv is never written to disk.  Parsing
+ * blocks on the incoming bytes, so it runs on its own dispatcher.
+ *
+ * @param system The actor system providing the upload dispatcher.
+ * @param constants Application constants.
+ * @param metrics Timing of the parse stage.
+ */
+@Singleton
+class CsvUploadParser @Inject() (system: ActorSystem, constants: Constants, metrics: PipelineMetrics) {
+
+  import CsvUploadParser._
+
+  private val parseContext: ExecutionContext = system.dispatchers.lookup(DispatcherId)
+
+  /**
+   * Multipart body parser that parses the file part named partName as csv, and ignores any other file
+   * part.  Bodies larger than maxUploadSize are rejected.
+   *
+   * @param partName Name of the file part holding the csv
+   * @return Body parser of the form
+   */
+  def multipartCsv(partName: String): BodyParser[MultipartFormData[Try[UploadedCsv]]] =
+    BodyParsers.parse.multipartFormData(filePartHandler(partName), constants.getBytes("maxUploadSize"))
+
+  /**
+   * @param partName Name of the file part holding the csv
+   * @return Handler parsing the csv file part
+   */
+  private def filePartHandler(partName: String): FilePartHandler[Try[UploadedCsv]] = {
+    case FileInfo(key, filename, contentType) if key == partName =>
+      val charset = Charset.forName(constants.getString("csvCharset"))
+      val sink = StreamConverters.asInputStream(ReadTimeout).mapMaterializedValue { is =>
+        Future(parse(is, charset))(parseContext)
+      }
+      Accumulator(sink).map(csv => FilePart(key, filename, contentType, csv))(parseContext)
+    case FileInfo(key, filename, contentType) =>
+      Accumulator(Sink.ignore).map { _ =>
+        FilePart[Try[UploadedCsv]](key, filename, contentType, Failure(new IllegalArgumentException(s"Unexpected file part $key")))
+      }(parseContext)
+  }
+
+  /**
+   * Tokenize and fingerprint a csv stream.  On failure the rest of the stream is drained, so the form
+   * can still be handled.
+   *
+   * @param is Stream of the uploaded bytes
+   * @param charset Charset of the csv
+   * @return The parsed csv, or the reason it could not be parsed
+   */
+  private def parse(is: InputStream, charset: Charset): Try[UploadedCsv] = {
+    try {
+      val result = Try {
+        metrics.time("parse") { stage =>
+          val counter = new CountingInputStream(is)
+          val table = new CsvTable()
+          val checksum = new IncrementalChecksum()
+          val tokenizer = new CsvTokenizer(Channels.newChannel(counter), charset)
+          tokenizer.forEachRow(new RowHandler {
+            override def row(cells: Array[String], count: Int): Unit = {
+              table.addRow(cells, count)
+              checksum.update(cells, count)
+            }
+          })
+          stage.in(counter.count).processed(table.getRowCount.toLong)
+          UploadedCsv(table, checksum.digest(), counter.count)
+        }
+      }
+      if (result.isFailure) {
+        val buffer = new Array[Byte](DrainBufferSize)
+        while (Try(is.read(buffer)).getOrElse(-1) >= 0) {}
+      }
+      result
+    } finally {
+      is.close()
+    }
+  }
+}
+
+/**
+ * The companion object.
+ */
+object CsvUploadParser {
+
+  /**
+   * Id of the dispatcher parsing uploads, configured in application.conf.
+   */
+  val DispatcherId = "isidro-upload-dispatcher"
+
+  /**
+   * Longest wait for the next bytes of an upload.
+   */
+  val ReadTimeout = 1.minute
+
+  private val DrainBufferSize = 8192
+
+  /**
+   * A parsed csv upload.
+   *
+   * @param table Rows of the csv
+   * @param checksum Fingerprint of the rows, as computed by ExcelChecksum
+   * @param size Size of the upload in bytes
+   */
+  case class UploadedCsv(table: CsvTable, checksum: String, size: Long)
+
+  /**
+   * Stream counting the bytes read through it.
+   *
+   * @param in The stream to count
+   */
+  private class CountingInputStream(in: InputStream) extends java.io.FilterInputStream(in) {
+    var count = 0L
+
+    override def read(): Int = {
+      val b = super.read()
+      if (b >= 0) count += 1
+      b
+    }
+
+    override def read(b: Array[Byte], off: Int, len: Int): Int = {
+      val n = super.read(b, off, len)
+      if (n > 0) count += n.toLong
+      n
+    }
+  }
+}
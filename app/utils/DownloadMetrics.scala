@@ -0,0 +1,59 @@
+package utils
+
+import java.util.concurrent.atomic.AtomicLong
+import javax.inject.Singleton
+
+/**
+ * Throughput of file downloads.  Each transfer is logged with its rate, and totals are kept for all
+ * transfers since startup.
+ */
+@Singleton
+class DownloadMetrics extends Logger {
+  private val transfers = new AtomicLong
+  private val completed = new AtomicLong
+  private val totalBytes = new AtomicLong
+  private val totalNanos = new AtomicLong
+
+  /**
+   * Record a finished transfer.
+   *
+   * @param uniqueName Unique name of the downloaded file
+   * @param bytes Number of bytes sent
+   * @param nanos Duration of the transfer in nanoseconds
+   * @param complete True if the whole requested range was sent
+   */
+  def record(uniqueName: String, bytes: Long, nanos: Long, complete: Boolean): Unit = {
+    transfers.incrementAndGet()
+    if (complete) completed.incrementAndGet()
+    totalBytes.addAndGet(bytes)
+    totalNanos.addAndGet(nanos)
+    logger.info(f"Download $uniqueName: $bytes%d bytes in ${nanos / 1e6}%.0f ms (${DownloadMetrics.rate(bytes, nanos)}%.2f MB/s)" +
+      (if (complete) "" else ", interrupted"))
+  }
+
+  /**
+   * @return Totals of all transfers since startup
+   */
+  def snapshot: DownloadMetrics.Snapshot =
+    DownloadMetrics.Snapshot(transfers.get, completed.get, totalBytes.get, DownloadMetrics.rate(totalBytes.get, totalNanos.get))
+}
+
+object DownloadMetrics {
+
+  /**
+   * Totals of all transfers.
+   *
+   * @param transfers Number of transfers, complete or not
+   * @param completed Number of transfers that sent the whole requested range
+   * @param bytes Number of bytes sent
+   * @param megabytesPerSecond Average throughput while transferring
+   */
+  case class Snapshot(transfers: Long, completed: Long, bytes: Long, megabytesPerSecond: Double)
+
+  /**
+   * @param bytes Number of bytes sent
+   * @param nanos Duration in nanoseconds
+   * @return Throughput in MB/s
+   */
+  def rate(bytes: Long, nanos: Long): Double = if (nanos <= 0) 0.0 else bytes / 1e6 / (nanos / 1e9)
+}
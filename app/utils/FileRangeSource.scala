@@ -0,0 +1,68 @@
+package utils
+
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.{ Path, StandardOpenOption }
+
+import akka.NotUsed
+import akka.stream.{ ActorAttributes, Attributes }
+import akka.stream.scaladsl.Source
+import akka.util.ByteString
+
+import scala.concurrent.ExecutionContext
+
+/**
+ * Streams a range of a file with positional FileChannel reads.  The channel is opened when the
+ * stream starts and closed when it completes, fails or is cancelled by the client.  Reads block, so
+ * the source runs on its own dispatcher behind an asynchronous boundary.
+ */
+object FileRangeSource {
+
+  /**
+   * Id of the dispatcher reading downloaded files, configured in application.conf.
+   */
+  val DispatcherId = "isidro-download-dispatcher"
+
+  /**
+   * Size of the chunks read from the file.
+   */
+  val ChunkSize = 64 * 1024
+
+  /**
+   * Create a source of a range of a file.
+   *
+   * @param path Path to the file
+   * @param range Range of the file to stream
+   * @param onTermination Called with the number of bytes sent, and whether the whole range was sent,
+   *                      once the stream terminates
+   * @param ec Context the channel is closed and onTermination called on
+   * @return Source of the bytes in the range
+   */
+  def apply(path: Path, range: ByteRange)(onTermination: (Long, Boolean) => Unit)(implicit ec: ExecutionContext): Source[ByteString, NotUsed] = {
+    Source.single(path).flatMapConcat { p =>
+      val channel = FileChannel.open(p, StandardOpenOption.READ)
+      var sent = 0L
+      Source.unfold(range.start) { position =>
+        if (position > range.end) {
+          None
+        } else {
+          val buffer = ByteBuffer.allocate(math.min(ChunkSize.toLong, range.end - position + 1).toInt)
+          while (buffer.hasRemaining && channel.read(buffer, position + buffer.position) >= 0) {}
+          buffer.flip()
+          if (buffer.hasRemaining) {
+            sent += buffer.remaining
+            Some((position + buffer.remaining, ByteString(buffer)))
+          } else {
+            None
+          }
+        }
+      }.watchTermination() { (_, done) =>
+        done.onComplete { result =>
+          channel.close()
+          onTermination(sent, result.isSuccess && sent == range.length)
+        }
+        NotUsed
+      }
+    }.withAttributes(ActorAttributes.dispatcher(DispatcherId) and Attributes.asyncBoundary)
+  }
+}
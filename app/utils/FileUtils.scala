@@ -1,69 +1,211 @@
 package utils
 
-import edu.dartmouth.geisel.isidro.checksum.ExcelChecksum
+import edu.dartmouth.geisel.isidro.compress.CompressionProfile
 import edu.dartmouth.geisel.isidro.encrypt.ExcelEncrypt
-import edu.dartmouth.geisel.isidro.signature.ExcelSignature
-import edu.dartmouth.geisel.isidro.watermark.ExcelWatermark
-import edu.dartmouth.geisel.isidro.read.CsvReader
+import edu.dartmouth.geisel.isidro.signature.CachedSigner
+import edu.dartmouth.geisel.isidro.watermark.WatermarkCache
+import edu.dartmouth.geisel.isidro.read.{ CsvTable, DataIntegrityMismatchException, IntegrityMode, PartitionedWorkbookWriter, WorkbookWriter }
+import edu.dartmouth.geisel.isidro.util.ScratchFiles
 
 import java.io.File
 import java.io.FileOutputStream
-import javax.inject.Inject
+import java.nio.file.Paths
+import java.util.concurrent.ForkJoinPool
+import javax.inject.{ Inject, Singleton }
 
-import models.UniqueFileServ
+import models.{ StoredContent, UniqueFileServ }
 
+import org.apache.poi.openxml4j.opc.{ OPCPackage, PackageAccess }
 import org.apache.poi.poifs.crypt.CipherAlgorithm
+import org.apache.poi.xssf.usermodel.XSSFWorkbook
 
-class FileUtils @Inject() (constants: Constants, uniqueFileServ: UniqueFileServ) {
+import scala.collection.JavaConverters._
+
+@Singleton
+class FileUtils @Inject() (constants: Constants, uniqueFileServ: UniqueFileServ, metrics: PipelineMetrics) extends Logger {
+
+  type CsvData = CsvTable
+
+  /**
+   * Signer holding the key loaded from inputSignature, reloaded when the keystore file changes.
+   */
+  private val signer = new CachedSigner(constants.getString("inputSignature"), constants.getString("inputPassword"))
+
+  /**
+   * Watermark image read from watermarkImagePath, reread when the image file changes.
+   */
+  private val watermarkCache = new WatermarkCache(new File(constants.getString("watermarkImagePath")))
 
   /**
-   * Create an xlsx file from csv data.
+   * Create an xlsx file from csv data.  Rows are streamed through a windowed workbook so that only
+   * xlsxRowWindow rows are held in memory while the sheet is written, and are fingerprinted and
+   * verified against the sheet as they are written.  With typedCells, numbers, dates and booleans are
+   * written as typed cells.  Data with more than sheetRowLimit rows is split across several sheets
+   * instead.  The package is compressed as compressionProfile sets.
    *
    * @param xlsxPath    Path to xlsx file to be created
-   * @param csvContents Data read from csv file (2D string array)
+   * @param csvContents Data read from csv file
    * @param watermark   True if the xlsx file should be watermarked.
+   * @return (Checksum of the csv data, log text for the watermark and sheets)
+   * @throws DataIntegrityMismatchException If the sheet contents do not match the csv data
    */
-  type CsvData = java.util.List[java.util.List[String]]
-  private def createXlsx(xlsxPath: String, csvContents: CsvData, watermark: Boolean): String = {
-    try {
-      val workbook = CsvReader.getExcelWorkbook(constants.getString("isidroWorksheetName"), csvContents)
-      val os = new FileOutputStream(xlsxPath)
-      val rval = if (watermark) {
-        ExcelWatermark.watermark(workbook, constants.getString("isidroWorksheetName"), new File(constants.getString("watermarkImagePath")))
-        s"Watermark: ${constants.getString("watermarkImagePath")}\n"
+  private def createXlsx(xlsxPath: String, csvContents: CsvData, watermark: Boolean): (String, String) = {
+    val rowsPerSheet = constants.getInt("sheetRowLimit")
+    metrics.time("xlsx") { stage =>
+      val result = if (csvContents.getRowCount - 1 > rowsPerSheet) {
+        createPartitionedXlsx(xlsxPath, csvContents, watermark, rowsPerSheet)
       } else {
-        ""
+        createSingleSheetXlsx(xlsxPath, csvContents, watermark)
+      }
+      stage.processed(csvContents.getRowCount.toLong).out(new File(xlsxPath).length)
+      result
+    }
+  }
+
+  /**
+   * Create an xlsx file with a single sheet from csv data.
+   *
+   * @param xlsxPath    Path to xlsx file to be created
+   * @param csvContents Data read from csv file
+   * @param watermark   True if the xlsx file should be watermarked.
+   * @return (Checksum of the csv data, log text for the watermark)
+   */
+  private def createSingleSheetXlsx(xlsxPath: String, csvContents: CsvData, watermark: Boolean): (String, String) = {
+    val writer = WorkbookWriter.streaming(constants.getString("isidroWorksheetName"), constants.getInt("xlsxRowWindow"))
+    val os = new FileOutputStream(xlsxPath)
+    try {
+      writer.setIntegrityMode(IntegrityMode.valueOf(constants.getString("integrityMode").toUpperCase))
+      writer.setTypedCells(constants.getBoolean("typedCells"))
+      writer.setCompression(compressionProfile)
+      writer.setPool(FileUtils.buildPool)
+      writer.setTempDir(Paths.get(xlsxPath).toAbsolutePath.getParent)
+      val rval = if (watermark) addWatermark(writer.getXSSFWorkbook, Seq(writer.getWorksheetName)) else ""
+      writer.writeAll(csvContents)
+      val checksum = writer.finish()
+      writer.write(os)
+      (checksum, rval)
+    } finally {
+      os.close()
+      writer.close()
+    }
+  }
+
+  /**
+   * Create an xlsx file whose data rows are split across sheets of at most rowsPerSheet rows, each
+   * starting with the header row.  The sheets are built in parallel on all cores, and each sheet's
+   * fingerprint is logged along with the fingerprint of the whole csv data.
+   *
+   * @param xlsxPath     Path to xlsx file to be created
+   * @param csvContents  Data read from csv file
+   * @param watermark    True if the xlsx file should be watermarked.
+   * @param rowsPerSheet Most data rows of each sheet
+   * @return (Checksum of the csv data, log text for the watermark and sheets)
+   */
+  private def createPartitionedXlsx(xlsxPath: String, csvContents: CsvData, watermark: Boolean,
+    rowsPerSheet: Int): (String, String) = {
+    val writer = new PartitionedWorkbookWriter(constants.getString("isidroWorksheetName"), csvContents.asLists, rowsPerSheet)
+    val os = new FileOutputStream(xlsxPath)
+    try {
+      writer.setIntegrityMode(IntegrityMode.valueOf(constants.getString("integrityMode").toUpperCase))
+      writer.setPool(FileUtils.buildPool)
+      writer.setCompression(compressionProfile)
+      writer.setTempDir(Paths.get(xlsxPath).toAbsolutePath.getParent)
+      val rval = if (watermark) addWatermark(writer.getXSSFWorkbook, writer.getSheetNames.asScala) else ""
+      val checksum = writer.write(os)
+      val sheets = writer.getSheetNames.asScala.zip(writer.getSheetChecksums.asScala).map {
+        case (name, sheetChecksum) => s"Sheet $name fingerprint: $sheetChecksum\n"
       }
-      workbook.write(os)
-      rval
-    } catch {
-      case _: Throwable => "Watermark error"
+      (checksum, rval + sheets.mkString)
+    } finally {
+      os.close()
+      writer.close()
     }
   }
 
   /**
-   * Encrypt xlsx file with a random password
+   * Watermark the sheets of the workbook being written.  The sheets share one copy of the image.
    *
-   * @param xlsxPath Path to xlsx file to be encrypted
-   * @return The password used for encryption
+   * @param workbook Workbook to watermark
+   * @param sheetNames Names of the sheets to watermark
+   * @return Log text for the watermark
+   * @throws IOException If the watermark image cannot be read
    */
-  private def encryptXlsx(xlsxPath: String) = {
-    val pw = RandomUtils.generateRandomNumberString(constants.RANDOMBITS, constants.RADIX);
-    ExcelEncrypt.encrypt(xlsxPath, pw, CipherAlgorithm.valueOf(constants.getString("encryptionAlgorithm")));
-    pw
+  private def addWatermark(workbook: XSSFWorkbook, sheetNames: Seq[String]): String = {
+    metrics.time("watermark") { stage =>
+      watermarkCache.watermark(workbook, sheetNames.asJava)
+      stage.in(new File(constants.getString("watermarkImagePath")).length)
+      s"Watermark: ${constants.getString("watermarkImagePath")}\n"
+    }
+  }
+
+  /**
+   * @return How the parts of xlsx files are compressed
+   */
+  private def compressionProfile = CompressionProfile.valueOf(constants.getString("compressionProfile").toUpperCase)
+
+  /**
+   * @return Cipher used to encrypt xlsx files
+   */
+  private def encryptionAlgorithm = CipherAlgorithm.valueOf(constants.getString("encryptionAlgorithm"))
+
+  /**
+   * Encrypt with the configured cipher, logging the throughput.
+   *
+   * @param bytesIn Size of the file being encrypted
+   * @param encrypt Encrypts with the given cipher, returning the number of bytes written
+   */
+  private def timedEncrypt(bytesIn: Long)(encrypt: CipherAlgorithm => Long): Unit = {
+    val algorithm = encryptionAlgorithm
+    val start = System.nanoTime
+    val bytes = metrics.time("encrypt") { stage =>
+      val written = encrypt(algorithm)
+      stage.in(bytesIn).out(written)
+      written
+    }
+    val seconds = (System.nanoTime - start) / 1e9
+    val rate = if (seconds > 0) bytes / 1e6 / seconds else 0.0
+    logger.info(f"Encrypted $bytes%d bytes with $algorithm in $seconds%.2f s ($rate%.2f MB/s)")
+  }
+
+  /**
+   * Key the file built from csv data with the supplied options is kept under in the content store.
+   * Signed and encrypted files differ on every build, so they are not shared.
+   *
+   * @param checksum Fingerprint of the csv data
+   * @param watermark Enable watermark
+   * @param signature Enable signature
+   * @param encrypt Enable encrytion
+   * @return The content key, or None if the file is not to be shared
+   */
+  def contentKey(checksum: String, watermark: Boolean, signature: Boolean, encrypt: Boolean): Option[String] = {
+    if (signature || encrypt) {
+      None
+    } else {
+      val image = new File(constants.getString("watermarkImagePath"))
+      val variant = Seq(
+        s"worksheet=${constants.getString("isidroWorksheetName")}",
+        s"typedCells=${constants.getBoolean("typedCells")}",
+        s"sheetRowLimit=${constants.getInt("sheetRowLimit")}",
+        if (watermark) s"watermark=${image.getPath}:${image.length}:${image.lastModified}" else "watermark=none")
+      Some(StoredContent.key(checksum, variant.mkString(";")))
+    }
   }
 
   /**
    * Build xlsx file from csv data, with the suppled options.
    *
    * @param rid Id of request for this file
-   * @param xlsxPath Path to xlsx file to be created
-   * @param csvContents Data read from csv file (2D string array)
+   * @param xlsxPath Path to xlsx file to be created, in a directory that also holds the temporary
+   *                 files of writing it
+   * @param csvContents Data read from csv file
    * @param logEntry StringBuilder to append with request log information
    * @param fingerprint Enable fingerprint
    * @param watermark Enable watermark
    * @param signature Enable signature
    * @param encrypt Enable encrytion
+   * @param expectedChecksum Fingerprint of the csv data taken when it was read, if any
+   * @param contentKey Key to keep an unsigned, unencrypted file under in the content store, if any
+   * @throws DataIntegrityMismatchException If the xlsx data does not match expectedChecksum
    */
   def buildFile(
     rid: Int,
@@ -73,32 +215,85 @@ class FileUtils @Inject() (constants: Constants, uniqueFileServ: UniqueFileServ)
     fingerprint: Boolean,
     watermark: Boolean,
     signature: Boolean,
-    encrypt: Boolean) = {
+    encrypt: Boolean,
+    expectedChecksum: Option[String] = None,
+    contentKey: Option[String] = None) = {
+    // POI's sheet files, the encryption container and other temporary files of the build go in the
+    // build's directory, so they are deleted with it
+    val scratch = ScratchFiles.enter(Paths.get(xlsxPath).toAbsolutePath.getParent)
+    try {
+      // CAUTION: fingerprint, watermark, signature, and encryption
+      // order of operation important.
+      val (checksum, watermarkLog) = createXlsx(xlsxPath, csvContents, watermark)
+      expectedChecksum.filter(_ != checksum).foreach { expected =>
+        new File(xlsxPath).delete
+        throw new DataIntegrityMismatchException(s"Sheet fingerprint $checksum does not match uploaded csv fingerprint $expected")
+      }
 
-    // CAUTION: fingerprint, watermark, signature, and encryption
-    // order of operation important.
-    val checksum = ExcelChecksum.checksum(csvContents)
+      if (fingerprint) logEntry.append(s"Fingerprint: $checksum\n")
 
-    if (fingerprint) logEntry.append(s"Fingerprint: $checksum\n")
+      logEntry.append(watermarkLog)
 
-    logEntry.append(createXlsx(xlsxPath, csvContents, watermark))
+      val password: Option[String] = if (encrypt) {
+        Some(RandomUtils.generateRandomNumberString(constants.RANDOMBITS, constants.RADIX))
+      } else {
+        None
+      }
 
-    if (signature) {
-      ExcelSignature.sign(constants.getString("inputSignature"), constants.getString("inputPassword"), xlsxPath);
-      logEntry.append("Signed\n");
-    }
+      // The workbook is only written once; signing and encryption read it and write the final
+      // file straight to storage, so the store stage includes the time of the encrypt stage.
+      val storeDir = constants.getString("storage.dir")
+      val xlsxSize = new File(xlsxPath).length
+      val uniqueFile = metrics.time("store") { store =>
+        val stored = if (signature) {
+          val pkg = OPCPackage.open(xlsxPath, PackageAccess.READ_WRITE)
+          try {
+            metrics.time("sign") { stage =>
+              signer.sign(pkg)
+              stage.in(xlsxSize)
+            }
+            logEntry.append("Signed\n")
+            uniqueFileServ.streamUniqueFile(checksum, storeDir, rid, password) { os =>
+              password match {
+                case Some(pw) => timedEncrypt(xlsxSize)(ExcelEncrypt.encrypt(pkg, os, pw, _))
+                case _ => pkg.save(os)
+              }
+            }
+          } finally {
+            pkg.revert()
+          }
+        } else if (password.isDefined) {
+          uniqueFileServ.streamUniqueFile(checksum, storeDir, rid, password) { os =>
+            timedEncrypt(xlsxSize)(ExcelEncrypt.encrypt(Paths.get(xlsxPath), os, password.get, _))
+          }
+        } else {
+          contentKey match {
+            case Some(key) => uniqueFileServ.storeContent(xlsxPath, checksum, storeDir, rid, key)
+            case _ => uniqueFileServ.generateUniqueFile(xlsxPath, checksum, storeDir, rid, None)
+          }
+        }
+        store.in(xlsxSize).out(new File(stored.fileLocation).length)
+        stored
+      }
+      if (encrypt) logEntry.append("Encrypted\n")
+      new File(xlsxPath).delete
 
-    val password: Option[String] = if (encrypt) {
-      logEntry.append("Encrypted\n");
-      Some(encryptXlsx(xlsxPath))
-    } else {
-      None
+      uniqueFile
+    } finally {
+      scratch.close()
     }
+  }
 
-    val uniqueFile = uniqueFileServ.generateUniqueFile(xlsxPath, checksum, constants.getString("storage.dir"), rid, password)
-    new File(xlsxPath).delete
+}
 
-    uniqueFile
-  }
+/**
+ * The companion object.
+ */
+object FileUtils {
 
+  /**
+   * Pool building the sheets of large data files and compressing their parts, using every core of
+   * the host.
+   */
+  private val buildPool = new ForkJoinPool(Runtime.getRuntime.availableProcessors)
 }
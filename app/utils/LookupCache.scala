@@ -0,0 +1,118 @@
+package utils
+
+import java.util.concurrent.atomic.AtomicLong
+
+import scala.concurrent.duration.FiniteDuration
+import scala.concurrent.{ ExecutionContext, Future }
+
+/**
+ * Bounded read-through cache of lookups.  The future of a lookup is cached as soon as it starts, so
+ * concurrent lookups of a key share one query; failed lookups are dropped.  Entries expire ttl after
+ * they were loaded, and the least recently used entry is evicted once there are more than maxSize.
+ * Writers invalidate the entries they change once their change is committed.
+ *
+ * @param name Name of the cache, for its statistics
+ * @param maxSize Most entries kept
+ * @param ttl How long an entry is kept after it was loaded
+ */
+class LookupCache[K, V](val name: String, maxSize: Int, ttl: FiniteDuration) {
+
+  import LookupCache._
+
+  private case class Entry(value: Future[V], expires: Long)
+
+  private val hits = new AtomicLong
+  private val misses = new AtomicLong
+  private val evictions = new AtomicLong
+
+  private val entries = new java.util.LinkedHashMap[K, Entry](16, 0.75f, true) {
+    override def removeEldestEntry(eldest: java.util.Map.Entry[K, Entry]): Boolean = {
+      val evict = size > maxSize
+      if (evict) evictions.incrementAndGet()
+      evict
+    }
+  }
+
+  /**
+   * Look up a key, loading it if it is not cached or has expired.
+   *
+   * @param key The key to look up
+   * @param load Starts loading the key's value
+   * @return The key's value
+   */
+  def get(key: K)(load: => Future[V])(implicit ec: ExecutionContext): Future[V] = {
+    val now = System.nanoTime
+    val (value, loaded) = synchronized {
+      Option(entries.get(key)).filter(_.expires - now > 0) match {
+        case Some(entry) =>
+          hits.incrementAndGet()
+          (entry.value, false)
+        case _ =>
+          misses.incrementAndGet()
+          val loading = load
+          entries.put(key, Entry(loading, now + ttl.toNanos))
+          (loading, true)
+      }
+    }
+    if (loaded) {
+      value.onFailure { case _ => remove(key, value) }
+    }
+    value
+  }
+
+  /**
+   * Drop a key.
+   *
+   * @param key The key to drop
+   */
+  def invalidate(key: K): Unit = synchronized {
+    entries.remove(key)
+  }
+
+  /**
+   * Drop the entries whose value matches, and those still loading.
+   *
+   * @param p Whether a value is to be dropped
+   */
+  def invalidateIf(p: V => Boolean): Unit = synchronized {
+    val it = entries.values.iterator
+    while (it.hasNext) {
+      if (it.next().value.value.forall(_.toOption.forall(p))) it.remove()
+    }
+  }
+
+  /**
+   * Drop all entries.
+   */
+  def invalidateAll(): Unit = synchronized {
+    entries.clear()
+  }
+
+  /**
+   * @return Statistics of the cache since startup
+   */
+  def stats: Stats = Stats(name, synchronized(entries.size), hits.get, misses.get, evictions.get)
+
+  /**
+   * Drop a key, if it still holds the given value.
+   */
+  private def remove(key: K, value: Future[V]): Unit = synchronized {
+    if (Option(entries.get(key)).exists(_.value eq value)) entries.remove(key)
+  }
+}
+
+object LookupCache {
+
+  /**
+   * Statistics of a cache.
+   *
+   * @param name Name of the cache
+   * @param size Number of entries
+   * @param hits Number of lookups answered from the cache
+   * @param misses Number of lookups that loaded their value
+   * @param evictions Number of entries evicted to stay within the size bound
+   */
+  case class Stats(name: String, size: Int, hits: Long, misses: Long, evictions: Long) {
+    def hitRate: Double = if (hits + misses == 0) 0.0 else hits.toDouble / (hits + misses).toDouble
+  }
+}
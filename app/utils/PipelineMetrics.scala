@@ -0,0 +1,266 @@
+package utils
+
+import java.lang.management.ManagementFactory
+import java.util.concurrent.atomic.{ AtomicLong, AtomicLongArray }
+import javax.inject.{ Inject, Singleton }
+import javax.management.ObjectName
+
+import models.daos.LookupCaches
+import play.api.inject.ApplicationLifecycle
+
+import scala.collection.concurrent.TrieMap
+import scala.concurrent.Future
+
+/**
+ * Timing and resource use of each stage of building data files: parsing the upload, writing the
+ * workbook, watermarking, signing, encrypting and storing.  For every stage a latency histogram is
+ * kept along with the bytes read and written, the rows processed, the bytes allocated by the thread
+ * running the stage and the number of failures.  The stages are published as MXBeans, and with the
+ * download and cache statistics and the gauges registered by other components in Prometheus text
+ * format.
+ *
+ * @param downloadMetrics Throughput of file downloads.
+ * @param caches Caches of frequent lookups.
+ * @param lifecycle Unregisters the MXBeans when the application stops.
+ */
+@Singleton
+class PipelineMetrics @Inject() (downloadMetrics: DownloadMetrics, caches: LookupCaches, lifecycle: ApplicationLifecycle)
+  extends Logger {
+
+  import PipelineMetrics._
+
+  private val stages = TrieMap[String, Stage]()
+  private val gauges = TrieMap[String, (String, () => Long)]()
+
+  lifecycle.addStopHook { () =>
+    stages.keys.foreach(unregister)
+    Future.successful(())
+  }
+
+  /**
+   * Time a stage.  Failures are counted and rethrown.
+   *
+   * @param name Name of the stage
+   * @param f The stage's work, which may record the bytes and rows it handled
+   * @return The result of the stage's work
+   */
+  def time[T](name: String)(f: Recorder => T): T = {
+    val recorder = new Recorder
+    val allocatedBefore = threadAllocatedBytes
+    val start = System.nanoTime
+    val result = try f(recorder) catch {
+      case e: Throwable =>
+        failed(name)
+        throw e
+    }
+    val nanos = System.nanoTime - start
+    val allocated = threadAllocatedBytes.flatMap(after => allocatedBefore.map(after - _)).getOrElse(0L)
+    stage(name).record(nanos, recorder, allocated)
+    logger.debug(f"Stage $name: ${nanos / 1e6}%.0f ms, ${recorder.bytesIn}%d bytes in, ${recorder.bytesOut}%d bytes out, " +
+      f"${recorder.rows}%d rows, $allocated%d bytes allocated")
+    result
+  }
+
+  /**
+   * Record a run of a stage timed by its caller, such as one made of several futures.
+   *
+   * @param name Name of the stage
+   * @param nanos Duration of the run
+   * @param recorder The bytes and rows the run handled
+   */
+  def record(name: String, nanos: Long, recorder: Recorder): Unit = stage(name).record(nanos, recorder, 0L)
+
+  /**
+   * Count a failed run of a stage.
+   *
+   * @param name Name of the stage
+   */
+  def failed(name: String): Unit = stage(name).errors.incrementAndGet()
+
+  /**
+   * Publish a value read whenever the metrics are.
+   *
+   * @param name Name of the metric
+   * @param help Description of the metric
+   * @param value Reads the current value
+   */
+  def gauge(name: String, help: String)(value: => Long): Unit = gauges.put(name, (help, () => value))
+
+  /**
+   * @return All metrics in Prometheus text exposition format
+   */
+  def prometheus: String = {
+    val out = new StringBuilder
+    val all = stages.toSeq.sortBy(_._1)
+
+    family(out, "isidro_stage_seconds", "histogram", "Duration of data file build stages.")
+    all.foreach {
+      case (name, s) =>
+        var cumulative = 0L
+        Buckets.indices.foreach { i =>
+          cumulative += s.buckets.get(i)
+          out.append(s"""isidro_stage_seconds_bucket{stage="$name",le="${Buckets(i)}"} $cumulative\n""")
+        }
+        out.append(s"""isidro_stage_seconds_bucket{stage="$name",le="+Inf"} ${s.getCount}\n""")
+        out.append(s"""isidro_stage_seconds_sum{stage="$name"} ${s.getTotalSeconds}\n""")
+        out.append(s"""isidro_stage_seconds_count{stage="$name"} ${s.getCount}\n""")
+    }
+    stageCounter(out, all, "isidro_stage_bytes_in_total", "Bytes read by data file build stages.")(_.getBytesIn)
+    stageCounter(out, all, "isidro_stage_bytes_out_total", "Bytes written by data file build stages.")(_.getBytesOut)
+    stageCounter(out, all, "isidro_stage_rows_total", "Rows processed by data file build stages.")(_.getRows)
+    stageCounter(out, all, "isidro_stage_allocated_bytes_total",
+      "Bytes allocated by the threads running data file build stages.")(_.getAllocatedBytes)
+    stageCounter(out, all, "isidro_stage_errors_total", "Failed data file build stages.")(_.getErrors)
+
+    val downloads = downloadMetrics.snapshot
+    family(out, "isidro_download_transfers_total", "counter", "File downloads, complete or not.")
+    out.append(s"isidro_download_transfers_total ${downloads.transfers}\n")
+    family(out, "isidro_download_completed_total", "counter", "File downloads that sent the whole requested range.")
+    out.append(s"isidro_download_completed_total ${downloads.completed}\n")
+    family(out, "isidro_download_bytes_total", "counter", "Bytes sent by file downloads.")
+    out.append(s"isidro_download_bytes_total ${downloads.bytes}\n")
+
+    val cacheStats = caches.stats
+    family(out, "isidro_cache_hits_total", "counter", "Lookups answered from a cache.")
+    cacheStats.foreach(c => out.append(s"""isidro_cache_hits_total{cache="${c.name}"} ${c.hits}\n"""))
+    family(out, "isidro_cache_misses_total", "counter", "Lookups that loaded their value.")
+    cacheStats.foreach(c => out.append(s"""isidro_cache_misses_total{cache="${c.name}"} ${c.misses}\n"""))
+    family(out, "isidro_cache_evictions_total", "counter", "Cache entries evicted to stay within the size bound.")
+    cacheStats.foreach(c => out.append(s"""isidro_cache_evictions_total{cache="${c.name}"} ${c.evictions}\n"""))
+    family(out, "isidro_cache_size", "gauge", "Entries of a cache.")
+    cacheStats.foreach(c => out.append(s"""isidro_cache_size{cache="${c.name}"} ${c.size}\n"""))
+
+    gauges.toSeq.sortBy(_._1).foreach {
+      case (name, (help, value)) =>
+        family(out, name, "gauge", help)
+        out.append(s"$name ${value()}\n")
+    }
+    out.toString
+  }
+
+  /**
+   * Get a stage, registering it as an MXBean when it is first used.
+   *
+   * @param name Name of the stage
+   * @return The stage
+   */
+  private def stage(name: String): Stage = stages.getOrElse(name, synchronized {
+    stages.getOrElseUpdate(name, {
+      val s = new Stage
+      try {
+        unregister(name)
+        ManagementFactory.getPlatformMBeanServer.registerMBean(s, objectName(name))
+      } catch {
+        case e: Exception => logger.warn(s"Could not register stage $name with JMX", e)
+      }
+      s
+    })
+  })
+
+  /**
+   * Unregister a stage's MXBean, such as one left by a previous instance of the application.
+   *
+   * @param name Name of the stage
+   */
+  private def unregister(name: String): Unit = {
+    val server = ManagementFactory.getPlatformMBeanServer
+    if (server.isRegistered(objectName(name))) server.unregisterMBean(objectName(name))
+  }
+
+  private def family(out: StringBuilder, name: String, kind: String, help: String): Unit = {
+    out.append(s"# HELP $name $help\n# TYPE $name $kind\n")
+  }
+
+  private def stageCounter(out: StringBuilder, all: Seq[(String, Stage)], name: String, help: String)(value: Stage => Long): Unit = {
+    family(out, name, "counter", help)
+    all.foreach { case (stageName, s) => out.append(s"""$name{stage="$stageName"} ${value(s)}\n""") }
+  }
+}
+
+object PipelineMetrics {
+
+  /**
+   * Upper bounds of the latency histogram buckets, in seconds.
+   */
+  val Buckets: IndexedSeq[Double] = IndexedSeq(0.05, 0.1, 0.25, 0.5, 1.0, 2.5, 5.0, 10.0, 30.0, 60.0, 120.0, 300.0, 600.0)
+
+  /**
+   * @param name Name of a stage
+   * @return Name the stage's MXBean is registered under
+   */
+  def objectName(name: String): ObjectName = new ObjectName(s"isidro:type=PipelineStage,name=${ObjectName.quote(name)}")
+
+  /**
+   * @return Bytes allocated so far by the current thread, if the JVM measures it
+   */
+  def threadAllocatedBytes: Option[Long] = ManagementFactory.getThreadMXBean match {
+    case bean: com.sun.management.ThreadMXBean if bean.isThreadAllocatedMemorySupported && bean.isThreadAllocatedMemoryEnabled =>
+      Some(bean.getThreadAllocatedBytes(Thread.currentThread.getId))
+    case _ => None
+  }
+
+  /**
+   * Collects the bytes and rows handled by one run of a stage.
+   */
+  class Recorder {
+    var bytesIn = 0L
+    var bytesOut = 0L
+    var rows = 0L
+
+    def in(bytes: Long): Recorder = { bytesIn += bytes; this }
+    def out(bytes: Long): Recorder = { bytesOut += bytes; this }
+    def processed(count: Long): Recorder = { rows += count; this }
+  }
+
+  /**
+   * Totals of a stage, as published over JMX.
+   */
+  trait PipelineStageMXBean {
+    def getCount: Long
+    def getTotalSeconds: Double
+    def getMaxSeconds: Double
+    def getBytesIn: Long
+    def getBytesOut: Long
+    def getRows: Long
+    def getAllocatedBytes: Long
+    def getErrors: Long
+  }
+
+  /**
+   * Totals of a stage since startup.
+   */
+  class Stage extends PipelineStageMXBean {
+    val buckets = new AtomicLongArray(Buckets.size)
+    val errors = new AtomicLong
+    private val count = new AtomicLong
+    private val totalNanos = new AtomicLong
+    private val maxNanos = new AtomicLong
+    private val bytesIn = new AtomicLong
+    private val bytesOut = new AtomicLong
+    private val rows = new AtomicLong
+    private val allocated = new AtomicLong
+
+    def record(nanos: Long, recorder: Recorder, allocatedBytes: Long): Unit = {
+      val seconds = nanos / 1e9
+      val bucket = Buckets.indexWhere(seconds <= _)
+      if (bucket >= 0) buckets.incrementAndGet(bucket)
+      count.incrementAndGet()
+      totalNanos.addAndGet(nanos)
+      var max = maxNanos.get
+      while (nanos > max && !maxNanos.compareAndSet(max, nanos)) max = maxNanos.get
+      bytesIn.addAndGet(recorder.bytesIn)
+      bytesOut.addAndGet(recorder.bytesOut)
+      rows.addAndGet(recorder.rows)
+      allocated.addAndGet(allocatedBytes)
+    }
+
+    override def getCount: Long = count.get
+    override def getTotalSeconds: Double = totalNanos.get / 1e9
+    override def getMaxSeconds: Double = maxNanos.get / 1e9
+    override def getBytesIn: Long = bytesIn.get
+    override def getBytesOut: Long = bytesOut.get
+    override def getRows: Long = rows.get
+    override def getAllocatedBytes: Long = allocated.get
+    override def getErrors: Long = errors.get
+  }
+}
@@ -0,0 +1,32 @@
+package utils.auth
+
+import com.mohiva.play.silhouette.api.{ Authenticator, Authorization }
+import models.User
+import play.api.mvc.Request
+
+import scala.concurrent.Future
+
+/**
+ * Grants only access if a user's email is one of the administrators'.
+ *
+ * @param adminEmails The email addresses of the administrators.
+ * @tparam A The type of the authenticator.
+ */
+case class WithAdmin[A <: Authenticator](adminEmails: Set[String]) extends Authorization[User, A] {
+
+  /**
+   * Indicates if a user is authorized to access an action.
+   *
+   * @param user The usr object.
+   * @param authenticator The authenticator instance.
+   * @param request The current request.
+   * @tparam B The type of the request body.
+   * @return True if the user is authorized, false otherwise.
+   */
+  override def isAuthorized[B](user: User, authenticator: A)(
+    implicit
+    request: Request[B]): Future[Boolean] = {
+
+    Future.successful(user.email.exists(email => adminEmails.contains(email.toLowerCase)))
+  }
+}
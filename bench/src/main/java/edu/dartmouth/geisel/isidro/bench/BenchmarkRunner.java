@@ -0,0 +1,33 @@
+package edu.dartmouth.geisel.isidro.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, for allocation rates, and the
+ * peak heap profiler. Takes the usual JMH command line options, for example
+ * a benchmark name pattern or -p rows=10000 to limit the dataset sizes.
+ *
+ * @author Patrick Eads
+ */
+public final class BenchmarkRunner
+{
+    /**
+     * Private constructor of utilities class.
+     */
+    private BenchmarkRunner()
+    {
+    }
+
+    public static void main(final String[] args)
+            throws RunnerException, CommandLineOptionException
+    {
+        new Runner(new OptionsBuilder().parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .addProfiler(PeakHeapProfiler.class).build()).run();
+    }
+}
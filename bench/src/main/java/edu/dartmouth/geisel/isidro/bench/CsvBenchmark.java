@@ -0,0 +1,119 @@
+package edu.dartmouth.geisel.isidro.bench;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.dartmouth.geisel.isidro.checksum.ExcelChecksum;
+import edu.dartmouth.geisel.isidro.read.CsvReader;
+import edu.dartmouth.geisel.isidro.read.DataIntegrityMismatchException;
+import edu.dartmouth.geisel.isidro.read.IntegrityMode;
+import edu.dartmouth.geisel.isidro.read.WorkbookWriter;
+
+/**
+ * Benchmarks of reading CSV data, fingerprinting it and writing it to a
+ * workbook.
+ *
+ * @author Patrick Eads
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xms1g", "-Xmx8g" })
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class CsvBenchmark
+{
+    /**
+     * Number of data rows.
+     */
+    @Param({ "10000", "100000", "1000000" })
+    public int rows;
+    /**
+     * Number of columns.
+     */
+    @Param({ "10" })
+    public int columns;
+    /**
+     * Number of characters in each value.
+     */
+    @Param({ "16" })
+    public int width;
+
+    /**
+     * The dataset.
+     */
+    private List<List<String>> data;
+    /**
+     * The dataset as a CSV file.
+     */
+    private File csv;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        data = SyntheticData.generate(rows, columns, width);
+        csv = SyntheticData.writeCsv(data);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        csv.delete();
+    }
+
+    @Benchmark
+    public List<List<String>> read() throws IOException
+    {
+        return CsvReader.read(csv);
+    }
+
+    @Benchmark
+    public String checksum() throws NoSuchAlgorithmException
+    {
+        return ExcelChecksum.checksum(data);
+    }
+
+    @Benchmark
+    public int getExcelWorkbook() throws NoSuchAlgorithmException,
+            IOException, DataIntegrityMismatchException
+    {
+        try (final XSSFWorkbook workbook = CsvReader
+                .getExcelWorkbook(SyntheticData.WORKSHEET_NAME, data))
+        {
+            return workbook.getSheetAt(0).getLastRowNum();
+        }
+    }
+
+    @Benchmark
+    public String convert() throws NoSuchAlgorithmException, IOException,
+            DataIntegrityMismatchException
+    {
+        try (final Reader reader = new FileReader(csv))
+        {
+            return CsvReader.convert(SyntheticData.WORKSHEET_NAME, reader,
+                    new NullOutputStream(), WorkbookWriter.DEFAULT_ROW_WINDOW,
+                    IntegrityMode.FULL);
+        }
+    }
+}
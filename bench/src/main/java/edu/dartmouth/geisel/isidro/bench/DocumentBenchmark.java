@@ -0,0 +1,172 @@
+package edu.dartmouth.geisel.isidro.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.crypto.MarshalException;
+import javax.xml.crypto.dsig.XMLSignatureException;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.dartmouth.geisel.isidro.read.CsvReader;
+import edu.dartmouth.geisel.isidro.read.DataIntegrityMismatchException;
+import edu.dartmouth.geisel.isidro.read.IntegrityMode;
+import edu.dartmouth.geisel.isidro.read.WorkbookWriter;
+import edu.dartmouth.geisel.isidro.signature.ExcelSignature;
+import edu.dartmouth.geisel.isidro.watermark.ExcelWatermark;
+
+/**
+ * Benchmarks of watermarking and signing workbooks.
+ *
+ * @author Patrick Eads
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xms1g", "-Xmx8g" })
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class DocumentBenchmark
+{
+    /**
+     * Password of the benchmark key store.
+     */
+    private static final String KEY_PASSWORD = "xyzzy123";
+
+    /**
+     * Number of data rows.
+     */
+    @Param({ "10000", "100000", "1000000" })
+    public int rows;
+    /**
+     * Number of columns.
+     */
+    @Param({ "10" })
+    public int columns;
+    /**
+     * Number of characters in each value.
+     */
+    @Param({ "16" })
+    public int width;
+
+    /**
+     * The dataset.
+     */
+    private List<List<String>> data;
+    /**
+     * Workbook file the signing benchmark starts from.
+     */
+    private File template;
+    /**
+     * Copy of the template signed by each invocation.
+     */
+    private File workbook;
+    /**
+     * Key store to sign with.
+     */
+    private File keyStore;
+    /**
+     * Watermark image.
+     */
+    private File image;
+    /**
+     * Streaming workbook holding the dataset, watermarked and written by each
+     * invocation.
+     */
+    private WorkbookWriter watermarked;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, GeneralSecurityException,
+            DataIntegrityMismatchException
+    {
+        data = SyntheticData.generate(rows, columns, width);
+        final File csv = SyntheticData.writeCsv(data);
+        template = File.createTempFile("isidro-bench", ".xlsx");
+        try (final Reader reader = new FileReader(csv);
+                final OutputStream os = new FileOutputStream(template))
+        {
+            CsvReader.convert(SyntheticData.WORKSHEET_NAME, reader, os,
+                    WorkbookWriter.DEFAULT_ROW_WINDOW, IntegrityMode.OFF);
+        } finally
+        {
+            csv.delete();
+        }
+        workbook = File.createTempFile("isidro-bench", ".xlsx");
+        keyStore = SyntheticData.resourceFile("mykey.p12");
+        image = SyntheticData.resourceFile("test_image.png");
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpInvocation() throws IOException
+    {
+        Files.copy(template.toPath(), workbook.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        watermarked = WorkbookWriter.streaming(SyntheticData.WORKSHEET_NAME,
+                WorkbookWriter.DEFAULT_ROW_WINDOW);
+        watermarked.setIntegrityMode(IntegrityMode.OFF);
+        for (final List<String> row : data)
+        {
+            watermarked.writeRow(row);
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDownInvocation() throws IOException
+    {
+        watermarked.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        template.delete();
+        workbook.delete();
+        keyStore.delete();
+        image.delete();
+    }
+
+    @Benchmark
+    public void sign() throws IOException, GeneralSecurityException,
+            InvalidFormatException, XMLSignatureException, MarshalException
+    {
+        ExcelSignature.sign(keyStore.getAbsolutePath(), KEY_PASSWORD,
+                workbook.getAbsolutePath());
+    }
+
+    /**
+     * Watermark the template of a streaming workbook holding the dataset and
+     * write the package, as a build does.
+     *
+     * @throws IOException
+     */
+    @Benchmark
+    public void watermark() throws IOException
+    {
+        ExcelWatermark.watermark(watermarked.getXSSFWorkbook(),
+                SyntheticData.WORKSHEET_NAME, image);
+        watermarked.write(new NullOutputStream());
+    }
+}
@@ -0,0 +1,130 @@
+package edu.dartmouth.geisel.isidro.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.poi.poifs.crypt.CipherAlgorithm;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.dartmouth.geisel.isidro.encrypt.ExcelEncrypt;
+import edu.dartmouth.geisel.isidro.read.CsvReader;
+import edu.dartmouth.geisel.isidro.read.DataIntegrityMismatchException;
+import edu.dartmouth.geisel.isidro.read.IntegrityMode;
+import edu.dartmouth.geisel.isidro.read.WorkbookWriter;
+
+/**
+ * Benchmark of encrypting workbooks with each cipher supported by agile
+ * encryption. The bytes counter reports throughput in bytes of workbook
+ * encrypted per second.
+ *
+ * @author Patrick Eads
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xms1g", "-Xmx8g" })
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+public class EncryptBenchmark
+{
+    /**
+     * Password to encrypt with.
+     */
+    private static final String PASSWORD = "xyzzy123";
+
+    /**
+     * Cipher to encrypt with.
+     */
+    @Param({ "aes128", "aes192", "aes256", "rc2", "des", "des3",
+            "des3_112" })
+    public CipherAlgorithm algorithm;
+    /**
+     * Number of data rows.
+     */
+    @Param({ "10000", "100000", "1000000" })
+    public int rows;
+    /**
+     * Number of columns.
+     */
+    @Param({ "10" })
+    public int columns;
+    /**
+     * Number of characters in each value.
+     */
+    @Param({ "16" })
+    public int width;
+
+    /**
+     * Workbook file to encrypt.
+     */
+    private File workbook;
+
+    /**
+     * Bytes of workbook encrypted, reported as a rate.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters
+    {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset()
+        {
+            bytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, GeneralSecurityException,
+            DataIntegrityMismatchException
+    {
+        final File csv = SyntheticData
+                .writeCsv(SyntheticData.generate(rows, columns, width));
+        workbook = File.createTempFile("isidro-bench", ".xlsx");
+        try (final Reader reader = new FileReader(csv);
+                final OutputStream os = new FileOutputStream(workbook))
+        {
+            CsvReader.convert(SyntheticData.WORKSHEET_NAME, reader, os,
+                    WorkbookWriter.DEFAULT_ROW_WINDOW, IntegrityMode.OFF);
+        } finally
+        {
+            csv.delete();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        workbook.delete();
+    }
+
+    @Benchmark
+    public long encrypt(final Counters counters)
+            throws GeneralSecurityException, IOException
+    {
+        counters.bytes += workbook.length();
+        return ExcelEncrypt.encrypt(workbook.toPath(), new NullOutputStream(),
+                PASSWORD, algorithm);
+    }
+}
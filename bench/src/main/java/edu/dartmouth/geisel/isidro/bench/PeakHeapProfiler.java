@@ -0,0 +1,66 @@
+package edu.dartmouth.geisel.isidro.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+
+/**
+ * Reports the peak heap usage of each iteration, as the sum of the peak
+ * usage of each heap memory pool. Pools peak at different times, so this is
+ * an upper bound of the heap actually in use at once.
+ *
+ * @author Patrick Eads
+ */
+public class PeakHeapProfiler implements InternalProfiler
+{
+    /**
+     * Bytes in a megabyte.
+     */
+    private static final double MEGABYTE = 1024.0 * 1024.0;
+
+    @Override
+    public String getDescription()
+    {
+        return "Peak heap usage of each iteration";
+    }
+
+    @Override
+    public void beforeIteration(final BenchmarkParams benchmarkParams,
+            final IterationParams iterationParams)
+    {
+        for (final MemoryPoolMXBean pool : ManagementFactory
+                .getMemoryPoolMXBeans())
+        {
+            pool.resetPeakUsage();
+        }
+    }
+
+    @Override
+    public Collection<? extends Result> afterIteration(
+            final BenchmarkParams benchmarkParams,
+            final IterationParams iterationParams,
+            final IterationResult result)
+    {
+        long peak = 0;
+        for (final MemoryPoolMXBean pool : ManagementFactory
+                .getMemoryPoolMXBeans())
+        {
+            if (pool.getType() == MemoryType.HEAP)
+            {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return Collections.singletonList(new ScalarResult("\u00b7heap.peak",
+                peak / MEGABYTE, "MB", AggregationPolicy.MAX));
+    }
+}
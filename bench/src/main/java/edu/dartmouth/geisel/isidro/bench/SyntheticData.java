@@ -0,0 +1,188 @@
+package edu.dartmouth.geisel.isidro.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates synthetic CSV datasets for the benchmarks. Each column draws its
+ * cells from a pool of distinct random values of the requested width, so
+ * large datasets share String instances and fit in a moderate heap, as the
+ * repeated codes of real extracts do. Some values contain separators and
+ * quotes so that quoting is exercised.
+ *
+ * @author Patrick Eads
+ */
+public final class SyntheticData
+{
+    /**
+     * Name of the worksheet the benchmarks write.
+     */
+    public static final String WORKSHEET_NAME = "isidro";
+    /**
+     * Number of distinct values in each column.
+     */
+    private static final int DISTINCT_VALUES = 4096;
+    /**
+     * Characters of the generated values.
+     */
+    private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz"
+            + "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789 ";
+    /**
+     * Seed of the generator, so every run benchmarks the same data.
+     */
+    private static final long SEED = 20170420L;
+
+    /**
+     * Private constructor of utilities class.
+     */
+    private SyntheticData()
+    {
+    }
+
+    /**
+     * Generate a dataset with a header row.
+     *
+     * @param rows
+     *            number of data rows.
+     * @param columns
+     *            number of columns.
+     * @param width
+     *            number of characters in each value.
+     * @return 2D list of the dataset, header first.
+     */
+    public static List<List<String>> generate(final int rows,
+            final int columns, final int width)
+    {
+        final Random random = new Random(SEED);
+        final String[][] pools = new String[columns][DISTINCT_VALUES];
+        for (int column = 0; column < columns; column++)
+        {
+            for (int i = 0; i < DISTINCT_VALUES; i++)
+            {
+                pools[column][i] = value(random, width, i);
+            }
+        }
+
+        final List<List<String>> data = new ArrayList<>(rows + 1);
+        final String[] header = new String[columns];
+        for (int column = 0; column < columns; column++)
+        {
+            header[column] = "column" + column;
+        }
+        data.add(Arrays.asList(header));
+        for (int row = 0; row < rows; row++)
+        {
+            final String[] cells = new String[columns];
+            for (int column = 0; column < columns; column++)
+            {
+                cells[column] = pools[column][random.nextInt(DISTINCT_VALUES)];
+            }
+            data.add(Arrays.asList(cells));
+        }
+        return data;
+    }
+
+    /**
+     * Write a dataset to a temporary CSV file, in the platform default
+     * charset.
+     *
+     * @param data
+     *            dataset to write.
+     * @return the CSV file, to be deleted by the caller.
+     * @throws IOException
+     */
+    public static File writeCsv(final List<List<String>> data)
+            throws IOException
+    {
+        final File file = File.createTempFile("isidro-bench", ".csv");
+        try (final BufferedWriter writer = Files.newBufferedWriter(
+                file.toPath(), Charset.defaultCharset()))
+        {
+            for (final List<String> row : data)
+            {
+                boolean first = true;
+                for (final String cell : row)
+                {
+                    if (!first)
+                    {
+                        writer.write(',');
+                    }
+                    writer.write(quote(cell));
+                    first = false;
+                }
+                writer.write('\n');
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Copy a classpath resource to a temporary file.
+     *
+     * @param name
+     *            name of the resource.
+     * @return the copied file, to be deleted by the caller.
+     * @throws IOException
+     */
+    public static File resourceFile(final String name) throws IOException
+    {
+        final File file = File.createTempFile("isidro-bench", name);
+        try (final InputStream is = SyntheticData.class
+                .getResourceAsStream("/" + name))
+        {
+            if (is == null)
+            {
+                throw new IOException("Missing resource: " + name);
+            }
+            Files.copy(is, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return file;
+    }
+
+    /**
+     * @param random
+     *            generator of the characters.
+     * @param width
+     *            number of characters.
+     * @param index
+     *            index of the value in its pool.
+     * @return random value, with a separator or quote in some of them.
+     */
+    private static String value(final Random random, final int width,
+            final int index)
+    {
+        final char[] chars = new char[width];
+        for (int i = 0; i < width; i++)
+        {
+            chars[i] = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+        }
+        if (width > 2 && index % 50 == 0)
+        {
+            chars[width / 2] = index % 100 == 0 ? ',' : '"';
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @param cell
+     *            value of a cell.
+     * @return the value quoted as a CSV field, if needed.
+     */
+    private static String quote(final String cell)
+    {
+        if (cell.indexOf(',') < 0 && cell.indexOf('"') < 0)
+        {
+            return cell;
+        }
+        return '"' + cell.replace("\"", "\"\"") + '"';
+    }
+}
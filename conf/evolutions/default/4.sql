@@ -0,0 +1,19 @@
+# --- !Ups
+
+-- Request list pages, keyed by id.  The primary key of request_requirement already leads with
+-- "requestId", and the one of unique_file is "uniqueName", so neither needs another index for them.
+CREATE INDEX "request_status_idx" ON "request" ("status", "requestId");
+CREATE INDEX "request_open_idx" ON "request" ("requestId") WHERE "status" <> 6;
+
+-- Log pages of a request, keyed by time and id.
+CREATE INDEX "request_log_request_time_idx" ON "request_log" ("requestId", "timeMod", "id");
+
+-- Files of a request.
+CREATE INDEX "unique_file_request_idx" ON "unique_file" ("requestId");
+
+# --- !Downs
+
+DROP INDEX IF EXISTS "unique_file_request_idx";
+DROP INDEX IF EXISTS "request_log_request_time_idx";
+DROP INDEX IF EXISTS "request_open_idx";
+DROP INDEX IF EXISTS "request_status_idx";
@@ -0,0 +1,17 @@
+# --- !Ups
+
+-- Files whose contents the expired file sweeper has removed from storage.
+ALTER TABLE "unique_file" ADD COLUMN "isSwept" boolean NOT NULL DEFAULT FALSE;
+
+-- Sweeper batches, keyed by unique name.  Only files not yet swept are indexed, so each batch reads
+-- no more than the files still in storage.
+CREATE INDEX "unique_file_unswept_idx" ON "unique_file" ("uniqueName") WHERE NOT "isSwept";
+
+-- Live files sharing a location with a swept one.
+CREATE INDEX "unique_file_location_idx" ON "unique_file" ("fileLocation");
+
+# --- !Downs
+
+DROP INDEX IF EXISTS "unique_file_location_idx";
+DROP INDEX IF EXISTS "unique_file_unswept_idx";
+ALTER TABLE "unique_file" DROP COLUMN IF EXISTS "isSwept";
@@ -0,0 +1,17 @@
+# --- !Ups
+
+-- Data files stored once for every download link with the same contents.  "refs" counts the
+-- unique_file rows not yet swept that point at "fileLocation"; a row is removed when it reaches 0.
+CREATE TABLE "stored_content" (
+  "contentKey" varchar(254) NOT NULL,
+  "fileLocation" varchar(254) NOT NULL,
+  "size" bigint NOT NULL,
+  "refs" int NOT NULL,
+  "dateCreated" date NOT NULL DEFAULT now(),
+  PRIMARY KEY ("contentKey")
+);
+CREATE UNIQUE INDEX "stored_content_location_idx" ON "stored_content" ("fileLocation");
+
+# --- !Downs
+
+DROP TABLE IF EXISTS "stored_content";
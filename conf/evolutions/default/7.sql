@@ -0,0 +1,9 @@
+# --- !Ups
+
+-- Bytes each download link has sent, or reserved for ranges it is sending.  A range is refused once
+-- it would take the link past the size of its file plus downloadSlack.
+ALTER TABLE "unique_file" ADD COLUMN "bytesSent" bigint NOT NULL DEFAULT 0;
+
+# --- !Downs
+
+ALTER TABLE "unique_file" DROP COLUMN IF EXISTS "bytesSent";
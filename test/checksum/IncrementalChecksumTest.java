@@ -0,0 +1,138 @@
+package edu.dartmouth.geisel.isidro.checksum;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.dartmouth.geisel.isidro.read.CsvReader;
+import edu.dartmouth.geisel.isidro.util.CsvTest;
+import edu.dartmouth.geisel.isidro.util.TestUtils;
+import junit.framework.TestCase;
+
+public final class IncrementalChecksumTest extends TestCase implements CsvTest
+{
+    /**
+     * Rows exercising quoting, escaping, line breaks and characters outside
+     * the Basic Multilingual Plane.
+     */
+    public static final List<List<String>> SPECIAL_ROWS = Arrays.asList(
+            Arrays.asList("plain", "", "with,comma", "with \"quotes\""),
+            Arrays.asList("line\nbreak", "carriage\rreturn", "\"", ","),
+            Arrays.asList("caf\u00e9", "\ud83d\ude00 smile", "\u65e5\u672c"),
+            Arrays.asList(""), Arrays.asList("last"));
+
+    /**
+     * Reference implementation of the original string building checksum.
+     */
+    private static String legacyChecksum(final List<List<String>> csvContents)
+            throws NoSuchAlgorithmException
+    {
+        String contents = "";
+        for (final List<String> row : csvContents)
+        {
+            final java.util.Iterator<String> colIterator = row.iterator();
+            while (colIterator.hasNext())
+            {
+                String content = colIterator.next();
+                final boolean special = content.matches("(?s).*[\r\n\",].*");
+                content = content.replaceAll("\"", "\"\"");
+                contents += special ? "\"" + content + "\"" : content;
+                if (colIterator.hasNext())
+                {
+                    contents += ",";
+                }
+            }
+            contents += "\n";
+        }
+        final MessageDigest md = MessageDigest.getInstance("sha-512");
+        return String.format("%02x",
+                new BigInteger(1, md.digest(contents.getBytes())));
+    }
+
+    @Override
+    public void processCsvs(final File file)
+    {
+        try
+        {
+            final List<List<String>> csvContents = CsvReader.read(file);
+            assertEquals("Checksum should match original implementation.",
+                    legacyChecksum(csvContents),
+                    ExcelChecksum.checksum(csvContents));
+        } catch (IOException | NoSuchAlgorithmException e)
+        {
+            fail(e.getLocalizedMessage());
+        }
+    }
+
+    @Test
+    public void testFixtures() // NOPMD - assert is handled in passed consumer.
+    {
+        TestUtils.walkCsvsPerformTestAction(this::processCsvs);
+    }
+
+    @Test
+    public void testSpecialCharacters() throws NoSuchAlgorithmException
+    {
+        final IncrementalChecksum checksum = new IncrementalChecksum();
+        for (final List<String> row : SPECIAL_ROWS)
+        {
+            checksum.update(row);
+        }
+        assertEquals("Row count should match rows added.", SPECIAL_ROWS.size(),
+                checksum.getRowCount());
+        assertEquals("Checksum should match original implementation.",
+                legacyChecksum(SPECIAL_ROWS), checksum.digest());
+    }
+
+    @Test
+    public void testWideRows() throws NoSuchAlgorithmException
+    {
+        // rows wider than the encoding buffer, and many rows spanning it
+        final StringBuilder wide = new StringBuilder();
+        for (int i = 0; i < 5000; i++)
+        {
+            wide.append("\u00e9\"x,");
+        }
+        final List<List<String>> rows = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+        {
+            rows.add(Arrays.asList(Integer.toString(i), wide.toString(),
+                    "\ud83d\ude00"));
+        }
+        final String[] cells = new String[] { "a", "b\nc", "unused" };
+
+        final IncrementalChecksum checksum = new IncrementalChecksum();
+        for (final List<String> row : rows)
+        {
+            checksum.update(row);
+        }
+        checksum.update(cells, 2);
+        rows.add(Arrays.asList("a", "b\nc"));
+
+        assertEquals("Checksum should match original implementation.",
+                legacyChecksum(rows), checksum.digest());
+    }
+
+    @Test
+    public void testReuse() throws NoSuchAlgorithmException
+    {
+        final IncrementalChecksum checksum = new IncrementalChecksum();
+        checksum.update(Arrays.asList("discarded"));
+        checksum.digest();
+        for (final List<String> row : SPECIAL_ROWS)
+        {
+            checksum.update(row);
+        }
+        assertEquals("Digest should reset the checksum.",
+                legacyChecksum(SPECIAL_ROWS), checksum.digest());
+        assertEquals("Digest should reset the row count.", 0,
+                checksum.getRowCount());
+    }
+}
@@ -0,0 +1,89 @@
+package edu.dartmouth.geisel.isidro.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Patrick Eads
+ */
+public class ProfiledZipOutputStreamTest extends TestCase
+{
+    @Test
+    public void testRoundTrip() throws IOException
+    {
+        final StringBuilder xml = new StringBuilder();
+        for (int i = 0; i < 50000; i++)
+        {
+            xml.append("<row r=\"").append(i).append("\"><c><v>")
+                    .append(i % 97).append("</v></c></row>");
+        }
+        final byte[] sheet = xml.toString().getBytes(StandardCharsets.UTF_8);
+        assertTrue("Sheet should span several blocks.",
+                sheet.length > 3 * ProfiledZipOutputStream.BLOCK_SIZE);
+
+        for (final CompressionProfile profile : CompressionProfile.values())
+        {
+            final ByteArrayOutputStream os = new ByteArrayOutputStream();
+            final ProfiledZipOutputStream zos = new ProfiledZipOutputStream(
+                    os, profile);
+            zos.putNextEntry("[Content_Types].xml");
+            zos.write("<Types/>".getBytes(StandardCharsets.UTF_8));
+            zos.putNextEntry("empty.xml");
+            zos.putNextEntry("xl/worksheets/sheet1.xml");
+            for (int i = 0; i < sheet.length; i += 10000)
+            {
+                zos.write(sheet, i, Math.min(10000, sheet.length - i));
+            }
+            zos.finish();
+
+            try (final ZipInputStream zis = new ZipInputStream(
+                    new ByteArrayInputStream(os.toByteArray())))
+            {
+                assertEntry(profile, zis, "[Content_Types].xml",
+                        "<Types/>".getBytes(StandardCharsets.UTF_8));
+                assertEntry(profile, zis, "empty.xml", new byte[0]);
+                assertEntry(profile, zis, "xl/worksheets/sheet1.xml", sheet);
+                assertNull(profile + " should write three entries.",
+                        zis.getNextEntry());
+            }
+            if (!profile.isStored())
+            {
+                assertTrue(profile + " should compress the sheet.",
+                        os.size() < sheet.length / 2);
+            }
+        }
+    }
+
+    private static void assertEntry(final CompressionProfile profile,
+            final ZipInputStream zis, final String name, final byte[] data)
+            throws IOException
+    {
+        final ZipEntry entry = zis.getNextEntry();
+        assertEquals(profile + " should keep the entry name.", name,
+                entry.getName());
+        assertTrue(profile + " should keep the contents of " + name + ".",
+                Arrays.equals(data, readAll(zis)));
+    }
+
+    private static byte[] readAll(final InputStream is) throws IOException
+    {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = is.read(buffer)) >= 0)
+        {
+            os.write(buffer, 0, read);
+        }
+        return os.toByteArray();
+    }
+}
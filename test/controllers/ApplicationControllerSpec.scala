@@ -9,7 +9,7 @@ import com.mohiva.play.silhouette.test._
 import controllers.pages.ApplicationController
 import forms.pages.{NewRequestForm, RequirementForm, RequirementListData}
 import models.services.RequestService
-import models.{DataRequest, User}
+import models.{DataRequest, UniqueFile, User}
 import net.codingwell.scalaguice.ScalaModule
 import org.specs2.matcher.MatchResult
 import org.specs2.mock.Mockito
@@ -21,6 +21,7 @@ import play.api.libs.concurrent.Execution.Implicits._
 import play.api.mvc.MultipartFormData.FilePart
 import play.api.mvc.{AnyContentAsEmpty, MultipartFormData, Result}
 import play.api.test._
+import utils.{Constants, PipelineMetrics}
 import utils.auth.DefaultEnv
 
 import scala.concurrent.duration._
@@ -245,8 +246,8 @@ class ApplicationControllerSpec extends PlaySpecification with Mockito {
         val Some(subfinalResult) = redirectResult(app, result)
         val Some(finalResult) = redirectResult(app, subfinalResult)
 
-        val requestsFuture = requestService.retrieve()
-        val testResult = for (r <- Await.result(requestsFuture, 30 seconds) if r.id == mockInsertRequest.id) yield r
+        val requestsFuture = requestService.retrieve(false, None, 1000)
+        val testResult = for (r <- Await.result(requestsFuture, 30 seconds).items if r.id == mockInsertRequest.id) yield r
         testResult must not beNull
       }
     }
@@ -270,8 +271,8 @@ class ApplicationControllerSpec extends PlaySpecification with Mockito {
         val Some(subfinalResult) = redirectResult(app, result)
         val Some(finalResult) = redirectResult(app, subfinalResult)
 
-        val requestsFuture = requestService.retrieve()
-        val testResult = for (r <- Await.result(requestsFuture, 30 seconds) if r.id == mockRequest.id && r.phone == "9876543210") yield r
+        val requestsFuture = requestService.retrieve(false, None, 1000)
+        val testResult = for (r <- Await.result(requestsFuture, 30 seconds).items if r.id == mockRequest.id && r.phone == "9876543210") yield r
         testResult must not beNull
       }
     }
@@ -363,11 +364,53 @@ class ApplicationControllerSpec extends PlaySpecification with Mockito {
           .withMultipartFormDataBody(MultipartFormData[TemporaryFile](
             dataParts = dataParts, files = files, badParts = Nil))
           .withHeaders(CSRF_BYPASS_HEADER:_*)
-        route(app, request)
+        val Some(result) = route(app, request)
+        status(result) must be equalTo SEE_OTHER
+        flash(result).get("success") must beSome
+
+        // the file is built in the background
+        eventually(60, 500 millis) {
+          val (uploadedFiles,_)= Await.result(requestService.getUniqueFiles(mockRequest.id), 30 seconds)
+          uploadedFiles must not beEmpty
+        }
+
+      }
+    }
+
+    "redirect back to the upload form when the data file is not valid csv" in new Context {
+      new WithApplication(application) {
+        val tempFile = TemporaryFile("bad.csv")
+        Files.write(tempFile.file.toPath, "a,b\n\"unterminated,c\n".getBytes("UTF-8"))
+        val part = FilePart[TemporaryFile](key = "dataFile", filename = "bad.csv", contentType = Some("text/csv"), ref = tempFile)
+
+        import util.MultipartFormDataWritable._
+        val request = FakeRequest(POST, pages.routes.ApplicationController.handleFileUpload(mockRequest.id).url)
+          .withAuthenticator[DefaultEnv](identity.loginInfo)
+          .withMultipartFormDataBody(MultipartFormData[TemporaryFile](
+            dataParts = Map(), files = Seq(part), badParts = Nil))
+          .withHeaders(CSRF_BYPASS_HEADER:_*)
+        val Some(result) = route(app, request)
+        status(result) must be equalTo SEE_OTHER
+        redirectLocation(result) must beSome(pages.routes.ApplicationController.sendFile(mockRequest.id).url)
+        flash(result).get("error") must beSome
+      }
+    }
 
-        val (uploadedFiles,_)= Await.result(requestService.getUniqueFiles(mockRequest.id), 30 seconds)
-        uploadedFiles must not beEmpty
+    "redirect to login page without parsing the data file if user is unauthorized" in new Context {
+      new WithApplication(application) {
+        val tempFile = TemporaryFile("temp.csv")
+        Files.copy(Paths.get(getClass.getResource("/json.csv").toURI), tempFile.file.toPath, StandardCopyOption.REPLACE_EXISTING)
+        val part = FilePart[TemporaryFile](key = "dataFile", filename = "temp.csv", contentType = Some("text/csv"), ref = tempFile)
 
+        import util.MultipartFormDataWritable._
+        val request = FakeRequest(POST, pages.routes.ApplicationController.handleFileUpload(mockRequest.id).url)
+          .withMultipartFormDataBody(MultipartFormData[TemporaryFile](
+            dataParts = Map(), files = Seq(part), badParts = Nil))
+          .withHeaders(CSRF_BYPASS_HEADER:_*)
+        val Some(result) = route(app, request)
+        status(result) must be equalTo SEE_OTHER
+        redirectLocation(result) must beSome(controllers.auth.routes.SignInController.view().url)
+        app.injector.instanceOf[PipelineMetrics].prometheus must not contain("stage=\"parse\"")
       }
     }
 
@@ -381,6 +424,16 @@ class ApplicationControllerSpec extends PlaySpecification with Mockito {
       }
     }
   }
+  "The `buildStatus` action" should {
+    "return not found for an unknown job" in new Context {
+      new WithApplication(application) {
+        val Some(result) = route(app, FakeRequest(pages.routes.ApplicationController.buildStatus(mockRequest.id, UUID.randomUUID()))
+          .withAuthenticator[DefaultEnv](identity.loginInfo))
+
+        status(result) must be equalTo NOT_FOUND
+      }
+    }
+  }
   "The `handleWithdrawFile` POST action" should {
     REDIRECT_TO_REQUESTS in new Context {
       new WithApplication(application) {
@@ -393,6 +446,10 @@ class ApplicationControllerSpec extends PlaySpecification with Mockito {
         route(app, FakeRequest(POST, pages.routes.ApplicationController.handleFileUpload(mockRequest.id).url)
           .withAuthenticator[DefaultEnv](identity.loginInfo).withMultipartFormDataBody(formData)
           .withFormUrlEncodedBody(uploadData:_*).withHeaders(CSRF_BYPASS_HEADER:_*))
+        eventually(60, 500 millis) {
+          val (uploadedFiles,_)= Await.result(requestService.getUniqueFiles(mockRequest.id), 30 seconds)
+          uploadedFiles must not beEmpty
+        }
 
         val request = FakeRequest(POST, pages.routes.ApplicationController.handleWithdrawFile(mockRequest.id).url)
           .withAuthenticator[DefaultEnv](identity.loginInfo).withHeaders(CSRF_BYPASS_HEADER:_*)
@@ -416,6 +473,74 @@ class ApplicationControllerSpec extends PlaySpecification with Mockito {
       }
     }
   }
+  "The `downloadFile` action" should {
+    "refuse replayed ranges once a file's worth has been sent" in new Context {
+      new WithApplication(application) {
+        val (before, _) = Await.result(requestService.getUniqueFiles(mockRequest.id), 30 seconds)
+        val tempFile = TemporaryFile("temp.csv")
+        Files.copy(Paths.get(getClass.getResource("/json.csv").toURI), tempFile.file.toPath, StandardCopyOption.REPLACE_EXISTING)
+        val part = FilePart[TemporaryFile](key = "dataFile", filename = "temp.csv", contentType = Some("text/csv"), ref = tempFile)
+
+        import util.MultipartFormDataWritable._
+        val Some(uploaded) = route(app, FakeRequest(POST, pages.routes.ApplicationController.handleFileUpload(mockRequest.id).url)
+          .withAuthenticator[DefaultEnv](identity.loginInfo)
+          .withMultipartFormDataBody(MultipartFormData[TemporaryFile](
+            dataParts = Map(), files = Seq(part), badParts = Nil))
+          .withHeaders(CSRF_BYPASS_HEADER:_*))
+        status(uploaded) must be equalTo SEE_OTHER
+
+        def built = Await.result(requestService.getUniqueFiles(mockRequest.id), 30 seconds)._1
+          .filterNot(f => before.exists(_.uniqueName == f.uniqueName))
+        eventually(60, 500 millis) {
+          built must not beEmpty
+        }
+        val uf = built.head
+        val length = new java.io.File(uf.fileLocation).length
+        def download() = {
+          val Some(result) = route(app, FakeRequest(pages.routes.ApplicationController.downloadFile(uf.uniqueName))
+            .withHeaders(RANGE -> s"bytes=0-${length / 2}"))
+          result
+        }
+
+        // two halves make a file's worth, after which the link is consumed
+        for (_ <- 1 to 2) {
+          val half = download()
+          status(half) must be equalTo PARTIAL_CONTENT
+          contentAsBytes(half).length.toLong must be equalTo (length / 2 + 1)
+        }
+        eventually(20, 500 millis) {
+          val replay = download()
+          if (status(replay) == PARTIAL_CONTENT) contentAsBytes(replay)
+          status(replay) must be equalTo SEE_OTHER
+        }
+        Await.result(requestService.load(mockRequest.id), 30 seconds).map(_.status) must
+          beSome(app.injector.instanceOf[Constants].DOWNLOADED)
+      }
+    }
+
+    "keep reused content until its last link is downloaded" in new Context {
+      new WithApplication(application) {
+        val csv = s"id,name\n1,${UUID.randomUUID()}\n"
+        val rids = Seq(mockRequest.id, Await.result(requestService.insert(mockInsertRequest), 30 seconds))
+        val Seq(first, second) = rids.map(rid => uploadCsv(app, rid, csv))
+        first.fileLocation must be equalTo second.fileLocation
+        val content = Paths.get(first.fileLocation)
+
+        download(app, first) must be equalTo OK
+        eventually(20, 500 millis) {
+          Await.result(requestService.load(first.requestId), 30 seconds).map(_.status) must
+            beSome(app.injector.instanceOf[Constants].DOWNLOADED)
+        }
+        Files.exists(content) must beTrue
+
+        download(app, second) must be equalTo OK
+        eventually(20, 500 millis) {
+          Files.exists(content) must beFalse
+        }
+      }
+    }
+  }
+
   /**
     * The context.
     */
@@ -445,6 +570,41 @@ class ApplicationControllerSpec extends PlaySpecification with Mockito {
       route(app, FakeRequest(GET, nextUrl).withAuthenticator[DefaultEnv](identity.loginInfo))
     }
 
+    /**
+      * Upload a csv data file without options, so its content is stored for reuse, and wait for
+      * its file to be built.
+      */
+    def uploadCsv(app: Application, rid: Int, csv: String): UniqueFile = {
+      val (before, _) = Await.result(requestService.getUniqueFiles(rid), 30 seconds)
+      val tempFile = TemporaryFile("temp.csv")
+      Files.write(tempFile.file.toPath, csv.getBytes("UTF-8"))
+      val part = FilePart[TemporaryFile](key = "dataFile", filename = "temp.csv", contentType = Some("text/csv"), ref = tempFile)
+
+      import util.MultipartFormDataWritable._
+      val Some(uploaded) = route(app, FakeRequest(POST, pages.routes.ApplicationController.handleFileUpload(rid).url)
+        .withAuthenticator[DefaultEnv](identity.loginInfo)
+        .withMultipartFormDataBody(MultipartFormData[TemporaryFile](
+          dataParts = Map(), files = Seq(part), badParts = Nil))
+        .withHeaders(CSRF_BYPASS_HEADER:_*))
+      status(uploaded) must be equalTo SEE_OTHER
+
+      def built = Await.result(requestService.getUniqueFiles(rid), 30 seconds)._1
+        .filterNot(f => before.exists(_.uniqueName == f.uniqueName))
+      eventually(60, 500 millis) {
+        built must not beEmpty
+      }
+      built.head
+    }
+
+    /**
+      * Download a whole file, returning the status of the download.
+      */
+    def download(app: Application, uf: UniqueFile): Int = {
+      val Some(result) = route(app, FakeRequest(pages.routes.ApplicationController.downloadFile(uf.uniqueName)))
+      contentAsBytes(result)
+      status(result)
+    }
+
     def redirectLoginOnUnauthorized(app: Application, request: FakeRequest[AnyContentAsEmpty.type]): MatchResult[String] = {
       val Some(result) = route(app, request)
       val Some(finalResult) = redirectResult(app, result)
@@ -3,17 +3,27 @@
  */
 package edu.dartmouth.geisel.isidro.encrypt;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.apache.commons.io.FilenameUtils;
 import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
 import org.apache.poi.poifs.crypt.CipherAlgorithm;
 import org.apache.poi.poifs.crypt.Decryptor;
 import org.apache.poi.poifs.crypt.EncryptionInfo;
@@ -26,6 +36,7 @@ import edu.dartmouth.geisel.isidro.read.CsvReader;
 import edu.dartmouth.geisel.isidro.read.DataIntegrityMismatchException;
 import edu.dartmouth.geisel.isidro.read.ExcelReader;
 import edu.dartmouth.geisel.isidro.util.CsvTest;
+import edu.dartmouth.geisel.isidro.util.ScratchFiles;
 import edu.dartmouth.geisel.isidro.util.TestUtils;
 import junit.framework.TestCase;
 
@@ -112,10 +123,152 @@ public class ExcelEncryptImplTest extends TestCase implements CsvTest
         TestUtils.walkCsvsPerformTestAction(this::processCsvs);
     }
 
+    @Test
+    public void testEncryptStreams() throws IOException,
+            InvalidFormatException, GeneralSecurityException,
+            DataIntegrityMismatchException
+    {
+        final List<List<String>> csvContents = CsvReader
+                .read(new File(getClass().getResource("/simple.csv").getFile()));
+        final File xlsxFile = File.createTempFile("isidro", ".xlsx");
+        try
+        {
+            try (final XSSFWorkbook workbook = CsvReader
+                    .getExcelWorkbook(TestUtils.WORKSHEET_NAME, csvContents))
+            {
+                TestUtils.generateExcelFile(workbook,
+                        xlsxFile.getAbsolutePath());
+            }
+
+            final ByteArrayOutputStream fromBytes = new ByteArrayOutputStream();
+            try (final InputStream is = new FileInputStream(xlsxFile))
+            {
+                ExcelEncrypt.encrypt(is, fromBytes, PASSWORD,
+                        CipherAlgorithm.aes256);
+            }
+
+            final ByteArrayOutputStream fromPath = new ByteArrayOutputStream();
+            assertEquals("Bytes written should be counted.",
+                    ExcelEncrypt.encrypt(xlsxFile.toPath(), fromPath, PASSWORD,
+                            CipherAlgorithm.aes128),
+                    fromPath.size());
+
+            final ByteArrayOutputStream fromPackage = new ByteArrayOutputStream();
+            final OPCPackage pkg = OPCPackage.open(xlsxFile.getAbsolutePath(),
+                    PackageAccess.READ_WRITE);
+            try
+            {
+                ExcelEncrypt.encrypt(pkg, fromPackage, PASSWORD,
+                        CipherAlgorithm.aes256);
+            } finally
+            {
+                pkg.revert();
+            }
+
+            assertEquals(
+                    "Decrypted package bytes should match originally input contents.",
+                    csvContents, decrypt(fromBytes.toByteArray(), xlsxFile));
+            assertEquals(
+                    "Decrypted package file should match originally input contents.",
+                    csvContents, decrypt(fromPath.toByteArray(), xlsxFile));
+            assertEquals(
+                    "Decrypted package should match originally input contents.",
+                    csvContents, decrypt(fromPackage.toByteArray(), xlsxFile));
+        } finally
+        {
+            xlsxFile.delete();
+        }
+    }
+
+    @Test
+    public void testFileBackedContainer() throws IOException,
+            InvalidFormatException, GeneralSecurityException,
+            DataIntegrityMismatchException
+    {
+        final List<List<String>> csvContents = CsvReader
+                .read(new File(getClass().getResource("/simple.csv").getFile()));
+        final File xlsxFile = File.createTempFile("isidro", ".xlsx");
+        final Path dir = Files.createTempDirectory("isidro");
+        try
+        {
+            try (final XSSFWorkbook workbook = CsvReader
+                    .getExcelWorkbook(TestUtils.WORKSHEET_NAME, csvContents))
+            {
+                TestUtils.generateExcelFile(workbook,
+                        xlsxFile.getAbsolutePath());
+            }
+
+            // lists the scratch directory once the whole package is read,
+            // while it is being encrypted into the container
+            final List<String> whileEncrypting = new ArrayList<>();
+            final ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+            try (final ScratchFiles.Scope scope = ScratchFiles.enter(dir);
+                    final InputStream is = new FilterInputStream(
+                            new FileInputStream(xlsxFile))
+                    {
+                        @Override
+                        public int read(final byte[] b, final int off,
+                                final int len) throws IOException
+                        {
+                            final int read = super.read(b, off, len);
+                            if (read < 0 && whileEncrypting.isEmpty())
+                            {
+                                whileEncrypting.addAll(
+                                        Arrays.asList(dir.toFile().list()));
+                            }
+                            return read;
+                        }
+                    })
+            {
+                ExcelEncrypt.encrypt(is, encrypted, PASSWORD,
+                        CipherAlgorithm.aes256);
+            }
+
+            assertEquals(
+                    "Container should be a file in the scratch directory while the package is encrypted.",
+                    1, whileEncrypting.stream()
+                            .filter(name -> name.startsWith("isidro-encrypt"))
+                            .count());
+            assertEquals("Container file should be deleted once copied.", 0,
+                    dir.toFile().list().length);
+            assertEquals(
+                    "Decrypted package should match originally input contents.",
+                    csvContents, decrypt(encrypted.toByteArray(), xlsxFile));
+        } finally
+        {
+            xlsxFile.delete();
+            Files.deleteIfExists(dir);
+        }
+    }
+
     @Test
     public void testNonHappyPath()
     {
         TestUtils.initPrivateConstructor(ExcelEncrypt.class);
     }
 
+    /**
+     * Decrypt an encrypted spreadsheet and read its contents.
+     *
+     * @param encrypted
+     *            bytes of the encrypted spreadsheet.
+     * @param xlsxFile
+     *            file to decrypt the spreadsheet into.
+     * @return contents of the spreadsheet.
+     */
+    private static List<List<String>> decrypt(final byte[] encrypted,
+            final File xlsxFile) throws IOException, GeneralSecurityException
+    {
+        final POIFSFileSystem fs = new POIFSFileSystem(
+                new ByteArrayInputStream(encrypted));
+        final Decryptor dec = new EncryptionInfo(fs).getDecryptor();
+        assertTrue("Password should be accepted.", dec.verifyPassword(PASSWORD));
+        try (final InputStream is = dec.getDataStream(fs))
+        {
+            Files.copy(is, xlsxFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+        return ExcelReader.read(xlsxFile);
+    }
+
 }
@@ -0,0 +1,58 @@
+package jobs
+
+import edu.dartmouth.geisel.isidro.read.CsvTable
+import models.daos.LookupCaches
+import org.specs2.mutable.Specification
+import play.api.Configuration
+import play.api.inject.DefaultApplicationLifecycle
+import utils.{ Constants, DownloadMetrics, PipelineMetrics }
+
+import scala.collection.JavaConverters._
+
+/**
+  * Test case for the [[BuildAdmission]] class.
+  */
+class BuildAdmissionSpec extends Specification {
+
+  private def newAdmission(budget: String) = {
+    val constants = new Constants(Configuration("buildMemoryBudget" -> budget, "xlsxRowWindow" -> 100,
+      "lookupCacheSize" -> 10, "lookupCacheTtl" -> "1m"))
+    val metrics = new PipelineMetrics(new DownloadMetrics, new LookupCaches(constants), new DefaultApplicationLifecycle)
+    (new BuildAdmission(constants, metrics), metrics)
+  }
+
+  "BuildAdmission" should {
+    "estimate more heap for larger uploads" in {
+      val (admission, _) = newAdmission("1G")
+      val table = new CsvTable
+      table.addRow(Seq("id", "name").asJava)
+      table.addRow(Seq("1", "a").asJava)
+      admission.estimate(1000000L, table) must be greaterThan admission.estimate(1000L, table)
+      admission.estimate(1000L, table) must be greaterThanOrEqualTo BuildAdmission.BaseCost
+    }
+
+    "refuse a build larger than the budget" in {
+      val (admission, _) = newAdmission("100M")
+      admission.fits(200L * 1024 * 1024) must beFalse
+      admission.fits(50L * 1024 * 1024) must beTrue
+    }
+
+    "queue builds until heap is released, in order" in {
+      val (admission, metrics) = newAdmission("100M")
+      val mb = 1024L * 1024
+      admission.reserve(60 * mb).isCompleted must beTrue
+      val second = admission.reserve(60 * mb)
+      val third = admission.reserve(10 * mb)
+      second.isCompleted must beFalse
+      third.isCompleted must beFalse
+      admission.queueDepth must be equalTo 2
+      metrics.prometheus must contain("isidro_build_queue_depth 2")
+
+      admission.release(60 * mb)
+      second.isCompleted must beTrue
+      third.isCompleted must beTrue
+      admission.reservedBytes must be equalTo 70 * mb
+      metrics.prometheus must contain(s"isidro_build_memory_reserved_bytes ${70 * mb}")
+    }
+  }
+}
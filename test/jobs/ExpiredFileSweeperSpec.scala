@@ -0,0 +1,103 @@
+package jobs
+
+import java.nio.file.{Files, Paths}
+import java.sql.Date
+import java.util.{Calendar, UUID}
+
+import akka.actor.ActorRef
+import models.UniqueFile
+import models.daos.UniqueFileDAO
+import models.tables.UniqueFileTable
+import org.apache.commons.lang3.time.DateUtils
+import org.specs2.specification.Scope
+import play.api.Application
+import play.api.db.slick.DatabaseConfigProvider
+import play.api.inject.BindingKey
+import play.api.inject.guice.GuiceApplicationBuilder
+import play.api.test._
+import slick.driver.JdbcProfile
+import slick.lifted.TableQuery
+import utils.Constants
+
+import scala.concurrent.duration._
+
+/**
+  * Test case for the [[ExpiredFileSweeper]] class.
+  */
+class ExpiredFileSweeperSpec extends PlaySpecification {
+  sequential
+
+  "The `ExpiredFileSweeper` job" should {
+    "sweep deleted and expired files in batches of sweepBatchSize" in new Context("sweepBatchSize" -> 2, "sweepFilesPerSecond" -> 100) {
+      new WithApplication(application) {
+        val deleted = (1 to 5).map(_ => insertFile(daysOld = 0, deleted = true))
+        val expired = insertFile(daysOld = fileExpiration, deleted = false)
+        val live = insertFile(daysOld = fileExpiration - 1, deleted = false)
+        expired.isFileExpired(fileExpiration) must beTrue
+        live.isFileExpired(fileExpiration) must beFalse
+
+        sweeper ! ExpiredFileSweeper.Sweep
+        eventually(60, 500.millis) {
+          sweptOf(expired +: deleted) must not contain(false)
+        }
+        (expired +: deleted).exists(uf => Files.exists(Paths.get(uf.fileLocation))) must beFalse
+        sweptOf(Seq(live)) must be equalTo Seq(false)
+        Files.exists(Paths.get(live.fileLocation)) must beTrue
+        Files.delete(Paths.get(live.fileLocation))
+      }
+    }
+
+    "delete at most sweepFilesPerSecond files a second" in new Context("sweepBatchSize" -> 100, "sweepFilesPerSecond" -> 2) {
+      new WithApplication(application) {
+        val deleted = (1 to 6).map(_ => insertFile(daysOld = 0, deleted = true))
+
+        val start = System.nanoTime
+        sweeper ! ExpiredFileSweeper.Sweep
+        eventually(60, 100.millis) {
+          sweptOf(deleted) must not contain(false)
+        }
+        // two files at once, then one every half second
+        (System.nanoTime - start) / 1000000 must be greaterThanOrEqualTo 1500L
+      }
+    }
+  }
+
+  /**
+    * The context.
+    *
+    * @param settings Configuration of the sweeper
+    */
+  class Context(settings: (String, Any)*) extends Scope {
+
+    lazy val application: Application = new GuiceApplicationBuilder()
+      .configure(settings: _*)
+      .build()
+    lazy val sweeper: ActorRef = application.injector.instanceOf(BindingKey(classOf[ActorRef]).qualifiedWith("expired-file-sweeper"))
+    lazy val fileExpiration: Int = application.injector.instanceOf[Constants].getInt("fileExpiration")
+    lazy val dbConfig = application.injector.instanceOf[DatabaseConfigProvider].get[JdbcProfile]
+
+    import dbConfig.driver.api._
+
+    /**
+      * Store a file with some content, as created on a day in the past.
+      *
+      * @param daysOld Number of days since the file was created
+      * @param deleted Whether the file is deleted
+      * @return The file
+      */
+    def insertFile(daysOld: Int, deleted: Boolean): UniqueFile = {
+      val path = Files.createTempFile("isidro", ".xlsx")
+      Files.write(path, Array.fill[Byte](100)(1))
+      val created = DateUtils.truncate(DateUtils.addDays(new java.util.Date, -daysOld), Calendar.DATE)
+      val uf = UniqueFile(false, None, path.toString, UUID.randomUUID().toString, 0, "data.xlsx", new Date(created.getTime))
+      await(application.injector.instanceOf[UniqueFileDAO].insert(uf))
+      if (deleted) {
+        await(dbConfig.db.run(TableQuery[UniqueFileTable].filter(_.uniqueName === uf.uniqueName).map(_.isDeleted).update(true)))
+      }
+      uf
+    }
+
+    def sweptOf(files: Seq[UniqueFile]): Seq[Boolean] =
+      await(dbConfig.db.run(TableQuery[UniqueFileTable].filter(_.uniqueName inSet files.map(_.uniqueName)).map(_.isSwept).result))
+  }
+}
@@ -0,0 +1,126 @@
+package jobs
+
+import java.io.File
+import java.nio.file.{Files, Path, Paths}
+import java.util.UUID
+
+import com.mohiva.play.silhouette.api.LoginInfo
+import edu.dartmouth.geisel.isidro.checksum.ExcelChecksum
+import edu.dartmouth.geisel.isidro.read.CsvTable
+import jobs.FileBuildQueue.BuildJob
+import models.services.RequestService
+import models.{DataRequest, User}
+import org.specs2.specification.Scope
+import play.api.Application
+import play.api.inject.guice.GuiceApplicationBuilder
+import play.api.test._
+import utils.CsvUploadParser.UploadedCsv
+
+import scala.collection.JavaConverters._
+import scala.concurrent.duration._
+
+/**
+  * Test case for the [[FileBuildQueue]] class.
+  */
+class FileBuildQueueSpec extends PlaySpecification {
+  sequential
+
+  "The `FileBuildQueue`" should {
+    "delete scratch directories left by a stopped server on start" in new Context {
+      val stale = Files.createDirectories(outputDir.resolve(s"${FileBuildQueue.ScratchPrefix}1-stale"))
+      Files.write(stale.resolve("data.xlsx"), Array.fill[Byte](100)(1))
+      val other = Files.createDirectories(outputDir.resolve("other"))
+      new WithApplication(application) {
+        queue must not beNull
+
+        Files.exists(stale) must beFalse
+        Files.exists(other) must beTrue
+      }
+    }
+
+    "delete the scratch directory of a failed build" in new Context {
+      new WithApplication(application) {
+        val Right(id) = queue.submit(job(Some("not the fingerprint"), Map()))
+        eventually(60, 500.millis) {
+          queue.status(id).map(_.state) must beSome(FileBuildQueue.Failed)
+        }
+        scratchDirs must beEmpty
+      }
+    }
+
+    "store concurrent builds for the same request in files of their own" in new Context {
+      new WithApplication(application) {
+        val (before, _) = await(requestService.getUniqueFiles(rid))
+        val ids = (1 to 2).map(_ => queue.submit(job(None, Map("encrypt" -> Seq("encrypt")))))
+        ids.forall(_.isRight) must beTrue
+        eventually(60, 500.millis) {
+          ids.flatMap(id => queue.status(id.right.get)).map(_.state) must be equalTo Seq.fill(2)(FileBuildQueue.Complete)
+        }
+
+        val built = await(requestService.getUniqueFiles(rid))._1.filterNot(f => before.exists(_.uniqueName == f.uniqueName))
+        built.map(_.fileLocation).distinct must haveSize(2)
+        built.forall(uf => Files.exists(Paths.get(uf.fileLocation))) must beTrue
+        scratchDirs must beEmpty
+        built.foreach(uf => Files.delete(Paths.get(uf.fileLocation)))
+      }
+    }
+  }
+
+  /**
+    * The context.
+    */
+  trait Context extends Scope {
+
+    /**
+      * Directory the builds work in.
+      */
+    val outputDir: Path = Files.createTempDirectory("isidro-builds")
+
+    val user = User(
+      userID = UUID.randomUUID(),
+      loginInfo = LoginInfo("facebook", "user@facebook.com"),
+      firstName = None,
+      lastName = None,
+      fullName = None,
+      email = None,
+      avatarURL = None,
+      activated = true
+    )
+
+    lazy val application: Application = new GuiceApplicationBuilder()
+      .configure("outputDir" -> outputDir.toString)
+      .build()
+    lazy val queue: FileBuildQueue = application.injector.instanceOf[FileBuildQueue]
+    lazy val requestService: RequestService = application.injector.instanceOf[RequestService]
+    lazy val rid: Int = await(requestService.insert(DataRequest(
+      id = 0,
+      email = "user@facebook.com",
+      title = "title",
+      description = "desc",
+      status = 0,
+      pi = "pi",
+      phone = "0123456789",
+      cphs = "cphs")))
+
+    /**
+      * A job building a small csv upload, distinct from any other.
+      *
+      * @param fingerprint Fingerprint taken of the upload, or None for its actual fingerprint
+      * @param params Options submitted with the upload
+      * @return The job
+      */
+    def job(fingerprint: Option[String], params: Map[String, Seq[String]]): BuildJob = {
+      val table = new CsvTable
+      table.addRow(Seq("id", "name").asJava)
+      table.addRow(Seq("1", UUID.randomUUID().toString).asJava)
+      BuildJob(rid, UploadedCsv(table, fingerprint.getOrElse(ExcelChecksum.checksum(table)), 64L), params, user)
+    }
+
+    /**
+      * @return Names of the scratch directories of the builds
+      */
+    def scratchDirs: Seq[String] =
+      Option(outputDir.toFile.listFiles).getOrElse(Array.empty[File]).toSeq
+        .map(_.getName).filter(_.startsWith(FileBuildQueue.ScratchPrefix))
+  }
+}
@@ -0,0 +1,182 @@
+package models.daos
+
+import java.nio.file.Paths
+import java.sql.{Date, Timestamp}
+import java.util.UUID
+
+import models.tables.{DataRequestTable, RequestLogTable, RequestRequirementTable, UniqueFileTable}
+import models.{DataRequest, Page, RequestLog, RequestRequirement, UniqueFile}
+import org.specs2.specification.Scope
+import play.api.Application
+import play.api.db.slick.DatabaseConfigProvider
+import play.api.inject.guice.GuiceApplicationBuilder
+import play.api.test._
+import slick.driver.JdbcProfile
+import slick.lifted.TableQuery
+import utils.Constants
+
+/**
+  * Test case for the [[RequestDAO]] class.
+  */
+class RequestDAOSpec extends PlaySpecification {
+  sequential
+
+  /**
+    * A status the check added by withStatusCheck rejects.
+    */
+  private val RejectedStatus = 100
+
+  "The `replaceRequirements` method" should {
+    "keep the old requirements if the new ones cannot be inserted" in new Context {
+      new WithApplication(application) {
+        val rid = insertRequest()
+        await(requestDAO.addRequirements(Seq(RequestRequirement(rid, 1))))
+        await(requestDAO.replaceRequirements(rid, Seq(RequestRequirement(rid, 2), RequestRequirement(rid, 2)))) must throwA[Exception]
+        requirementsOf(rid) must be equalTo Seq((1, false))
+        statusOf(rid) must be equalTo constants.NEWREQUEST
+      }
+    }
+  }
+
+  "The `updateProgress` method" should {
+    "keep the old progress if the state cannot be updated" in new Context {
+      new WithApplication(application) {
+        val rid = insertRequest()
+        await(requestDAO.addRequirements(Seq(RequestRequirement(rid, 1), RequestRequirement(rid, 2))))
+        withStatusCheck {
+          await(requestDAO.updateProgress(rid, List(1, 2))) must throwA[Exception]
+        }
+        requirementsOf(rid) must be equalTo Seq((1, false), (2, false))
+        statusOf(rid) must be equalTo constants.NEWREQUEST
+      }
+    }
+  }
+
+  "The `setDeleted` method" should {
+    "keep the file if the state cannot be updated" in new Context {
+      new WithApplication(application) {
+        val rid = insertRequest()
+        await(requestDAO.storeFile(file(rid), constants.AWAITINGDOWNLOAD))
+        withStatusCheck {
+          await(requestDAO.setDeleted(rid, RejectedStatus)) must throwA[Exception]
+        }
+        filesOf(rid) must be equalTo Seq(false)
+        statusOf(rid) must be equalTo constants.AWAITINGDOWNLOAD
+      }
+    }
+  }
+
+  "The `storeFile` method" should {
+    "not insert the file if the state cannot be updated" in new Context {
+      new WithApplication(application) {
+        val rid = insertRequest()
+        withStatusCheck {
+          await(requestDAO.storeFile(file(rid), RejectedStatus)) must throwA[Exception]
+        }
+        filesOf(rid) must beEmpty
+        statusOf(rid) must be equalTo constants.NEWREQUEST
+      }
+    }
+  }
+
+  "The `find` method" should {
+    "page through requests by id without gaps or duplicates" in new Context {
+      new WithApplication(application) {
+        val rids = (1 to 5).map(_ => insertRequest())
+        val ids = pages(Option.empty[Int])(after => await(requestDAO.find(false, after, 2))).map(_.id)
+        ids must be equalTo ids.distinct.sorted
+        ids.filter(id => rids.contains(id)) must be equalTo rids
+      }
+    }
+  }
+
+  "The `getLog` method" should {
+    "page through log entries with the same time without gaps or duplicates" in new Context {
+      new WithApplication(application) {
+        val rid = insertRequest()
+        val time = new Timestamp(System.currentTimeMillis)
+        val later = new Timestamp(time.getTime + 1000)
+        val times = Seq(later, time, time, later, time, time, later)
+        insertLog(times.zipWithIndex.map { case (t, i) => RequestLog(0L, rid, "test", i.toString, t) })
+
+        val ids = pages(Option.empty[Long])(after => await(requestDAO.getLog(rid, after, 2))._1).map(_._1.id)
+        ids must be equalTo logIdsOf(rid)
+        ids must haveSize(times.size)
+      }
+    }
+  }
+
+  /**
+    * Fetch every page of a keyset paginated list.
+    *
+    * @param after Key of the last item of the previous page, if any
+    * @param page Fetches the page after a key
+    * @return The items of all pages, in order
+    */
+  private def pages[A, K](after: Option[K])(page: Option[K] => Page[A, K]): Seq[A] = {
+    val current = page(after)
+    current.items ++ current.next.fold(Seq.empty[A])(next => pages(Some(next))(page))
+  }
+
+  /**
+    * The context.
+    */
+  trait Context extends Scope {
+
+    lazy val application: Application = new GuiceApplicationBuilder().build()
+    lazy val requestDAO: RequestDAO = application.injector.instanceOf[RequestDAO]
+    lazy val constants: Constants = application.injector.instanceOf[Constants]
+    lazy val dbConfig = application.injector.instanceOf[DatabaseConfigProvider].get[JdbcProfile]
+
+    import dbConfig.driver.api._
+
+    def insertRequest(): Int = await(requestDAO.insert(DataRequest(
+      id = 0,
+      email = "user@facebook.com",
+      title = "title",
+      description = "desc",
+      status = constants.NEWREQUEST,
+      pi = "pi",
+      phone = "0123456789",
+      cphs = "cphs")))
+
+    def file(rid: Int) = {
+      val uniqueName = UUID.randomUUID().toString
+      UniqueFile(
+        isDeleted = false,
+        password = None,
+        fileLocation = Paths.get(System.getProperty("java.io.tmpdir"), s"$uniqueName.xlsx").toString,
+        uniqueName = uniqueName,
+        requestId = rid,
+        fileName = "data.xlsx",
+        dateCreated = new Date(System.currentTimeMillis))
+    }
+
+    /**
+      * Run a block while request states of READYTOSEND or RejectedStatus are rejected, so that the
+      * last write of a transaction setting one fails.
+      */
+    def withStatusCheck[T](block: => T): T = {
+      await(dbConfig.db.run(sqlu"""ALTER TABLE "request" ADD CONSTRAINT "request_status_test"
+        CHECK ("status" <> #${constants.READYTOSEND} AND "status" <> #$RejectedStatus) NOT VALID"""))
+      try block finally {
+        await(dbConfig.db.run(sqlu"""ALTER TABLE "request" DROP CONSTRAINT "request_status_test""""))
+      }
+    }
+
+    def statusOf(rid: Int): Int =
+      await(dbConfig.db.run(TableQuery[DataRequestTable].filter(_.id === rid).map(_.status).result.head))
+
+    def requirementsOf(rid: Int): Seq[(Int, Boolean)] =
+      await(dbConfig.db.run(TableQuery[RequestRequirementTable].filter(_.request === rid)
+        .sortBy(_.requirement).map(rr => (rr.requirement, rr.completed)).result))
+
+    def insertLog(entries: Seq[RequestLog]): Unit = await(dbConfig.db.run(TableQuery[RequestLogTable] ++= entries))
+
+    def logIdsOf(rid: Int): Seq[Long] =
+      await(dbConfig.db.run(TableQuery[RequestLogTable].filter(_.request === rid).sortBy(l => (l.time, l.id)).map(_.id).result))
+
+    def filesOf(rid: Int): Seq[Boolean] =
+      await(dbConfig.db.run(TableQuery[UniqueFileTable].filter(_.requestId === rid).map(_.isDeleted).result))
+  }
+}
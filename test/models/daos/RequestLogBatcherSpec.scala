@@ -0,0 +1,105 @@
+package models.daos
+
+import java.sql.Timestamp
+
+import models.tables.RequestLogTable
+import models.{DataRequest, RequestLog}
+import org.specs2.specification.Scope
+import play.api.Application
+import play.api.db.slick.DatabaseConfigProvider
+import play.api.inject.guice.GuiceApplicationBuilder
+import play.api.libs.concurrent.Execution.Implicits._
+import play.api.test._
+import slick.driver.JdbcProfile
+import slick.lifted.TableQuery
+
+import scala.concurrent.Future
+
+/**
+  * Test case for the [[RequestLogBatcher]] class.
+  */
+class RequestLogBatcherSpec extends PlaySpecification {
+  sequential
+
+  "The `append` method" should {
+    "insert the pending entries once logBatchSize entries are queued" in new Context("logBatchSize" -> 3, "logFlushInterval" -> "1h") {
+      new WithApplication(application) {
+        val rid = insertRequest()
+        val first = Seq("1", "2").map(text => batcher.append(entry(rid, text)))
+        first.exists(_.isCompleted) must beFalse
+        val last = batcher.append(entry(rid, "3"))
+        await(Future.sequence(first :+ last))
+        textsOf(rid) must be equalTo Seq("1", "2", "3")
+      }
+    }
+
+    "insert the pending entries every logFlushInterval" in new Context("logBatchSize" -> 100, "logFlushInterval" -> "100ms") {
+      new WithApplication(application) {
+        val rid = insertRequest()
+        await(batcher.append(entry(rid, "1")))
+        textsOf(rid) must be equalTo Seq("1")
+      }
+    }
+
+    "insert entries in the order they were queued, across batches" in new Context("logBatchSize" -> 2, "logFlushInterval" -> "1h") {
+      new WithApplication(application) {
+        val rid = insertRequest()
+        val texts = (1 to 7).map(_.toString)
+        val inserted = texts.map(text => batcher.append(entry(rid, text)))
+        await(batcher.flush())
+        await(Future.sequence(inserted))
+        textsOf(rid) must be equalTo texts
+      }
+    }
+
+    "insert the other entries of a batch holding an entry that cannot be inserted" in new Context("logBatchSize" -> 3, "logFlushInterval" -> "1h") {
+      new WithApplication(application) {
+        val rid = insertRequest()
+        val inserted = Seq("1", "x" * 5000, "3").map(text => batcher.append(entry(rid, text)))
+        await(batcher.flush())
+        inserted.map(result => await(result.map(_ => true).recover { case _ => false })) must be equalTo Seq(true, false, true)
+        textsOf(rid) must be equalTo Seq("1", "3")
+      }
+    }
+
+    "insert the pending entries when the application stops" in new Context("logBatchSize" -> 100, "logFlushInterval" -> "1h") {
+      val inserted = running(application) {
+        val pending = batcher.append(entry(insertRequest(), "1"))
+        pending.isCompleted must beFalse
+        pending
+      }
+      await(inserted) must be equalTo (())
+    }
+  }
+
+  /**
+    * The context.
+    *
+    * @param settings Configuration of the batcher
+    */
+  class Context(settings: (String, Any)*) extends Scope {
+
+    lazy val application: Application = new GuiceApplicationBuilder()
+      .configure(settings: _*)
+      .build()
+    lazy val batcher: RequestLogBatcher = application.injector.instanceOf[RequestLogBatcher]
+    lazy val dbConfig = application.injector.instanceOf[DatabaseConfigProvider].get[JdbcProfile]
+
+    import dbConfig.driver.api._
+
+    def insertRequest(): Int = await(application.injector.instanceOf[RequestDAO].insert(DataRequest(
+      id = 0,
+      email = "user@facebook.com",
+      title = "title",
+      description = "desc",
+      status = 0,
+      pi = "pi",
+      phone = "0123456789",
+      cphs = "cphs")))
+
+    def entry(rid: Int, text: String) = RequestLog(0L, rid, "test", text, new Timestamp(System.currentTimeMillis))
+
+    def textsOf(rid: Int): Seq[String] =
+      await(dbConfig.db.run(TableQuery[RequestLogTable].filter(_.request === rid).sortBy(_.id).map(_.text).result))
+  }
+}
@@ -0,0 +1,112 @@
+package edu.dartmouth.geisel.isidro.read;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Test;
+
+import edu.dartmouth.geisel.isidro.checksum.ExcelChecksum;
+import junit.framework.TestCase;
+
+/**
+ * @author Patrick Eads
+ */
+public class CellTypesTest extends TestCase
+{
+    @Test
+    public void testIsNumber()
+    {
+        for (final String number : Arrays.asList("0", "7", "-12", "3.25",
+                "0.5", "-0.001", "123456789012345"))
+        {
+            assertTrue("Canonical number should be numeric: " + number,
+                    CellTypes.isNumber(number));
+        }
+        for (final String text : Arrays.asList("", "-", "007", "1.50", "1.",
+                ".5", "+1", "1e5", "1,000", " 1", "1234567890123456", "NaN",
+                "12-34"))
+        {
+            assertFalse("Non-canonical number should stay text: " + text,
+                    CellTypes.isNumber(text));
+        }
+    }
+
+    @Test
+    public void testDates()
+    {
+        assertEquals("Serial date should match Excel's.", 42845,
+                CellTypes.toDateSerial("2017-04-20"));
+        assertEquals("Serial date should format back to the date.",
+                "2017-04-20", CellTypes.formatDate(42845));
+        assertEquals("Invalid date should stay text.", -1,
+                CellTypes.toDateSerial("2017-02-30"));
+        assertEquals("Date before 1900-03-01 should stay text.", -1,
+                CellTypes.toDateSerial("1900-01-01"));
+        assertEquals("Non-ISO date should stay text.", -1,
+                CellTypes.toDateSerial("04/20/2017"));
+    }
+
+    @Test
+    public void testInferColumns()
+    {
+        final List<List<String>> rows = Arrays.asList(
+                Arrays.asList("1", "2017-04-20", "TRUE", "a", "1"),
+                Arrays.asList("2.5", "", "FALSE", "b", "01"),
+                Arrays.asList("", "2017-04-21", "TRUE", "3"));
+
+        assertEquals("Column types should be inferred from values.",
+                Arrays.asList(ColumnType.NUMERIC, ColumnType.DATE,
+                        ColumnType.BOOLEAN, ColumnType.STRING,
+                        ColumnType.STRING, ColumnType.STRING),
+                Arrays.asList(CellTypes.inferColumns(rows, 6)));
+    }
+
+    @Test
+    public void testTypedRoundTrip() throws IOException,
+            NoSuchAlgorithmException, DataIntegrityMismatchException
+    {
+        final List<List<String>> data = new ArrayList<>();
+        data.add(Arrays.asList("id", "dob", "flag", "note"));
+        for (int i = 1; i < 30; i++)
+        {
+            data.add(Arrays.asList(i + ".75",
+                    i == 2 ? "" : String.format("1980-01-%02d", i),
+                    i % 2 == 0 ? "TRUE" : "FALSE", "x" + i));
+        }
+        data.add(Arrays.asList("0012", "unknown", "yes", "12"));
+
+        try (final WorkbookWriter writer = new WorkbookWriter(
+                new XSSFWorkbook(), "typed"))
+        {
+            writer.setTypedCells(true);
+            writer.setIntegrityMode(IntegrityMode.FULL);
+            for (final List<String> row : data)
+            {
+                writer.writeRow(row);
+            }
+
+            assertEquals("Typed sheet should keep the data fingerprint.",
+                    ExcelChecksum.checksum(data), writer.finish());
+            final Sheet sheet = writer.getWorkbook().getSheet("typed");
+            assertEquals("Header should stay text.", Cell.CELL_TYPE_STRING,
+                    sheet.getRow(0).getCell(0).getCellType());
+            assertEquals("Number should be numeric.", Cell.CELL_TYPE_NUMERIC,
+                    sheet.getRow(1).getCell(0).getCellType());
+            assertEquals("Date should be numeric.", Cell.CELL_TYPE_NUMERIC,
+                    sheet.getRow(1).getCell(1).getCellType());
+            assertEquals("Boolean should be boolean.", Cell.CELL_TYPE_BOOLEAN,
+                    sheet.getRow(2).getCell(2).getCellType());
+            assertEquals("Non-canonical number should stay text.",
+                    Cell.CELL_TYPE_STRING,
+                    sheet.getRow(30).getCell(0).getCellType());
+            assertEquals("Text in a typed column should read back as is.",
+                    "unknown", CellTypes.toText(sheet.getRow(30).getCell(1)));
+        }
+    }
+}
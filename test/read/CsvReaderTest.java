@@ -3,13 +3,21 @@
  */
 package edu.dartmouth.geisel.isidro.read;
 
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.List;
 
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.junit.Test;
 
+import edu.dartmouth.geisel.isidro.checksum.ExcelChecksum;
 import edu.dartmouth.geisel.isidro.util.TestUtils;
 import junit.framework.TestCase;
 
@@ -35,6 +43,72 @@ public class CsvReaderTest extends TestCase
         new DataIntegrityMismatchException("test");
     }
 
+    /**
+     * Test method for
+     * {@link edu.dartmouth.geisel.isidro.read.CsvReader#convert(String, Reader, OutputStream, int, IntegrityMode)}
+     * .
+     */
+    @Test
+    public void testConvert() // NOPMD - assert is handled in passed consumer.
+    {
+        TestUtils.walkCsvsPerformTestAction(file ->
+        {
+            final File xlsxFile = new File(file.getAbsolutePath() + ".xlsx");
+            try
+            {
+                try (final Reader reader = new FileReader(file);
+                        final OutputStream os = new FileOutputStream(xlsxFile))
+                {
+                    // a tiny window forces rows to be flushed while writing
+                    assertEquals("Fingerprint should match CSV contents.",
+                            ExcelChecksum.checksum(CsvReader.read(file)),
+                            CsvReader.convert(TestUtils.WORKSHEET_NAME,
+                                    reader, os, 2, IntegrityMode.FULL));
+                }
+
+                assertEquals("Converted contents should match CSV contents.",
+                        CsvReader.read(file), ExcelReader.read(xlsxFile));
+            } catch (final IOException | NoSuchAlgorithmException
+                    | DataIntegrityMismatchException e)
+            {
+                fail(e.getLocalizedMessage());
+            } finally
+            {
+                xlsxFile.delete();
+            }
+        });
+    }
+
+    /**
+     * Test method for
+     * {@link edu.dartmouth.geisel.isidro.read.CsvReader#getExcelWorkbook(String, List, IntegrityMode)}
+     * .
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testIntegrityModes() throws Exception
+    {
+        final List<List<String>> csvContents = CsvReader
+                .read(getClass().getResource("/newlines.csv").getFile());
+        for (final IntegrityMode mode : IntegrityMode.values())
+        {
+            final XSSFWorkbook workbook = new XSSFWorkbook();
+            final WorkbookWriter writer = new WorkbookWriter(workbook,
+                    TestUtils.WORKSHEET_NAME);
+            writer.setIntegrityMode(mode);
+            for (final List<String> row : csvContents)
+            {
+                writer.writeRow(row);
+            }
+            assertEquals("Fingerprint should not depend on integrity mode.",
+                    ExcelChecksum.checksum(csvContents), writer.finish());
+            assertEquals("Finishing again should return the same fingerprint.",
+                    ExcelChecksum.checksum(csvContents), writer.finish());
+            workbook.close();
+        }
+    }
+
     /**
      * Test method for
      * {@link edu.dartmouth.geisel.isidro.read.CsvReader#read(java.lang.String)}
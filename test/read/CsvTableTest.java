@@ -0,0 +1,104 @@
+package edu.dartmouth.geisel.isidro.read;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Patrick Eads
+ */
+public class CsvTableTest extends TestCase
+{
+    @Test
+    public void testRaggedRows()
+    {
+        final CsvTable table = new CsvTable();
+        table.addRow(Arrays.asList("a", "b", "c"));
+        table.addRow(Arrays.asList("1"));
+        table.addRow(new String[] { "2", "", "4", "5", "unused" }, 4);
+
+        assertEquals("Row count should match rows added.", 3,
+                table.getRowCount());
+        assertEquals("Column count should match widest row.", 4,
+                table.getColumnCount());
+        assertEquals("Row width should match cells added.", 1,
+                table.getRowWidth(1));
+        assertNull("Missing cell should be null.", table.get(1, 2));
+        assertEquals("List view should match rows added.",
+                Arrays.asList(Arrays.asList("a", "b", "c"), Arrays.asList("1"),
+                        Arrays.asList("2", "", "4", "5")),
+                table.asLists());
+    }
+
+    @Test
+    public void testDictionaryEncoding()
+    {
+        final CsvTable table = new CsvTable();
+        for (int i = 0; i < 10000; i++)
+        {
+            table.addRow(Arrays.asList(i % 2 == 0 ? "M" : "F",
+                    Integer.toString(i), "2017-04-" + (10 + i % 20)));
+        }
+
+        assertEquals("Repeated values should be stored once.", 2,
+                table.getDistinctCount(0));
+        assertEquals("Distinct values should fall back to plain storage.", -1,
+                table.getDistinctCount(1));
+        assertEquals("Repeated values should be stored once.", 20,
+                table.getDistinctCount(2));
+        for (int i = 0; i < 10000; i++)
+        {
+            assertEquals("Cell should match value added.",
+                    Integer.toString(i), table.get(i, 1));
+            assertEquals("Cell should match value added.",
+                    "2017-04-" + (10 + i % 20), table.getRow(i).get(2));
+        }
+    }
+
+    @Test
+    public void testNonHappyPath()
+    {
+        final CsvTable table = new CsvTable();
+        table.addRow(Arrays.asList("a"));
+        try
+        {
+            table.get(1, 0);
+            fail("Reading past the last row should fail.");
+        } catch (final IndexOutOfBoundsException e)
+        {
+            // an exception is expected
+        }
+        try
+        {
+            table.getRow(0).get(1);
+            fail("Reading past the last cell should fail.");
+        } catch (final IndexOutOfBoundsException e)
+        {
+            // an exception is expected
+        }
+    }
+
+    /**
+     * Test method for
+     * {@link edu.dartmouth.geisel.isidro.read.CsvReader#readTable(java.lang.String)}
+     * .
+     *
+     * @throws IOException
+     * @throws FileNotFoundException
+     */
+    @Test
+    public void testReadTable() throws FileNotFoundException, IOException
+    {
+        final CsvTable table = CsvReader
+                .readTable(getClass().getResource("/test.csv").getFile());
+        final List<List<String>> expected = CsvReaderTest.CSV_TEST_LIST;
+
+        assertEquals("Contents of CSV should match expected.", expected,
+                table.asLists());
+    }
+}
@@ -0,0 +1,111 @@
+package edu.dartmouth.geisel.isidro.read;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Patrick Eads
+ */
+public class CsvTokenizerTest extends TestCase
+{
+    /**
+     * Tokenize a String read as UTF-8 bytes.
+     *
+     * @param csv
+     *            CSV text.
+     * @return rows of the CSV.
+     * @throws IOException
+     */
+    private static List<List<String>> tokenize(final String csv)
+            throws IOException
+    {
+        final List<List<String>> rows = new ArrayList<>();
+        try (final CsvTokenizer tokenizer = new CsvTokenizer(
+                Channels.newChannel(new ByteArrayInputStream(
+                        csv.getBytes(StandardCharsets.UTF_8))),
+                StandardCharsets.UTF_8))
+        {
+            tokenizer.forEachRow((cells, count) -> rows
+                    .add(Arrays.asList(Arrays.copyOf(cells, count))));
+        }
+        return rows;
+    }
+
+    @Test
+    public void testQuoting() throws IOException
+    {
+        assertEquals("Quoted cells should keep separators and line breaks.",
+                Arrays.asList(Arrays.asList("a", "b", "c"),
+                        Arrays.asList("Once upon \r\na time", "5", "6"),
+                        Arrays.asList("1", "ha \"ha\" ha", "")),
+                tokenize("a,b,c\r\n\"Once upon \r\na time\",5,6\r\n"
+                        + "1,\"ha \"\"ha\"\" ha\",\r\n"));
+    }
+
+    @Test
+    public void testLineEnds() throws IOException
+    {
+        assertEquals("Empty lines should be skipped and all line ends read.",
+                Arrays.asList(Arrays.asList("\u00e9", ""),
+                        Arrays.asList("2", "x"), Arrays.asList("3", "")),
+                tokenize("\ufeff\u00e9,\n\n2,x\r3,"));
+    }
+
+    @Test
+    public void testLongCells() throws IOException
+    {
+        final StringBuilder longCell = new StringBuilder();
+        for (int i = 0; i < 100000; i++)
+        {
+            longCell.append((char) ('a' + i % 26));
+        }
+        final String text = longCell.toString();
+        assertEquals("Cells spanning buffers should be read whole.",
+                Arrays.asList(Arrays.asList(text, text + "\"", "1")),
+                tokenize(text + ",\"" + text + "\"\"\",1\n"));
+    }
+
+    @Test
+    public void testUnterminatedQuote()
+    {
+        try
+        {
+            tokenize("a,\"b\n");
+            fail("Unterminated quote should fail.");
+        } catch (final IOException e)
+        {
+            assertTrue("Error should name the line of the quote.",
+                    e.getMessage().contains("line 1"));
+        }
+    }
+
+    @Test
+    public void testPull() throws IOException
+    {
+        try (final CsvTokenizer tokenizer = new CsvTokenizer(
+                new StringReader("a,b\n1,2\n")))
+        {
+            assertTrue("First row should be pulled.", tokenizer.readRow());
+            assertEquals("Cells should be pulled by index.", "b",
+                    tokenizer.getCell(1));
+            final Iterator<List<String>> rows = tokenizer.rowIterator();
+            assertEquals("Iterator should continue after pulled rows.",
+                    Arrays.asList("1", "2"), rows.next());
+            assertFalse("Iterator should end with the input.",
+                    rows.hasNext());
+            assertEquals("Pulled and iterated rows should be counted.", 2,
+                    tokenizer.getRowCount());
+        }
+    }
+}
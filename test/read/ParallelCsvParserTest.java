@@ -0,0 +1,102 @@
+package edu.dartmouth.geisel.isidro.read;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Patrick Eads
+ */
+public class ParallelCsvParserTest extends TestCase
+{
+    /**
+     * Parse CSV text in small chunks and compare the rows with those of a
+     * sequential parse.
+     *
+     * @param csv
+     *            CSV text.
+     * @throws IOException
+     */
+    private static void assertSameRows(final String csv) throws IOException
+    {
+        final Path file = Files.createTempFile("isidro", ".csv");
+        try
+        {
+            Files.write(file, csv.getBytes(StandardCharsets.UTF_8));
+            final ForkJoinPool pool = new ForkJoinPool(4);
+            try
+            {
+                assertEquals("Parallel rows should match sequential rows.",
+                        CsvReader.read(file.toFile()),
+                        new ParallelCsvParser(pool, 16)
+                                .readTable(file, StandardCharsets.UTF_8)
+                                .asLists());
+            } finally
+            {
+                pool.shutdown();
+            }
+        } finally
+        {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testQuotedNewlines() throws IOException
+    {
+        final StringBuilder csv = new StringBuilder("id,note,n\r\n");
+        for (int i = 0; i < 200; i++)
+        {
+            csv.append(i).append(",\"line one\nline, \"\"two\"\"\n\",")
+                    .append("\u00e9").append(i).append("\r\n");
+            if (i % 7 == 0)
+            {
+                csv.append("\n");
+            }
+        }
+        assertSameRows(csv.toString());
+    }
+
+    @Test
+    public void testLongRecords() throws IOException
+    {
+        final StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < 20; i++)
+        {
+            csv.append("\"").append(String.format("%0200d", i))
+                    .append("\n\",x\n");
+        }
+        assertSameRows(csv.toString());
+    }
+
+    @Test
+    public void testStrayQuotes() throws IOException
+    {
+        final StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < 100; i++)
+        {
+            csv.append(i).append(",ab\"c,\"d\ne\"\n");
+        }
+        assertSameRows(csv.toString());
+    }
+
+    @Test
+    public void testSplittable()
+    {
+        assertTrue("UTF-8 should be splittable.",
+                ParallelCsvParser.isSplittable(StandardCharsets.UTF_8));
+        assertTrue("Latin-1 should be splittable.",
+                ParallelCsvParser.isSplittable(StandardCharsets.ISO_8859_1));
+        assertFalse("UTF-16 should not be splittable.",
+                ParallelCsvParser.isSplittable(StandardCharsets.UTF_16));
+        assertFalse("UTF-16LE should not be splittable.",
+                ParallelCsvParser.isSplittable(Charset.forName("UTF-16LE")));
+    }
+}
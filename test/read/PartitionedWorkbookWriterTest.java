@@ -0,0 +1,118 @@
+package edu.dartmouth.geisel.isidro.read;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Test;
+
+import edu.dartmouth.geisel.isidro.checksum.ExcelChecksum;
+import junit.framework.TestCase;
+
+/**
+ * @author Patrick Eads
+ */
+public class PartitionedWorkbookWriterTest extends TestCase
+{
+    @Test
+    public void testNames()
+    {
+        assertEquals("First column should be A.", "A",
+                PartitionedWorkbookWriter.columnName(0));
+        assertEquals("27th column should be AA.", "AA",
+                PartitionedWorkbookWriter.columnName(26));
+        assertEquals("Last column should be XFD.", "XFD",
+                PartitionedWorkbookWriter.columnName(16383));
+        assertEquals("First sheet should keep the name.", "isidro",
+                PartitionedWorkbookWriter.sheetName("isidro", 0));
+        assertEquals("Later sheets should be numbered.", "isidro_3",
+                PartitionedWorkbookWriter.sheetName("isidro", 2));
+        assertEquals("Long names should be shortened to fit.", 31,
+                PartitionedWorkbookWriter
+                        .sheetName("abcdefghijklmnopqrstuvwxyz0123456789", 9)
+                        .length());
+    }
+
+    @Test
+    public void testPartitionedRoundTrip() throws IOException,
+            NoSuchAlgorithmException, DataIntegrityMismatchException
+    {
+        final List<List<String>> data = new ArrayList<>();
+        data.add(Arrays.asList("id", "note"));
+        for (int i = 1; i <= 7; i++)
+        {
+            data.add(Arrays.asList(Integer.toString(i), " <a & b> " + i));
+        }
+
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (final PartitionedWorkbookWriter writer = new PartitionedWorkbookWriter(
+                "isidro", data, 3))
+        {
+            assertEquals("Data should be split into three sheets.",
+                    Arrays.asList("isidro", "isidro_2", "isidro_3"),
+                    writer.getSheetNames());
+            assertEquals("Combined fingerprint should match the data.",
+                    ExcelChecksum.checksum(data), writer.write(os));
+            assertEquals("Last sheet should hold the remaining row.",
+                    ExcelChecksum.checksum(
+                            Arrays.asList(data.get(0), data.get(7))),
+                    writer.getSheetChecksums().get(2));
+        }
+
+        try (final XSSFWorkbook workbook = new XSSFWorkbook(
+                new ByteArrayInputStream(os.toByteArray())))
+        {
+            assertEquals("Workbook should have three sheets.", 3,
+                    workbook.getNumberOfSheets());
+            for (int s = 0; s < 3; s++)
+            {
+                final Sheet sheet = workbook.getSheetAt(s);
+                assertEquals("Header should repeat on every sheet.", "id",
+                        sheet.getRow(0).getCell(0).getStringCellValue());
+            }
+            final Sheet second = workbook.getSheet("isidro_2");
+            assertEquals("Second sheet should continue the data.", "4",
+                    second.getRow(1).getCell(0).getStringCellValue());
+            assertEquals("Text should read back as is.", " <a & b> 6",
+                    second.getRow(3).getCell(1).getStringCellValue());
+        }
+    }
+
+    @Test
+    public void testEscapedTextSampled() throws IOException,
+            NoSuchAlgorithmException, DataIntegrityMismatchException
+    {
+        final List<List<String>> data = new ArrayList<>();
+        data.add(Arrays.asList("id", "note"));
+        for (int i = 1; i <= WorkbookWriter.SAMPLE_INTERVAL * 2; i++)
+        {
+            data.add(Arrays.asList(Integer.toString(i), "bell\u0007\r\n" + i));
+        }
+
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (final PartitionedWorkbookWriter writer = new PartitionedWorkbookWriter(
+                "isidro", data, WorkbookWriter.SAMPLE_INTERVAL + 1))
+        {
+            writer.setIntegrityMode(IntegrityMode.SAMPLED);
+            assertEquals("Combined fingerprint should match the data.",
+                    ExcelChecksum.checksum(data), writer.write(os));
+        }
+
+        try (final XSSFWorkbook workbook = new XSSFWorkbook(
+                new ByteArrayInputStream(os.toByteArray())))
+        {
+            final Sheet second = workbook.getSheet("isidro_2");
+            assertEquals("Escaped text should read back as is.",
+                    data.get(WorkbookWriter.SAMPLE_INTERVAL + 2).get(1),
+                    second.getRow(1).getCell(1).getStringCellValue());
+            assertEquals("Second sheet should hold the remaining rows.",
+                    WorkbookWriter.SAMPLE_INTERVAL - 1, second.getLastRowNum());
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package edu.dartmouth.geisel.isidro.read;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.crypto.MarshalException;
+import javax.xml.crypto.dsig.XMLSignatureException;
+
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.poifs.crypt.CipherAlgorithm;
+import org.apache.poi.poifs.crypt.Decryptor;
+import org.apache.poi.poifs.crypt.EncryptionInfo;
+import org.apache.poi.poifs.crypt.dsig.SignatureConfig;
+import org.apache.poi.poifs.crypt.dsig.SignatureInfo;
+import org.apache.poi.poifs.filesystem.POIFSFileSystem;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Test;
+
+import edu.dartmouth.geisel.isidro.checksum.ExcelChecksum;
+import edu.dartmouth.geisel.isidro.compress.CompressionProfile;
+import edu.dartmouth.geisel.isidro.encrypt.ExcelEncrypt;
+import edu.dartmouth.geisel.isidro.encrypt.ExcelEncryptImplTest;
+import edu.dartmouth.geisel.isidro.signature.CachedSigner;
+import edu.dartmouth.geisel.isidro.util.ScratchFiles;
+import edu.dartmouth.geisel.isidro.util.TestUtils;
+import junit.framework.TestCase;
+
+/**
+ * @author Patrick Eads
+ */
+public class WorkbookWriterTest extends TestCase
+{
+    /**
+     * Rows of a small sheet, more than one sample interval long.
+     *
+     * @return rows to write.
+     */
+    private static List<List<String>> rows()
+    {
+        final List<List<String>> data = new ArrayList<>();
+        data.add(Arrays.asList("id", "note"));
+        for (int i = 1; i <= WorkbookWriter.SAMPLE_INTERVAL + 5; i++)
+        {
+            data.add(Arrays.asList(Integer.toString(i), "note " + i));
+        }
+        return data;
+    }
+
+    /**
+     * Write the rows through a streaming writer holding all of them in
+     * memory, change one cell behind the writer's back and finish.
+     *
+     * @param mode
+     *            how the contents are verified.
+     * @param tamperedRow
+     *            index of the row whose first cell is changed.
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     * @throws DataIntegrityMismatchException
+     */
+    private static void writeTampered(final IntegrityMode mode,
+            final int tamperedRow) throws IOException,
+            NoSuchAlgorithmException, DataIntegrityMismatchException
+    {
+        try (final WorkbookWriter writer = WorkbookWriter
+                .streaming(TestUtils.WORKSHEET_NAME, 1000))
+        {
+            writer.setIntegrityMode(mode);
+            for (final List<String> row : rows())
+            {
+                writer.writeRow(row);
+            }
+            writer.getWorkbook().getSheet(TestUtils.WORKSHEET_NAME)
+                    .getRow(tamperedRow).getCell(0).setCellValue("tampered");
+            writer.finish();
+        }
+    }
+
+    /**
+     * Rows of text cells, spanning several row windows.
+     *
+     * @return rows to write.
+     */
+    private static List<List<String>> textRows()
+    {
+        final List<List<String>> data = new ArrayList<>();
+        data.add(Arrays.asList("id", "note"));
+        for (int i = 1; i <= 100; i++)
+        {
+            data.add(Arrays.asList("row " + i, "note <" + i + ">"));
+        }
+        return data;
+    }
+
+    /**
+     * Sign a written package as a build does, saving it or encrypting it.
+     *
+     * @param xlsx
+     *            written package.
+     * @param signer
+     *            signer of the package.
+     * @param encrypt
+     *            whether the signed package is encrypted.
+     * @return bytes of the signed package.
+     * @throws InvalidFormatException
+     * @throws IOException
+     * @throws GeneralSecurityException
+     * @throws XMLSignatureException
+     * @throws MarshalException
+     */
+    private static byte[] sign(final Path xlsx, final CachedSigner signer,
+            final boolean encrypt) throws InvalidFormatException, IOException,
+            GeneralSecurityException, XMLSignatureException, MarshalException
+    {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final OPCPackage pkg = OPCPackage.open(xlsx.toFile(),
+                PackageAccess.READ_WRITE);
+        try
+        {
+            signer.sign(pkg);
+            if (encrypt)
+            {
+                ExcelEncrypt.encrypt(pkg, os, ExcelEncryptImplTest.PASSWORD,
+                        CipherAlgorithm.aes256);
+            } else
+            {
+                pkg.save(os);
+            }
+        } finally
+        {
+            pkg.revert();
+        }
+        return os.toByteArray();
+    }
+
+    /**
+     * Decrypt an encrypted package.
+     *
+     * @param encrypted
+     *            bytes of the encrypted container.
+     * @return the decrypted package.
+     * @throws IOException
+     * @throws GeneralSecurityException
+     * @throws InvalidFormatException
+     */
+    private static OPCPackage decrypt(final byte[] encrypted)
+            throws IOException, GeneralSecurityException,
+            InvalidFormatException
+    {
+        final POIFSFileSystem fs = new POIFSFileSystem(
+                new ByteArrayInputStream(encrypted));
+        final Decryptor dec = new EncryptionInfo(fs).getDecryptor();
+        assertTrue("Password should decrypt the package.",
+                dec.verifyPassword(ExcelEncryptImplTest.PASSWORD));
+        try (final InputStream is = dec.getDataStream(fs))
+        {
+            return OPCPackage.open(is);
+        }
+    }
+
+    /**
+     * Check a package holds the given rows, and is signed if it should be.
+     * The package is reverted.
+     *
+     * @param message
+     *            what is checked.
+     * @param pkg
+     *            package to check.
+     * @param data
+     *            rows the package should hold.
+     * @param signed
+     *            whether the package should have a valid signature.
+     * @throws IOException
+     */
+    private static void assertPackage(final String message,
+            final OPCPackage pkg, final List<List<String>> data,
+            final boolean signed) throws IOException
+    {
+        try
+        {
+            if (signed)
+            {
+                final SignatureConfig sic = new SignatureConfig();
+                sic.setOpcPackage(pkg);
+                final SignatureInfo si = new SignatureInfo();
+                si.setSignatureConfig(sic);
+                assertTrue(message + " should have a valid signature.",
+                        si.verifySignature());
+            }
+            final Sheet sheet = new XSSFWorkbook(pkg)
+                    .getSheet(TestUtils.WORKSHEET_NAME);
+            assertEquals(message + " should hold every row.", data.size() - 1,
+                    sheet.getLastRowNum());
+            for (int r = 0; r < data.size(); r++)
+            {
+                for (int c = 0; c < data.get(r).size(); c++)
+                {
+                    assertEquals(message + " should hold the written text.",
+                            data.get(r).get(c), sheet.getRow(r).getCell(c)
+                                    .getStringCellValue());
+                }
+            }
+        } finally
+        {
+            pkg.revert();
+        }
+    }
+
+    @Test
+    public void testCompressionProfiles() throws IOException,
+            NoSuchAlgorithmException, DataIntegrityMismatchException,
+            InvalidFormatException, GeneralSecurityException,
+            XMLSignatureException, MarshalException
+    {
+        final List<List<String>> data = textRows();
+        final CachedSigner signer = new CachedSigner(
+                WorkbookWriterTest.class.getResource("/mykey.p12").getFile(),
+                ExcelEncryptImplTest.PASSWORD);
+        for (final CompressionProfile profile : CompressionProfile.values())
+        {
+            final Path xlsx = Files.createTempFile("isidro", ".xlsx");
+            try
+            {
+                try (final WorkbookWriter writer = WorkbookWriter
+                        .streaming(TestUtils.WORKSHEET_NAME, 10))
+                {
+                    writer.setCompression(profile);
+                    for (final List<String> row : data)
+                    {
+                        writer.writeRow(row);
+                    }
+                    writer.finish();
+                    try (final OutputStream os = Files.newOutputStream(xlsx))
+                    {
+                        writer.write(os);
+                    }
+                }
+
+                assertPackage(profile + " package",
+                        OPCPackage.open(xlsx.toFile(), PackageAccess.READ),
+                        data, false);
+                assertPackage(profile + " signed package",
+                        OPCPackage.open(new ByteArrayInputStream(
+                                sign(xlsx, signer, false))),
+                        data, true);
+                assertPackage(profile + " signed and encrypted package",
+                        decrypt(sign(xlsx, signer, true)), data, true);
+
+                final ByteArrayOutputStream encrypted =
+                        new ByteArrayOutputStream();
+                ExcelEncrypt.encrypt(xlsx, encrypted,
+                        ExcelEncryptImplTest.PASSWORD, CipherAlgorithm.aes256);
+                assertPackage(profile + " encrypted package",
+                        decrypt(encrypted.toByteArray()), data, false);
+            } finally
+            {
+                Files.delete(xlsx);
+            }
+        }
+    }
+
+    @Test
+    public void testScratchDirectory() throws IOException,
+            NoSuchAlgorithmException, DataIntegrityMismatchException
+    {
+        final Path dir = Files.createTempDirectory("isidro");
+        try
+        {
+            try (final ScratchFiles.Scope scope = ScratchFiles.enter(dir);
+                    final WorkbookWriter writer = WorkbookWriter
+                            .streaming(TestUtils.WORKSHEET_NAME, 1))
+            {
+                for (final List<String> row : textRows())
+                {
+                    writer.writeRow(row);
+                }
+                writer.finish();
+                assertEquals("Sheet rows should be flushed to a file in the"
+                        + " scratch directory.", 1, dir.toFile().list().length);
+            }
+            assertNull("Scratch directory should be left once closed.",
+                    ScratchFiles.getDirectory());
+            assertEquals("Sheet file should be deleted with the writer.", 0,
+                    dir.toFile().list().length);
+        } finally
+        {
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testCorruptedSheetFileFails() throws IOException,
+            NoSuchAlgorithmException
+    {
+        final Path dir = Files.createTempDirectory("isidro");
+        try
+        {
+            try (final ScratchFiles.Scope scope = ScratchFiles.enter(dir);
+                    final WorkbookWriter writer = WorkbookWriter
+                            .streaming(TestUtils.WORKSHEET_NAME, 1))
+            {
+                for (final List<String> row : textRows())
+                {
+                    writer.writeRow(row);
+                }
+                final File[] files = dir.toFile().listFiles();
+                assertEquals("Sheet rows should be flushed to one file.", 1,
+                        files.length);
+                final String xml = new String(
+                        Files.readAllBytes(files[0].toPath()),
+                        StandardCharsets.UTF_8);
+                final String corrupted = xml.replace(">row 3<", ">row X<");
+                assertFalse("A flushed cell should be corrupted.",
+                        corrupted.equals(xml));
+                Files.write(files[0].toPath(),
+                        corrupted.getBytes(StandardCharsets.UTF_8));
+                try
+                {
+                    writer.finish();
+                    fail("A cell corrupted in the sheet file should fail.");
+                } catch (final DataIntegrityMismatchException e)
+                {
+                    // an exception is expected
+                }
+            }
+        } finally
+        {
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testTamperedCellFails() throws IOException,
+            NoSuchAlgorithmException
+    {
+        try
+        {
+            writeTampered(IntegrityMode.FULL, 3);
+            fail("A cell changed before serialization should fail.");
+        } catch (final DataIntegrityMismatchException e)
+        {
+            // an exception is expected
+        }
+    }
+
+    @Test
+    public void testSampledVerification() throws IOException,
+            NoSuchAlgorithmException, DataIntegrityMismatchException
+    {
+        writeTampered(IntegrityMode.SAMPLED, 3);
+        writeTampered(IntegrityMode.OFF, 0);
+        try
+        {
+            writeTampered(IntegrityMode.SAMPLED,
+                    WorkbookWriter.SAMPLE_INTERVAL);
+            fail("A changed cell of a sampled row should fail.");
+        } catch (final DataIntegrityMismatchException e)
+        {
+            // an exception is expected
+        }
+    }
+
+    @Test
+    public void testEscapedText() throws IOException,
+            NoSuchAlgorithmException, DataIntegrityMismatchException
+    {
+        final List<List<String>> data = Arrays.asList(
+                Arrays.asList("carriage\r\nreturn", "bell\u0007"),
+                Arrays.asList("_x0041_", "smile \uD83D\uDE00"),
+                Arrays.asList(" <a & b> ", null));
+
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (final WorkbookWriter writer = WorkbookWriter
+                .streaming(TestUtils.WORKSHEET_NAME, 1))
+        {
+            for (final List<String> row : data)
+            {
+                writer.writeRow(row);
+            }
+            assertEquals("Fingerprint should match the escaped rows.",
+                    ExcelChecksum.checksum(data), writer.finish());
+            writer.write(os);
+        }
+
+        try (final XSSFWorkbook workbook = new XSSFWorkbook(
+                new ByteArrayInputStream(os.toByteArray())))
+        {
+            final Sheet sheet = workbook.getSheet(TestUtils.WORKSHEET_NAME);
+            for (int r = 0; r < 2; r++)
+            {
+                for (int c = 0; c < 2; c++)
+                {
+                    assertEquals("Escaped text should read back as is.",
+                            data.get(r).get(c), sheet.getRow(r).getCell(c)
+                                    .getStringCellValue());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package edu.dartmouth.geisel.isidro.signature;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.poifs.crypt.dsig.SignatureConfig;
+import org.apache.poi.poifs.crypt.dsig.SignatureInfo;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Test;
+
+import edu.dartmouth.geisel.isidro.encrypt.ExcelEncryptImplTest;
+import edu.dartmouth.geisel.isidro.read.CsvReader;
+import edu.dartmouth.geisel.isidro.read.DataIntegrityMismatchException;
+import edu.dartmouth.geisel.isidro.util.TestUtils;
+import junit.framework.TestCase;
+
+/**
+ * @author Patrick Eads
+ */
+public class CachedSignerTest extends TestCase
+{
+    /**
+     * @return copy of the test keystore in a temporary file.
+     * @throws IOException
+     */
+    private Path copyKeystore() throws IOException
+    {
+        final Path keystore = Files.createTempFile("isidro", ".p12");
+        Files.copy(Paths.get(getClass().getResource("/mykey.p12").getFile()),
+                keystore, StandardCopyOption.REPLACE_EXISTING);
+        return keystore;
+    }
+
+    @Test
+    public void testReload() throws IOException, GeneralSecurityException
+    {
+        final Path keystore = copyKeystore();
+        try
+        {
+            final CachedSigner signer = new CachedSigner(keystore.toString(),
+                    ExcelEncryptImplTest.PASSWORD);
+            final SigningKey key = signer.getKey();
+            assertSame("Key should be reused while the keystore is unchanged.",
+                    key, signer.getKey());
+
+            final File file = keystore.toFile();
+            assertTrue("Modification time of the keystore should be set.",
+                    file.setLastModified(file.lastModified() + 2000));
+            assertNotSame("Key should be reloaded when the keystore changes.",
+                    key, signer.getKey());
+        } finally
+        {
+            Files.delete(keystore);
+        }
+    }
+
+    @Test
+    public void testConcurrentSign() throws IOException,
+            InvalidFormatException, DataIntegrityMismatchException,
+            GeneralSecurityException, InterruptedException, ExecutionException
+    {
+        final ByteArrayOutputStream xlsx = new ByteArrayOutputStream();
+        final List<List<String>> data = Arrays.asList(
+                Arrays.asList("id", "name"), Arrays.asList("1", "a"));
+        try (final XSSFWorkbook workbook = CsvReader
+                .getExcelWorkbook(TestUtils.WORKSHEET_NAME, data))
+        {
+            workbook.write(xlsx);
+        }
+
+        final CachedSigner signer = new CachedSigner(
+                getClass().getResource("/mykey.p12").getFile(),
+                ExcelEncryptImplTest.PASSWORD);
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try
+        {
+            final List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++)
+            {
+                results.add(executor.submit(() -> {
+                    try (final OPCPackage pkg = OPCPackage.open(
+                            new ByteArrayInputStream(xlsx.toByteArray())))
+                    {
+                        signer.sign(pkg);
+                        final SignatureConfig sic = new SignatureConfig();
+                        sic.setOpcPackage(pkg);
+                        final SignatureInfo si = new SignatureInfo();
+                        si.setSignatureConfig(sic);
+                        return si.verifySignature();
+                    }
+                }));
+            }
+            for (final Future<Boolean> result : results)
+            {
+                assertTrue("Signature should be valid.", result.get());
+            }
+        } finally
+        {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package utils
+
+import org.specs2.mutable.Specification
+
+/**
+  * Test case for the [[ByteRange]] class.
+  */
+class ByteRangeSpec extends Specification {
+
+  "ByteRange.parse" should {
+    "parse a closed range" in {
+      ByteRange.parse("bytes=0-99", 1000) must beSome(ByteRange(0, 99))
+    }
+
+    "parse an open range to the end of the file" in {
+      ByteRange.parse("bytes=500-", 1000) must beSome(ByteRange(500, 999))
+    }
+
+    "parse a suffix range" in {
+      ByteRange.parse("bytes=-100", 1000) must beSome(ByteRange(900, 999))
+      ByteRange.parse("bytes=-5000", 1000) must beSome(ByteRange(0, 999))
+    }
+
+    "clamp a range past the end of the file" in {
+      ByteRange.parse("bytes=900-5000", 1000) must beSome(ByteRange(900, 999))
+    }
+
+    "return an unsatisfiable range starting past the end of the file" in {
+      ByteRange.parse("bytes=1000-", 1000).map(_.isSatisfiable(1000)) must beSome(false)
+      ByteRange.parse("bytes=-0", 1000).map(_.isSatisfiable(1000)) must beSome(false)
+    }
+
+    "ignore malformed and multiple ranges" in {
+      ByteRange.parse("bytes=-", 1000) must beNone
+      ByteRange.parse("bytes=99-0", 1000) must beNone
+      ByteRange.parse("items=0-99", 1000) must beNone
+      ByteRange.parse("bytes=0-99,200-299", 1000) must beNone
+    }
+  }
+}
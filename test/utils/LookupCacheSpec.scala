@@ -0,0 +1,69 @@
+package utils
+
+import org.specs2.mutable.Specification
+
+import scala.concurrent.ExecutionContext.Implicits.global
+import scala.concurrent.duration._
+import scala.concurrent.{ Await, Future }
+import scala.util.Success
+
+/**
+  * Test case for the [[LookupCache]] class.
+  */
+class LookupCacheSpec extends Specification {
+
+  "LookupCache" should {
+    "load a key once and count hits and misses" in {
+      val cache = new LookupCache[String, Int]("test", 10, 1.minute)
+      var loads = 0
+      def lookup = cache.get("a") { loads += 1; Future.successful(1) }
+
+      Await.result(lookup, 1.second) must be equalTo 1
+      Await.result(lookup, 1.second) must be equalTo 1
+      loads must be equalTo 1
+      cache.stats.hits must be equalTo 1
+      cache.stats.misses must be equalTo 1
+    }
+
+    "reload an invalidated key" in {
+      val cache = new LookupCache[String, Int]("test", 10, 1.minute)
+      cache.get("a")(Future.successful(1))
+      cache.invalidate("a")
+      Await.result(cache.get("a")(Future.successful(2)), 1.second) must be equalTo 2
+    }
+
+    "drop the entries matching a predicate" in {
+      val cache = new LookupCache[String, Int]("test", 10, 1.minute)
+      cache.get("a")(Future.successful(1))
+      cache.get("b")(Future.successful(2))
+      cache.invalidateIf(_ == 1)
+      cache.stats.size must be equalTo 1
+      Await.result(cache.get("b")(Future.successful(3)), 1.second) must be equalTo 2
+    }
+
+    "evict the least recently used entry" in {
+      val cache = new LookupCache[String, Int]("test", 2, 1.minute)
+      cache.get("a")(Future.successful(1))
+      cache.get("b")(Future.successful(2))
+      cache.get("a")(Future.successful(0))
+      cache.get("c")(Future.successful(3))
+      cache.stats.evictions must be equalTo 1
+      Await.result(cache.get("a")(Future.successful(0)), 1.second) must be equalTo 1
+      Await.result(cache.get("b")(Future.successful(4)), 1.second) must be equalTo 4
+    }
+
+    "reload an expired key" in {
+      val cache = new LookupCache[String, Int]("test", 10, Duration.Zero)
+      cache.get("a")(Future.successful(1))
+      Await.result(cache.get("a")(Future.successful(2)), 1.second) must be equalTo 2
+    }
+
+    "not keep a failed lookup" in {
+      val cache = new LookupCache[String, Int]("test", 10, 1.minute)
+      Await.ready(cache.get("a")(Future.failed(new RuntimeException("down"))), 1.second)
+      eventually {
+        cache.get("a")(Future.successful(1)).value must beSome(Success(1))
+      }
+    }
+  }
+}
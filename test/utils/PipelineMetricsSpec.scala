@@ -0,0 +1,62 @@
+package utils
+
+import models.daos.LookupCaches
+import org.specs2.mutable.Specification
+import play.api.Configuration
+import play.api.inject.DefaultApplicationLifecycle
+
+/**
+  * Test case for the [[PipelineMetrics]] class.
+  */
+class PipelineMetricsSpec extends Specification {
+
+  private def newMetrics = {
+    val constants = new Constants(Configuration("lookupCacheSize" -> 10, "lookupCacheTtl" -> "1m"))
+    new PipelineMetrics(new DownloadMetrics, new LookupCaches(constants), new DefaultApplicationLifecycle)
+  }
+
+  "PipelineMetrics" should {
+    "record the bytes and rows of a stage" in {
+      val metrics = newMetrics
+      metrics.time("parse")(_.in(100).out(40).processed(3)) must not beNull
+      val text = metrics.prometheus
+
+      text must contain("""isidro_stage_seconds_count{stage="parse"} 1""")
+      text must contain("""isidro_stage_seconds_bucket{stage="parse",le="+Inf"} 1""")
+      text must contain("""isidro_stage_bytes_in_total{stage="parse"} 100""")
+      text must contain("""isidro_stage_bytes_out_total{stage="parse"} 40""")
+      text must contain("""isidro_stage_rows_total{stage="parse"} 3""")
+    }
+
+    "count a failed stage and rethrow its error" in {
+      val metrics = newMetrics
+      metrics.time[Unit]("sign")(_ => throw new IllegalStateException("no key")) must throwA[IllegalStateException]
+      metrics.prometheus must contain("""isidro_stage_errors_total{stage="sign"} 1""")
+    }
+
+    "record a stage timed by its caller" in {
+      val metrics = newMetrics
+      metrics.record("sweep", 2000000000L, new PipelineMetrics.Recorder().in(512).processed(2))
+      val text = metrics.prometheus
+
+      text must contain("""isidro_stage_seconds_bucket{stage="sweep",le="1.0"} 0""")
+      text must contain("""isidro_stage_seconds_bucket{stage="sweep",le="2.5"} 1""")
+      text must contain("""isidro_stage_bytes_in_total{stage="sweep"} 512""")
+      text must contain("""isidro_stage_rows_total{stage="sweep"} 2""")
+    }
+
+    "read registered gauges" in {
+      val metrics = newMetrics
+      var depth = 1L
+      metrics.gauge("isidro_build_queue_depth", "Data file builds waiting for heap.")(depth)
+      depth = 3L
+      metrics.prometheus must contain("isidro_build_queue_depth 3")
+    }
+
+    "include download and cache statistics" in {
+      val text = newMetrics.prometheus
+      text must contain("isidro_download_bytes_total 0")
+      text must contain("""isidro_cache_hits_total{cache="requirements"} 0""")
+    }
+  }
+}
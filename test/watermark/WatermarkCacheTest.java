@@ -0,0 +1,69 @@
+package edu.dartmouth.geisel.isidro.watermark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.poi.xssf.usermodel.XSSFPictureData;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Test;
+
+import junit.framework.TestCase;
+
+/**
+ * @author Patrick Eads
+ */
+public class WatermarkCacheTest extends TestCase
+{
+    @Test
+    public void testSharedPicture() throws IOException
+    {
+        final File testImage = new File(
+                getClass().getResource("/test_image.png").getFile());
+        final WatermarkCache cache = new WatermarkCache(testImage);
+
+        try (final XSSFWorkbook workbook = new XSSFWorkbook())
+        {
+            workbook.createSheet("isidro");
+            workbook.createSheet("isidro_2");
+            cache.watermark(workbook, Arrays.asList("isidro", "isidro_2"));
+
+            final List<XSSFPictureData> pictures = workbook.getAllPictures();
+            assertEquals("Sheets should share one picture.", 1,
+                    pictures.size());
+            assertTrue("Picture should hold the image.",
+                    Arrays.equals(Files.readAllBytes(testImage.toPath()),
+                            pictures.get(0).getData()));
+        }
+    }
+
+    @Test
+    public void testReload() throws IOException
+    {
+        final Path image = Files.createTempFile("isidro", ".png");
+        try
+        {
+            Files.copy(Paths.get(
+                    getClass().getResource("/test_image.png").getFile()),
+                    image, StandardCopyOption.REPLACE_EXISTING);
+            final WatermarkCache cache = new WatermarkCache(image.toFile());
+            final WatermarkCache.Image loaded = cache.getImage();
+            assertSame("Image should be reused while the file is unchanged.",
+                    loaded, cache.getImage());
+
+            final File file = image.toFile();
+            assertTrue("Modification time of the image should be set.",
+                    file.setLastModified(file.lastModified() + 2000));
+            assertNotSame("Image should be reread when the file changes.",
+                    loaded, cache.getImage());
+        } finally
+        {
+            Files.delete(image);
+        }
+    }
+}